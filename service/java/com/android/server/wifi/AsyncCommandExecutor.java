@@ -0,0 +1,190 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.wifi;
+
+import android.os.Message;
+import android.os.SystemClock;
+
+import java.io.PrintWriter;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Runs supplicant commands on a worker thread so that state machines do not block on
+ * the control connection round trip.
+ *
+ * Commands run one at a time in submission order. At most maxInFlight commands may be
+ * queued or running; further submissions fail right away with a
+ * {@link RejectedExecutionException}. A command that waited longer than the timeout
+ * before it could start is not sent and fails with a {@link TimeoutException}; a command
+ * already sent cannot be abandoned, the supplicant connection has its own timeout.
+ *
+ * Results are available from the returned {@link Future}, or delivered as the obj of a
+ * {@link Message} (null on failure) for callers that live on a Handler.
+ * {@hide}
+ */
+class AsyncCommandExecutor {
+
+    /* The worker thread goes away when idle for this long */
+    private static final long IDLE_TIMEOUT_MS = 30 * 1000;
+
+    private final String mName;
+    private final int mMaxInFlight;
+    private final long mTimeoutMs;
+    private final ThreadPoolExecutor mExecutor;
+    private final AtomicInteger mInFlight = new AtomicInteger();
+
+    // Statistics, since creation. Failed counts all commands without a result
+    private final AtomicLong mSubmitted = new AtomicLong();
+    private final AtomicLong mRejected = new AtomicLong();
+    private final AtomicLong mExpired = new AtomicLong();
+    private final AtomicLong mFailed = new AtomicLong();
+    private final AtomicLong mQueueMsSum = new AtomicLong();
+    private final AtomicLong mRunMsSum = new AtomicLong();
+    private volatile long mMaxQueueMs;
+    private volatile long mMaxRunMs;
+
+    private class CommandTask<V> extends FutureTask<V> {
+        private final long mSubmittedAt = SystemClock.elapsedRealtime();
+        private final Message mReply;
+
+        CommandTask(Callable<V> command, Message reply) {
+            super(command);
+            mReply = reply;
+        }
+
+        /*
+         * The executor calls this once for every task it accepted, cancelled or not, so
+         * the in flight slot taken by submit() is released here, when the task leaves
+         * the queue and is done running.
+         */
+        @Override
+        public void run() {
+            try {
+                if (isCancelled()) return;
+                long start = SystemClock.elapsedRealtime();
+                long queued = start - mSubmittedAt;
+                mQueueMsSum.addAndGet(queued);
+                if (queued > mMaxQueueMs) mMaxQueueMs = queued;
+                if (queued > mTimeoutMs) {
+                    mExpired.incrementAndGet();
+                    setException(new TimeoutException(mName + " command waited "
+                            + queued + "ms"));
+                    return;
+                }
+                super.run();
+                long ran = SystemClock.elapsedRealtime() - start;
+                mRunMsSum.addAndGet(ran);
+                if (ran > mMaxRunMs) mMaxRunMs = ran;
+            } finally {
+                mInFlight.decrementAndGet();
+            }
+        }
+
+        void reject(Exception e) {
+            setException(e);
+        }
+
+        @Override
+        protected void done() {
+            Object result = null;
+            try {
+                result = get();
+            } catch (Exception e) {
+                mFailed.incrementAndGet();
+            }
+            if (mReply != null) {
+                mReply.obj = result;
+                mReply.sendToTarget();
+            }
+        }
+    }
+
+    AsyncCommandExecutor(final String name, int maxInFlight, long timeoutMs) {
+        mName = name;
+        mMaxInFlight = maxInFlight;
+        mTimeoutMs = timeoutMs;
+        mExecutor = new ThreadPoolExecutor(1, 1, IDLE_TIMEOUT_MS, TimeUnit.MILLISECONDS,
+                new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+                    @Override
+                    public Thread newThread(Runnable r) {
+                        return new Thread(r, name);
+                    }
+                });
+        mExecutor.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * @return the pending result of command
+     */
+    <V> Future<V> submit(Callable<V> command) {
+        return submit(command, null);
+    }
+
+    /**
+     * Runs command and then sends reply with the result in obj, null if it failed.
+     * The reply is also sent, with a null obj, if the command is rejected.
+     */
+    <V> Future<V> submit(Callable<V> command, Message reply) {
+        CommandTask<V> task = new CommandTask<V>(command, reply);
+        mSubmitted.incrementAndGet();
+        if (mInFlight.incrementAndGet() > mMaxInFlight) {
+            mRejected.incrementAndGet();
+            rejectTask(task);
+            return task;
+        }
+        try {
+            mExecutor.execute(task);
+        } catch (RejectedExecutionException e) {
+            mRejected.incrementAndGet();
+            rejectTask(task);
+        }
+        return task;
+    }
+
+    private void rejectTask(CommandTask<?> task) {
+        // The task never reaches run(), release its slot here; done() sends the reply
+        mInFlight.decrementAndGet();
+        task.reject(new RejectedExecutionException(mName + " has "
+                + mMaxInFlight + " commands in flight"));
+    }
+
+    int getInFlight() {
+        return mInFlight.get();
+    }
+
+    void dump(PrintWriter pw) {
+        long submitted = mSubmitted.get();
+        long ran = Math.max(1, submitted - mRejected.get() - mExpired.get());
+        pw.println(mName + " inFlight=" + mInFlight.get() + "/" + mMaxInFlight
+                + " submitted=" + submitted
+                + " rejected=" + mRejected.get()
+                + " expired=" + mExpired.get()
+                + " failed=" + mFailed.get()
+                + " queue avg/max=" + mQueueMsSum.get() / ran + "/" + mMaxQueueMs + "ms"
+                + " run avg/max=" + mRunMsSum.get() / ran + "/" + mMaxRunMs + "ms");
+    }
+}
@@ -0,0 +1,252 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.wifi;
+
+import android.net.wifi.ScanResult;
+import android.net.wifi.WifiSsid;
+
+/**
+ * Single pass parser for the pages returned by the supplicant "BSS RANGE=" command,
+ * see {@link WifiNative#scanResults(int)}.
+ *
+ * Each page is walked once, line by line. Numeric fields are decoded in place and the
+ * string fields are only recorded as offsets into the page, so that no intermediate
+ * String is created for a line unless the caller asks for it.
+ *
+ * The parser is not thread safe and is meant to be reused across scans.
+ * {@hide}
+ */
+class BssRangeParser {
+
+    /**
+     * Called once per complete BSS entry. The entry accessors are only valid
+     * for the duration of the call.
+     */
+    interface Callback {
+        void onBssEntry(BssRangeParser entry);
+    }
+
+    /** Returned by {@link #parsePage} when there are no more pages to fetch */
+    static final int NO_MORE_PAGES = -1;
+
+    private static final String ID_STR = "id=";
+    private static final String BSSID_STR = "bssid=";
+    private static final String FREQ_STR = "freq=";
+    private static final String LEVEL_STR = "level=";
+    private static final String TSF_STR = "tsf=";
+    private static final String FLAGS_STR = "flags=";
+    private static final String SSID_STR = "ssid=";
+    private static final String DELIMITER_STR = "====";
+    private static final String END_STR = "####";
+
+    private String mPage;
+    private char[] mScratch = new char[64];
+
+    private int mId;
+    private int mFrequency;
+    private int mLevel;
+    private long mTsf;
+    private int mBssidStart;
+    private int mBssidEnd;
+    private int mFlagsStart;
+    private int mFlagsEnd;
+    private int mSsidStart;
+    private int mSsidEnd;
+
+    /**
+     * Parse one page and report every complete entry to the callback.
+     *
+     * @return the id to pass to the next "BSS RANGE=" request, or {@link #NO_MORE_PAGES}
+     * if the page was terminated by the end marker or did not contain any entry.
+     */
+    int parsePage(String page, Callback callback) {
+        mPage = page;
+        resetEntry();
+
+        int lastId = -1;
+        boolean reachedEnd = false;
+        final int length = page.length();
+        int start = 0;
+        while (start < length) {
+            int end = page.indexOf('\n', start);
+            if (end < 0) end = length;
+
+            if (page.startsWith(BSSID_STR, start)) {
+                mBssidStart = start + BSSID_STR.length();
+                mBssidEnd = end;
+            } else if (page.startsWith(FREQ_STR, start)) {
+                mFrequency = (int) parseLong(page, start + FREQ_STR.length(), end, 0);
+            } else if (page.startsWith(LEVEL_STR, start)) {
+                mLevel = (int) parseLong(page, start + LEVEL_STR.length(), end, 0);
+                /* some implementations avoid negative values by adding 256
+                 * so we need to adjust for that here.
+                 */
+                if (mLevel > 0) mLevel -= 256;
+            } else if (page.startsWith(TSF_STR, start)) {
+                mTsf = parseLong(page, start + TSF_STR.length(), end, 0);
+            } else if (page.startsWith(FLAGS_STR, start)) {
+                mFlagsStart = start + FLAGS_STR.length();
+                mFlagsEnd = end;
+            } else if (page.startsWith(SSID_STR, start)) {
+                mSsidStart = start + SSID_STR.length();
+                mSsidEnd = end;
+            } else if (page.startsWith(ID_STR, start)) {
+                mId = (int) parseLong(page, start + ID_STR.length(), end, -1);
+                if (mId >= 0) lastId = mId;
+            } else if (page.startsWith(DELIMITER_STR, start)) {
+                if (mBssidStart >= 0) callback.onBssEntry(this);
+                resetEntry();
+            } else if (page.startsWith(END_STR, start)) {
+                if (mBssidStart >= 0) callback.onBssEntry(this);
+                resetEntry();
+                reachedEnd = true;
+                break;
+            }
+            start = end + 1;
+        }
+
+        mPage = null;
+        if (reachedEnd || lastId < 0) return NO_MORE_PAGES;
+        return lastId + 1;
+    }
+
+    private void resetEntry() {
+        mId = -1;
+        mFrequency = 0;
+        mLevel = 0;
+        mTsf = 0;
+        mBssidStart = mBssidEnd = -1;
+        mFlagsStart = mFlagsEnd = -1;
+        mSsidStart = mSsidEnd = -1;
+    }
+
+    int getId() {
+        return mId;
+    }
+
+    int getFrequency() {
+        return mFrequency;
+    }
+
+    int getLevel() {
+        return mLevel;
+    }
+
+    long getTsf() {
+        return mTsf;
+    }
+
+    /**
+     * A BSSID is valid if it is not empty and has at least one non-zero digit,
+     * supplicant sometimes reports entries with a null BSSID.
+     */
+    boolean hasValidBssid() {
+        for (int i = mBssidStart; i < mBssidEnd; i++) {
+            char c = mPage.charAt(i);
+            if ((c >= '1' && c <= '9') || (c >= 'a' && c <= 'f') || (c >= 'A' && c <= 'F')) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    String getBssid() {
+        return copyOf(mBssidStart, mBssidEnd);
+    }
+
+    /**
+     * @return the BSSID packed into a long, or ScanResultCache.INVALID_BSSID
+     */
+    long getPackedBssid() {
+        return ScanResultCache.parseBssid(mPage, mBssidStart, mBssidEnd);
+    }
+
+    /**
+     * Look up this entry in a cache keyed by packed BSSID and raw (supplicant encoded) SSID,
+     * without creating any String.
+     */
+    ScanResult findIn(ScanResultCache cache) {
+        if (mSsidStart < 0) return cache.get(getPackedBssid(), "");
+        return cache.get(getPackedBssid(), mPage, mSsidStart, mSsidEnd);
+    }
+
+    /**
+     * @return the SSID as encoded by supplicant, which is the key used by {@link #findIn}
+     */
+    String getRawSsid() {
+        if (mSsidStart < 0) return "";
+        return copyOf(mSsidStart, mSsidEnd);
+    }
+
+    /**
+     * @return the flags, interned through {@link ScanResultCapabilities}
+     */
+    String getFlags() {
+        if (mFlagsStart < 0) return "";
+        return ScanResultCapabilities.intern(mPage, mFlagsStart, mFlagsEnd);
+    }
+
+    /**
+     * Compare the flags of this entry against capabilities without copying them.
+     */
+    boolean flagsEqual(String capabilities) {
+        if (capabilities == null) return false;
+        if (mFlagsStart < 0) return capabilities.isEmpty();
+        int length = mFlagsEnd - mFlagsStart;
+        return capabilities.length() == length
+                && mPage.regionMatches(mFlagsStart, capabilities, 0, length);
+    }
+
+    WifiSsid getWifiSsid() {
+        if (mSsidStart < 0) return null;
+        return WifiSsid.createFromAsciiEncoded(mPage.substring(mSsidStart, mSsidEnd));
+    }
+
+    /**
+     * The strings handed out end up in long lived ScanResult objects, so make compact
+     * copies rather than substrings which would keep the whole page alive
+     * (one example b/11087956 wasted 400k of heap here).
+     */
+    private String copyOf(int start, int end) {
+        int length = end - start;
+        if (length > mScratch.length) {
+            mScratch = new char[length];
+        }
+        mPage.getChars(start, end, mScratch, 0);
+        return new String(mScratch, 0, length);
+    }
+
+    /**
+     * Decode a decimal number in place, returns defaultValue if the field is malformed.
+     */
+    private static long parseLong(String s, int start, int end, long defaultValue) {
+        if (start >= end) return defaultValue;
+        boolean negative = false;
+        if (s.charAt(start) == '-') {
+            negative = true;
+            start++;
+            if (start >= end) return defaultValue;
+        }
+        long value = 0;
+        for (int i = start; i < end; i++) {
+            char c = s.charAt(i);
+            if (c < '0' || c > '9') return defaultValue;
+            value = value * 10 + (c - '0');
+        }
+        return negative ? -value : value;
+    }
+}
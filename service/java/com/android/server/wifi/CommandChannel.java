@@ -0,0 +1,153 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.wifi;
+
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Serializes the supplicant commands issued for one interface.
+ *
+ * All interfaces share the single control connection to wpa_supplicant, which handles
+ * one request at a time, so commands still go out one by one. What the channels change
+ * is who waits for whom: callers first queue on the FIFO lock of their interface, and
+ * only the head of each interface queue then competes for the connection, on a FIFO
+ * lock as well. A burst of commands on p2p0 therefore delays a wlan0 command by at most
+ * the one p2p0 command in flight instead of by the whole burst, and the interfaces take
+ * turns while both are busy.
+ *
+ * The connection lock is also what serializes writers of the WifiNative command log.
+ * {@hide}
+ */
+class CommandChannel {
+
+    /* Guards the supplicant control connection shared by all channels */
+    private static final ReentrantLock sConnectionLock = new ReentrantLock(true);
+
+    private static final HashMap<String, CommandChannel> sChannels =
+            new HashMap<String, CommandChannel>();
+
+    /* Only accessed with sConnectionLock held */
+    private static int sCommandId;
+
+    private final String mInterfaceName;
+    private final ReentrantLock mLock = new ReentrantLock(true);
+
+    private long mAcquiredAt;
+
+    // Statistics, written with both locks held
+    private volatile long mCommands;
+    private volatile long mWaitNanos;
+    private volatile long mMaxWaitNanos;
+    private volatile long mConnectionWaitNanos;
+    private volatile long mMaxConnectionWaitNanos;
+    private volatile long mHoldNanos;
+    private volatile long mMaxHoldNanos;
+    private volatile int mMaxWaiters;
+
+    private CommandChannel(String interfaceName) {
+        mInterfaceName = interfaceName;
+    }
+
+    /**
+     * @return the channel of interfaceName, created on first use
+     */
+    static CommandChannel forInterface(String interfaceName) {
+        synchronized (sChannels) {
+            CommandChannel channel = sChannels.get(interfaceName);
+            if (channel == null) {
+                channel = new CommandChannel(interfaceName);
+                sChannels.put(interfaceName, channel);
+            }
+            return channel;
+        }
+    }
+
+    /**
+     * Waits for the turn of this interface and for the supplicant connection. Calls may
+     * nest, every call must be matched by a {@link #release} in a finally block.
+     */
+    void acquire() {
+        long start = System.nanoTime();
+        int waiters = mLock.getQueueLength();
+        mLock.lock();
+        long interfaceTurn = System.nanoTime();
+        sConnectionLock.lock();
+        if (mLock.getHoldCount() > 1) return;
+
+        long now = System.nanoTime();
+        mAcquiredAt = now;
+        mCommands++;
+        long wait = now - start;
+        mWaitNanos += wait;
+        if (wait > mMaxWaitNanos) mMaxWaitNanos = wait;
+        long connectionWait = now - interfaceTurn;
+        mConnectionWaitNanos += connectionWait;
+        if (connectionWait > mMaxConnectionWaitNanos) mMaxConnectionWaitNanos = connectionWait;
+        if (waiters > mMaxWaiters) mMaxWaiters = waiters;
+    }
+
+    void release() {
+        if (mLock.getHoldCount() == 1) {
+            long hold = System.nanoTime() - mAcquiredAt;
+            mHoldNanos += hold;
+            if (hold > mMaxHoldNanos) mMaxHoldNanos = hold;
+        }
+        sConnectionLock.unlock();
+        mLock.unlock();
+    }
+
+    /**
+     * @return the number of turns taken on this channel, commands sent within one turn
+     *         (e.g. the writes of a network) count once
+     */
+    long getTurnCount() {
+        return mCommands;
+    }
+
+    /**
+     * @return a new id for the command log, the caller must hold a channel
+     */
+    static int nextCommandId() {
+        return sCommandId++;
+    }
+
+    static void dump(PrintWriter pw) {
+        ArrayList<CommandChannel> channels;
+        synchronized (sChannels) {
+            channels = new ArrayList<CommandChannel>(sChannels.values());
+        }
+        pw.println("Supplicant command channels (wait avg/max, connection wait avg/max,"
+                + " hold avg/max in us):");
+        for (CommandChannel channel : channels) {
+            long commands = channel.mCommands;
+            long n = Math.max(commands, 1);
+            pw.println("  " + channel.mInterfaceName
+                    + " commands=" + commands
+                    + " waiters=" + channel.mLock.getQueueLength()
+                    + " maxWaiters=" + channel.mMaxWaiters
+                    + " wait=" + channel.mWaitNanos / n / 1000
+                    + "/" + channel.mMaxWaitNanos / 1000
+                    + " connectionWait=" + channel.mConnectionWaitNanos / n / 1000
+                    + "/" + channel.mMaxConnectionWaitNanos / 1000
+                    + " hold=" + channel.mHoldNanos / n / 1000
+                    + "/" + channel.mMaxHoldNanos / 1000);
+        }
+    }
+}
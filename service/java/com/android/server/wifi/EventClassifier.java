@@ -0,0 +1,115 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.wifi;
+
+/**
+ * Maps supplicant event strings to event ids with a prefix trie, built once, so that an
+ * event is classified in a single pass over its leading characters whatever the number
+ * of known events.
+ *
+ * The longest registered prefix matching the event wins. A prefix added with
+ * {@link #addToken} only matches when followed by a space or the end of the event, like
+ * the name of a CTRL-EVENT-* event; one added with {@link #addPrefix} matches whatever
+ * follows, like a startsWith() check.
+ *
+ * Classification does not allocate and is thread safe once all prefixes were added.
+ * {@hide}
+ */
+class EventClassifier {
+
+    static final int NO_MATCH = -1;
+
+    private static class Node {
+        char[] keys = new char[0];
+        Node[] children = new Node[0];
+        int id = NO_MATCH;
+        boolean wholeToken;
+
+        Node child(char c) {
+            char[] k = keys;
+            for (int i = 0; i < k.length; i++) {
+                if (k[i] == c) return children[i];
+            }
+            return null;
+        }
+
+        Node addChild(char c) {
+            Node child = child(c);
+            if (child != null) return child;
+            int n = keys.length;
+            char[] newKeys = new char[n + 1];
+            Node[] newChildren = new Node[n + 1];
+            System.arraycopy(keys, 0, newKeys, 0, n);
+            System.arraycopy(children, 0, newChildren, 0, n);
+            newKeys[n] = c;
+            newChildren[n] = child = new Node();
+            keys = newKeys;
+            children = newChildren;
+            return child;
+        }
+    }
+
+    private final Node mRoot = new Node();
+
+    /**
+     * Events starting with prefix are classified as id.
+     */
+    EventClassifier addPrefix(String prefix, int id) {
+        add(prefix, id, false);
+        return this;
+    }
+
+    /**
+     * Events starting with token followed by a space, or made of token only, are
+     * classified as id.
+     */
+    EventClassifier addToken(String token, int id) {
+        add(token, id, true);
+        return this;
+    }
+
+    private void add(String prefix, int id, boolean wholeToken) {
+        Node node = mRoot;
+        for (int i = 0; i < prefix.length(); i++) {
+            node = node.addChild(prefix.charAt(i));
+        }
+        if (node.id != NO_MATCH) {
+            throw new IllegalArgumentException("duplicate prefix " + prefix);
+        }
+        node.id = id;
+        node.wholeToken = wholeToken;
+    }
+
+    /**
+     * @return the id of the longest prefix of event, or {@link #NO_MATCH}
+     */
+    int classify(String event) {
+        int length = event.length();
+        int result = NO_MATCH;
+        Node node = mRoot;
+        for (int i = 0; ; i++) {
+            if (node.id != NO_MATCH
+                    && (!node.wholeToken || i == length || event.charAt(i) == ' ')) {
+                result = node.id;
+            }
+            if (i == length) break;
+            node = node.child(event.charAt(i));
+            if (node == null) break;
+        }
+        return result;
+    }
+}
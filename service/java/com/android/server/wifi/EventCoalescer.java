@@ -0,0 +1,217 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.wifi;
+
+import android.os.Handler;
+
+import java.io.PrintWriter;
+import java.util.ArrayList;
+
+/**
+ * Holds back the messages of bursty supplicant events for a bounded delay, so that a burst
+ * reaches the state machine as a few messages rather than one per event.
+ *
+ * Each coalesced message type has a policy:
+ * LATEST_WINS keeps one pending message of the type, carrying the latest object;
+ * MERGE keeps one pending message per key, e.g. per peer address;
+ * PASS_THROUGH sends every message right away, but still counts them.
+ *
+ * Pending messages are sent, in the order they were first queued, when the delay expires
+ * or when {@link #flush} is called; WifiMonitor flushes before sending the message of any
+ * other event, so that coalescing never reorders a message after a later event.
+ * They are dropped by {@link #clear} when the monitor stops, and the messages sent after it
+ * are dropped too until {@link #start}: the monitor thread may still be dispatching an event
+ * it took before the monitor stopped.
+ * A delay of 0 disables coalescing.
+ * {@hide}
+ */
+class EventCoalescer {
+
+    static final int PASS_THROUGH = 0;
+    static final int LATEST_WINS  = 1;
+    static final int MERGE        = 2;
+
+    private static class Policy {
+        final int what;
+        final String name;
+        final int policy;
+        long received;
+        long delivered;
+
+        Policy(int what, String name, int policy) {
+            this.what = what;
+            this.name = name;
+            this.policy = policy;
+        }
+    }
+
+    private static class Pending {
+        final Policy policy;
+        final Object key;
+        Object obj;
+        /* Of the first event coalesced into this message */
+        final long receivedNanos;
+
+        Pending(Policy policy, Object key, Object obj, long receivedNanos) {
+            this.policy = policy;
+            this.key = key;
+            this.obj = obj;
+            this.receivedNanos = receivedNanos;
+        }
+    }
+
+    private final EventDeliveryTracker mTracker;
+    private final long mDelayMs;
+    private final ArrayList<Policy> mPolicies = new ArrayList<Policy>();
+    private final ArrayList<Pending> mPending = new ArrayList<Pending>();
+    private boolean mFlushScheduled;
+    private long mFlushes;
+    private long mCleared;
+    /* Set by clear(), until start() */
+    private boolean mStopped;
+
+    private final Runnable mFlushRunnable = new Runnable() {
+        @Override
+        public void run() {
+            synchronized (EventCoalescer.this) {
+                mFlushScheduled = false;
+                flush();
+            }
+        }
+    };
+
+    EventCoalescer(EventDeliveryTracker tracker, long delayMs) {
+        mTracker = tracker;
+        mDelayMs = delayMs;
+    }
+
+    /**
+     * Sets the policy of the messages of type what; must be called before the first send.
+     */
+    EventCoalescer setPolicy(int what, String name, int policy) {
+        mPolicies.add(new Policy(what, name, policy));
+        return this;
+    }
+
+    /**
+     * Sends, or holds back, a message of a type with a policy.
+     * @param key identifies the messages merged together under the MERGE policy
+     * @param receivedNanos when the event of the message was received
+     */
+    synchronized void send(int what, Object key, Object obj, long receivedNanos) {
+        Policy policy = getPolicy(what);
+        policy.received++;
+        if (mStopped) {
+            mCleared++;
+            return;
+        }
+        if (policy.policy == PASS_THROUGH || mDelayMs <= 0) {
+            flush();
+            deliver(policy, obj, receivedNanos);
+            return;
+        }
+
+        for (int i = 0; i < mPending.size(); i++) {
+            Pending pending = mPending.get(i);
+            if (pending.policy == policy
+                    && (policy.policy == LATEST_WINS || sameKey(pending.key, key))) {
+                pending.obj = obj;
+                return;
+            }
+        }
+        mPending.add(new Pending(policy, key, obj, receivedNanos));
+
+        if (!mFlushScheduled) {
+            Handler handler = mTracker.getTarget().getHandler();
+            if (handler == null) {
+                // The state machine has quit
+                flush();
+                return;
+            }
+            mFlushScheduled = true;
+            handler.postDelayed(mFlushRunnable, mDelayMs);
+        }
+    }
+
+    /**
+     * Sends the pending messages now.
+     */
+    synchronized void flush() {
+        if (mStopped) return;
+        int count = mPending.size();
+        if (count == 0) return;
+        for (int i = 0; i < count; i++) {
+            Pending pending = mPending.get(i);
+            deliver(pending.policy, pending.obj, pending.receivedNanos);
+        }
+        mPending.clear();
+        mFlushes++;
+    }
+
+    /**
+     * Sends the pending messages now, and no longer drops the messages sent after
+     * {@link #clear}.
+     */
+    synchronized void start() {
+        mStopped = false;
+        flush();
+    }
+
+    /**
+     * Drops the pending messages and those sent until {@link #start}, e.g. once the monitor
+     * stopped: they must not reach the state machine after its disconnection message.
+     */
+    synchronized void clear() {
+        mStopped = true;
+        if (mFlushScheduled) {
+            Handler handler = mTracker.getTarget().getHandler();
+            if (handler != null) handler.removeCallbacks(mFlushRunnable);
+            mFlushScheduled = false;
+        }
+        mCleared += mPending.size();
+        mPending.clear();
+    }
+
+    private static boolean sameKey(Object a, Object b) {
+        return a == null ? b == null : a.equals(b);
+    }
+
+    private void deliver(Policy policy, Object obj, long receivedNanos) {
+        policy.delivered++;
+        mTracker.send(mTracker.getTarget().obtainMessage(policy.what, obj), receivedNanos);
+    }
+
+    private Policy getPolicy(int what) {
+        for (int i = 0; i < mPolicies.size(); i++) {
+            Policy policy = mPolicies.get(i);
+            if (policy.what == what) return policy;
+        }
+        throw new IllegalArgumentException("No coalescing policy for " + what);
+    }
+
+    synchronized void dump(PrintWriter pw) {
+        pw.println("EventCoalescer delay=" + mDelayMs + "ms pending=" + mPending.size()
+                + " flushes=" + mFlushes + " cleared=" + mCleared
+                + (mStopped ? " stopped" : ""));
+        for (Policy policy : mPolicies) {
+            pw.println("  " + policy.name + " received=" + policy.received
+                    + " delivered=" + policy.delivered
+                    + " ratio=" + (policy.delivered == 0 ? "-" : String.format("%.2f",
+                            (double) policy.received / policy.delivered)));
+        }
+    }
+}
@@ -0,0 +1,191 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.wifi;
+
+import android.os.Handler;
+import android.os.Message;
+
+import com.android.internal.util.StateMachine;
+
+import java.io.PrintWriter;
+import java.util.IdentityHashMap;
+
+/**
+ * Follows the messages a WifiMonitor sends to its state machine from the time their
+ * supplicant event was received until the state machine has processed them, giving the
+ * number of messages still queued, the age of the oldest one and the end to end latency.
+ *
+ * The state machine reports each processed message with {@link #onProcessed} from its
+ * recordLogRec(); messages it defers are followed until their first processing only.
+ *
+ * Optionally, a SUPPLICANT_STATE_CHANGE_EVENT still queued is removed from the queue
+ * when the next message is a newer state change of the same network, since the state
+ * machine would then act on a state the supplicant already left. Only back to back state
+ * changes are superseded, so that no other message changes order relative to them.
+ * Removal from the queue races with the state machine taking the message off it, so a
+ * superseded message stays pending until the message superseding it is processed: by
+ * then the older one was either processed as well or is known to have been removed.
+ * The pooled StateChangeResult of a removed message is never recycled, as only
+ * WifiStateMachine recycles it once processed; it is left to the garbage collector.
+ * {@hide}
+ */
+class EventDeliveryTracker {
+
+    /* Entries of messages the state machine never reported, e.g. after it quit */
+    private static final int MAX_PENDING = 1024;
+
+    /* Latency at which an event counts as late in the dump */
+    private static final long LATE_NANOS = 1000L * 1000 * 1000;
+
+    private final String mName;
+    private final StateMachine mTarget;
+    private final boolean mSupersedeStateChanges;
+
+    /* Queued message -> System.nanoTime() its supplicant event was received at */
+    private final IdentityHashMap<Message, Long> mPending = new IdentityHashMap<Message, Long>();
+
+    /* Message superseding a state change -> that state change, until the former is
+     * processed */
+    private final IdentityHashMap<Message, Message> mSupersedes =
+            new IdentityHashMap<Message, Message>();
+
+    /* Last message sent, and its obj, to find back to back state changes */
+    private Message mLastSent;
+    private Object mLastSentObj;
+
+    // Statistics, since creation
+    private int mMaxDepth;
+    private long mDelivered;
+    private long mLatencySumNanos;
+    private long mMaxLatencyNanos;
+    private long mLate;
+    private long mSuperseded;
+    private long mLost;
+
+    EventDeliveryTracker(String name, StateMachine target, boolean supersedeStateChanges) {
+        mName = name;
+        mTarget = target;
+        mSupersedeStateChanges = supersedeStateChanges;
+    }
+
+    StateMachine getTarget() {
+        return mTarget;
+    }
+
+    /**
+     * Sends msg, obtained from the target, on behalf of an event received at receivedNanos.
+     */
+    synchronized void send(Message msg, long receivedNanos) {
+        if (mPending.containsKey(msg)) {
+            // Only a message removed from the queue is recycled and sent again unreported
+            forgetSuperseded(msg);
+            mPending.remove(msg);
+            mSuperseded++;
+        }
+        if (mSupersedeStateChanges) {
+            supersedeLastStateChange(msg);
+        }
+        if (mPending.size() >= MAX_PENDING) {
+            mLost += mPending.size();
+            mPending.clear();
+            mSupersedes.clear();
+        }
+        mPending.put(msg, receivedNanos);
+        if (mPending.size() > mMaxDepth) mMaxDepth = mPending.size();
+        mLastSent = msg;
+        mLastSentObj = msg.obj;
+        mTarget.sendMessage(msg);
+    }
+
+    private void supersedeLastStateChange(Message msg) {
+        if (msg.what != WifiMonitor.SUPPLICANT_STATE_CHANGE_EVENT
+                || mLastSent == null || !mPending.containsKey(mLastSent)
+                || mLastSent.what != WifiMonitor.SUPPLICANT_STATE_CHANGE_EVENT
+                || mLastSent.obj != mLastSentObj
+                || !(mLastSentObj instanceof StateChangeResult)
+                || !(msg.obj instanceof StateChangeResult)) {
+            return;
+        }
+        StateChangeResult older = (StateChangeResult) mLastSentObj;
+        StateChangeResult newer = (StateChangeResult) msg.obj;
+        if (older.networkId != newer.networkId) return;
+
+        Handler handler = mTarget.getHandler();
+        // The state machine may already have taken the message off its queue, then it is
+        // being processed and still counts as delivered
+        if (handler == null
+                || !handler.hasMessages(WifiMonitor.SUPPLICANT_STATE_CHANGE_EVENT, older)) {
+            return;
+        }
+        // It may still be taken off the queue before this, which only the processing of
+        // msg settles
+        handler.removeMessages(WifiMonitor.SUPPLICANT_STATE_CHANGE_EVENT, older);
+        mSupersedes.put(msg, mLastSent);
+    }
+
+    /* Drops the removed message superseded from the chains of mSupersedes */
+    private void forgetSuperseded(Message superseded) {
+        Message newer = null;
+        for (Message key : mSupersedes.keySet()) {
+            if (mSupersedes.get(key) == superseded) newer = key;
+        }
+        Message older = mSupersedes.remove(superseded);
+        if (newer == null) return;
+        if (older != null) {
+            mSupersedes.put(newer, older);
+        } else {
+            mSupersedes.remove(newer);
+        }
+    }
+
+    /**
+     * Called by the state machine once it has processed msg.
+     */
+    synchronized void onProcessed(Message msg) {
+        // The state changes msg superseded, if still pending, were removed from the queue
+        for (Message older = mSupersedes.remove(msg); older != null;
+                older = mSupersedes.remove(older)) {
+            if (mPending.remove(older) != null) mSuperseded++;
+        }
+        Long receivedNanos = mPending.remove(msg);
+        if (receivedNanos == null) return;
+        long latency = System.nanoTime() - receivedNanos;
+        mDelivered++;
+        mLatencySumNanos += latency;
+        if (latency > mMaxLatencyNanos) mMaxLatencyNanos = latency;
+        if (latency >= LATE_NANOS) mLate++;
+    }
+
+    synchronized void dump(PrintWriter pw) {
+        long now = System.nanoTime();
+        long oldest = 0;
+        for (Long receivedNanos : mPending.values()) {
+            oldest = Math.max(oldest, now - receivedNanos);
+        }
+        pw.println(mName + " event delivery depth=" + mPending.size()
+                + " maxDepth=" + mMaxDepth
+                + " oldest=" + oldest / 1000000 + "ms"
+                + " delivered=" + mDelivered
+                + " latency avg/max="
+                + (mDelivered == 0 ? 0 : mLatencySumNanos / mDelivered / 1000000)
+                + "/" + mMaxLatencyNanos / 1000000 + "ms"
+                + " late=" + mLate
+                + " superseded=" + mSuperseded
+                + (mSupersedeStateChanges ? "" : "(off)")
+                + " lost=" + mLost);
+    }
+}
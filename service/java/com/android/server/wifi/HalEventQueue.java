@@ -0,0 +1,196 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.wifi;
+
+import android.util.Log;
+
+import java.io.PrintWriter;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Hands the HAL events off from the HAL event thread to a dispatch thread, so that the
+ * HAL thread never waits for a WifiNative lock or an event handler.
+ *
+ * This is a bounded ring with a single producer (the HAL event thread) and a single
+ * consumer (the dispatch thread); neither side takes a lock. Slots are preallocated and
+ * reused. When the ring is full the producer waits for the consumer rather than dropping
+ * the event, as scan completion and RTT results must not be lost; the time it waits is
+ * reported as a stall.
+ * {@hide}
+ */
+class HalEventQueue {
+
+    interface Dispatcher {
+        void dispatch(int type, int id, Object arg1, Object arg2);
+    }
+
+    private static class Slot {
+        int type;
+        int id;
+        Object arg1;
+        Object arg2;
+        long enqueuedAt;
+    }
+
+    private final String mName;
+    private final Dispatcher mDispatcher;
+    private final Slot[] mSlots;
+    private final int mMask;
+
+    /* Next slot to read, written by the consumer only */
+    private volatile long mHead;
+    /* Next slot to write, written by the producer only */
+    private volatile long mTail;
+
+    private volatile Thread mConsumer;
+    private volatile Thread mProducer;
+    private volatile boolean mConsumerWaiting;
+    private volatile boolean mProducerWaiting;
+
+    // Statistics, since creation; each written by one side only
+    private volatile long mEvents;
+    private volatile int mMaxDepth;
+    private volatile long mStalls;
+    private volatile long mStallNanos;
+    private volatile long mMaxStallNanos;
+    private volatile long mDelayNanos;
+    private volatile long mMaxDelayNanos;
+    private volatile long mMaxDispatchNanos;
+
+    /**
+     * @param capacity a power of two
+     */
+    HalEventQueue(String name, int capacity, Dispatcher dispatcher) {
+        if (Integer.bitCount(capacity) != 1) {
+            throw new IllegalArgumentException("capacity must be a power of two");
+        }
+        mName = name;
+        mDispatcher = dispatcher;
+        mSlots = new Slot[capacity];
+        for (int i = 0; i < capacity; i++) {
+            mSlots[i] = new Slot();
+        }
+        mMask = capacity - 1;
+    }
+
+    /**
+     * Starts the dispatch thread, if not started yet.
+     */
+    synchronized void start() {
+        if (mConsumer != null) return;
+        Thread consumer = new Thread(mName) {
+            @Override
+            public void run() {
+                consume();
+            }
+        };
+        mConsumer = consumer;
+        consumer.start();
+    }
+
+    /**
+     * Queues an event, waiting for room if the queue is full. Must only be called from
+     * the HAL event thread.
+     */
+    void put(int type, int id, Object arg1, Object arg2) {
+        long tail = mTail;
+        if (tail - mHead > mMask) {
+            waitForRoom(tail);
+        }
+        Slot slot = mSlots[(int) tail & mMask];
+        slot.type = type;
+        slot.id = id;
+        slot.arg1 = arg1;
+        slot.arg2 = arg2;
+        slot.enqueuedAt = System.nanoTime();
+        // Publishes the slot
+        mTail = tail + 1;
+
+        int depth = (int) (tail + 1 - mHead);
+        if (depth > mMaxDepth) mMaxDepth = depth;
+        if (mConsumerWaiting) LockSupport.unpark(mConsumer);
+    }
+
+    private void waitForRoom(long tail) {
+        long start = System.nanoTime();
+        mProducer = Thread.currentThread();
+        mProducerWaiting = true;
+        while (tail - mHead > mMask) {
+            LockSupport.park(this);
+        }
+        mProducerWaiting = false;
+        long stall = System.nanoTime() - start;
+        mStalls++;
+        mStallNanos += stall;
+        if (stall > mMaxStallNanos) mMaxStallNanos = stall;
+    }
+
+    private void consume() {
+        while (true) {
+            long head = mHead;
+            if (head == mTail) {
+                mConsumerWaiting = true;
+                // Check again, the producer may have published before seeing the flag
+                if (head == mTail) LockSupport.park(this);
+                mConsumerWaiting = false;
+                continue;
+            }
+            Slot slot = mSlots[(int) head & mMask];
+            int type = slot.type;
+            int id = slot.id;
+            Object arg1 = slot.arg1;
+            Object arg2 = slot.arg2;
+            long start = System.nanoTime();
+            long delay = start - slot.enqueuedAt;
+            slot.arg1 = null;
+            slot.arg2 = null;
+            // Frees the slot
+            mHead = head + 1;
+            if (mProducerWaiting) LockSupport.unpark(mProducer);
+
+            try {
+                mDispatcher.dispatch(type, id, arg1, arg2);
+            } catch (RuntimeException e) {
+                Log.e(mName, "HAL event " + type + " dispatch failed", e);
+            }
+
+            long dispatch = System.nanoTime() - start;
+            mEvents++;
+            mDelayNanos += delay;
+            if (delay > mMaxDelayNanos) mMaxDelayNanos = delay;
+            if (dispatch > mMaxDispatchNanos) mMaxDispatchNanos = dispatch;
+        }
+    }
+
+    int getDepth() {
+        return (int) (mTail - mHead);
+    }
+
+    void dump(PrintWriter pw) {
+        long events = mEvents;
+        long stalls = mStalls;
+        pw.println(mName + " depth=" + getDepth() + "/" + mSlots.length
+                + " maxDepth=" + mMaxDepth
+                + " events=" + events
+                + " delay avg/max=" + (events == 0 ? 0 : mDelayNanos / events / 1000)
+                + "/" + mMaxDelayNanos / 1000 + "us"
+                + " maxDispatch=" + mMaxDispatchNanos / 1000 + "us"
+                + " stalls=" + stalls
+                + " stall avg/max=" + (stalls == 0 ? 0 : mStallNanos / stalls / 1000)
+                + "/" + mMaxStallNanos / 1000 + "us");
+    }
+}
@@ -0,0 +1,213 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.wifi;
+
+import java.util.ArrayList;
+
+/**
+ * Recycles the byte arrays that carry the information elements of full scan results.
+ *
+ * Two kinds of arrays are pooled:
+ * - raw buffers, which native code fills with all the IEs of one BSS. They are sized by
+ *   power of two classes and go back to the pool as soon as the IEs are split out.
+ * - element arrays, the exact length payload of one IE (at most 255 bytes), which end up
+ *   in {@link android.net.wifi.ScanResult.InformationElement#bytes}. They belong to a
+ *   reference counted {@link Buffer} and are recycled when its last reference is
+ *   released, i.e. once every client was sent the result.
+ *
+ * Arrays that are never released (e.g. the event was dropped) are simply garbage
+ * collected. All methods are thread safe: buffers are filled on the HAL event thread
+ * and released on the WifiScanningStateMachine thread.
+ * {@hide}
+ */
+class IeBufferPool {
+
+    private static final int MIN_RAW_SHIFT = 8;             // 256 bytes
+    private static final int RAW_CLASSES = 5;               // up to 4096 bytes
+    private static final int MAX_POOLED_RAW_PER_CLASS = 4;
+
+    private static final int MAX_IE_LENGTH = 255;
+    private static final int MAX_POOLED_PER_LENGTH = 16;
+    private static final int MAX_POOLED_BUFFERS = 64;
+
+    private static final byte[] EMPTY = new byte[0];
+
+    /**
+     * Reference counted set of element arrays handed out for one scan result.
+     */
+    final class Buffer {
+        private final ArrayList<byte[]> mElements = new ArrayList<byte[]>();
+        private int mRefCount;
+
+        /**
+         * @return an array of exactly length bytes, recycled along with this buffer
+         */
+        byte[] obtainElement(int length) {
+            if (length == 0) return EMPTY;
+            byte[] element = obtainElementArray(length);
+            synchronized (IeBufferPool.this) {
+                mElements.add(element);
+            }
+            return element;
+        }
+
+        void acquire() {
+            synchronized (IeBufferPool.this) {
+                if (mRefCount <= 0) {
+                    throw new IllegalStateException("acquire of a released buffer");
+                }
+                mRefCount++;
+            }
+        }
+
+        void release() {
+            synchronized (IeBufferPool.this) {
+                if (mRefCount <= 0) {
+                    throw new IllegalStateException("buffer released twice");
+                }
+                if (--mRefCount > 0) return;
+                for (int i = 0; i < mElements.size(); i++) {
+                    recycleElementArray(mElements.get(i));
+                }
+                mElements.clear();
+                if (mFreeBufferCount < MAX_POOLED_BUFFERS) {
+                    mFreeBuffers[mFreeBufferCount++] = this;
+                }
+            }
+        }
+    }
+
+    private final byte[][][] mFreeRaw = new byte[RAW_CLASSES][MAX_POOLED_RAW_PER_CLASS][];
+    private final int[] mFreeRawCount = new int[RAW_CLASSES];
+    private final byte[][][] mFreeElements = new byte[MAX_IE_LENGTH + 1][][];
+    private final int[] mFreeElementCount = new int[MAX_IE_LENGTH + 1];
+    private final Buffer[] mFreeBuffers = new Buffer[MAX_POOLED_BUFFERS];
+    private int mFreeBufferCount;
+
+    // Statistics, since creation
+    private long mHits;
+    private long mMisses;
+    private long mBytesAllocated;
+    private long mScans;
+    private long mScanBytesAllocated;
+    private long mLastScanBytesAllocated;
+
+    /**
+     * @return a raw buffer of at least length bytes, to be passed to {@link #recycleRaw}
+     */
+    synchronized byte[] obtainRaw(int length) {
+        int rawClass = rawClassOf(length);
+        if (rawClass < RAW_CLASSES && mFreeRawCount[rawClass] > 0) {
+            mHits++;
+            int i = --mFreeRawCount[rawClass];
+            byte[] raw = mFreeRaw[rawClass][i];
+            mFreeRaw[rawClass][i] = null;
+            return raw;
+        }
+        int size = rawClass < RAW_CLASSES ? 1 << (rawClass + MIN_RAW_SHIFT) : length;
+        countAllocation(size);
+        return new byte[size];
+    }
+
+    synchronized void recycleRaw(byte[] raw) {
+        int rawClass = rawClassOf(raw.length);
+        if (rawClass < RAW_CLASSES && raw.length == 1 << (rawClass + MIN_RAW_SHIFT)
+                && mFreeRawCount[rawClass] < MAX_POOLED_RAW_PER_CLASS) {
+            mFreeRaw[rawClass][mFreeRawCount[rawClass]++] = raw;
+        }
+    }
+
+    /**
+     * @return a buffer holding one reference, to be released by its last user
+     */
+    synchronized Buffer obtainBuffer() {
+        Buffer buffer;
+        if (mFreeBufferCount > 0) {
+            buffer = mFreeBuffers[--mFreeBufferCount];
+            mFreeBuffers[mFreeBufferCount] = null;
+        } else {
+            buffer = new Buffer();
+        }
+        buffer.mRefCount = 1;
+        return buffer;
+    }
+
+    /**
+     * Marks the end of a scan, for the per scan allocation statistics.
+     */
+    synchronized void onScanComplete() {
+        mScans++;
+        mLastScanBytesAllocated = mScanBytesAllocated;
+        mScanBytesAllocated = 0;
+    }
+
+    /** @return the fraction of requests served from the pool */
+    synchronized float getHitRate() {
+        long requests = mHits + mMisses;
+        return requests == 0 ? 0 : (float) mHits / requests;
+    }
+
+    private synchronized byte[] obtainElementArray(int length) {
+        if (length <= MAX_IE_LENGTH && mFreeElementCount[length] > 0) {
+            mHits++;
+            int i = --mFreeElementCount[length];
+            byte[] element = mFreeElements[length][i];
+            mFreeElements[length][i] = null;
+            return element;
+        }
+        countAllocation(length);
+        return new byte[length];
+    }
+
+    /* Must be called with the pool lock held */
+    private void recycleElementArray(byte[] element) {
+        int length = element.length;
+        if (length > MAX_IE_LENGTH || mFreeElementCount[length] >= MAX_POOLED_PER_LENGTH) {
+            return;
+        }
+        if (mFreeElements[length] == null) {
+            mFreeElements[length] = new byte[MAX_POOLED_PER_LENGTH][];
+        }
+        mFreeElements[length][mFreeElementCount[length]++] = element;
+    }
+
+    /* Must be called with the pool lock held */
+    private void countAllocation(int size) {
+        mMisses++;
+        mBytesAllocated += size;
+        mScanBytesAllocated += size;
+    }
+
+    private static int rawClassOf(int length) {
+        int rawClass = 0;
+        while (rawClass < RAW_CLASSES && (1 << (rawClass + MIN_RAW_SHIFT)) < length) {
+            rawClass++;
+        }
+        return rawClass;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "IeBufferPool hits=" + mHits + " misses=" + mMisses
+                + " hitRate=" + (int) (getHitRate() * 100) + "%"
+                + " bytesAllocated=" + mBytesAllocated
+                + " scans=" + mScans
+                + " lastScanBytes=" + mLastScanBytesAllocated
+                + " avgScanBytes=" + (mScans == 0 ? 0 : (mBytesAllocated
+                        - mScanBytesAllocated) / mScans);
+    }
+}
@@ -0,0 +1,141 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.wifi;
+
+/**
+ * Decoded replies of the SIGNAL_POLL and PKTCNT_POLL supplicant commands, meant to be
+ * allocated once by each consumer and refilled by
+ * {@link WifiNative#signalPoll(LinkPollResult)} and
+ * {@link WifiNative#pktcntPoll(LinkPollResult)}.
+ *
+ * Fields missing from the reply, or that do not parse, are left at -1 (NOISE may
+ * legitimately be negative, its default is {@link #NOISE_UNKNOWN}).
+ * {@hide}
+ */
+class LinkPollResult {
+
+    static final int NOISE_UNKNOWN = Integer.MIN_VALUE;
+
+    // SIGNAL_POLL
+    int rssi;
+    int linkSpeed;
+    int frequency;
+    int noise;
+
+    // PKTCNT_POLL
+    int txGood;
+    int txBad;
+    int rxGood;
+
+    LinkPollResult() {
+        resetSignal();
+        resetPacketCounts();
+    }
+
+    void resetSignal() {
+        rssi = -1;
+        linkSpeed = -1;
+        frequency = -1;
+        noise = NOISE_UNKNOWN;
+    }
+
+    void resetPacketCounts() {
+        txGood = -1;
+        txBad = -1;
+        rxGood = -1;
+    }
+
+    void copySignalFrom(LinkPollResult source) {
+        rssi = source.rssi;
+        linkSpeed = source.linkSpeed;
+        frequency = source.frequency;
+        noise = source.noise;
+    }
+
+    void copyPacketCountsFrom(LinkPollResult source) {
+        txGood = source.txGood;
+        txBad = source.txBad;
+        rxGood = source.rxGood;
+    }
+
+    /**
+     * Decodes a SIGNAL_POLL reply, "RSSI=-55\nLINKSPEED=65\nNOISE=9999\nFREQUENCY=2437",
+     * in one pass without allocating.
+     */
+    void parseSignalPoll(String reply) {
+        resetSignal();
+        int lineStart = 0;
+        int length = reply.length();
+        while (lineStart < length) {
+            int lineEnd = reply.indexOf('\n', lineStart);
+            if (lineEnd < 0) lineEnd = length;
+            int equals = reply.indexOf('=', lineStart);
+            if (equals > lineStart && equals < lineEnd) {
+                int value = SupplicantEventScanner.parseInt(reply, equals + 1, lineEnd);
+                if (value != Integer.MIN_VALUE) {
+                    if (SupplicantEventScanner.isKey(reply, lineStart, equals, "RSSI")) {
+                        rssi = value;
+                    } else if (SupplicantEventScanner.isKey(reply, lineStart, equals,
+                            "LINKSPEED")) {
+                        linkSpeed = value;
+                    } else if (SupplicantEventScanner.isKey(reply, lineStart, equals,
+                            "FREQUENCY")) {
+                        frequency = value;
+                    } else if (SupplicantEventScanner.isKey(reply, lineStart, equals, "NOISE")) {
+                        noise = value;
+                    }
+                }
+            }
+            lineStart = lineEnd + 1;
+        }
+    }
+
+    /**
+     * Decodes a PKTCNT_POLL reply, "TXGOOD=12\nTXBAD=0\nRXGOOD=34", in one pass without
+     * allocating.
+     */
+    void parsePktcntPoll(String reply) {
+        resetPacketCounts();
+        int lineStart = 0;
+        int length = reply.length();
+        while (lineStart < length) {
+            int lineEnd = reply.indexOf('\n', lineStart);
+            if (lineEnd < 0) lineEnd = length;
+            int equals = reply.indexOf('=', lineStart);
+            if (equals > lineStart && equals < lineEnd) {
+                int value = SupplicantEventScanner.parseInt(reply, equals + 1, lineEnd);
+                if (value != Integer.MIN_VALUE) {
+                    if (SupplicantEventScanner.isKey(reply, lineStart, equals, "TXGOOD")) {
+                        txGood = value;
+                    } else if (SupplicantEventScanner.isKey(reply, lineStart, equals, "TXBAD")) {
+                        txBad = value;
+                    } else if (SupplicantEventScanner.isKey(reply, lineStart, equals, "RXGOOD")) {
+                        rxGood = value;
+                    }
+                }
+            }
+            lineStart = lineEnd + 1;
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "rssi=" + rssi + " linkSpeed=" + linkSpeed + " frequency=" + frequency
+                + " noise=" + (noise == NOISE_UNKNOWN ? "?" : Integer.toString(noise))
+                + " txGood=" + txGood + " txBad=" + txBad + " rxGood=" + rxGood;
+    }
+}
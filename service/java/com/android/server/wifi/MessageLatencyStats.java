@@ -0,0 +1,240 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.wifi;
+
+import android.os.Message;
+import android.os.SystemClock;
+import android.util.SparseArray;
+
+import com.android.internal.util.IState;
+
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.IdentityHashMap;
+import java.util.Map;
+
+/**
+ * Queue wait and processing time histograms of the messages handled by a StateMachine,
+ * keyed by the state the message was delivered in and message.what.
+ *
+ * The state machine calls {@link #begin} when one of its states starts processing a
+ * message (extra calls for the same message, from parent states, are ignored) and
+ * {@link #end} from {@link com.android.internal.util.StateMachine#recordLogRec}, which
+ * runs once the message was processed. The queue wait is the time between
+ * {@link Message#getWhen} and begin(); the processing time covers processMessage() of
+ * the state hierarchy but not the enter() and exit() actions of a resulting transition.
+ *
+ * Histograms use log2 buckets, from under 64us up to over 16s. Updating them does not
+ * allocate once a (state, what) pair has been seen.
+ * {@hide}
+ */
+public class MessageLatencyStats {
+
+    /**
+     * Names message.what values in the dump
+     */
+    public interface WhatNamer {
+        String getWhatName(int what);
+    }
+
+    private static final int BUCKETS = 20;
+    /* Upper bound of bucket 0 is 2^FIRST_BUCKET_SHIFT us */
+    private static final int FIRST_BUCKET_SHIFT = 6;
+
+    private static class Entry {
+        final int what;
+        long count;
+        long waitSumUs;
+        long waitMaxUs;
+        long processSumUs;
+        long processMaxUs;
+        final int[] waitBuckets = new int[BUCKETS];
+        final int[] processBuckets = new int[BUCKETS];
+
+        Entry(int what) {
+            this.what = what;
+        }
+    }
+
+    private final String mName;
+    private final WhatNamer mNamer;
+    private final IdentityHashMap<IState, SparseArray<Entry>> mEntries =
+            new IdentityHashMap<IState, SparseArray<Entry>>();
+
+    private Message mCurrent;
+    private long mCurrentWhen;
+    private long mBeginUptime;
+    private long mBeginNanos;
+
+    public MessageLatencyStats(String name, WhatNamer namer) {
+        mName = name;
+        mNamer = namer;
+    }
+
+    /**
+     * Called when processing of msg starts, only the first call per message counts.
+     */
+    public void begin(Message msg) {
+        if (msg == mCurrent && msg.getWhen() == mCurrentWhen) return;
+        mCurrent = msg;
+        mCurrentWhen = msg.getWhen();
+        mBeginUptime = SystemClock.uptimeMillis();
+        mBeginNanos = System.nanoTime();
+    }
+
+    /**
+     * Called once msg has been processed, while still in the state it was delivered in.
+     */
+    public void end(IState state, Message msg) {
+        if (msg != mCurrent || msg.getWhen() != mCurrentWhen || state == null) {
+            // No state saw this message (e.g. it was deferred or sent before start)
+            mCurrent = null;
+            return;
+        }
+        mCurrent = null;
+        long processUs = (System.nanoTime() - mBeginNanos) / 1000;
+        // Messages sent at the front of the queue (e.g. deferred ones) have no enqueue time
+        long waitUs = (mCurrentWhen > 0) ? Math.max(0, mBeginUptime - mCurrentWhen) * 1000 : 0;
+
+        synchronized (mEntries) {
+            SparseArray<Entry> byWhat = mEntries.get(state);
+            if (byWhat == null) {
+                byWhat = new SparseArray<Entry>();
+                mEntries.put(state, byWhat);
+            }
+            Entry entry = byWhat.get(msg.what);
+            if (entry == null) {
+                entry = new Entry(msg.what);
+                byWhat.put(msg.what, entry);
+            }
+            entry.count++;
+            entry.waitSumUs += waitUs;
+            if (waitUs > entry.waitMaxUs) entry.waitMaxUs = waitUs;
+            entry.waitBuckets[bucketOf(waitUs)]++;
+            entry.processSumUs += processUs;
+            if (processUs > entry.processMaxUs) entry.processMaxUs = processUs;
+            entry.processBuckets[bucketOf(processUs)]++;
+        }
+    }
+
+    private static int bucketOf(long us) {
+        int bucket = 64 - Long.numberOfLeadingZeros(us >>> FIRST_BUCKET_SHIFT);
+        return Math.min(bucket, BUCKETS - 1);
+    }
+
+    void reset() {
+        synchronized (mEntries) {
+            mEntries.clear();
+        }
+    }
+
+    /**
+     * Dump one line per (state, what), sorted by total processing time, followed by the
+     * histograms in compact form if args contains "latency":
+     * "latency,name,state,what,count,waitSumUs,waitMaxUs,processSumUs,processMaxUs,
+     * w,b0:..:b19,p,b0:..:b19" where bucket 0 is under 64us and bucket i >= 1 covers
+     * [2^(i+5), 2^(i+6)) us.
+     */
+    public void dump(PrintWriter pw, String[] args) {
+        ArrayList<String> stateNames = new ArrayList<String>();
+        ArrayList<Entry> entries = new ArrayList<Entry>();
+        synchronized (mEntries) {
+            for (Map.Entry<IState, SparseArray<Entry>> e : mEntries.entrySet()) {
+                SparseArray<Entry> byWhat = e.getValue();
+                for (int i = 0; i < byWhat.size(); i++) {
+                    Entry source = byWhat.valueAt(i);
+                    Entry copy = new Entry(source.what);
+                    copy.count = source.count;
+                    copy.waitSumUs = source.waitSumUs;
+                    copy.waitMaxUs = source.waitMaxUs;
+                    copy.processSumUs = source.processSumUs;
+                    copy.processMaxUs = source.processMaxUs;
+                    System.arraycopy(source.waitBuckets, 0, copy.waitBuckets, 0, BUCKETS);
+                    System.arraycopy(source.processBuckets, 0, copy.processBuckets, 0, BUCKETS);
+                    stateNames.add(e.getKey().getName());
+                    entries.add(copy);
+                }
+            }
+        }
+
+        // Sort by descending total processing time
+        Integer[] order = new Integer[entries.size()];
+        for (int i = 0; i < order.length; i++) order[i] = i;
+        final ArrayList<Entry> sorted = entries;
+        Arrays.sort(order, new Comparator<Integer>() {
+            @Override
+            public int compare(Integer a, Integer b) {
+                long ta = sorted.get(a).processSumUs;
+                long tb = sorted.get(b).processSumUs;
+                return ta < tb ? 1 : (ta > tb ? -1 : 0);
+            }
+        });
+
+        pw.println(mName + " message latency (state what count wait avg/max process avg/max):");
+        for (int k : order) {
+            Entry entry = entries.get(k);
+            pw.println("  " + stateNames.get(k) + " " + nameOf(entry.what)
+                    + " n=" + entry.count
+                    + " wait=" + formatUs(entry.waitSumUs / entry.count)
+                    + "/" + formatUs(entry.waitMaxUs)
+                    + " process=" + formatUs(entry.processSumUs / entry.count)
+                    + "/" + formatUs(entry.processMaxUs));
+        }
+
+        boolean compact = false;
+        if (args != null) {
+            for (String arg : args) {
+                if ("latency".equals(arg)) compact = true;
+            }
+        }
+        if (!compact) return;
+        StringBuilder sb = new StringBuilder();
+        for (int k : order) {
+            Entry entry = entries.get(k);
+            sb.setLength(0);
+            sb.append("latency,").append(mName).append(',').append(stateNames.get(k))
+                    .append(',').append(entry.what).append(',').append(entry.count)
+                    .append(',').append(entry.waitSumUs).append(',').append(entry.waitMaxUs)
+                    .append(',').append(entry.processSumUs).append(',')
+                    .append(entry.processMaxUs).append(",w,");
+            appendBuckets(sb, entry.waitBuckets);
+            sb.append(",p,");
+            appendBuckets(sb, entry.processBuckets);
+            pw.println(sb);
+        }
+    }
+
+    private String nameOf(int what) {
+        String name = (mNamer != null) ? mNamer.getWhatName(what) : null;
+        if (name == null) return Integer.toString(what);
+        return name;
+    }
+
+    private static String formatUs(long us) {
+        if (us < 1000) return us + "us";
+        return (us / 1000) + "ms";
+    }
+
+    private static void appendBuckets(StringBuilder sb, int[] buckets) {
+        for (int i = 0; i < buckets.length; i++) {
+            if (i > 0) sb.append(':');
+            sb.append(buckets[i]);
+        }
+    }
+}
@@ -0,0 +1,139 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.wifi;
+
+import android.text.TextUtils;
+
+import java.util.ArrayList;
+
+/**
+ * Network variable writes collected for one or more networks, sent to the supplicant by
+ * {@link WifiNative#setNetworkVariables} in turns on the command channel, the writes of one
+ * network always within a single turn.
+ *
+ * wpa_supplicant takes one SET_NETWORK per variable, so a flush still costs one round
+ * trip per variable, but the caller queues for the channel once per turn rather than
+ * once per variable, while other callers still get in between turns.
+ *
+ * Writes are sent in the order they were added. Once a write fails, the remaining writes
+ * for the same network are skipped, as a partially configured network is removed or
+ * rolled back by the caller anyway; writes for other networks still go out. The outcome
+ * of each write is available after the flush.
+ * {@hide}
+ */
+class NetworkVariableBatch {
+
+    static final int STATUS_PENDING = 0;
+    static final int STATUS_OK = 1;
+    static final int STATUS_FAILED = 2;
+    static final int STATUS_SKIPPED = 3;
+
+    private static class Write {
+        final int netId;
+        final String name;
+        final String value;
+        int status = STATUS_PENDING;
+
+        Write(int netId, String name, String value) {
+            this.netId = netId;
+            this.name = name;
+            this.value = value;
+        }
+    }
+
+    private final ArrayList<Write> mWrites = new ArrayList<Write>();
+
+    /**
+     * Queues name=value for netId. Empty names or values fail at flush time, as they do
+     * with {@link WifiNative#setNetworkVariable}.
+     */
+    void add(int netId, String name, String value) {
+        mWrites.add(new Write(netId, name, value));
+    }
+
+    int size() {
+        return mWrites.size();
+    }
+
+    int getNetId(int i) {
+        return mWrites.get(i).netId;
+    }
+
+    String getName(int i) {
+        return mWrites.get(i).name;
+    }
+
+    int getStatus(int i) {
+        return mWrites.get(i).status;
+    }
+
+    /**
+     * @return the index of the write that failed for netId, or -1
+     */
+    int getFailure(int netId) {
+        for (int i = 0; i < mWrites.size(); i++) {
+            Write write = mWrites.get(i);
+            if (write.netId == netId && write.status == STATUS_FAILED) return i;
+        }
+        return -1;
+    }
+
+    boolean hasFailures() {
+        for (int i = 0; i < mWrites.size(); i++) {
+            if (mWrites.get(i).status == STATUS_FAILED) return true;
+        }
+        return false;
+    }
+
+    void clear() {
+        mWrites.clear();
+    }
+
+    /**
+     * @return the SET_NETWORK command of write i, or null if it cannot be sent
+     */
+    String getCommand(int i) {
+        Write write = mWrites.get(i);
+        if (TextUtils.isEmpty(write.name) || TextUtils.isEmpty(write.value)) return null;
+        return "SET_NETWORK " + write.netId + " " + write.name + " " + write.value;
+    }
+
+    /**
+     * Records the outcome of write i. Called by WifiNative while flushing.
+     */
+    void setResult(int i, boolean success) {
+        Write write = mWrites.get(i);
+        write.status = success ? STATUS_OK : STATUS_FAILED;
+        if (success) return;
+        for (int k = i + 1; k < mWrites.size(); k++) {
+            Write next = mWrites.get(k);
+            if (next.netId == write.netId && next.status == STATUS_PENDING) {
+                next.status = STATUS_SKIPPED;
+            }
+        }
+    }
+
+    static String statusToString(int status) {
+        switch (status) {
+            case STATUS_PENDING: return "pending";
+            case STATUS_OK: return "ok";
+            case STATUS_FAILED: return "failed";
+            case STATUS_SKIPPED: return "skipped";
+            default: return Integer.toString(status);
+        }
+    }
+}
@@ -0,0 +1,194 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.wifi;
+
+import android.net.wifi.WifiInfo;
+import android.net.wifi.WifiManager;
+
+import java.io.FileDescriptor;
+import java.io.PrintWriter;
+
+/**
+ * Decides when the WifiStateMachine should issue its next RSSI poll while associated.
+ *
+ * The poll runs every base interval as long as anything is going on. Once the RSSI has
+ * been stable for a few polls, there is no data activity and the link is comfortably
+ * above the low RSSI threshold, the interval is doubled after each run of stable polls,
+ * up to a maximum. Any RSSI swing, any RSSI trending toward the low threshold, or any
+ * data activity reported by the WifiTrafficPoller brings the interval back to the base.
+ *
+ * The interval never drops under the base, so that the per poll bookkeeping done in
+ * calculateWifiScore keeps ticking at its usual rate whenever the link is degrading
+ * or carrying traffic.
+ *
+ * The scheduler is not thread safe and must only be used from the WifiStateMachine thread.
+ * {@hide}
+ */
+class RssiPollScheduler {
+
+    /* A poll within this many dB of the previous one counts as stable */
+    private static final int STABLE_RSSI_DB = 3;
+    /* Number of consecutive stable polls before the interval is doubled */
+    private static final int STABLE_POLLS_TO_STRETCH = 3;
+    /* Stretch only while the RSSI is at least this many dB above the low threshold */
+    private static final int LOW_RSSI_MARGIN_DB = 8;
+    /* The interval never grows past this multiple of the base interval */
+    private static final int MAX_INTERVAL_MULTIPLIER = 4;
+
+    private final int mBaseIntervalMs;
+    private final int mMaxIntervalMs;
+
+    private boolean mActive;
+    private int mIntervalMs;
+    private int mStablePolls;
+    private int mLastRssi = WifiInfo.INVALID_RSSI;
+    private boolean mLastRssiLow;
+    private long mLastPollAt;
+    private long mNextPollAt;
+    private int mDataActivity = WifiManager.DATA_ACTIVITY_NONE;
+
+    // Statistics, since boot
+    private long mPolls;
+    private long mStretchedPolls;
+    private long mStretchedMs;
+    private long mTrafficResets;
+    private long mDegradations;
+    private long mDegradationLatencySumMs;
+    private long mDegradationLatencyMaxMs;
+
+    RssiPollScheduler(int baseIntervalMs) {
+        mBaseIntervalMs = baseIntervalMs;
+        mMaxIntervalMs = baseIntervalMs * MAX_INTERVAL_MULTIPLIER;
+        mIntervalMs = baseIntervalMs;
+    }
+
+    int getBaseIntervalMs() {
+        return mBaseIntervalMs;
+    }
+
+    /**
+     * Polling (re)starts, the first poll is issued by the caller right away.
+     */
+    void start(long now) {
+        mActive = true;
+        mIntervalMs = mBaseIntervalMs;
+        mStablePolls = 0;
+        mLastRssi = WifiInfo.INVALID_RSSI;
+        mLastRssiLow = false;
+        mLastPollAt = now;
+        mNextPollAt = now;
+    }
+
+    void stop() {
+        mActive = false;
+    }
+
+    /**
+     * Record the result of a poll and pick the delay until the next one.
+     *
+     * @param rssi the RSSI just polled, or WifiInfo.INVALID_RSSI
+     * @param lowRssi the low RSSI threshold for the current band
+     * @return the delay in milliseconds before the next poll
+     */
+    int onPoll(int rssi, int lowRssi, long now) {
+        long sinceLastPoll = now - mLastPollAt;
+        mPolls++;
+
+        boolean valid = rssi != WifiInfo.INVALID_RSSI;
+        boolean low = valid && rssi < lowRssi;
+        if (low && !mLastRssiLow && mLastRssi != WifiInfo.INVALID_RSSI) {
+            // The link crossed the low threshold at some point since the last poll,
+            // which bounds how late we noticed
+            mDegradations++;
+            mDegradationLatencySumMs += sinceLastPoll;
+            if (sinceLastPoll > mDegradationLatencyMaxMs) {
+                mDegradationLatencyMaxMs = sinceLastPoll;
+            }
+        }
+
+        boolean stable = valid && mLastRssi != WifiInfo.INVALID_RSSI
+                && Math.abs(rssi - mLastRssi) <= STABLE_RSSI_DB;
+        // Where the RSSI would be at the next stretched poll if it kept its current trend
+        int projected = valid && mLastRssi != WifiInfo.INVALID_RSSI
+                ? rssi + Math.min(0, rssi - mLastRssi) * 2 : rssi;
+        boolean comfortable = valid && projected >= lowRssi + LOW_RSSI_MARGIN_DB;
+
+        if (stable && comfortable && mDataActivity == WifiManager.DATA_ACTIVITY_NONE) {
+            mStablePolls++;
+            if (mStablePolls >= STABLE_POLLS_TO_STRETCH && mIntervalMs < mMaxIntervalMs) {
+                mIntervalMs = Math.min(mIntervalMs * 2, mMaxIntervalMs);
+                mStablePolls = 0;
+            }
+        } else {
+            mStablePolls = 0;
+            mIntervalMs = mBaseIntervalMs;
+        }
+
+        if (mIntervalMs > mBaseIntervalMs) {
+            mStretchedPolls++;
+            mStretchedMs += mIntervalMs - mBaseIntervalMs;
+        }
+        mLastRssi = valid ? rssi : WifiInfo.INVALID_RSSI;
+        mLastRssiLow = low;
+        mLastPollAt = now;
+        mNextPollAt = now + mIntervalMs;
+        return mIntervalMs;
+    }
+
+    /**
+     * Record the data activity reported by the WifiTrafficPoller.
+     *
+     * @return the delay in milliseconds before an earlier poll should be issued, or -1
+     * if the pending poll is already due soon enough
+     */
+    int onDataActivity(int dataActivity, long now) {
+        mDataActivity = dataActivity;
+        if (!mActive || dataActivity == WifiManager.DATA_ACTIVITY_NONE
+                || mIntervalMs <= mBaseIntervalMs) {
+            return -1;
+        }
+        // Undo the part of the stretch that has not elapsed yet
+        mTrafficResets++;
+        mStretchedMs -= mNextPollAt - Math.max(now, mLastPollAt + mBaseIntervalMs);
+        mIntervalMs = mBaseIntervalMs;
+        mStablePolls = 0;
+        mNextPollAt = Math.max(now, mLastPollAt + mBaseIntervalMs);
+        return (int) (mNextPollAt - now);
+    }
+
+    /** @return polls that were avoided compared to polling at the base interval */
+    long getPollsSaved() {
+        return mStretchedMs / mBaseIntervalMs;
+    }
+
+    void dump(FileDescriptor fd, PrintWriter pw, String[] args) {
+        pw.println("RssiPollScheduler active=" + mActive
+                + " interval=" + mIntervalMs + "ms"
+                + " base=" + mBaseIntervalMs + "ms"
+                + " max=" + mMaxIntervalMs + "ms"
+                + " lastRssi=" + mLastRssi
+                + " dataActivity=" + mDataActivity);
+        pw.println("RssiPollScheduler polls=" + mPolls
+                + " stretched=" + mStretchedPolls
+                + " saved=" + getPollsSaved()
+                + " trafficResets=" + mTrafficResets);
+        pw.println("RssiPollScheduler degradations=" + mDegradations
+                + " reactionLatency avg="
+                + (mDegradations == 0 ? 0 : mDegradationLatencySumMs / mDegradations) + "ms"
+                + " max=" + mDegradationLatencyMaxMs + "ms");
+    }
+}
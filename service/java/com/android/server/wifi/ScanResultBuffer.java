@@ -0,0 +1,162 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.wifi;
+
+import android.net.wifi.ScanResult;
+import android.net.wifi.WifiSsid;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * A batch of gscan results packed by native code into a reusable direct ByteBuffer,
+ * see {@link WifiNative#getScanResults(ScanResultBuffer)}.
+ *
+ * Results are read in place through the accessors, a {@link ScanResult} is only built
+ * by {@link #toScanResult} for the entries that are actually delivered to a client.
+ *
+ * Each result is a record of {@link #RECORD_SIZE} bytes, multi-byte fields are in
+ * native byte order; keep in sync with com_android_server_wifi_WifiNative.cpp:
+ *
+ *   0  int64   timestamp (us)
+ *   8  int32   frequency (MHz)
+ *  12  int32   level (dBm)
+ *  16  byte[6] BSSID
+ *  22  uint8   SSID length
+ *  23  -       padding
+ *  24  byte[32] SSID, not NUL terminated
+ *
+ * The buffer is refilled by each fetch, so it must be used from a single thread and
+ * entries must not be read once the next batch was fetched.
+ * {@hide}
+ */
+class ScanResultBuffer {
+
+    static final int RECORD_SIZE = 56;
+
+    private static final int TIMESTAMP_OFFSET = 0;
+    private static final int FREQUENCY_OFFSET = 8;
+    private static final int LEVEL_OFFSET = 12;
+    private static final int BSSID_OFFSET = 16;
+    private static final int SSID_LENGTH_OFFSET = 22;
+    private static final int SSID_OFFSET = 24;
+    private static final int MAX_SSID_LENGTH = 32;
+
+    private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+
+    private final ByteBuffer mBuffer;
+    private final int mMaxResults;
+    private int mCount;
+
+    private final byte[] mSsidBytes = new byte[MAX_SSID_LENGTH];
+    private final char[] mBssidChars = new char[17];
+
+    // Statistics, since creation
+    private long mBatches;
+    private long mResults;
+    private long mMaterialized;
+
+    ScanResultBuffer(int maxResults) {
+        mMaxResults = maxResults;
+        mBuffer = ByteBuffer.allocateDirect(maxResults * RECORD_SIZE);
+        mBuffer.order(ByteOrder.nativeOrder());
+    }
+
+    /** The direct buffer native code fills */
+    ByteBuffer getBuffer() {
+        return mBuffer;
+    }
+
+    /** Called once native code filled count records */
+    void setCount(int count) {
+        mCount = Math.max(0, Math.min(count, mMaxResults));
+        if (mCount > 0) {
+            mBatches++;
+            mResults += mCount;
+        }
+    }
+
+    int size() {
+        return mCount;
+    }
+
+    long getTimestamp(int i) {
+        return mBuffer.getLong(offsetOf(i) + TIMESTAMP_OFFSET);
+    }
+
+    int getFrequency(int i) {
+        return mBuffer.getInt(offsetOf(i) + FREQUENCY_OFFSET);
+    }
+
+    int getLevel(int i) {
+        return mBuffer.getInt(offsetOf(i) + LEVEL_OFFSET);
+    }
+
+    /** @return the BSSID as xx:xx:xx:xx:xx:xx */
+    String getBssid(int i) {
+        int offset = offsetOf(i) + BSSID_OFFSET;
+        char[] chars = mBssidChars;
+        for (int k = 0; k < 6; k++) {
+            int b = mBuffer.get(offset + k) & 0xff;
+            if (k > 0) chars[k * 3 - 1] = ':';
+            chars[k * 3] = HEX_DIGITS[b >>> 4];
+            chars[k * 3 + 1] = HEX_DIGITS[b & 0xf];
+        }
+        return new String(chars);
+    }
+
+    String getSsid(int i) {
+        int offset = offsetOf(i);
+        int length = Math.min(mBuffer.get(offset + SSID_LENGTH_OFFSET) & 0xff, MAX_SSID_LENGTH);
+        for (int k = 0; k < length; k++) {
+            mSsidBytes[k] = mBuffer.get(offset + SSID_OFFSET + k);
+        }
+        return new String(mSsidBytes, 0, length, StandardCharsets.UTF_8);
+    }
+
+    /** @return a new ScanResult for entry i, as getScanResultsNative used to build it */
+    ScanResult toScanResult(int i) {
+        mMaterialized++;
+        WifiSsid wifiSsid = WifiSsid.createFromAsciiEncoded(getSsid(i));
+        return new ScanResult(wifiSsid, getBssid(i), "", getLevel(i), getFrequency(i),
+                getTimestamp(i));
+    }
+
+    /** @return all entries as ScanResults, for callers that need the whole array */
+    ScanResult[] toArray() {
+        ScanResult[] results = new ScanResult[mCount];
+        for (int i = 0; i < mCount; i++) {
+            results[i] = toScanResult(i);
+        }
+        return results;
+    }
+
+    private int offsetOf(int i) {
+        if (i < 0 || i >= mCount) {
+            throw new IndexOutOfBoundsException("index " + i + " size " + mCount);
+        }
+        return i * RECORD_SIZE;
+    }
+
+    @Override
+    public String toString() {
+        return "ScanResultBuffer size=" + mCount + " capacity=" + mMaxResults
+                + " batches=" + mBatches + " results=" + mResults
+                + " materialized=" + mMaterialized;
+    }
+}
@@ -0,0 +1,299 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.wifi;
+
+import android.net.wifi.ScanResult;
+
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * Bounded cache of ScanResult objects keyed by BSSID, packed into a long, and optionally
+ * by SSID for callers which need to tell apart several SSIDs advertised by the same BSSID.
+ *
+ * The table uses open addressing with linear probing, so that a lookup does not allocate:
+ * callers can look up with an SSID that is still embedded in a larger String, such as a
+ * supplicant reply. When the cache is full the entry with the oldest
+ * {@link ScanResult#seen} timestamp is evicted, and {@link #removeOlderThan} ages entries
+ * out explicitly.
+ *
+ * The cache is not thread safe, and must not be modified while being iterated.
+ * {@hide}
+ */
+class ScanResultCache implements Iterable<ScanResult> {
+
+    /** Returned by {@link #parseBssid} for a malformed BSSID */
+    static final long INVALID_BSSID = -1;
+
+    private final int mMaxEntries;
+    private int mMask;
+    private int mSize;
+
+    private long[] mBssids;
+    private String[] mSsids;
+    private int[] mSsidHashes;
+    private ScanResult[] mResults;
+
+    // Used by removeOlderThan() to rebuild the table without allocating
+    private long[] mSpareBssids;
+    private String[] mSpareSsids;
+    private int[] mSpareSsidHashes;
+    private ScanResult[] mSpareResults;
+
+    ScanResultCache(int maxEntries) {
+        if (maxEntries <= 0) {
+            throw new IllegalArgumentException("maxEntries <= 0");
+        }
+        mMaxEntries = maxEntries;
+        // Keep the load factor under 1/2 so that probe sequences stay short
+        int capacity = Integer.highestOneBit(2 * maxEntries - 1) << 1;
+        mMask = capacity - 1;
+        mBssids = new long[capacity];
+        mSsids = new String[capacity];
+        mSsidHashes = new int[capacity];
+        mResults = new ScanResult[capacity];
+        mSpareBssids = new long[capacity];
+        mSpareSsids = new String[capacity];
+        mSpareSsidHashes = new int[capacity];
+        mSpareResults = new ScanResult[capacity];
+    }
+
+    int size() {
+        return mSize;
+    }
+
+    int maxSize() {
+        return mMaxEntries;
+    }
+
+    ScanResult get(long bssid, String ssid) {
+        if (ssid == null) return get(bssid, null, 0, 0);
+        return get(bssid, ssid, 0, ssid.length());
+    }
+
+    /**
+     * Look up an entry whose SSID is source[ssidStart, ssidEnd), or which has no SSID
+     * if source is null.
+     */
+    ScanResult get(long bssid, String source, int ssidStart, int ssidEnd) {
+        int index = indexOf(bssid, source, ssidStart, ssidEnd,
+                hashOf(source, ssidStart, ssidEnd));
+        return index < 0 ? null : mResults[index];
+    }
+
+    /**
+     * Add or replace an entry, evicting the least recently seen one if the cache is full.
+     */
+    void put(long bssid, String ssid, ScanResult result) {
+        if (result == null) {
+            throw new NullPointerException("result == null");
+        }
+        int ssidHash = (ssid == null) ? 0 : hashOf(ssid, 0, ssid.length());
+        int ssidEnd = (ssid == null) ? 0 : ssid.length();
+        int index = indexOf(bssid, ssid, 0, ssidEnd, ssidHash);
+        if (index >= 0) {
+            mResults[index] = result;
+            return;
+        }
+        if (mSize >= mMaxEntries) {
+            removeAt(oldestIndex());
+        }
+        insert(mBssids, mSsids, mSsidHashes, mResults, bssid, ssid, ssidHash, result);
+        mSize++;
+    }
+
+    ScanResult remove(long bssid, String ssid) {
+        int ssidEnd = (ssid == null) ? 0 : ssid.length();
+        int index = indexOf(bssid, ssid, 0, ssidEnd, hashOf(ssid, 0, ssidEnd));
+        if (index < 0) return null;
+        ScanResult result = mResults[index];
+        removeAt(index);
+        return result;
+    }
+
+    /**
+     * Remove all entries last seen before seenCutoff (in {@link ScanResult#seen} units)
+     * @return the number of entries removed
+     */
+    int removeOlderThan(long seenCutoff) {
+        int removed = 0;
+        for (int i = 0; i <= mMask; i++) {
+            ScanResult result = mResults[i];
+            if (result == null) continue;
+            if (result.seen < seenCutoff) {
+                removed++;
+            } else {
+                insert(mSpareBssids, mSpareSsids, mSpareSsidHashes, mSpareResults,
+                        mBssids[i], mSsids[i], mSsidHashes[i], result);
+            }
+            mSsids[i] = null;
+            mResults[i] = null;
+        }
+
+        long[] bssids = mBssids;
+        mBssids = mSpareBssids;
+        mSpareBssids = bssids;
+        String[] ssids = mSsids;
+        mSsids = mSpareSsids;
+        mSpareSsids = ssids;
+        int[] ssidHashes = mSsidHashes;
+        mSsidHashes = mSpareSsidHashes;
+        mSpareSsidHashes = ssidHashes;
+        ScanResult[] results = mResults;
+        mResults = mSpareResults;
+        mSpareResults = results;
+
+        mSize -= removed;
+        return removed;
+    }
+
+    void clear() {
+        for (int i = 0; i <= mMask; i++) {
+            mSsids[i] = null;
+            mResults[i] = null;
+        }
+        mSize = 0;
+    }
+
+    /**
+     * Iterates over the cached results in no particular order.
+     */
+    @Override
+    public Iterator<ScanResult> iterator() {
+        return new Iterator<ScanResult>() {
+            private int mNext = advance(0);
+
+            private int advance(int from) {
+                while (from <= mMask && mResults[from] == null) from++;
+                return from;
+            }
+
+            @Override
+            public boolean hasNext() {
+                return mNext <= mMask;
+            }
+
+            @Override
+            public ScanResult next() {
+                if (mNext > mMask) throw new NoSuchElementException();
+                ScanResult result = mResults[mNext];
+                mNext = advance(mNext + 1);
+                return result;
+            }
+
+            @Override
+            public void remove() {
+                throw new UnsupportedOperationException();
+            }
+        };
+    }
+
+    private int indexOf(long bssid, String source, int ssidStart, int ssidEnd, int ssidHash) {
+        for (int i = slotOf(bssid, ssidHash); mResults[i] != null; i = (i + 1) & mMask) {
+            if (mBssids[i] == bssid && mSsidHashes[i] == ssidHash
+                    && ssidEquals(mSsids[i], source, ssidStart, ssidEnd)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private void insert(long[] bssids, String[] ssids, int[] ssidHashes, ScanResult[] results,
+            long bssid, String ssid, int ssidHash, ScanResult result) {
+        int i = slotOf(bssid, ssidHash);
+        while (results[i] != null) i = (i + 1) & mMask;
+        bssids[i] = bssid;
+        ssids[i] = ssid;
+        ssidHashes[i] = ssidHash;
+        results[i] = result;
+    }
+
+    private int oldestIndex() {
+        int oldest = -1;
+        for (int i = 0; i <= mMask; i++) {
+            if (mResults[i] != null && (oldest < 0 || mResults[i].seen < mResults[oldest].seen)) {
+                oldest = i;
+            }
+        }
+        return oldest;
+    }
+
+    /**
+     * Remove the entry at index and shift back the entries of the same probe sequence,
+     * so that lookups never need tombstones.
+     */
+    private void removeAt(int index) {
+        int hole = index;
+        for (int i = (index + 1) & mMask; mResults[i] != null; i = (i + 1) & mMask) {
+            int home = slotOf(mBssids[i], mSsidHashes[i]);
+            if (((i - home) & mMask) >= ((i - hole) & mMask)) {
+                mBssids[hole] = mBssids[i];
+                mSsids[hole] = mSsids[i];
+                mSsidHashes[hole] = mSsidHashes[i];
+                mResults[hole] = mResults[i];
+                hole = i;
+            }
+        }
+        mSsids[hole] = null;
+        mResults[hole] = null;
+        mSize--;
+    }
+
+    private int slotOf(long bssid, int ssidHash) {
+        long h = (bssid ^ (bssid >>> 29)) * 0x9E3779B97F4A7C15L + ssidHash;
+        return (int) (h ^ (h >>> 32)) & mMask;
+    }
+
+    private static boolean ssidEquals(String ssid, String source, int start, int end) {
+        if (source == null) return ssid == null;
+        int length = end - start;
+        return ssid != null && ssid.length() == length
+                && source.regionMatches(start, ssid, 0, length);
+    }
+
+    /** Same value as source.substring(start, end).hashCode(), 0 if source is null */
+    private static int hashOf(String source, int start, int end) {
+        if (source == null) return 0;
+        int h = 0;
+        for (int i = start; i < end; i++) {
+            h = 31 * h + source.charAt(i);
+        }
+        return h;
+    }
+
+    static long parseBssid(String bssid) {
+        if (bssid == null) return INVALID_BSSID;
+        return parseBssid(bssid, 0, bssid.length());
+    }
+
+    /**
+     * Pack a "xx:xx:xx:xx:xx:xx" BSSID into the low 48 bits of a long
+     * @return the packed BSSID or {@link #INVALID_BSSID} if malformed
+     */
+    static long parseBssid(String source, int start, int end) {
+        if (end - start != 17) return INVALID_BSSID;
+        long bssid = 0;
+        for (int i = start; i < end; i += 3) {
+            int hi = Character.digit(source.charAt(i), 16);
+            int lo = Character.digit(source.charAt(i + 1), 16);
+            if (hi < 0 || lo < 0) return INVALID_BSSID;
+            if (i + 2 < end && source.charAt(i + 2) != ':') return INVALID_BSSID;
+            bssid = (bssid << 8) | (hi << 4) | lo;
+        }
+        return bssid;
+    }
+}
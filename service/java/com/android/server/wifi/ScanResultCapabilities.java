@@ -0,0 +1,145 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.wifi;
+
+/**
+ * Decodes {@link android.net.wifi.ScanResult#capabilities} strings, such as
+ * "[WPA2-PSK-CCMP][WPS][ESS]", into a bitmask.
+ *
+ * A given environment only has a handful of distinct capability strings, so they are
+ * interned in a shared pool along with their decoded bits: scan results share the
+ * String instances, and matching code tests bits instead of running substring searches
+ * on every comparison.
+ * {@hide}
+ */
+final class ScanResultCapabilities {
+
+    /* Security bits: set if the capabilities contain "WEP", "PSK" or "EAP" */
+    static final int WEP        = 1 << 0;
+    static final int PSK        = 1 << 1;
+    static final int EAP        = 1 << 2;
+    static final int SECURITY_MASK = WEP | PSK | EAP;
+
+    /* Protocols and ciphers */
+    static final int WPA        = 1 << 3;
+    static final int WPA2       = 1 << 4;
+    static final int CCMP       = 1 << 5;
+    static final int TKIP       = 1 << 6;
+
+    /* Other flags */
+    static final int WPS        = 1 << 7;
+    static final int ESS        = 1 << 8;
+    static final int IBSS       = 1 << 9;
+    static final int P2P        = 1 << 10;
+    static final int HS20       = 1 << 11;
+
+    // Past this many distinct strings, capabilities are decoded on each call
+    private static final int POOL_MAX_ENTRIES = 256;
+
+    private static final String[] sPool = new String[POOL_MAX_ENTRIES * 2];
+    private static final int[] sPoolBits = new int[POOL_MAX_ENTRIES * 2];
+    private static int sPoolSize;
+
+    private ScanResultCapabilities() {}
+
+    /**
+     * @return true if bits carry none of the WEP, PSK or EAP security bits
+     */
+    static boolean isOpen(int bits) {
+        return (bits & SECURITY_MASK) == 0;
+    }
+
+    /**
+     * @return the decoded bits of capabilities, 0 if null
+     */
+    static int of(String capabilities) {
+        if (capabilities == null) return 0;
+        synchronized (sPool) {
+            int index = indexOf(capabilities, 0, capabilities.length());
+            if (index >= 0) return sPoolBits[index];
+            index = add(capabilities);
+            if (index >= 0) return sPoolBits[index];
+        }
+        return decode(capabilities);
+    }
+
+    /**
+     * @return the pooled instance of source[start, end), the source String is not retained
+     */
+    static String intern(String source, int start, int end) {
+        synchronized (sPool) {
+            int index = indexOf(source, start, end);
+            if (index >= 0) return sPool[index];
+            // Copy rather than substring, which would pin the source (a supplicant page)
+            char[] chars = new char[end - start];
+            source.getChars(start, end, chars, 0);
+            String capabilities = new String(chars);
+            add(capabilities);
+            return capabilities;
+        }
+    }
+
+    private static int indexOf(String source, int start, int end) {
+        final int mask = sPool.length - 1;
+        final int length = end - start;
+        for (int i = hashOf(source, start, end) & mask; sPool[i] != null; i = (i + 1) & mask) {
+            String pooled = sPool[i];
+            if (pooled.length() == length && source.regionMatches(start, pooled, 0, length)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /* Must be called with the sPool lock held, returns -1 if the pool is full */
+    private static int add(String capabilities) {
+        if (sPoolSize >= POOL_MAX_ENTRIES) return -1;
+        final int mask = sPool.length - 1;
+        int i = hashOf(capabilities, 0, capabilities.length()) & mask;
+        while (sPool[i] != null) i = (i + 1) & mask;
+        sPool[i] = capabilities;
+        sPoolBits[i] = decode(capabilities);
+        sPoolSize++;
+        return i;
+    }
+
+    private static int hashOf(String source, int start, int end) {
+        int h = 0;
+        for (int i = start; i < end; i++) {
+            h = 31 * h + source.charAt(i);
+        }
+        return h ^ (h >>> 16);
+    }
+
+    private static int decode(String s) {
+        int bits = 0;
+        // Match the historical capabilities.contains() checks
+        if (s.contains("WEP")) bits |= WEP;
+        if (s.contains("PSK")) bits |= PSK;
+        if (s.contains("EAP")) bits |= EAP;
+        if (s.contains("[WPA-")) bits |= WPA;
+        if (s.contains("[WPA2-") || s.contains("[RSN-")) bits |= WPA2;
+        if (s.contains("CCMP")) bits |= CCMP;
+        if (s.contains("TKIP")) bits |= TKIP;
+        if (s.contains("[WPS]")) bits |= WPS;
+        if (s.contains("[ESS]")) bits |= ESS;
+        if (s.contains("[IBSS]")) bits |= IBSS;
+        if (s.contains("[P2P]")) bits |= P2P;
+        if (s.contains("[HS20]")) bits |= HS20;
+        return bits;
+    }
+}
@@ -0,0 +1,85 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.wifi;
+
+import android.net.wifi.ScanResult;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Describes how the WifiStateMachine scan result list changed between two consecutive
+ * supplicant scans.
+ *
+ * Entries that came back with the same BSSID, SSID, frequency and capabilities are merged
+ * in place (only level, timestamp and seen are refreshed) and are only counted; entries
+ * that are new, that changed frequency or capabilities, or that disappeared are listed.
+ *
+ * Deltas are immutable once published and carry a generation number: a consumer that
+ * did not see generation N - 1 must resynchronize from the full scan result list
+ * rather than apply generation N.
+ * {@hide}
+ */
+class ScanResultDelta {
+
+    final long generation;
+    final List<ScanResult> added;
+    final List<ScanResult> changed;
+    final List<ScanResult> removed;
+    final int unchanged;
+
+    ScanResultDelta(long generation, List<ScanResult> added, List<ScanResult> changed,
+            List<ScanResult> removed, int unchanged) {
+        this.generation = generation;
+        this.added = copyOf(added);
+        this.changed = copyOf(changed);
+        this.removed = copyOf(removed);
+        this.unchanged = unchanged;
+    }
+
+    private static List<ScanResult> copyOf(List<ScanResult> list) {
+        if (list.isEmpty()) return Collections.emptyList();
+        return Collections.unmodifiableList(new ArrayList<ScanResult>(list));
+    }
+
+    /** @return true if the previous delta was generation - 1 */
+    boolean follows(long previousGeneration) {
+        return previousGeneration + 1 == generation;
+    }
+
+    /** @return true if the set of scan results did not change */
+    boolean hasSameMembers() {
+        return added.isEmpty() && removed.isEmpty();
+    }
+
+    /** @return number of entries which were added, changed or removed */
+    int churn() {
+        return added.size() + changed.size() + removed.size();
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+        sb.append("gen=").append(generation);
+        sb.append(" added=").append(added.size());
+        sb.append(" changed=").append(changed.size());
+        sb.append(" removed=").append(removed.size());
+        sb.append(" unchanged=").append(unchanged);
+        return sb.toString();
+    }
+}
@@ -0,0 +1,106 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.wifi;
+
+import android.net.wifi.ScanResult;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Immutable copy of the WifiStateMachine scan results, so that binder threads can read the
+ * scan results without taking any lock.
+ *
+ * A snapshot is published after each scan, copying all the results since a scan refreshes
+ * the level and seen time of every BSS it reports. The WifiStateMachine also updates some
+ * cached results between scans (RSSI polls, BSSID blacklisting, driver roams); it then
+ * publishes a snapshot where only the results of that BSSID are copied again and the other
+ * copies are shared with the previous snapshot. Updates made elsewhere, e.g. on the
+ * per-network caches of WifiConfigStore, only reach readers with the next scan, at most a
+ * scan interval later.
+ *
+ * The ScanResult objects are private copies owned by the snapshot: they are never
+ * modified by the WifiStateMachine, and must not be modified by readers either. Readers
+ * which hand the results to code they do not control should use {@link #copyResults}.
+ * {@hide}
+ */
+class ScanResultSnapshot {
+
+    /** Incremented each time a snapshot is published */
+    final long version;
+    /** {@link android.os.SystemClock#elapsedRealtime} at publication time */
+    final long publishedAt;
+    final List<ScanResult> results;
+
+    /* The list the results were copied from, only read on the WifiStateMachine thread */
+    private final List<ScanResult> mSources;
+
+    ScanResultSnapshot(long version, long publishedAt, List<ScanResult> scanResults) {
+        this.version = version;
+        this.publishedAt = publishedAt;
+        mSources = scanResults;
+        if (scanResults.isEmpty()) {
+            this.results = Collections.emptyList();
+        } else {
+            ArrayList<ScanResult> results = new ArrayList<ScanResult>(scanResults.size());
+            for (int i = 0; i < scanResults.size(); i++) {
+                results.add(new ScanResult(scanResults.get(i)));
+            }
+            this.results = Collections.unmodifiableList(results);
+        }
+    }
+
+    /**
+     * @return a snapshot of the same results as this one, where only those with the given
+     * BSSID are copied again from scanResults, or a full copy of scanResults if it is not
+     * the list this snapshot was made from
+     */
+    ScanResultSnapshot update(long version, long publishedAt, List<ScanResult> scanResults,
+            String bssid) {
+        if (scanResults != mSources || bssid == null) {
+            return new ScanResultSnapshot(version, publishedAt, scanResults);
+        }
+        ArrayList<ScanResult> updated = null;
+        for (int i = 0; i < scanResults.size(); i++) {
+            ScanResult source = scanResults.get(i);
+            if (!bssid.equals(source.BSSID)) continue;
+            if (updated == null) updated = new ArrayList<ScanResult>(results);
+            updated.set(i, new ScanResult(source));
+        }
+        if (updated == null) return this;
+        return new ScanResultSnapshot(version, publishedAt, scanResults,
+                Collections.unmodifiableList(updated));
+    }
+
+    private ScanResultSnapshot(long version, long publishedAt, List<ScanResult> sources,
+            List<ScanResult> results) {
+        this.version = version;
+        this.publishedAt = publishedAt;
+        mSources = sources;
+        this.results = results;
+    }
+
+    /** @return a list of new ScanResult objects the caller is free to modify */
+    List<ScanResult> copyResults() {
+        List<ScanResult> copy = new ArrayList<ScanResult>(results.size());
+        for (int i = 0; i < results.size(); i++) {
+            copy.add(new ScanResult(results.get(i)));
+        }
+        return copy;
+    }
+}
@@ -18,14 +18,31 @@ package com.android.server.wifi;
 
 import android.net.wifi.SupplicantState;
 import android.net.wifi.WifiSsid;
+import android.os.Message;
 
 /**
  * Stores supplicant state change information passed from WifiMonitor to
  * a state machine. WifiStateMachine, SupplicantStateTracker and WpsStateMachine
  * are example state machines that handle it.
+ *
+ * WifiMonitor takes instances from a small pool with {@link #obtain}. Each pending message
+ * carrying a pooled instance holds a reference to it: a state machine that forwards or
+ * defers such a message calls {@link #retain(Message)}, and {@link #recycle(Message)} once
+ * it is done with it. Instances that are never recycled, e.g. those of the state changes
+ * {@link EventDeliveryTracker} removes from the queue, are simply garbage collected.
  * @hide
  */
 public class StateChangeResult {
+    private static final Object sPoolSync = new Object();
+    private static StateChangeResult sPool;
+    private static int sPoolSize = 0;
+    private static final int MAX_POOL_SIZE = 8;
+
+    /* Next instance in the pool */
+    private StateChangeResult mNext;
+    /* References held by pending messages, 0 if not obtained from the pool */
+    private int mRefCount;
+
     StateChangeResult(int networkId, WifiSsid wifiSsid, String BSSID,
             SupplicantState state) {
         this.state = state;
@@ -39,6 +56,77 @@ public class StateChangeResult {
     String BSSID;
     SupplicantState state;
 
+    /**
+     * Returns a pooled instance holding one reference, for the message about to be sent.
+     */
+    static StateChangeResult obtain(int networkId, WifiSsid wifiSsid, String BSSID,
+            SupplicantState state) {
+        StateChangeResult result = null;
+        synchronized (sPoolSync) {
+            if (sPool != null) {
+                result = sPool;
+                sPool = result.mNext;
+                result.mNext = null;
+                sPoolSize--;
+            }
+        }
+        if (result == null) {
+            result = new StateChangeResult(networkId, wifiSsid, BSSID, state);
+        } else {
+            result.networkId = networkId;
+            result.wifiSsid = wifiSsid;
+            result.BSSID = BSSID;
+            result.state = state;
+        }
+        result.mRefCount = 1;
+        return result;
+    }
+
+    /**
+     * Adds a reference to the result carried by msg, before msg is forwarded or deferred.
+     */
+    static void retain(Message msg) {
+        StateChangeResult result = fromMessage(msg);
+        if (result == null) return;
+        synchronized (sPoolSync) {
+            if (result.mRefCount > 0) result.mRefCount++;
+        }
+    }
+
+    /**
+     * Drops the reference to the result carried by msg; the last one returns it to the pool.
+     */
+    static void recycle(Message msg) {
+        StateChangeResult result = fromMessage(msg);
+        if (result != null) result.recycle();
+    }
+
+    void recycle() {
+        synchronized (sPoolSync) {
+            if (mRefCount <= 0 || --mRefCount > 0) return;
+            networkId = -1;
+            wifiSsid = null;
+            BSSID = null;
+            state = null;
+            if (sPoolSize < MAX_POOL_SIZE) {
+                mNext = sPool;
+                sPool = this;
+                sPoolSize++;
+            }
+        }
+    }
+
+    /**
+     * @return the result carried by a SUPPLICANT_STATE_CHANGE_EVENT msg, or null
+     */
+    static StateChangeResult fromMessage(Message msg) {
+        if (msg.what != WifiMonitor.SUPPLICANT_STATE_CHANGE_EVENT
+                || !(msg.obj instanceof StateChangeResult)) {
+            return null;
+        }
+        return (StateChangeResult) msg.obj;
+    }
+
     @Override
     public String toString() {
         StringBuffer sb = new StringBuffer();
@@ -0,0 +1,247 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.wifi;
+
+import android.net.wifi.SupplicantState;
+import android.net.wifi.WifiSsid;
+
+/**
+ * Extracts the fields of the CTRL-EVENT-STATE-CHANGE, CTRL-EVENT-CONNECTED and
+ * CTRL-EVENT-DISCONNECTED events by scanning the event string in place, instead of
+ * splitting it or running a regex on it.
+ *
+ * The fields of the last event parsed are left in the scanner fields. The BSSID and SSID
+ * of consecutive events are usually the same, so the last BSSID string and WifiSsid are
+ * reused rather than allocated again. Not thread safe, a WifiMonitor uses its own
+ * scanner on the monitor thread.
+ * {@hide}
+ */
+class SupplicantEventScanner {
+
+    private static final SupplicantState[] SUPPLICANT_STATES = SupplicantState.values();
+
+    private static final String ID_KEY = "id";
+    private static final String STATE_KEY = "state";
+    private static final String BSSID_KEY = "BSSID";
+    private static final String SSID_KEY = "SSID=";
+    private static final String ID_TAG = " [id=";
+    private static final String REASON_KEY = "reason=";
+    private static final String LOCALLY_GENERATED_KEY = "locally_generated=";
+
+    /* Length of "00:1e:58:ec:d5:6d" */
+    private static final int BSSID_LEN = 17;
+
+    int networkId;
+    /* Ordinal of the supplicant state, -1 if missing */
+    int state;
+    String BSSID;
+    WifiSsid wifiSsid;
+    int reason;
+    int locallyGenerated;
+
+    private String mLastBssid;
+    private String mLastSsid;
+    private WifiSsid mLastWifiSsid;
+
+    /**
+     * Maps a supplicant state ordinal, as found in STATE-CHANGE events, to its state.
+     */
+    static SupplicantState supplicantStateOf(int ordinal) {
+        if (ordinal < 0 || ordinal >= SUPPLICANT_STATES.length) {
+            return SupplicantState.INVALID;
+        }
+        return SUPPLICANT_STATES[ordinal];
+    }
+
+    /**
+     * Parses the data of a STATE-CHANGE event:
+     * id=network-id state=new-state BSSID=bssid SSID=ssid
+     * Tokens that are not name=value pairs are ignored, as are values that do not parse.
+     */
+    void parseStateChange(String data) {
+        networkId = -1;
+        state = -1;
+        String bssid = null;
+
+        wifiSsid = null;
+        int index = data.lastIndexOf(SSID_KEY);
+        if (index != -1) {
+            int ssid = index + SSID_KEY.length();
+            String last = mLastSsid;
+            if (last == null || last.length() != data.length() - ssid
+                    || !data.regionMatches(ssid, last, 0, last.length())) {
+                mLastSsid = data.substring(ssid);
+                mLastWifiSsid = WifiSsid.createFromAsciiEncoded(mLastSsid);
+            }
+            wifiSsid = mLastWifiSsid;
+        }
+
+        int length = data.length();
+        int start = 0;
+        while (start < length) {
+            int end = data.indexOf(' ', start);
+            if (end == -1) end = length;
+            int equals = data.indexOf('=', start);
+            // Exactly one '=', with a value after it
+            if (equals != -1 && equals < end - 1 && data.lastIndexOf('=', end - 1) == equals) {
+                if (isKey(data, start, equals, BSSID_KEY)) {
+                    bssid = bssid(data, equals + 1, end);
+                } else {
+                    int value = parseInt(data, equals + 1, end);
+                    if (value != Integer.MIN_VALUE) {
+                        if (isKey(data, start, equals, ID_KEY)) {
+                            networkId = value;
+                        } else if (isKey(data, start, equals, STATE_KEY)) {
+                            state = value;
+                        }
+                    }
+                }
+            }
+            start = end + 1;
+        }
+        BSSID = bssid;
+    }
+
+    /**
+     * Parses the data of a CONNECTED event:
+     * Connection to 00:1e:58:ec:d5:6d completed (reauth) [id=1 id_str=]
+     * @return false if no BSSID followed by a network id was found
+     */
+    boolean parseConnected(String data) {
+        networkId = -1;
+        BSSID = null;
+        for (int mac = findBssid(data, 0); mac != -1; mac = findBssid(data, mac + 1)) {
+            int macEnd = mac + BSSID_LEN;
+            if (macEnd >= data.length() || data.charAt(macEnd) != ' ') continue;
+            // The last " [id=N " past the BSSID, as a greedy match would pick
+            int tag = data.lastIndexOf(ID_TAG);
+            while (tag > macEnd) {
+                int digits = tag + ID_TAG.length();
+                int end = skipDigits(data, digits);
+                if (end > digits && end < data.length() && data.charAt(end) == ' ') {
+                    BSSID = bssid(data, mac, macEnd);
+                    networkId = parseInt(data, digits, end);
+                    if (networkId == Integer.MIN_VALUE) networkId = -1;
+                    return true;
+                }
+                tag = data.lastIndexOf(ID_TAG, tag - 1);
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Parses the data of a DISCONNECTED event:
+     * bssid=ac:22:0b:24:70:74 reason=3 locally_generated=1
+     * @return false if the BSSID, reason and locally_generated fields were not found
+     */
+    boolean parseDisconnected(String data) {
+        BSSID = null;
+        reason = 0;
+        locallyGenerated = 0;
+        for (int mac = findBssid(data, 0); mac != -1; mac = findBssid(data, mac + 1)) {
+            int macEnd = mac + BSSID_LEN;
+            int i = skipSpaces(data, macEnd);
+            if (i == macEnd || !data.startsWith(REASON_KEY, i)) continue;
+            int digits = i + REASON_KEY.length();
+            int digitsEnd = skipDigits(data, digits);
+            if (digitsEnd == digits) continue;
+            i = skipSpaces(data, digitsEnd);
+            if (i == digitsEnd || !data.startsWith(LOCALLY_GENERATED_KEY, i)) continue;
+            i += LOCALLY_GENERATED_KEY.length();
+            if (i >= data.length()) continue;
+            char local = data.charAt(i);
+            if (local != '0' && local != '1') continue;
+
+            BSSID = bssid(data, mac, macEnd);
+            reason = parseInt(data, digits, digitsEnd);
+            if (reason == Integer.MIN_VALUE) reason = -1;
+            locallyGenerated = local - '0';
+            return true;
+        }
+        return false;
+    }
+
+    /* Returns s[start, end) as a string, reusing the last BSSID when equal */
+    private String bssid(String s, int start, int end) {
+        String last = mLastBssid;
+        if (last == null || last.length() != end - start
+                || !s.regionMatches(start, last, 0, last.length())) {
+            mLastBssid = last = s.substring(start, end);
+        }
+        return last;
+    }
+
+    /* @return the index of the first lower case MAC address at or after from, or -1 */
+    private static int findBssid(String s, int from) {
+        int colon = s.indexOf(':', from + 2);
+        while (colon != -1) {
+            int start = colon - 2;
+            if (start + BSSID_LEN <= s.length() && isBssid(s, start)) {
+                return start;
+            }
+            colon = s.indexOf(':', colon + 1);
+        }
+        return -1;
+    }
+
+    private static boolean isBssid(String s, int start) {
+        for (int i = 0; i < BSSID_LEN; i++) {
+            char c = s.charAt(start + i);
+            if (i % 3 == 2) {
+                if (c != ':') return false;
+            } else if ((c < '0' || c > '9') && (c < 'a' || c > 'f')) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static int skipSpaces(String s, int i) {
+        while (i < s.length() && s.charAt(i) == ' ') i++;
+        return i;
+    }
+
+    private static int skipDigits(String s, int i) {
+        while (i < s.length() && s.charAt(i) >= '0' && s.charAt(i) <= '9') i++;
+        return i;
+    }
+
+    /* Also used by LinkPollResult for the key=value lines of the poll replies */
+    static boolean isKey(String s, int start, int end, String key) {
+        return end - start == key.length() && s.regionMatches(start, key, 0, key.length());
+    }
+
+    /*
+     * @return the decimal value of s[start, end), or Integer.MIN_VALUE if invalid; a leading
+     * sign is accepted, as Integer.parseInt() does
+     */
+    static int parseInt(String s, int start, int end) {
+        boolean negative = start < end && s.charAt(start) == '-';
+        boolean signed = negative || (start < end && s.charAt(start) == '+');
+        int i = signed ? start + 1 : start;
+        if (i >= end) return Integer.MIN_VALUE;
+        long value = 0;
+        for (; i < end; i++) {
+            char c = s.charAt(i);
+            if (c < '0' || c > '9') return Integer.MIN_VALUE;
+            value = value * 10 + (c - '0');
+            if (value > Integer.MAX_VALUE) return Integer.MIN_VALUE;
+        }
+        return (int) (negative ? -value : value);
+    }
+}
@@ -0,0 +1,256 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.wifi;
+
+import android.util.SparseArray;
+
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.HashMap;
+
+/**
+ * Caches the replies of the supplicant queries that are re-issued much more often than
+ * their answer changes: LIST_NETWORKS and GET_NETWORK. STATUS is never cached, the
+ * supplicant replays its state events when it gets one, and neither is STATUS-NO_EVENTS:
+ * it is read to decide on a connection (e.g. by autojoin) right after events that may
+ * not have been dispatched yet, so only a fresh reply will do.
+ *
+ * Entries are dropped by what can change them:
+ * - supplicant events, see {@link #onEvent}. Scan and BSS events, by far the most common,
+ *   leave every entry alone; WPS and network events drop the network variables; any
+ *   other event drops LIST_NETWORKS.
+ * - commands we send, see {@link #onCommand}. *_NETWORK commands drop the variables of
+ *   their network, and everything but known read-only commands drops LIST_NETWORKS.
+ * - (re)connection to the supplicant, which drops everything.
+ *
+ * A reply is only stored if nothing was invalidated while the query was in flight, so a
+ * stale answer cannot outlive the event that made it stale.
+ * {@hide}
+ */
+class SupplicantQueryCache {
+
+    private static final HashMap<String, SupplicantQueryCache> sCaches =
+            new HashMap<String, SupplicantQueryCache>();
+
+    /* Commands that never change the supplicant state */
+    private static final String[] READ_ONLY_PREFIXES = {
+        "PING", "STATUS", "LIST_NETWORKS", "GET", "SIGNAL_POLL", "PKTCNT_POLL", "BSS ",
+        "SCAN_RESULTS", "MIB", "LOG_LEVEL"
+    };
+
+    /* Events that change none of the cached replies */
+    private static final String[] NEUTRAL_EVENT_PREFIXES = {
+        "CTRL-EVENT-SCAN-", "CTRL-EVENT-BSS-", "RX-HS20-ANQP", "GAS-", "P2P-DEVICE-",
+        "P2P-FIND-", "P2P-SERV-DISC-"
+    };
+
+    private static final String NETWORK_PREFIX = "GET_NETWORK ";
+
+    private final String mInterfaceName;
+
+    private final HashMap<String, String> mListNetworks = new HashMap<String, String>();
+    /* GET_NETWORK replies by netId, then variable name */
+    private final SparseArray<HashMap<String, String>> mNetworkVariables =
+            new SparseArray<HashMap<String, String>>();
+
+    /* Bumped by every invalidation */
+    private int mGeneration;
+
+    // Statistics, since creation
+    private long mHits;
+    private long mMisses;
+    private long mEventInvalidations;
+    private long mCommandInvalidations;
+    private long mDroppedReplies;
+
+    private SupplicantQueryCache(String interfaceName) {
+        mInterfaceName = interfaceName;
+    }
+
+    /**
+     * @return the cache of interfaceName, created on first use
+     */
+    static SupplicantQueryCache forInterface(String interfaceName) {
+        synchronized (sCaches) {
+            SupplicantQueryCache cache = sCaches.get(interfaceName);
+            if (cache == null) {
+                cache = new SupplicantQueryCache(interfaceName);
+                sCaches.put(interfaceName, cache);
+            }
+            return cache;
+        }
+    }
+
+    /**
+     * Drops the entries of every interface, e.g. when the supplicant is killed.
+     */
+    static void invalidateAllInterfaces() {
+        for (SupplicantQueryCache cache : getCaches()) {
+            cache.invalidateAll();
+        }
+    }
+
+    private static ArrayList<SupplicantQueryCache> getCaches() {
+        synchronized (sCaches) {
+            return new ArrayList<SupplicantQueryCache>(sCaches.values());
+        }
+    }
+
+    static boolean isCacheable(String command) {
+        return command.startsWith("LIST_NETWORKS") || command.startsWith(NETWORK_PREFIX);
+    }
+
+    /**
+     * @return the cached reply to command, or null on a miss
+     */
+    synchronized String get(String command) {
+        String reply = lookup(command);
+        if (reply != null) {
+            mHits++;
+        } else {
+            mMisses++;
+        }
+        return reply;
+    }
+
+    /**
+     * @return the generation to pass to {@link #put} along with the reply of a query
+     * sent after this call
+     */
+    synchronized int getGeneration() {
+        return mGeneration;
+    }
+
+    synchronized void put(String command, String reply, int generation) {
+        if (reply == null || !isCacheable(command)) return;
+        if (generation != mGeneration) {
+            mDroppedReplies++;
+            return;
+        }
+        if (command.startsWith("LIST_NETWORKS")) {
+            mListNetworks.put(command, reply);
+        } else if (command.startsWith(NETWORK_PREFIX)) {
+            int netIdEnd = command.indexOf(' ', NETWORK_PREFIX.length());
+            int netId = parseNetId(command, NETWORK_PREFIX.length(), netIdEnd);
+            if (netId < 0) return;
+            HashMap<String, String> variables = mNetworkVariables.get(netId);
+            if (variables == null) {
+                variables = new HashMap<String, String>();
+                mNetworkVariables.put(netId, variables);
+            }
+            variables.put(command.substring(netIdEnd + 1), reply);
+        }
+    }
+
+    /**
+     * Drops the entries a supplicant event of this interface may have changed.
+     */
+    synchronized void onEvent(String event) {
+        for (String prefix : NEUTRAL_EVENT_PREFIXES) {
+            if (event.startsWith(prefix)) return;
+        }
+        mEventInvalidations++;
+        if (event.startsWith("WPS-") || event.contains("NETWORK")
+                || event.contains("TERMINATING")) {
+            invalidateAll();
+        } else {
+            invalidateState();
+        }
+    }
+
+    /**
+     * Drops the entries command may change, once it was sent.
+     */
+    synchronized void onCommand(String command) {
+        if (command.startsWith("IFNAME=")) {
+            int space = command.indexOf(' ');
+            if (space < 0) return;
+            command = command.substring(space + 1);
+        }
+        for (String prefix : READ_ONLY_PREFIXES) {
+            if (command.startsWith(prefix)) return;
+        }
+        mCommandInvalidations++;
+        int nameEnd = command.indexOf(' ');
+        if (nameEnd > 0 && command.startsWith("_NETWORK", nameEnd - 8)) {
+            int netIdEnd = command.indexOf(' ', nameEnd + 1);
+            int netId = parseNetId(command, nameEnd + 1,
+                    netIdEnd < 0 ? command.length() : netIdEnd);
+            if (netId >= 0) {
+                mNetworkVariables.remove(netId);
+            } else {
+                // e.g. ENABLE_NETWORK all
+                mNetworkVariables.clear();
+            }
+        } else if (command.startsWith("RECONFIGURE") || command.startsWith("WPS_")) {
+            mNetworkVariables.clear();
+        }
+        invalidateState();
+    }
+
+    synchronized void invalidateAll() {
+        mNetworkVariables.clear();
+        invalidateState();
+    }
+
+    /* Must be called with the cache lock held */
+    private void invalidateState() {
+        mListNetworks.clear();
+        mGeneration++;
+    }
+
+    /* Must be called with the cache lock held */
+    private String lookup(String command) {
+        if (command.startsWith("LIST_NETWORKS")) return mListNetworks.get(command);
+        if (command.startsWith(NETWORK_PREFIX)) {
+            int netIdEnd = command.indexOf(' ', NETWORK_PREFIX.length());
+            int netId = parseNetId(command, NETWORK_PREFIX.length(), netIdEnd);
+            if (netId < 0) return null;
+            HashMap<String, String> variables = mNetworkVariables.get(netId);
+            return variables == null ? null : variables.get(command.substring(netIdEnd + 1));
+        }
+        return null;
+    }
+
+    private static int parseNetId(String s, int start, int end) {
+        if (end <= start || end - start > 9) return -1;
+        int netId = 0;
+        for (int i = start; i < end; i++) {
+            char c = s.charAt(i);
+            if (c < '0' || c > '9') return -1;
+            netId = netId * 10 + (c - '0');
+        }
+        return netId;
+    }
+
+    static void dump(PrintWriter pw) {
+        pw.println("Supplicant query caches:");
+        for (SupplicantQueryCache cache : getCaches()) {
+            synchronized (cache) {
+                long lookups = cache.mHits + cache.mMisses;
+                pw.println("  " + cache.mInterfaceName
+                        + " hits=" + cache.mHits
+                        + " misses=" + cache.mMisses
+                        + " hitRate=" + (lookups == 0 ? 0 : cache.mHits * 100 / lookups) + "%"
+                        + " eventInvalidations=" + cache.mEventInvalidations
+                        + " commandInvalidations=" + cache.mCommandInvalidations
+                        + " droppedReplies=" + cache.mDroppedReplies
+                        + " networks=" + cache.mNetworkVariables.size());
+            }
+        }
+    }
+}
@@ -79,6 +79,9 @@ class SupplicantStateTracker extends StateMachine {
     private final State mCompletedState = new CompletedState();
     private final State mDormantState = new DormantState();
 
+    /* Result of the last SUPPLICANT_STATE_CHANGE_EVENT processed, recycled after the next */
+    private StateChangeResult mProcessedStateChange;
+
     void enableVerboseLogging(int verbose) {
         if (verbose > 0) {
             DBG = true;
@@ -404,6 +407,15 @@ class SupplicantStateTracker extends StateMachine {
         }
     }
 
+    @Override
+    protected boolean recordLogRec(Message msg) {
+        // DisconnectedState.enter() still reads msg.obj on the transition that follows: recycle
+        // the result after the next message instead
+        if (mProcessedStateChange != null) mProcessedStateChange.recycle();
+        mProcessedStateChange = StateChangeResult.fromMessage(msg);
+        return super.recordLogRec(msg);
+    }
+
     @Override
     public void dump(FileDescriptor fd, PrintWriter pw, String[] args) {
         super.dump(fd, pw, args);
@@ -0,0 +1,57 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.wifi;
+
+/**
+ * The wpa_supplicant process and its control and monitor connections, as used by
+ * {@link WifiNative}.
+ *
+ * WifiNative talks to the real supplicant through JNI unless a transport is installed
+ * with {@link WifiNative#setSupplicantTransport}, e.g. a simulated supplicant to run the
+ * framework without a driver; libwifi-service.so is then never loaded. Commands are
+ * passed with their IFNAME= prefix, and are serialized by WifiNative; waitForEvent() is
+ * called from the WifiMonitor thread only.
+ * {@hide}
+ */
+interface SupplicantTransport {
+
+    boolean startSupplicant(boolean p2pSupported);
+
+    /**
+     * Stops the supplicant, as if killed: waitForEvent() then returns a
+     * CTRL-EVENT-TERMINATING event.
+     */
+    boolean killSupplicant(boolean p2pSupported);
+
+    boolean connect();
+
+    void close();
+
+    /**
+     * Blocks until the next event, returned with its IFNAME= prefix if any.
+     */
+    String waitForEvent();
+
+    boolean doBooleanCommand(String command);
+
+    int doIntCommand(String command);
+
+    /**
+     * @return the reply, or null if the command could not be sent
+     */
+    String doStringCommand(String command);
+}
@@ -29,7 +29,6 @@ import android.text.TextUtils;
 import android.util.Log;
 
 import java.util.ArrayList;
-import java.util.Iterator;
 import java.util.HashMap;
 import java.util.List;
 
@@ -59,8 +58,11 @@ public class WifiAutoJoinController {
 
     private String mCurrentConfigurationKey = null; //used by autojoin
 
-    private HashMap<String, ScanResult> scanResultCache =
-            new HashMap<String, ScanResult>();
+    // Maximum number of BSSIDs remembered for mScanResultMaximumAge
+    private static final int SCAN_RESULT_CACHE_SIZE = 512;
+
+    // Keyed by BSSID only
+    private final ScanResultCache scanResultCache = new ScanResultCache(SCAN_RESULT_CACHE_SIZE);
 
     private WifiConnectionStatistics mWifiConnectionStatistics;
 
@@ -146,15 +148,7 @@ public class WifiAutoJoinController {
                     + Integer.valueOf(scanResultCache.size()) + " now " + Long.valueOf(milli));
         }
 
-        Iterator<HashMap.Entry<String,ScanResult>> iter = scanResultCache.entrySet().iterator();
-        while (iter.hasNext()) {
-            HashMap.Entry<String,ScanResult> entry = iter.next();
-            ScanResult result = entry.getValue();
-
-            if ((result.seen + delay) < milli) {
-                iter.remove();
-            }
-        }
+        scanResultCache.removeOlderThan(milli - delay);
     }
 
     int addToScanCache(List<ScanResult> scanList) {
@@ -172,7 +166,8 @@ public class WifiAutoJoinController {
             result.seen = System.currentTimeMillis();
 
             // Fetch the previous instance for this result
-            ScanResult sr = scanResultCache.get(result.BSSID);
+            long bssid = ScanResultCache.parseBssid(result.BSSID);
+            ScanResult sr = scanResultCache.get(bssid, null);
             if (sr != null) {
                 if (mWifiConfigStore.scanResultRssiLevelPatchUp != 0
                         && result.level == 0
@@ -184,9 +179,6 @@ public class WifiAutoJoinController {
 
                 // If there was a previous cache result for this BSSID, average the RSSI values
                 result.averageRssi(sr.level, sr.seen, mScanResultMaximumAge);
-
-                // Remove the previous Scan Result - this is not necessary
-                scanResultCache.remove(result.BSSID);
             } else if (mWifiConfigStore.scanResultRssiLevelPatchUp != 0 && result.level == 0) {
                 // A 'zero' RSSI reading is most likely a chip problem which returns
                 // an unknown RSSI, hence initialize it to a sane value
@@ -226,8 +218,10 @@ public class WifiAutoJoinController {
                 }
             }
 
-            // scanResultCache.put(result.BSSID, new ScanResult(result));
-            scanResultCache.put(result.BSSID, result);
+            // The previous Scan Result, if any, is replaced in place
+            if (bssid != ScanResultCache.INVALID_BSSID) {
+                scanResultCache.put(bssid, null, result);
+            }
             // Add this BSSID to the scanResultCache of a Saved WifiConfiguration
             didAssociate = mWifiConfigStore.updateSavedNetworkHistory(result);
 
@@ -1188,9 +1182,7 @@ public class WifiAutoJoinController {
     }
 
     private boolean isOpenNetwork(ScanResult result) {
-        return !result.capabilities.contains("WEP") &&
-                !result.capabilities.contains("PSK") &&
-                !result.capabilities.contains("EAP");
+        return ScanResultCapabilities.isOpen(ScanResultCapabilities.of(result.capabilities));
     }
 
     private boolean haveRecentlySeenScoredBssid(WifiConfiguration config) {
@@ -1663,7 +1655,7 @@ public class WifiAutoJoinController {
             ScanResult untrustedCandidate = null;
             // Look for untrusted scored network only if the current candidate is bad
             if (isBadCandidate(rssi24, rssi5)) {
-                for (ScanResult result : scanResultCache.values()) {
+                for (ScanResult result : scanResultCache) {
                     // We look only at untrusted networks with a valid SSID
                     // A trusted result would have been looked at thru it's Wificonfiguration
                     if (TextUtils.isEmpty(result.SSID) || !result.untrusted ||
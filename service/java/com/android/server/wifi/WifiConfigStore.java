@@ -49,7 +49,6 @@ import android.security.Credentials;
 import android.security.KeyChain;
 import android.security.KeyStore;
 import android.text.TextUtils;
-import android.util.LocalLog;
 import android.util.Log;
 import android.util.SparseArray;
 
@@ -390,6 +389,9 @@ public class WifiConfigStore extends IpConfigStore {
     public boolean enable5GHzPreference = true;
     public boolean enableWifiCellularHandoverUserTriggeredAdjustment = true;
 
+    /* Incremented each time the wifi score thresholds above may have changed */
+    public int scoreThresholdsGeneration = 0;
+
     public int currentNetworkBoost = 25;
     public int scanResultRssiLevelPatchUp = -85;
 
@@ -445,7 +447,15 @@ public class WifiConfigStore extends IpConfigStore {
     private static final int DEFAULT_MAX_DHCP_RETRIES = 9;
 
 
-    private final LocalLog mLocalLog;
+    /* Events of the configuration log */
+    private static final int EVENT_MESSAGE = 1;
+    private static final int EVENT_NETWORK = 2;
+
+    /**
+     * Log of network configuration changes. It is mostly written from the WifiStateMachine
+     * thread but also from the file observer, so writes are serialized on the log itself.
+     */
+    private final WifiEventLog mEventLog;
     private final WpaConfigFileObserver mFileObserver;
 
     private WifiNative mWifiNative;
@@ -465,11 +475,25 @@ public class WifiConfigStore extends IpConfigStore {
         mWifiNative = wn;
 
         if (showNetworks) {
-            mLocalLog = mWifiNative.getLocalLog();
+            mEventLog = new WifiEventLog("WifiConfigStore", 256, new WifiEventLog.Formatter() {
+                @Override
+                public void format(StringBuilder sb, int event, String tag, long netId,
+                        long status, Object message, Object ssid) {
+                    sb.append(message);
+                    if (event == EVENT_NETWORK) {
+                        if (ssid != null) {
+                            sb.append(' ').append(ssid).append(' ').append(netId)
+                                    .append(" status=").append(status);
+                        } else {
+                            sb.append(' ').append(netId);
+                        }
+                    }
+                }
+            });
             mFileObserver = new WpaConfigFileObserver();
             mFileObserver.startWatching();
         } else {
-            mLocalLog = null;
+            mEventLog = null;
             mFileObserver = null;
         }
 
@@ -2571,6 +2595,7 @@ public class WifiConfigStore extends IpConfigStore {
                loge("readAutoJoinStatus: Error closing file" + e);
            }
         }
+        scoreThresholdsGeneration++;
     }
 
 
@@ -2661,99 +2686,54 @@ public class WifiConfigStore extends IpConfigStore {
         }
 
         boolean updateFailed = true;
+        boolean installedKeys = false;
+        NetworkVariableBatch batch = new NetworkVariableBatch();
 
         setVariables: {
 
-            if (config.SSID != null &&
-                    !mWifiNative.setNetworkVariable(
-                        netId,
-                        WifiConfiguration.ssidVarName,
-                        encodeSSID(config.SSID))) {
-                loge("failed to set SSID: "+config.SSID);
-                break setVariables;
+            if (config.SSID != null) {
+                batch.add(netId, WifiConfiguration.ssidVarName, encodeSSID(config.SSID));
             }
 
             if (config.BSSID != null) {
                 loge("Setting BSSID for " + config.configKey() + " to " + config.BSSID);
-                if (!mWifiNative.setNetworkVariable(
-                        netId,
-                        WifiConfiguration.bssidVarName,
-                        config.BSSID)) {
-                    loge("failed to set BSSID: " + config.BSSID);
-                    break setVariables;
-                }
+                batch.add(netId, WifiConfiguration.bssidVarName, config.BSSID);
             }
 
-            String allowedKeyManagementString =
-                makeString(config.allowedKeyManagement, WifiConfiguration.KeyMgmt.strings);
-            if (config.allowedKeyManagement.cardinality() != 0 &&
-                    !mWifiNative.setNetworkVariable(
-                        netId,
-                        WifiConfiguration.KeyMgmt.varName,
-                        allowedKeyManagementString)) {
-                loge("failed to set key_mgmt: "+
-                        allowedKeyManagementString);
-                break setVariables;
+            if (config.allowedKeyManagement.cardinality() != 0) {
+                batch.add(netId, WifiConfiguration.KeyMgmt.varName,
+                        makeString(config.allowedKeyManagement,
+                        WifiConfiguration.KeyMgmt.strings));
             }
 
-            String allowedProtocolsString =
-                makeString(config.allowedProtocols, WifiConfiguration.Protocol.strings);
-            if (config.allowedProtocols.cardinality() != 0 &&
-                    !mWifiNative.setNetworkVariable(
-                        netId,
-                        WifiConfiguration.Protocol.varName,
-                        allowedProtocolsString)) {
-                loge("failed to set proto: "+
-                        allowedProtocolsString);
-                break setVariables;
+            if (config.allowedProtocols.cardinality() != 0) {
+                batch.add(netId, WifiConfiguration.Protocol.varName,
+                        makeString(config.allowedProtocols,
+                        WifiConfiguration.Protocol.strings));
             }
 
-            String allowedAuthAlgorithmsString =
-                makeString(config.allowedAuthAlgorithms, WifiConfiguration.AuthAlgorithm.strings);
-            if (config.allowedAuthAlgorithms.cardinality() != 0 &&
-                    !mWifiNative.setNetworkVariable(
-                        netId,
-                        WifiConfiguration.AuthAlgorithm.varName,
-                        allowedAuthAlgorithmsString)) {
-                loge("failed to set auth_alg: "+
-                        allowedAuthAlgorithmsString);
-                break setVariables;
+            if (config.allowedAuthAlgorithms.cardinality() != 0) {
+                batch.add(netId, WifiConfiguration.AuthAlgorithm.varName,
+                        makeString(config.allowedAuthAlgorithms,
+                        WifiConfiguration.AuthAlgorithm.strings));
             }
 
-            String allowedPairwiseCiphersString =
-                    makeString(config.allowedPairwiseCiphers,
-                    WifiConfiguration.PairwiseCipher.strings);
-            if (config.allowedPairwiseCiphers.cardinality() != 0 &&
-                    !mWifiNative.setNetworkVariable(
-                        netId,
-                        WifiConfiguration.PairwiseCipher.varName,
-                        allowedPairwiseCiphersString)) {
-                loge("failed to set pairwise: "+
-                        allowedPairwiseCiphersString);
-                break setVariables;
+            if (config.allowedPairwiseCiphers.cardinality() != 0) {
+                batch.add(netId, WifiConfiguration.PairwiseCipher.varName,
+                        makeString(config.allowedPairwiseCiphers,
+                        WifiConfiguration.PairwiseCipher.strings));
             }
 
-            String allowedGroupCiphersString =
-                makeString(config.allowedGroupCiphers, WifiConfiguration.GroupCipher.strings);
-            if (config.allowedGroupCiphers.cardinality() != 0 &&
-                    !mWifiNative.setNetworkVariable(
-                        netId,
-                        WifiConfiguration.GroupCipher.varName,
-                        allowedGroupCiphersString)) {
-                loge("failed to set group: "+
-                        allowedGroupCiphersString);
-                break setVariables;
+            if (config.allowedGroupCiphers.cardinality() != 0) {
+                batch.add(netId, WifiConfiguration.GroupCipher.varName,
+                        makeString(config.allowedGroupCiphers,
+                        WifiConfiguration.GroupCipher.strings));
             }
 
             // Prevent client screw-up by passing in a WifiConfiguration we gave it
             // by preventing "*" as a key.
-            if (config.preSharedKey != null && !config.preSharedKey.equals("*") &&
-                    !mWifiNative.setNetworkVariable(
-                        netId,
-                        WifiConfiguration.pskVarName,
-                        config.preSharedKey)) {
-                loge("failed to set psk");
-                break setVariables;
+            if (config.preSharedKey != null && !config.preSharedKey.equals("*")) {
+                batch.add(netId, WifiConfiguration.pskVarName, config.preSharedKey);
             }
 
             boolean hasSetKey = false;
@@ -2762,62 +2742,32 @@ public class WifiConfigStore extends IpConfigStore {
                     // Prevent client screw-up by passing in a WifiConfiguration we gave it
                     // by preventing "*" as a key.
                     if (config.wepKeys[i] != null && !config.wepKeys[i].equals("*")) {
-                        if (!mWifiNative.setNetworkVariable(
-                                    netId,
-                                    WifiConfiguration.wepKeyVarNames[i],
-                                    config.wepKeys[i])) {
-                            loge("failed to set wep_key" + i + ": " + config.wepKeys[i]);
-                            break setVariables;
-                        }
+                        batch.add(netId, WifiConfiguration.wepKeyVarNames[i], config.wepKeys[i]);
                         hasSetKey = true;
                     }
                 }
             }
 
             if (hasSetKey) {
-                if (!mWifiNative.setNetworkVariable(
-                            netId,
-                            WifiConfiguration.wepTxKeyIdxVarName,
-                            Integer.toString(config.wepTxKeyIndex))) {
-                    loge("failed to set wep_tx_keyidx: " + config.wepTxKeyIndex);
-                    break setVariables;
-                }
+                batch.add(netId, WifiConfiguration.wepTxKeyIdxVarName,
+                        Integer.toString(config.wepTxKeyIndex));
             }
 
-            if (!mWifiNative.setNetworkVariable(
-                        netId,
-                        WifiConfiguration.priorityVarName,
-                        Integer.toString(config.priority))) {
-                loge(config.SSID + ": failed to set priority: "
-                        +config.priority);
-                break setVariables;
-            }
+            batch.add(netId, WifiConfiguration.priorityVarName,
+                    Integer.toString(config.priority));
 
-            if (config.hiddenSSID && !mWifiNative.setNetworkVariable(
-                        netId,
-                        WifiConfiguration.hiddenSSIDVarName,
-                        Integer.toString(config.hiddenSSID ? 1 : 0))) {
-                loge(config.SSID + ": failed to set hiddenSSID: "+
-                        config.hiddenSSID);
-                break setVariables;
+            if (config.hiddenSSID) {
+                batch.add(netId, WifiConfiguration.hiddenSSIDVarName,
+                        Integer.toString(config.hiddenSSID ? 1 : 0));
             }
 
-            if (config.requirePMF && !mWifiNative.setNetworkVariable(
-                        netId,
-                        WifiConfiguration.pmfVarName,
-                        "2")) {
-                loge(config.SSID + ": failed to set requirePMF: "+
-                        config.requirePMF);
-                break setVariables;
+            if (config.requirePMF) {
+                batch.add(netId, WifiConfiguration.pmfVarName, "2");
             }
 
-            if (config.updateIdentifier != null && !mWifiNative.setNetworkVariable(
-                    netId,
-                    WifiConfiguration.updateIdentiferVarName,
-                    config.updateIdentifier)) {
-                loge(config.SSID + ": failed to set updateIdentifier: "+
+            if (config.updateIdentifier != null) {
+                batch.add(netId, WifiConfiguration.updateIdentiferVarName,
                         config.updateIdentifier);
-                break setVariables;
             }
 
             if (config.enterpriseConfig != null &&
@@ -2849,6 +2799,7 @@ public class WifiConfigStore extends IpConfigStore {
                             loge(config.SSID + ": failed to install keys");
                             break setVariables;
                         }
+                        installedKeys = true;
                     } catch (IllegalStateException e) {
                         loge(config.SSID + " invalid config for key installation");
                         break setVariables;
@@ -2862,17 +2813,20 @@ public class WifiConfigStore extends IpConfigStore {
                             // No need to try to set an obfuscated password, which will fail
                             continue;
                         }
-                        if (!mWifiNative.setNetworkVariable(
-                                    netId,
-                                    key,
-                                    value)) {
-                            removeKeys(enterpriseConfig);
-                            loge(config.SSID + ": failed to set " + key +
-                                    ": " + value);
-                            break setVariables;
-                        }
+                        batch.add(netId, key, value);
                 }
             }
+
+            // Values are not logged, the batch holds keys and passwords
+            if (!mWifiNative.setNetworkVariables(batch)) {
+                int failure = batch.getFailure(netId);
+                loge(config.SSID + ": failed to set "
+                        + (failure >= 0 ? batch.getName(failure) : "network variables"));
+                if (installedKeys) {
+                    removeKeys(config.enterpriseConfig);
+                }
+                break setVariables;
+            }
             updateFailed = false;
         } // End of setVariables
 
@@ -3107,6 +3061,12 @@ public class WifiConfigStore extends IpConfigStore {
      */
     public WifiConfiguration associateWithConfiguration(ScanResult result) {
         boolean doNotAdd = false;
+        // Only PSK configurations are considered below, so a scan result without PSK
+        // can neither match one exactly nor be linked to one
+        if ((ScanResultCapabilities.of(result.capabilities) & ScanResultCapabilities.PSK) == 0) {
+            if (VVDBG) loge("associateWithConfiguration(): skip non-PSK " + result.SSID);
+            return null;
+        }
         String configKey = WifiConfiguration.configKey(result);
         if (configKey == null) {
             if (DBG) loge("associateWithConfiguration(): no config key " );
@@ -3143,7 +3103,10 @@ public class WifiConfigStore extends IpConfigStore {
                 continue;
             }
 
-            if (configKey.equals(link.configKey())) {
+            // link.configKey() starts with link.SSID, check that first so that the
+            // key is only built for configurations with a matching SSID
+            if (link.SSID != null && configKey.startsWith(link.SSID)
+                    && configKey.equals(link.configKey())) {
                 if (VVDBG) loge("associateWithConfiguration(): found it!!! " + configKey );
                 return link; // Found it exactly
             }
@@ -3298,6 +3261,23 @@ public class WifiConfigStore extends IpConfigStore {
         return channels;
     }
 
+    /**
+     * Security of a configuration expressed as ScanResultCapabilities bits, following the
+     * same rules as {@link WifiConfiguration#configKey()} but without building the key:
+     * one of WEP, PSK or EAP, or 0 for an open network.
+     */
+    static int securityOf(WifiConfiguration config) {
+        if (config.allowedKeyManagement.get(KeyMgmt.WPA_PSK)) {
+            return ScanResultCapabilities.PSK;
+        } else if (config.allowedKeyManagement.get(KeyMgmt.WPA_EAP)
+                || config.allowedKeyManagement.get(KeyMgmt.IEEE8021X)) {
+            return ScanResultCapabilities.EAP;
+        } else if (config.wepKeys != null && config.wepKeys[0] != null) {
+            return ScanResultCapabilities.WEP;
+        }
+        return 0;
+    }
+
     // Update the WifiConfiguration database with the new scan result
     // A scan result can be associated to multiple WifiConfigurations
     public boolean updateSavedNetworkHistory(ScanResult scanResult) {
@@ -3306,6 +3286,8 @@ public class WifiConfigStore extends IpConfigStore {
             return false;
 
         String SSID = "\"" + scanResult.SSID + "\"";
+        int scanSecurity = ScanResultCapabilities.of(scanResult.capabilities)
+                & ScanResultCapabilities.SECURITY_MASK;
 
         for (WifiConfiguration config : mConfiguredNetworks.values()) {
             boolean found = false;
@@ -3324,21 +3306,10 @@ public class WifiConfigStore extends IpConfigStore {
                         + " " + scanResult.capabilities
                         + " ajst=" + config.autoJoinStatus);
             }
-            if (scanResult.capabilities.contains("WEP")
-                    && config.configKey().contains("WEP")) {
+            int configSecurity = securityOf(config);
+            if ((scanSecurity & configSecurity) != 0) {
                 found = true;
-            } else if (scanResult.capabilities.contains("PSK")
-                    && config.configKey().contains("PSK")) {
-                found = true;
-            } else if (scanResult.capabilities.contains("EAP")
-                    && config.configKey().contains("EAP")) {
-                found = true;
-            } else if (!scanResult.capabilities.contains("WEP")
-                && !scanResult.capabilities.contains("PSK")
-                && !scanResult.capabilities.contains("EAP")
-                && !config.configKey().contains("WEP")
-                    && !config.configKey().contains("PSK")
-                    && !config.configKey().contains("EAP")) {
+            } else if (scanSecurity == 0 && configSecurity == 0) {
                 found = true;
             }
 
@@ -3755,17 +3726,18 @@ public class WifiConfigStore extends IpConfigStore {
             loge("WifiConfiguration from scan results " +
                     config.SSID + " cap " + result.capabilities);
         }
-        if (result.capabilities.contains("WEP")) {
+        int capabilities = ScanResultCapabilities.of(result.capabilities);
+        if ((capabilities & ScanResultCapabilities.WEP) != 0) {
             config.allowedKeyManagement.set(KeyMgmt.NONE);
             config.allowedAuthAlgorithms.set(WifiConfiguration.AuthAlgorithm.OPEN); //?
             config.allowedAuthAlgorithms.set(WifiConfiguration.AuthAlgorithm.SHARED);
         }
 
-        if (result.capabilities.contains("PSK")) {
+        if ((capabilities & ScanResultCapabilities.PSK) != 0) {
             config.allowedKeyManagement.set(KeyMgmt.WPA_PSK);
         }
 
-        if (result.capabilities.contains("EAP")) {
+        if ((capabilities & ScanResultCapabilities.EAP) != 0) {
             //this is probably wrong, as we don't have a way to enter the enterprise config
             config.allowedKeyManagement.set(KeyMgmt.WPA_EAP);
             config.allowedKeyManagement.set(KeyMgmt.IEEE8021X);
@@ -3795,9 +3767,10 @@ public class WifiConfigStore extends IpConfigStore {
         }
         pw.println();
 
-        if (mLocalLog != null) {
+        if (mEventLog != null) {
             pw.println("WifiConfigStore - Log Begin ----");
-            mLocalLog.dump(fd, pw, args);
+            WifiNative.getEventLog().dump(pw);
+            mEventLog.dump(pw);
             pw.println("WifiConfigStore - Log End ----");
         }
     }
@@ -3826,8 +3799,10 @@ public class WifiConfigStore extends IpConfigStore {
     }
 
     private void localLog(String s) {
-        if (mLocalLog != null) {
-            mLocalLog.log(s);
+        if (mEventLog != null) {
+            synchronized (mEventLog) {
+                mEventLog.log(EVENT_MESSAGE, s);
+            }
         }
     }
 
@@ -3837,7 +3812,7 @@ public class WifiConfigStore extends IpConfigStore {
     }
 
     private void localLog(String s, int netId) {
-        if (mLocalLog == null) {
+        if (mEventLog == null) {
             return;
         }
 
@@ -3846,12 +3821,13 @@ public class WifiConfigStore extends IpConfigStore {
             config = mConfiguredNetworks.get(netId);
         }
 
-        if (config != null) {
-            mLocalLog.log(s + " " + config.getPrintableSsid() + " " + netId
-                    + " status=" + config.status
-                    + " key=" + config.configKey());
-        } else {
-            mLocalLog.log(s + " " + netId);
+        synchronized (mEventLog) {
+            if (config != null) {
+                mEventLog.log(EVENT_NETWORK, WifiEventLog.NO_TAG, netId, config.status, s,
+                        config.SSID);
+            } else {
+                mEventLog.log(EVENT_NETWORK, WifiEventLog.NO_TAG, netId, 0, s, null);
+            }
         }
     }
 
@@ -60,6 +60,10 @@ class WifiController extends StateMachine {
 
     private AlarmManager mAlarmManager;
     private PendingIntent mIdleIntent;
+
+    private final MessageLatencyStats mMessageLatencyStats =
+            new MessageLatencyStats(TAG, null);
+
     private static final int IDLE_REQUEST = 0;
 
     /**
@@ -312,9 +316,23 @@ class WifiController extends StateMachine {
         mWifiStateMachine.updateBatteryWorkSource(mTmpWorkSource);
     }
 
-    class DefaultState extends State {
+    /**
+     * Base of the states handling messages, so that the latency of each message is
+     * measured from the first state it reaches.
+     */
+    abstract class TimedState extends State {
+        @Override
+        public final boolean processMessage(Message msg) {
+            mMessageLatencyStats.begin(msg);
+            return processTimedMessage(msg);
+        }
+
+        public abstract boolean processTimedMessage(Message msg);
+    }
+
+    class DefaultState extends TimedState {
         @Override
-        public boolean processMessage(Message msg) {
+        public boolean processTimedMessage(Message msg) {
             switch (msg.what) {
                 case CMD_SCREEN_ON:
                     mAlarmManager.cancel(mIdleIntent);
@@ -386,7 +404,7 @@ class WifiController extends StateMachine {
 
     }
 
-    class ApStaDisabledState extends State {
+    class ApStaDisabledState extends TimedState {
         private int mDeferredEnableSerialNumber = 0;
         private boolean mHaveDeferredEnable = false;
         private long mDisabledTimestamp;
@@ -400,7 +418,7 @@ class WifiController extends StateMachine {
             mHaveDeferredEnable = false;
         }
         @Override
-        public boolean processMessage(Message msg) {
+        public boolean processTimedMessage(Message msg) {
             switch (msg.what) {
                 case CMD_WIFI_TOGGLED:
                 case CMD_AIRPLANE_TOGGLED:
@@ -467,13 +485,13 @@ class WifiController extends StateMachine {
 
     }
 
-    class StaEnabledState extends State {
+    class StaEnabledState extends TimedState {
         @Override
         public void enter() {
             mWifiStateMachine.setSupplicantRunning(true);
         }
         @Override
-        public boolean processMessage(Message msg) {
+        public boolean processTimedMessage(Message msg) {
             switch (msg.what) {
                 case CMD_WIFI_TOGGLED:
                     if (! mSettingsStore.isWifiToggleEnabled()) {
@@ -505,7 +523,7 @@ class WifiController extends StateMachine {
         }
     }
 
-    class StaDisabledWithScanState extends State {
+    class StaDisabledWithScanState extends TimedState {
         private int mDeferredEnableSerialNumber = 0;
         private boolean mHaveDeferredEnable = false;
         private long mDisabledTimestamp;
@@ -522,7 +540,7 @@ class WifiController extends StateMachine {
         }
 
         @Override
-        public boolean processMessage(Message msg) {
+        public boolean processTimedMessage(Message msg) {
             switch (msg.what) {
                 case CMD_WIFI_TOGGLED:
                     if (mSettingsStore.isWifiToggleEnabled()) {
@@ -591,9 +609,9 @@ class WifiController extends StateMachine {
 
     }
 
-    class ApEnabledState extends State {
+    class ApEnabledState extends TimedState {
         @Override
-        public boolean processMessage(Message msg) {
+        public boolean processTimedMessage(Message msg) {
             switch (msg.what) {
                 case CMD_AIRPLANE_TOGGLED:
                     if (mSettingsStore.isAirplaneModeOn()) {
@@ -614,14 +632,14 @@ class WifiController extends StateMachine {
         }
     }
 
-    class EcmState extends State {
+    class EcmState extends TimedState {
         @Override
         public void enter() {
             mWifiStateMachine.setSupplicantRunning(false);
         }
 
         @Override
-        public boolean processMessage(Message msg) {
+        public boolean processTimedMessage(Message msg) {
             if (msg.what == CMD_EMERGENCY_MODE_CHANGED && msg.arg1 == 0) {
                 if (mSettingsStore.isWifiToggleEnabled()) {
                     if (mDeviceIdle == false) {
@@ -642,7 +660,7 @@ class WifiController extends StateMachine {
     }
 
     /* Parent: StaEnabledState */
-    class DeviceActiveState extends State {
+    class DeviceActiveState extends TimedState {
         @Override
         public void enter() {
             mWifiStateMachine.setOperationalMode(WifiStateMachine.CONNECT_MODE);
@@ -651,7 +669,7 @@ class WifiController extends StateMachine {
         }
 
         @Override
-        public boolean processMessage(Message msg) {
+        public boolean processTimedMessage(Message msg) {
             if (msg.what == CMD_DEVICE_IDLE) {
                 checkLocksAndTransitionWhenDeviceIdle();
                 // We let default state handle the rest of work
@@ -670,9 +688,9 @@ class WifiController extends StateMachine {
     }
 
     /* Parent: StaEnabledState */
-    class DeviceInactiveState extends State {
+    class DeviceInactiveState extends TimedState {
         @Override
-        public boolean processMessage(Message msg) {
+        public boolean processTimedMessage(Message msg) {
             switch (msg.what) {
                 case CMD_LOCKS_CHANGED:
                     checkLocksAndTransitionWhenDeviceIdle();
@@ -758,5 +776,12 @@ class WifiController extends StateMachine {
         pw.println("mPluggedType " + mPluggedType);
         pw.println("mIdleMillis " + mIdleMillis);
         pw.println("mSleepPolicy " + mSleepPolicy);
+        mMessageLatencyStats.dump(pw, args);
+    }
+
+    @Override
+    protected boolean recordLogRec(Message msg) {
+        mMessageLatencyStats.end(getCurrentState(), msg);
+        return super.recordLogRec(msg);
     }
 }
@@ -0,0 +1,169 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.wifi;
+
+import java.io.PrintWriter;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+
+/**
+ * Fixed size ring of binary log events, a replacement for {@link android.util.LocalLog}
+ * on hot paths.
+ *
+ * An event is a timestamp, an event id, the id of a string interned with {@link #intern}
+ * (e.g. an interface name), two long arguments and two object arguments (Strings which
+ * already exist, such as a command, or constants). Logging an event only stores these
+ * into preallocated arrays; the text is produced by the {@link Formatter} of the
+ * subsystem when the log is dumped.
+ *
+ * The ring supports a single writer without locking: callers must serialize their calls
+ * to {@link #log}, e.g. by only logging from one thread or under a lock they already
+ * hold. {@link #dump} may run concurrently with the writer from any thread, entries
+ * overwritten while they are being read are skipped.
+ * {@hide}
+ */
+class WifiEventLog {
+
+    /**
+     * Renders one event, called at dump time only.
+     */
+    interface Formatter {
+        void format(StringBuilder sb, int event, String tag, long arg1, long arg2,
+                Object obj1, Object obj2);
+    }
+
+    /** Interned string id for events without one */
+    static final int NO_TAG = -1;
+
+    private final String mName;
+    private final Formatter mFormatter;
+    private final int mCapacity;
+
+    private final long[] mTimes;
+    private final int[] mEvents;
+    private final int[] mTags;
+    private final long[] mArgs1;
+    private final long[] mArgs2;
+    private final Object[] mObjs1;
+    private final Object[] mObjs2;
+
+    /* Number of events ever logged, published after the event slot is written */
+    private volatile long mCount;
+
+    private final Object mTagLock = new Object();
+    private volatile String[] mTagStrings = new String[0];
+
+    WifiEventLog(String name, int capacity, Formatter formatter) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("capacity <= 0");
+        }
+        mName = name;
+        mFormatter = formatter;
+        mCapacity = capacity;
+        mTimes = new long[capacity];
+        mEvents = new int[capacity];
+        mTags = new int[capacity];
+        mArgs1 = new long[capacity];
+        mArgs2 = new long[capacity];
+        mObjs1 = new Object[capacity];
+        mObjs2 = new Object[capacity];
+    }
+
+    /**
+     * @return the id under which tag can be logged, tags are meant to be a small set of
+     * strings registered up front such as interface names
+     */
+    int intern(String tag) {
+        synchronized (mTagLock) {
+            String[] tags = mTagStrings;
+            for (int i = 0; i < tags.length; i++) {
+                if (tags[i].equals(tag)) return i;
+            }
+            String[] newTags = new String[tags.length + 1];
+            System.arraycopy(tags, 0, newTags, 0, tags.length);
+            newTags[tags.length] = tag;
+            mTagStrings = newTags;
+            return tags.length;
+        }
+    }
+
+    void log(int event, int tag, long arg1, long arg2, Object obj1, Object obj2) {
+        long count = mCount;
+        int i = (int) (count % mCapacity);
+        mTimes[i] = System.currentTimeMillis();
+        mEvents[i] = event;
+        mTags[i] = tag;
+        mArgs1[i] = arg1;
+        mArgs2[i] = arg2;
+        mObjs1[i] = obj1;
+        mObjs2[i] = obj2;
+        mCount = count + 1;
+    }
+
+    void log(int event, long arg1, Object obj1) {
+        log(event, NO_TAG, arg1, 0, obj1, null);
+    }
+
+    void log(int event, Object obj1) {
+        log(event, NO_TAG, 0, 0, obj1, null);
+    }
+
+    /** @return number of events logged since creation, including overwritten ones */
+    long getCount() {
+        return mCount;
+    }
+
+    void dump(PrintWriter pw) {
+        long end = mCount;
+        long start = Math.max(0, end - mCapacity);
+        int size = (int) (end - start);
+
+        long[] times = new long[size];
+        int[] events = new int[size];
+        int[] tags = new int[size];
+        long[] args1 = new long[size];
+        long[] args2 = new long[size];
+        Object[] objs1 = new Object[size];
+        Object[] objs2 = new Object[size];
+        for (int k = 0; k < size; k++) {
+            int i = (int) ((start + k) % mCapacity);
+            times[k] = mTimes[i];
+            events[k] = mEvents[i];
+            tags[k] = mTags[i];
+            args1[k] = mArgs1[i];
+            args2[k] = mArgs2[i];
+            objs1[k] = mObjs1[i];
+            objs2[k] = mObjs2[i];
+        }
+        // Slots of events the writer logged since we started copying, plus the one it may
+        // be writing, were possibly overwritten
+        long firstValid = Math.max(start, mCount + 1 - mCapacity);
+
+        pw.println(mName + " events=" + end + " capacity=" + mCapacity);
+        SimpleDateFormat dateFormat = new SimpleDateFormat("MM-dd HH:mm:ss.SSS");
+        String[] tagStrings = mTagStrings;
+        StringBuilder sb = new StringBuilder();
+        for (int k = (int) (firstValid - start); k < size; k++) {
+            sb.setLength(0);
+            sb.append(dateFormat.format(new Date(times[k]))).append(" - ");
+            int tagId = tags[k];
+            String tag = (tagId >= 0 && tagId < tagStrings.length) ? tagStrings[tagId] : null;
+            mFormatter.format(sb, events[k], tag, args1[k], args2[k], objs1[k], objs2[k]);
+            pw.println(sb);
+        }
+    }
+}
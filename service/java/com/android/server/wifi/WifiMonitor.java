@@ -28,16 +28,21 @@ import android.net.wifi.p2p.WifiP2pProvDiscEvent;
 import android.net.wifi.p2p.nsd.WifiP2pServiceResponse;
 import android.os.Message;
 import android.os.SystemClock;
+import android.os.SystemProperties;
 import android.text.TextUtils;
 import android.util.Log;
 
 import com.android.server.wifi.p2p.WifiP2pServiceImpl.P2pStatus;
 
+import com.android.internal.annotations.VisibleForTesting;
 import com.android.internal.util.Protocol;
 import com.android.internal.util.StateMachine;
 
+import java.io.PrintWriter;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -53,22 +58,41 @@ public class WifiMonitor {
     private static final boolean VDBG = false;
     private static final String TAG = "WifiMonitor";
 
-    /** Events we receive from the supplicant daemon */
-
-    private static final int CONNECTED    = 1;
-    private static final int DISCONNECTED = 2;
-    private static final int STATE_CHANGE = 3;
-    private static final int SCAN_RESULTS = 4;
-    private static final int LINK_SPEED   = 5;
-    private static final int TERMINATING  = 6;
-    private static final int DRIVER_STATE = 7;
-    private static final int EAP_FAILURE  = 8;
-    private static final int ASSOC_REJECT = 9;
-    private static final int SSID_TEMP_DISABLE = 10;
-    private static final int SSID_REENABLE = 11;
-    private static final int BSS_ADDED = 12;
-    private static final int BSS_REMOVED = 13;
-    private static final int UNKNOWN      = 14;
+    /**
+     * Ids of the events we receive from the supplicant daemon, as classified by
+     * {@link #sEventClassifier}. The CTRL-EVENT-* ids come first, from CONNECTED to UNKNOWN;
+     * P2P and AP-STA events are classified as their public message codes (BASE + N) instead,
+     * so all the local ids stay below BASE.
+     */
+    @VisibleForTesting static final int CONNECTED    = 1;
+    @VisibleForTesting static final int DISCONNECTED = 2;
+    @VisibleForTesting static final int STATE_CHANGE = 3;
+    @VisibleForTesting static final int SCAN_RESULTS = 4;
+    @VisibleForTesting static final int LINK_SPEED   = 5;
+    @VisibleForTesting static final int TERMINATING  = 6;
+    @VisibleForTesting static final int DRIVER_STATE = 7;
+    @VisibleForTesting static final int EAP_FAILURE  = 8;
+    @VisibleForTesting static final int ASSOC_REJECT = 9;
+    @VisibleForTesting static final int SSID_TEMP_DISABLE = 10;
+    @VisibleForTesting static final int SSID_REENABLE = 11;
+    @VisibleForTesting static final int BSS_ADDED = 12;
+    @VisibleForTesting static final int BSS_REMOVED = 13;
+    @VisibleForTesting static final int UNKNOWN      = 14;
+
+    /** Events without the CTRL-EVENT- prefix */
+    @VisibleForTesting static final int WPA_EVENT          = 100;
+    @VisibleForTesting static final int WPS_SUCCESS        = 101;
+    @VisibleForTesting static final int WPS_FAIL           = 102;
+    @VisibleForTesting static final int WPS_OVERLAP        = 103;
+    @VisibleForTesting static final int WPS_TIMEOUT        = 104;
+    @VisibleForTesting static final int P2P_OTHER          = 105;
+    @VisibleForTesting static final int HOST_AP_OTHER      = 106;
+    @VisibleForTesting static final int GAS_QUERY          = 107;
+    @VisibleForTesting static final int RX_HS20_ANQP_ICON  = 108;
+    @VisibleForTesting static final int HS20               = 109;
+    @VisibleForTesting static final int REQUEST            = 110;
+    @VisibleForTesting static final int TARGET_BSSID       = 111;
+    @VisibleForTesting static final int ASSOCIATED_WITH    = 112;
 
     /** All events coming from the supplicant start with this prefix */
     private static final String EVENT_PREFIX_STR = "CTRL-EVENT-";
@@ -216,23 +240,6 @@ public class WifiMonitor {
      */
     private static final String BSS_REMOVED_STR = "BSS-REMOVED";
 
-    /**
-     * Regex pattern for extracting an Ethernet-style MAC address from a string.
-     * Matches a strings like the following:<pre>
-     * CTRL-EVENT-CONNECTED - Connection to 00:1e:58:ec:d5:6d completed (reauth) [id=1 id_str=]</pre>
-     */
-    private static Pattern mConnectedEventPattern =
-        Pattern.compile("((?:[0-9a-f]{2}:){5}[0-9a-f]{2}) .* \\[id=([0-9]+) ");
-
-    /**
-     * Regex pattern for extracting an Ethernet-style MAC address from a string.
-     * Matches a strings like the following:<pre>
-     * CTRL-EVENT-DISCONNECTED - bssid=ac:22:0b:24:70:74 reason=3 locally_generated=1
-     */
-    private static Pattern mDisconnectedEventPattern =
-            Pattern.compile("((?:[0-9a-f]{2}:){5}[0-9a-f]{2}) +" +
-                    "reason=([0-9]+) +locally_generated=([0-1])");
-
     /**
      * Regex pattern for extracting an Ethernet-style MAC address from a string.
      * Matches a strings like the following:<pre>
@@ -460,6 +467,57 @@ public class WifiMonitor {
     public static final int AP_STA_DISCONNECTED_EVENT            = BASE + 41;
     public static final int AP_STA_CONNECTED_EVENT               = BASE + 42;
 
+    /* Built once, see the _STR constants for the event formats */
+    @VisibleForTesting
+    static final EventClassifier sEventClassifier = new EventClassifier()
+            .addPrefix(EVENT_PREFIX_STR, UNKNOWN)
+            .addToken(EVENT_PREFIX_STR + CONNECTED_STR, CONNECTED)
+            .addToken(EVENT_PREFIX_STR + DISCONNECTED_STR, DISCONNECTED)
+            .addToken(EVENT_PREFIX_STR + STATE_CHANGE_STR, STATE_CHANGE)
+            .addToken(EVENT_PREFIX_STR + SCAN_RESULTS_STR, SCAN_RESULTS)
+            .addToken(EVENT_PREFIX_STR + LINK_SPEED_STR, LINK_SPEED)
+            .addToken(EVENT_PREFIX_STR + TERMINATING_STR, TERMINATING)
+            .addToken(EVENT_PREFIX_STR + DRIVER_STATE_STR, DRIVER_STATE)
+            .addToken(EVENT_PREFIX_STR + EAP_FAILURE_STR, EAP_FAILURE)
+            .addToken(EVENT_PREFIX_STR + ASSOC_REJECT_STR, ASSOC_REJECT)
+            .addToken(EVENT_PREFIX_STR + TEMP_DISABLED_STR, SSID_TEMP_DISABLE)
+            .addToken(EVENT_PREFIX_STR + REENABLED_STR, SSID_REENABLE)
+            .addToken(EVENT_PREFIX_STR + BSS_ADDED_STR, BSS_ADDED)
+            .addToken(EVENT_PREFIX_STR + BSS_REMOVED_STR, BSS_REMOVED)
+            .addPrefix(WPA_EVENT_PREFIX_STR, WPA_EVENT)
+            .addPrefix(WPS_SUCCESS_STR, WPS_SUCCESS)
+            .addPrefix(WPS_FAIL_STR, WPS_FAIL)
+            .addPrefix(WPS_OVERLAP_STR, WPS_OVERLAP)
+            .addPrefix(WPS_TIMEOUT_STR, WPS_TIMEOUT)
+            .addPrefix(P2P_EVENT_PREFIX_STR, P2P_OTHER)
+            .addPrefix(P2P_DEVICE_FOUND_STR, P2P_DEVICE_FOUND_EVENT)
+            .addPrefix(P2P_DEVICE_LOST_STR, P2P_DEVICE_LOST_EVENT)
+            .addPrefix(P2P_FIND_STOPPED_STR, P2P_FIND_STOPPED_EVENT)
+            .addPrefix(P2P_GO_NEG_REQUEST_STR, P2P_GO_NEGOTIATION_REQUEST_EVENT)
+            .addPrefix(P2P_GO_NEG_SUCCESS_STR, P2P_GO_NEGOTIATION_SUCCESS_EVENT)
+            .addPrefix(P2P_GO_NEG_FAILURE_STR, P2P_GO_NEGOTIATION_FAILURE_EVENT)
+            .addPrefix(P2P_GROUP_FORMATION_SUCCESS_STR, P2P_GROUP_FORMATION_SUCCESS_EVENT)
+            .addPrefix(P2P_GROUP_FORMATION_FAILURE_STR, P2P_GROUP_FORMATION_FAILURE_EVENT)
+            .addPrefix(P2P_GROUP_STARTED_STR, P2P_GROUP_STARTED_EVENT)
+            .addPrefix(P2P_GROUP_REMOVED_STR, P2P_GROUP_REMOVED_EVENT)
+            .addPrefix(P2P_INVITATION_RECEIVED_STR, P2P_INVITATION_RECEIVED_EVENT)
+            .addPrefix(P2P_INVITATION_RESULT_STR, P2P_INVITATION_RESULT_EVENT)
+            .addPrefix(P2P_PROV_DISC_PBC_REQ_STR, P2P_PROV_DISC_PBC_REQ_EVENT)
+            .addPrefix(P2P_PROV_DISC_PBC_RSP_STR, P2P_PROV_DISC_PBC_RSP_EVENT)
+            .addPrefix(P2P_PROV_DISC_ENTER_PIN_STR, P2P_PROV_DISC_ENTER_PIN_EVENT)
+            .addPrefix(P2P_PROV_DISC_SHOW_PIN_STR, P2P_PROV_DISC_SHOW_PIN_EVENT)
+            .addPrefix(P2P_PROV_DISC_FAILURE_STR, P2P_PROV_DISC_FAILURE_EVENT)
+            .addPrefix(P2P_SERV_DISC_RESP_STR, P2P_SERV_DISC_RESP_EVENT)
+            .addPrefix(HOST_AP_EVENT_PREFIX_STR, HOST_AP_OTHER)
+            .addToken(AP_STA_CONNECTED_STR, AP_STA_CONNECTED_EVENT)
+            .addToken(AP_STA_DISCONNECTED_STR, AP_STA_DISCONNECTED_EVENT)
+            .addPrefix(GAS_QUERY_PREFIX_STR, GAS_QUERY)
+            .addPrefix(RX_HS20_ANQP_ICON_STR, RX_HS20_ANQP_ICON)
+            .addPrefix(HS20_PREFIX_STR, HS20)
+            .addPrefix(REQUEST_PREFIX_STR, REQUEST)
+            .addPrefix(TARGET_BSSID_STR, TARGET_BSSID)
+            .addPrefix(ASSOCIATED_WITH_STR, ASSOCIATED_WITH);
+
     /* Indicates assoc reject event */
     public static final int ASSOCIATION_REJECTION_EVENT          = BASE + 43;
 
@@ -482,11 +540,30 @@ public class WifiMonitor {
      */
     private static final int MAX_RECV_ERRORS    = 10;
 
+    /**
+     * How long the messages of bursty events may be held back to be coalesced, see
+     * {@link EventCoalescer}; 0 disables coalescing
+     */
+    private static final String COALESCING_DELAY_PROPERTY = "wifi.monitor.coalescingDelayMs";
+    private static final int DEFAULT_COALESCING_DELAY_MS = 100;
+
+    /**
+     * Whether a queued SUPPLICANT_STATE_CHANGE_EVENT is dropped when a newer state change of
+     * the same network follows it, see {@link EventDeliveryTracker}
+     */
+    private static final String SUPERSEDE_STATE_CHANGES_PROPERTY =
+            "wifi.monitor.supersedeStateChanges";
+
     private final String mInterfaceName;
     private final WifiNative mWifiNative;
     private final StateMachine mStateMachine;
     private StateMachine mStateMachine2;
-    private boolean mMonitoring;
+    /* Read by the monitor thread without a lock */
+    private volatile boolean mMonitoring;
+    /* Used on the monitor thread only */
+    private final SupplicantEventScanner mEventScanner = new SupplicantEventScanner();
+    private final EventDeliveryTracker mDeliveryTracker;
+    private final EventCoalescer mCoalescer;
 
     // This is a global counter, since it's not monitor specific. However, the existing
     // implementation forwards all "global" control events like CTRL-EVENT-TERMINATING
@@ -497,7 +574,7 @@ public class WifiMonitor {
     // it in their dispatchXXX method. If we have 5 registered monitors (say), 2 consecutive
     // recv errors will cause us to disconnect from the supplicant (instead of the intended 10).
     //
-    // This variable is always accessed and modified under a WifiMonitorSingleton lock.
+    // This variable is only accessed and modified on the monitor thread.
     private static int sRecvErrors;
 
     public WifiMonitor(StateMachine stateMachine, WifiNative wifiNative) {
@@ -507,6 +584,14 @@ public class WifiMonitor {
         mStateMachine = stateMachine;
         mStateMachine2 = null;
         mMonitoring = false;
+        mDeliveryTracker = new EventDeliveryTracker(mInterfaceName, stateMachine,
+                SystemProperties.getBoolean(SUPERSEDE_STATE_CHANGES_PROPERTY, false));
+        // A burst of scan results needs a single pass over the results of the last one
+        mCoalescer = new EventCoalescer(mDeliveryTracker,
+                SystemProperties.getInt(COALESCING_DELAY_PROPERTY, DEFAULT_COALESCING_DELAY_MS))
+                .setPolicy(SCAN_RESULTS_EVENT, "SCAN_RESULTS_EVENT", EventCoalescer.LATEST_WINS)
+                .setPolicy(P2P_DEVICE_FOUND_EVENT, "P2P_DEVICE_FOUND_EVENT",
+                        EventCoalescer.MERGE);
 
         WifiMonitorSingleton.sInstance.registerInterfaceMonitor(mInterfaceName, this);
     }
@@ -524,6 +609,43 @@ public class WifiMonitor {
         mStateMachine2 = stateMachine;
     }
 
+    public void dump(PrintWriter pw) {
+        pw.println("WifiMonitor " + mInterfaceName + ":");
+        mDeliveryTracker.dump(pw);
+        mCoalescer.dump(pw);
+    }
+
+    /**
+     * Called by the state machine from recordLogRec(), once it has processed msg.
+     */
+    public void onMessageProcessed(Message msg) {
+        mDeliveryTracker.onProcessed(msg);
+    }
+
+    /*
+     * Messages to mStateMachine are sent from event dispatch only, through the delivery
+     * tracker, stamped with the time the event was received.
+     */
+    private void sendMessage(int what) {
+        sendMessage(mStateMachine.obtainMessage(what));
+    }
+
+    private void sendMessage(int what, Object obj) {
+        sendMessage(mStateMachine.obtainMessage(what, obj));
+    }
+
+    private void sendMessage(int what, int arg1) {
+        sendMessage(mStateMachine.obtainMessage(what, arg1, 0));
+    }
+
+    private void sendMessage(int what, int arg1, int arg2, Object obj) {
+        sendMessage(mStateMachine.obtainMessage(what, arg1, arg2, obj));
+    }
+
+    private void sendMessage(Message msg) {
+        mDeliveryTracker.send(msg, WifiMonitorSingleton.sInstance.mEventReceivedNanos);
+    }
+
     public void startMonitoring() {
         WifiMonitorSingleton.sInstance.startMonitoring(mInterfaceName);
     }
@@ -540,16 +662,44 @@ public class WifiMonitor {
         WifiMonitorSingleton.sInstance.killSupplicant(p2pSupported);
     }
 
+    /**
+     * Stops dispatching the events of this interface to this monitor.
+     */
+    void unregisterInterfaceMonitor() {
+        WifiMonitorSingleton.sInstance.unregisterInterfaceMonitor(mInterfaceName);
+    }
+
     private static class WifiMonitorSingleton {
         private static final WifiMonitorSingleton sInstance = new WifiMonitorSingleton();
 
-        private final HashMap<String, WifiMonitor> mIfaceMap = new HashMap<String, WifiMonitor>();
-        private boolean mConnected = false;
+        /*
+         * Immutable, replaced as a whole under the singleton lock when an interface is
+         * registered or unregistered, so that the monitor thread dispatches events from a
+         * snapshot without taking the lock.
+         */
+        private volatile Map<String, WifiMonitor> mIfaceMap = Collections.emptyMap();
+        private volatile boolean mConnected = false;
         private WifiNative mWifiNative;
+        /* System.nanoTime() the event being dispatched was received at; monitor thread only */
+        private long mEventReceivedNanos;
 
         private WifiMonitorSingleton() {
         }
 
+        private void putInterface(String iface, WifiMonitor m) {
+            HashMap<String, WifiMonitor> map = new HashMap<String, WifiMonitor>(mIfaceMap);
+            map.put(iface, m);
+            mIfaceMap = Collections.unmodifiableMap(map);
+        }
+
+        private WifiMonitor removeInterface(String iface) {
+            if (!mIfaceMap.containsKey(iface)) return null;
+            HashMap<String, WifiMonitor> map = new HashMap<String, WifiMonitor>(mIfaceMap);
+            WifiMonitor m = map.remove(iface);
+            mIfaceMap = Collections.unmodifiableMap(map);
+            return m;
+        }
+
         public synchronized void startMonitoring(String iface) {
             WifiMonitor m = mIfaceMap.get(iface);
             if (m == null) {
@@ -561,6 +711,8 @@ public class WifiMonitor {
 
             if (mConnected) {
                 m.mMonitoring = true;
+                // Held back messages go out before the connection message
+                m.mCoalescer.start();
                 m.mStateMachine.sendMessage(SUP_CONNECTION_EVENT);
             } else {
                 if (DBG) Log.d(TAG, "connecting to supplicant");
@@ -568,6 +720,7 @@ public class WifiMonitor {
                 while (true) {
                     if (mWifiNative.connectToSupplicant()) {
                         m.mMonitoring = true;
+                        m.mCoalescer.start();
                         m.mStateMachine.sendMessage(SUP_CONNECTION_EVENT);
                         new MonitorThread(mWifiNative, this).start();
                         mConnected = true;
@@ -579,7 +732,7 @@ public class WifiMonitor {
                         } catch (InterruptedException ignore) {
                         }
                     } else {
-                        mIfaceMap.remove(iface);
+                        removeInterface(iface);
                         m.mStateMachine.sendMessage(SUP_DISCONNECTION_EVENT);
                         Log.e(TAG, "startMonitoring(" + iface + ") failed!");
                         break;
@@ -592,12 +745,15 @@ public class WifiMonitor {
             WifiMonitor m = mIfaceMap.get(iface);
             if (DBG) Log.d(TAG, "stopMonitoring(" + iface + ") = " + m.mStateMachine);
             m.mMonitoring = false;
+            // Held back messages of the stopped session would follow the disconnection, and
+            // so would those of an event the monitor thread is still dispatching
+            m.mCoalescer.clear();
             m.mStateMachine.sendMessage(SUP_DISCONNECTION_EVENT);
         }
 
         public synchronized void registerInterfaceMonitor(String iface, WifiMonitor m) {
             if (DBG) Log.d(TAG, "registerInterface(" + iface + "+" + m.mStateMachine + ")");
-            mIfaceMap.put(iface, m);
+            putInterface(iface, m);
             if (mWifiNative == null) {
                 mWifiNative = m.mWifiNative;
             }
@@ -607,7 +763,7 @@ public class WifiMonitor {
             // REVIEW: When should we call this? If this isn't called, then WifiMonitor
             // objects will remain in the mIfaceMap; and won't ever get deleted
 
-            WifiMonitor m = mIfaceMap.remove(iface);
+            WifiMonitor m = removeInterface(iface);
             if (DBG) Log.d(TAG, "unregisterInterface(" + iface + "+" + m.mStateMachine + ")");
         }
 
@@ -625,19 +781,39 @@ public class WifiMonitor {
                     + " init.svc.wpa_supplicant=" + suppState
                     + " init.svc.p2p_supplicant=" + p2pSuppState);
             WifiNative.killSupplicant(p2pSupported);
+            SupplicantQueryCache.invalidateAllInterfaces();
             mConnected = false;
             for (WifiMonitor m : mIfaceMap.values()) {
                 m.mMonitoring = false;
+                m.mCoalescer.clear();
             }
         }
 
-        private synchronized boolean dispatchEvent(String eventStr) {
+        /*
+         * Called on the monitor thread only; takes no lock, so that bringing an interface up
+         * or down never holds up event delivery. A terminating event is the exception: the
+         * decision to end the monitor thread and clearing mConnected happen under the lock,
+         * or startMonitoring() could see mConnected and rely on a thread about to exit.
+         */
+        private boolean dispatchEvent(String eventStr) {
+            mEventReceivedNanos = System.nanoTime();
+            if (eventStr.contains(EVENT_PREFIX_STR + TERMINATING_STR)) {
+                synchronized (this) {
+                    return deliverEvent(eventStr);
+                }
+            }
+            return deliverEvent(eventStr);
+        }
+
+        /* @return true if the monitor thread must exit */
+        private boolean deliverEvent(String eventStr) {
+            Map<String, WifiMonitor> ifaceMap = mIfaceMap;
             String iface;
             if (eventStr.startsWith("IFNAME=")) {
                 int space = eventStr.indexOf(' ');
                 if (space != -1) {
                     iface = eventStr.substring(7, space);
-                    if (!mIfaceMap.containsKey(iface) && iface.startsWith("p2p-")) {
+                    if (!ifaceMap.containsKey(iface) && iface.startsWith("p2p-")) {
                         // p2p interfaces are created dynamically, but we have
                         // only one P2p state machine monitoring all of them; look
                         // for it explicitly, and send messages there ..
@@ -658,7 +834,16 @@ public class WifiMonitor {
 
             if (VDBG) Log.d(TAG, "Dispatching event to interface: " + iface);
 
-            WifiMonitor m = mIfaceMap.get(iface);
+            // Cached supplicant replies go stale whether or not the event is delivered
+            if (ifaceMap.containsKey(iface)) {
+                SupplicantQueryCache.forInterface(iface).onEvent(eventStr);
+            } else {
+                for (String name : ifaceMap.keySet()) {
+                    SupplicantQueryCache.forInterface(name).onEvent(eventStr);
+                }
+            }
+
+            WifiMonitor m = ifaceMap.get(iface);
             if (m != null) {
                 if (m.mMonitoring) {
                     if (m.dispatchEvent(eventStr, iface)) {
@@ -680,7 +865,7 @@ public class WifiMonitor {
                         && eventStr.contains(TERMINATING_STR)) {
                     isTerminating = true;
                 }
-                for (WifiMonitor monitor : mIfaceMap.values()) {
+                for (WifiMonitor monitor : ifaceMap.values()) {
                     if (monitor.mMonitoring) {
                         isMonitoring = true;
                         if (monitor.dispatchEvent(eventStr, iface)) {
@@ -748,85 +933,81 @@ public class WifiMonitor {
             }
         }
 
-        if (!eventStr.startsWith(EVENT_PREFIX_STR)) {
-            if (eventStr.startsWith(WPA_EVENT_PREFIX_STR) &&
-                    0 < eventStr.indexOf(PASSWORD_MAY_BE_INCORRECT_STR)) {
-               mStateMachine.sendMessage(AUTHENTICATION_FAILURE_EVENT, eventLogCounter);
-            } else if (eventStr.startsWith(WPS_SUCCESS_STR)) {
-                mStateMachine.sendMessage(WPS_SUCCESS_EVENT);
-            } else if (eventStr.startsWith(WPS_FAIL_STR)) {
-                handleWpsFailEvent(eventStr);
-            } else if (eventStr.startsWith(WPS_OVERLAP_STR)) {
-                mStateMachine.sendMessage(WPS_OVERLAP_EVENT);
-            } else if (eventStr.startsWith(WPS_TIMEOUT_STR)) {
-                mStateMachine.sendMessage(WPS_TIMEOUT_EVENT);
-            } else if (eventStr.startsWith(P2P_EVENT_PREFIX_STR)) {
-                handleP2pEvents(eventStr);
-            } else if (eventStr.startsWith(HOST_AP_EVENT_PREFIX_STR)) {
-                handleHostApEvents(eventStr);
-            } else if (eventStr.startsWith(GAS_QUERY_PREFIX_STR)) {
-                handleGasQueryEvents(eventStr);
-            } else if (eventStr.startsWith(RX_HS20_ANQP_ICON_STR)) {
-                if (mStateMachine2 != null)
-                    mStateMachine2.sendMessage(RX_HS20_ANQP_ICON_EVENT,
-                            eventStr.substring(RX_HS20_ANQP_ICON_STR_LEN + 1));
-            } else if (eventStr.startsWith(HS20_PREFIX_STR)) {
-                handleHs20Events(eventStr);
-            } else if (eventStr.startsWith(REQUEST_PREFIX_STR)) {
-                handleRequests(eventStr);
-            } else if (eventStr.startsWith(TARGET_BSSID_STR)) {
-                handleTargetBSSIDEvent(eventStr);
-            } else if (eventStr.startsWith(ASSOCIATED_WITH_STR)) {
-                handleAssociatedBSSIDEvent(eventStr);
-            } else {
-                if (DBG) Log.w(TAG, "couldn't identify event type - " + eventStr);
+        int event = sEventClassifier.classify(eventStr);
+        if (event != SCAN_RESULTS && event != P2P_DEVICE_FOUND_EVENT
+                && event != BSS_ADDED && event != BSS_REMOVED) {
+            // Held back messages go out before those of this event
+            mCoalescer.flush();
+        }
+        // Anything but a CTRL-EVENT-* id, NO_MATCH included
+        if (event < CONNECTED || event > UNKNOWN) {
+            switch (event) {
+                case WPA_EVENT:
+                    if (0 < eventStr.indexOf(PASSWORD_MAY_BE_INCORRECT_STR)) {
+                        sendMessage(AUTHENTICATION_FAILURE_EVENT, eventLogCounter);
+                    } else {
+                        if (DBG) Log.w(TAG, "couldn't identify event type - " + eventStr);
+                    }
+                    break;
+                case WPS_SUCCESS:
+                    sendMessage(WPS_SUCCESS_EVENT);
+                    break;
+                case WPS_FAIL:
+                    handleWpsFailEvent(eventStr);
+                    break;
+                case WPS_OVERLAP:
+                    sendMessage(WPS_OVERLAP_EVENT);
+                    break;
+                case WPS_TIMEOUT:
+                    sendMessage(WPS_TIMEOUT_EVENT);
+                    break;
+                case P2P_OTHER:
+                case HOST_AP_OTHER:
+                    // Not handled
+                    break;
+                case AP_STA_CONNECTED_EVENT:
+                case AP_STA_DISCONNECTED_EVENT:
+                    /* AP-STA-CONNECTED 42:fc:89:a8:96:09 p2p_dev_addr=02:90:4c:a0:92:54 */
+                    sendMessage(event, new WifiP2pDevice(eventStr));
+                    break;
+                case GAS_QUERY:
+                    handleGasQueryEvents(eventStr);
+                    break;
+                case RX_HS20_ANQP_ICON:
+                    if (mStateMachine2 != null)
+                        mStateMachine2.sendMessage(RX_HS20_ANQP_ICON_EVENT,
+                                eventStr.substring(RX_HS20_ANQP_ICON_STR_LEN + 1));
+                    break;
+                case HS20:
+                    handleHs20Events(eventStr);
+                    break;
+                case REQUEST:
+                    handleRequests(eventStr);
+                    break;
+                case TARGET_BSSID:
+                    handleTargetBSSIDEvent(eventStr);
+                    break;
+                case ASSOCIATED_WITH:
+                    handleAssociatedBSSIDEvent(eventStr);
+                    break;
+                case EventClassifier.NO_MATCH:
+                    if (DBG) Log.w(TAG, "couldn't identify event type - " + eventStr);
+                    break;
+                default:
+                    // The remaining ids are the P2P event messages
+                    handleP2pEvents(event, eventStr);
+                    break;
             }
             eventLogCounter++;
             return false;
         }
 
-        String eventName = eventStr.substring(EVENT_PREFIX_LEN_STR);
-        int nameEnd = eventName.indexOf(' ');
-        if (nameEnd != -1)
-            eventName = eventName.substring(0, nameEnd);
-        if (eventName.length() == 0) {
+        if (event == UNKNOWN && (eventStr.length() == EVENT_PREFIX_LEN_STR
+                || eventStr.charAt(EVENT_PREFIX_LEN_STR) == ' ')) {
             if (DBG) Log.i(TAG, "Received wpa_supplicant event with empty event name");
             eventLogCounter++;
             return false;
         }
-        /*
-        * Map event name into event enum
-        */
-        int event;
-        if (eventName.equals(CONNECTED_STR))
-            event = CONNECTED;
-        else if (eventName.equals(DISCONNECTED_STR))
-            event = DISCONNECTED;
-        else if (eventName.equals(STATE_CHANGE_STR))
-            event = STATE_CHANGE;
-        else if (eventName.equals(SCAN_RESULTS_STR))
-            event = SCAN_RESULTS;
-        else if (eventName.equals(LINK_SPEED_STR))
-            event = LINK_SPEED;
-        else if (eventName.equals(TERMINATING_STR))
-            event = TERMINATING;
-        else if (eventName.equals(DRIVER_STATE_STR))
-            event = DRIVER_STATE;
-        else if (eventName.equals(EAP_FAILURE_STR))
-            event = EAP_FAILURE;
-        else if (eventName.equals(ASSOC_REJECT_STR))
-            event = ASSOC_REJECT;
-        else if (eventName.equals(TEMP_DISABLED_STR)) {
-            event = SSID_TEMP_DISABLE;
-        } else if (eventName.equals(REENABLED_STR)) {
-            event = SSID_REENABLE;
-        } else if (eventName.equals(BSS_ADDED_STR)) {
-            event = BSS_ADDED;
-        } else if (eventName.equals(BSS_REMOVED_STR)) {
-            event = BSS_REMOVED;
-        }
-        else
-            event = UNKNOWN;
 
         String eventData = eventStr;
         if (event == DRIVER_STATE || event == LINK_SPEED)
@@ -869,7 +1050,7 @@ public class WifiMonitor {
                     }
                 }
             }
-            mStateMachine.sendMessage((event == SSID_TEMP_DISABLE)?
+            sendMessage((event == SSID_TEMP_DISABLE)?
                     SSID_TEMP_DISABLED:SSID_REENABLED, netId, 0, substr);
         } else if (event == STATE_CHANGE) {
             handleSupplicantStateChange(eventData);
@@ -892,12 +1073,12 @@ public class WifiMonitor {
             }
 
             // Notify and exit
-            mStateMachine.sendMessage(SUP_DISCONNECTION_EVENT, eventLogCounter);
+            sendMessage(SUP_DISCONNECTION_EVENT, eventLogCounter);
             return true;
         } else if (event == EAP_FAILURE) {
             if (eventData.startsWith(EAP_AUTH_FAILURE_STR)) {
                 logDbg("WifiMonitor send auth failure (EAP_AUTH_FAILURE) ");
-                mStateMachine.sendMessage(AUTHENTICATION_FAILURE_EVENT, eventLogCounter);
+                sendMessage(AUTHENTICATION_FAILURE_EVENT, eventLogCounter);
             }
         } else if (event == ASSOC_REJECT) {
             Matcher match = mAssocRejectEventPattern.matcher(eventData);
@@ -913,7 +1094,7 @@ public class WifiMonitor {
                     status = -1;
                 }
             }
-            mStateMachine.sendMessage(ASSOCIATION_REJECTION_EVENT, eventLogCounter, status, BSSID);
+            sendMessage(ASSOCIATION_REJECTION_EVENT, eventLogCounter, status, BSSID);
         } else if (event == BSS_ADDED && !VDBG) {
             // Ignore that event - it is not handled, and dont log it as it is too verbose
         } else if (event == BSS_REMOVED && !VDBG) {
@@ -931,7 +1112,7 @@ public class WifiMonitor {
             return;
         }
         if (state.equals("HANGED")) {
-            mStateMachine.sendMessage(DRIVER_HUNG_EVENT);
+            sendMessage(DRIVER_HUNG_EVENT);
         }
     }
 
@@ -955,7 +1136,8 @@ public class WifiMonitor {
                 break;
 
             case SCAN_RESULTS:
-                mStateMachine.sendMessage(SCAN_RESULTS_EVENT);
+                mCoalescer.send(SCAN_RESULTS_EVENT, null, null,
+                        WifiMonitorSingleton.sInstance.mEventReceivedNanos);
                 break;
 
             case UNKNOWN:
@@ -974,7 +1156,7 @@ public class WifiMonitor {
         if (match.find()) {
             BSSID = match.group(1);
         }
-        mStateMachine.sendMessage(WifiStateMachine.CMD_TARGET_BSSID, eventLogCounter, 0, BSSID);
+        sendMessage(WifiStateMachine.CMD_TARGET_BSSID, eventLogCounter, 0, BSSID);
     }
 
     private void handleAssociatedBSSIDEvent(String eventStr) {
@@ -983,7 +1165,8 @@ public class WifiMonitor {
         if (match.find()) {
             BSSID = match.group(1);
         }
-        mStateMachine.sendMessage(WifiStateMachine.CMD_ASSOCIATED_BSSID, eventLogCounter, 0, BSSID);
+        mWifiNative.invalidateLinkPolls();
+        sendMessage(WifiStateMachine.CMD_ASSOCIATED_BSSID, eventLogCounter, 0, BSSID);
     }
 
 
@@ -999,11 +1182,11 @@ public class WifiMonitor {
                 int reasonInt = Integer.parseInt(reasonStr);
                 switch(reasonInt) {
                     case REASON_TKIP_ONLY_PROHIBITED:
-                        mStateMachine.sendMessage(mStateMachine.obtainMessage(WPS_FAIL_EVENT,
+                        sendMessage(mStateMachine.obtainMessage(WPS_FAIL_EVENT,
                                 WifiManager.WPS_TKIP_ONLY_PROHIBITED, 0));
                         return;
                     case REASON_WEP_PROHIBITED:
-                        mStateMachine.sendMessage(mStateMachine.obtainMessage(WPS_FAIL_EVENT,
+                        sendMessage(mStateMachine.obtainMessage(WPS_FAIL_EVENT,
                                 WifiManager.WPS_WEP_PROHIBITED, 0));
                         return;
                     default:
@@ -1015,11 +1198,11 @@ public class WifiMonitor {
                 int cfgErrInt = Integer.parseInt(cfgErrStr);
                 switch(cfgErrInt) {
                     case CONFIG_AUTH_FAILURE:
-                        mStateMachine.sendMessage(mStateMachine.obtainMessage(WPS_FAIL_EVENT,
+                        sendMessage(mStateMachine.obtainMessage(WPS_FAIL_EVENT,
                                 WifiManager.WPS_AUTH_FAILURE, 0));
                         return;
                     case CONFIG_MULTIPLE_PBC_DETECTED:
-                        mStateMachine.sendMessage(mStateMachine.obtainMessage(WPS_FAIL_EVENT,
+                        sendMessage(mStateMachine.obtainMessage(WPS_FAIL_EVENT,
                                 WifiManager.WPS_OVERLAP_ERROR, 0));
                         return;
                     default:
@@ -1029,7 +1212,7 @@ public class WifiMonitor {
             }
         }
         //For all other errors, return a generic internal error
-        mStateMachine.sendMessage(mStateMachine.obtainMessage(WPS_FAIL_EVENT,
+        sendMessage(mStateMachine.obtainMessage(WPS_FAIL_EVENT,
                 WifiManager.ERROR, reason));
     }
 
@@ -1056,68 +1239,49 @@ public class WifiMonitor {
     /**
      * Handle p2p events
      */
-    private void handleP2pEvents(String dataString) {
-        if (dataString.startsWith(P2P_DEVICE_FOUND_STR)) {
-            mStateMachine.sendMessage(P2P_DEVICE_FOUND_EVENT, new WifiP2pDevice(dataString));
-        } else if (dataString.startsWith(P2P_DEVICE_LOST_STR)) {
-            mStateMachine.sendMessage(P2P_DEVICE_LOST_EVENT, new WifiP2pDevice(dataString));
-        } else if (dataString.startsWith(P2P_FIND_STOPPED_STR)) {
-            mStateMachine.sendMessage(P2P_FIND_STOPPED_EVENT);
-        } else if (dataString.startsWith(P2P_GO_NEG_REQUEST_STR)) {
-            mStateMachine.sendMessage(P2P_GO_NEGOTIATION_REQUEST_EVENT,
-                    new WifiP2pConfig(dataString));
-        } else if (dataString.startsWith(P2P_GO_NEG_SUCCESS_STR)) {
-            mStateMachine.sendMessage(P2P_GO_NEGOTIATION_SUCCESS_EVENT);
-        } else if (dataString.startsWith(P2P_GO_NEG_FAILURE_STR)) {
-            mStateMachine.sendMessage(P2P_GO_NEGOTIATION_FAILURE_EVENT, p2pError(dataString));
-        } else if (dataString.startsWith(P2P_GROUP_FORMATION_SUCCESS_STR)) {
-            mStateMachine.sendMessage(P2P_GROUP_FORMATION_SUCCESS_EVENT);
-        } else if (dataString.startsWith(P2P_GROUP_FORMATION_FAILURE_STR)) {
-            mStateMachine.sendMessage(P2P_GROUP_FORMATION_FAILURE_EVENT, p2pError(dataString));
-        } else if (dataString.startsWith(P2P_GROUP_STARTED_STR)) {
-            mStateMachine.sendMessage(P2P_GROUP_STARTED_EVENT, new WifiP2pGroup(dataString));
-        } else if (dataString.startsWith(P2P_GROUP_REMOVED_STR)) {
-            mStateMachine.sendMessage(P2P_GROUP_REMOVED_EVENT, new WifiP2pGroup(dataString));
-        } else if (dataString.startsWith(P2P_INVITATION_RECEIVED_STR)) {
-            mStateMachine.sendMessage(P2P_INVITATION_RECEIVED_EVENT,
-                    new WifiP2pGroup(dataString));
-        } else if (dataString.startsWith(P2P_INVITATION_RESULT_STR)) {
-            mStateMachine.sendMessage(P2P_INVITATION_RESULT_EVENT, p2pError(dataString));
-        } else if (dataString.startsWith(P2P_PROV_DISC_PBC_REQ_STR)) {
-            mStateMachine.sendMessage(P2P_PROV_DISC_PBC_REQ_EVENT,
-                    new WifiP2pProvDiscEvent(dataString));
-        } else if (dataString.startsWith(P2P_PROV_DISC_PBC_RSP_STR)) {
-            mStateMachine.sendMessage(P2P_PROV_DISC_PBC_RSP_EVENT,
-                    new WifiP2pProvDiscEvent(dataString));
-        } else if (dataString.startsWith(P2P_PROV_DISC_ENTER_PIN_STR)) {
-            mStateMachine.sendMessage(P2P_PROV_DISC_ENTER_PIN_EVENT,
-                    new WifiP2pProvDiscEvent(dataString));
-        } else if (dataString.startsWith(P2P_PROV_DISC_SHOW_PIN_STR)) {
-            mStateMachine.sendMessage(P2P_PROV_DISC_SHOW_PIN_EVENT,
-                    new WifiP2pProvDiscEvent(dataString));
-        } else if (dataString.startsWith(P2P_PROV_DISC_FAILURE_STR)) {
-            mStateMachine.sendMessage(P2P_PROV_DISC_FAILURE_EVENT);
-        } else if (dataString.startsWith(P2P_SERV_DISC_RESP_STR)) {
-            List<WifiP2pServiceResponse> list = WifiP2pServiceResponse.newInstance(dataString);
-            if (list != null) {
-                mStateMachine.sendMessage(P2P_SERV_DISC_RESP_EVENT, list);
-            } else {
-                Log.e(TAG, "Null service resp " + dataString);
-            }
-        }
-    }
-
-    /**
-     * Handle hostap events
-     */
-    private void handleHostApEvents(String dataString) {
-        String[] tokens = dataString.split(" ");
-        /* AP-STA-CONNECTED 42:fc:89:a8:96:09 p2p_dev_addr=02:90:4c:a0:92:54 */
-        if (tokens[0].equals(AP_STA_CONNECTED_STR)) {
-            mStateMachine.sendMessage(AP_STA_CONNECTED_EVENT, new WifiP2pDevice(dataString));
-            /* AP-STA-DISCONNECTED 42:fc:89:a8:96:09 p2p_dev_addr=02:90:4c:a0:92:54 */
-        } else if (tokens[0].equals(AP_STA_DISCONNECTED_STR)) {
-            mStateMachine.sendMessage(AP_STA_DISCONNECTED_EVENT, new WifiP2pDevice(dataString));
+    private void handleP2pEvents(int event, String dataString) {
+        switch (event) {
+            case P2P_DEVICE_FOUND_EVENT:
+                // Repeated sightings of a peer during discovery merge into the latest one
+                WifiP2pDevice device = new WifiP2pDevice(dataString);
+                mCoalescer.send(event, device.deviceAddress, device,
+                        WifiMonitorSingleton.sInstance.mEventReceivedNanos);
+                break;
+            case P2P_DEVICE_LOST_EVENT:
+                sendMessage(event, new WifiP2pDevice(dataString));
+                break;
+            case P2P_GO_NEGOTIATION_REQUEST_EVENT:
+                sendMessage(event, new WifiP2pConfig(dataString));
+                break;
+            case P2P_GO_NEGOTIATION_FAILURE_EVENT:
+            case P2P_GROUP_FORMATION_FAILURE_EVENT:
+            case P2P_INVITATION_RESULT_EVENT:
+                sendMessage(event, p2pError(dataString));
+                break;
+            case P2P_GROUP_STARTED_EVENT:
+            case P2P_GROUP_REMOVED_EVENT:
+            case P2P_INVITATION_RECEIVED_EVENT:
+                sendMessage(event, new WifiP2pGroup(dataString));
+                break;
+            case P2P_PROV_DISC_PBC_REQ_EVENT:
+            case P2P_PROV_DISC_PBC_RSP_EVENT:
+            case P2P_PROV_DISC_ENTER_PIN_EVENT:
+            case P2P_PROV_DISC_SHOW_PIN_EVENT:
+                sendMessage(event, new WifiP2pProvDiscEvent(dataString));
+                break;
+            case P2P_SERV_DISC_RESP_EVENT:
+                List<WifiP2pServiceResponse> list = WifiP2pServiceResponse.newInstance(dataString);
+                if (list != null) {
+                    sendMessage(event, list);
+                } else {
+                    Log.e(TAG, "Null service resp " + dataString);
+                }
+                break;
+            default:
+                // P2P_FIND_STOPPED, P2P_GO_NEG_SUCCESS, P2P_GROUP_FORMATION_SUCCESS and
+                // P2P_PROV_DISC_FAILURE carry no data
+                sendMessage(event);
+                break;
         }
     }
 
@@ -1207,7 +1371,7 @@ public class WifiMonitor {
             } else {
                 Log.e(TAG, "didn't find SSID " + requestName);
             }
-            mStateMachine.sendMessage(SUP_REQUEST_IDENTITY, eventLogCounter, reason, SSID);
+            sendMessage(SUP_REQUEST_IDENTITY, eventLogCounter, reason, SSID);
         } if (requestName.startsWith(SIM_STR)) {
             Matcher match = mRequestGsmAuthPattern.matcher(requestName);
             if (match.find()) {
@@ -1217,7 +1381,7 @@ public class WifiMonitor {
                 data.protocol = WifiEnterpriseConfig.Eap.SIM;
                 data.ssid = match.group(4);
                 data.challenges = match.group(2).split(":");
-                mStateMachine.sendMessage(SUP_REQUEST_SIM_AUTH, data);
+                sendMessage(SUP_REQUEST_SIM_AUTH, data);
             } else {
                 Log.e(TAG, "couldn't parse SIM auth request - " + requestName);
             }
@@ -1233,95 +1397,32 @@ public class WifiMonitor {
      * id=network-id state=new-state
      */
     private void handleSupplicantStateChange(String dataString) {
-        WifiSsid wifiSsid = null;
-        int index = dataString.lastIndexOf("SSID=");
-        if (index != -1) {
-            wifiSsid = WifiSsid.createFromAsciiEncoded(
-                    dataString.substring(index + 5));
-        }
-        String[] dataTokens = dataString.split(" ");
+        SupplicantEventScanner scanner = mEventScanner;
+        scanner.parseStateChange(dataString);
+        if (scanner.state == -1) return;
 
-        String BSSID = null;
-        int networkId = -1;
-        int newState  = -1;
-        for (String token : dataTokens) {
-            String[] nameValue = token.split("=");
-            if (nameValue.length != 2) {
-                continue;
-            }
-
-            if (nameValue[0].equals("BSSID")) {
-                BSSID = nameValue[1];
-                continue;
-            }
-
-            int value;
-            try {
-                value = Integer.parseInt(nameValue[1]);
-            } catch (NumberFormatException e) {
-                continue;
-            }
-
-            if (nameValue[0].equals("id")) {
-                networkId = value;
-            } else if (nameValue[0].equals("state")) {
-                newState = value;
-            }
-        }
-
-        if (newState == -1) return;
-
-        SupplicantState newSupplicantState = SupplicantState.INVALID;
-        for (SupplicantState state : SupplicantState.values()) {
-            if (state.ordinal() == newState) {
-                newSupplicantState = state;
-                break;
-            }
-        }
+        SupplicantState newSupplicantState =
+                SupplicantEventScanner.supplicantStateOf(scanner.state);
         if (newSupplicantState == SupplicantState.INVALID) {
-            Log.w(TAG, "Invalid supplicant state: " + newState);
+            Log.w(TAG, "Invalid supplicant state: " + scanner.state);
         }
-        notifySupplicantStateChange(networkId, wifiSsid, BSSID, newSupplicantState);
+        notifySupplicantStateChange(scanner.networkId, scanner.wifiSsid, scanner.BSSID,
+                newSupplicantState);
     }
 
     private void handleNetworkStateChange(NetworkInfo.DetailedState newState, String data) {
-        String BSSID = null;
-        int networkId = -1;
-        int reason = 0;
-        int ind = -1;
-        int local = 0;
-        Matcher match;
+        SupplicantEventScanner scanner = mEventScanner;
         if (newState == NetworkInfo.DetailedState.CONNECTED) {
-            match = mConnectedEventPattern.matcher(data);
-            if (!match.find()) {
+            if (!scanner.parseConnected(data)) {
                if (DBG) Log.d(TAG, "handleNetworkStateChange: Couldnt find BSSID in event string");
-            } else {
-                BSSID = match.group(1);
-                try {
-                    networkId = Integer.parseInt(match.group(2));
-                } catch (NumberFormatException e) {
-                    networkId = -1;
-                }
             }
-            notifyNetworkStateChange(newState, BSSID, networkId, reason);
+            notifyNetworkStateChange(newState, scanner.BSSID, scanner.networkId, 0);
         } else if (newState == NetworkInfo.DetailedState.DISCONNECTED) {
-            match = mDisconnectedEventPattern.matcher(data);
-            if (!match.find()) {
+            if (!scanner.parseDisconnected(data)) {
                if (DBG) Log.d(TAG, "handleNetworkStateChange: Could not parse disconnect string");
-            } else {
-                BSSID = match.group(1);
-                try {
-                    reason = Integer.parseInt(match.group(2));
-                } catch (NumberFormatException e) {
-                    reason = -1;
-                }
-                try {
-                    local = Integer.parseInt(match.group(3));
-                } catch (NumberFormatException e) {
-                    local = -1;
-                }
             }
-            notifyNetworkStateChange(newState, BSSID, local, reason);
+            notifyNetworkStateChange(newState, scanner.BSSID, scanner.locallyGenerated,
+                    scanner.reason);
         }
     }
 
@@ -1336,10 +1437,12 @@ public class WifiMonitor {
      */
     void notifyNetworkStateChange(NetworkInfo.DetailedState newState,
                                   String BSSID, int netId, int reason) {
+        // Polls shared from before the link changed would describe the old link
+        mWifiNative.invalidateLinkPolls();
         if (newState == NetworkInfo.DetailedState.CONNECTED) {
             Message m = mStateMachine.obtainMessage(NETWORK_CONNECTION_EVENT,
                     netId, reason, BSSID);
-            mStateMachine.sendMessage(m);
+            sendMessage(m);
         } else {
 
             Message m = mStateMachine.obtainMessage(NETWORK_DISCONNECTION_EVENT,
@@ -1347,7 +1450,7 @@ public class WifiMonitor {
             if (DBG) logDbg("WifiMonitor notify network disconnect: "
                     + BSSID
                     + " reason=" + Integer.toString(reason));
-            mStateMachine.sendMessage(m);
+            sendMessage(m);
         }
     }
 
@@ -1361,8 +1464,8 @@ public class WifiMonitor {
      */
     void notifySupplicantStateChange(int networkId, WifiSsid wifiSsid, String BSSID,
             SupplicantState newState) {
-        mStateMachine.sendMessage(mStateMachine.obtainMessage(SUPPLICANT_STATE_CHANGE_EVENT,
+        sendMessage(mStateMachine.obtainMessage(SUPPLICANT_STATE_CHANGE_EVENT,
                 eventLogCounter, 0,
-                new StateChangeResult(networkId, wifiSsid, BSSID, newState)));
+                StateChangeResult.obtain(networkId, wifiSsid, BSSID, newState)));
     }
 }
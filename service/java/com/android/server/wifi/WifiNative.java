@@ -24,15 +24,19 @@ import android.net.wifi.WifiScanner;
 import android.net.wifi.WpsInfo;
 import android.net.wifi.p2p.WifiP2pConfig;
 import android.net.wifi.p2p.WifiP2pGroup;
+import android.os.Message;
 import android.os.SystemClock;
 import android.text.TextUtils;
 import android.net.wifi.p2p.nsd.WifiP2pServiceInfo;
-import android.util.LocalLog;
 import android.util.Log;
 
+import java.io.PrintWriter;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Locale;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Future;
 
 /**
  * Native calls for bring up/shut down of the supplicant daemon and for
@@ -56,36 +60,88 @@ public class WifiNative {
     static final int SCAN_WITHOUT_CONNECTION_SETUP          = 1;
     static final int SCAN_WITH_CONNECTION_SETUP             = 2;
 
-    // Hold this lock before calling supplicant - it is required to
-    // mutually exclude access from Wifi and P2p state machines
+    // Hold this lock before calling the HAL. Supplicant commands go through the
+    // CommandChannel of their interface instead
     static final Object mLock = new Object();
 
     public final String mInterfaceName;
     public final String mInterfacePrefix;
 
+    /* Serializes the supplicant commands of mInterfaceName */
+    private final CommandChannel mChannel;
+
+    /* Replies to the frequent read-only queries of mInterfaceName */
+    private final SupplicantQueryCache mQueryCache;
+
     private boolean mSuspendOptEnabled = false;
 
     /* Register native functions */
 
-    static {
-        /* Native functions are defined in libwifi-service.so */
-        System.loadLibrary("wifi-service");
-        registerNatives();
+    private static volatile boolean sNativesLoaded;
+
+    /**
+     * Loads the native functions on first use rather than when the class is loaded, so
+     * that WifiNative can run against a SupplicantTransport where libwifi-service.so is
+     * not available, e.g. on a host JVM.
+     * @return false if a SupplicantTransport is installed, in which case the supplicant
+     * is not reached through JNI and there is no driver or HAL to talk to
+     */
+    private static boolean loadNatives() {
+        if (sTransport != null) return false;
+        if (!sNativesLoaded) {
+            synchronized (WifiNative.class) {
+                if (!sNativesLoaded) {
+                    /* Native functions are defined in libwifi-service.so */
+                    System.loadLibrary("wifi-service");
+                    registerNatives();
+                    sNativesLoaded = true;
+                }
+            }
+        }
+        return true;
     }
 
     private static native int registerNatives();
 
-    public native static boolean loadDriver();
+    private native static boolean loadDriverNative();
+
+    private native static boolean isDriverLoadedNative();
+
+    private native static boolean unloadDriverNative();
+
+    private native static boolean startSupplicantNative(boolean p2pSupported);
+
+    private native static boolean killSupplicantNative(boolean p2pSupported);
+
+    /* There is no driver behind a SupplicantTransport, it is always loaded */
+
+    public static boolean loadDriver() {
+        return !loadNatives() || loadDriverNative();
+    }
 
-    public native static boolean isDriverLoaded();
+    public static boolean isDriverLoaded() {
+        return !loadNatives() || isDriverLoadedNative();
+    }
 
-    public native static boolean unloadDriver();
+    public static boolean unloadDriver() {
+        return !loadNatives() || unloadDriverNative();
+    }
 
-    public native static boolean startSupplicant(boolean p2pSupported);
+    public static boolean startSupplicant(boolean p2pSupported) {
+        SupplicantTransport transport = sTransport;
+        if (transport != null) return transport.startSupplicant(p2pSupported);
+        loadNatives();
+        return startSupplicantNative(p2pSupported);
+    }
 
     /* Sends a kill signal to supplicant. To be used when we have lost connection
        or when the supplicant is hung */
-    public native static boolean killSupplicant(boolean p2pSupported);
+    public static boolean killSupplicant(boolean p2pSupported) {
+        SupplicantTransport transport = sTransport;
+        if (transport != null) return transport.killSupplicant(p2pSupported);
+        loadNatives();
+        return killSupplicantNative(p2pSupported);
+    }
 
     private native boolean connectToSupplicantNative();
 
@@ -103,6 +159,63 @@ public class WifiNative {
 
     private native String doStringCommandNative(String command);
 
+    /* Replaces the JNI connection to the supplicant when set */
+    private static volatile SupplicantTransport sTransport;
+
+    /**
+     * Routes all supplicant commands and events through transport, or back to the
+     * supplicant if null. Meant for running the framework against a simulated supplicant,
+     * e.g. in tests; switch before the supplicant is started.
+     */
+    static void setSupplicantTransport(SupplicantTransport transport) {
+        sTransport = transport;
+    }
+
+    private boolean transportConnect() {
+        SupplicantTransport transport = sTransport;
+        if (transport != null) return transport.connect();
+        loadNatives();
+        return connectToSupplicantNative();
+    }
+
+    private void transportClose() {
+        SupplicantTransport transport = sTransport;
+        if (transport != null) {
+            transport.close();
+        } else {
+            loadNatives();
+            closeSupplicantConnectionNative();
+        }
+    }
+
+    private String transportWaitForEvent() {
+        SupplicantTransport transport = sTransport;
+        if (transport != null) return transport.waitForEvent();
+        loadNatives();
+        return waitForEventNative();
+    }
+
+    private boolean sendBooleanCommand(String command) {
+        SupplicantTransport transport = sTransport;
+        if (transport != null) return transport.doBooleanCommand(command);
+        loadNatives();
+        return doBooleanCommandNative(command);
+    }
+
+    private int sendIntCommand(String command) {
+        SupplicantTransport transport = sTransport;
+        if (transport != null) return transport.doIntCommand(command);
+        loadNatives();
+        return doIntCommandNative(command);
+    }
+
+    private String sendStringCommand(String command) {
+        SupplicantTransport transport = sTransport;
+        if (transport != null) return transport.doStringCommand(command);
+        loadNatives();
+        return doStringCommandNative(command);
+    }
+
     public WifiNative(String interfaceName) {
         mInterfaceName = interfaceName;
         mTAG = "WifiNative-" + interfaceName;
@@ -112,6 +225,9 @@ public class WifiNative {
             // commands for p2p0 interface don't need prefix
             mInterfacePrefix = "";
         }
+        mLogTag = sEventLog.intern(interfaceName);
+        mChannel = CommandChannel.forInterface(interfaceName);
+        mQueryCache = SupplicantQueryCache.forInterface(interfaceName);
     }
 
     void enableVerboseLogging(int verbose) {
@@ -122,64 +238,132 @@ public class WifiNative {
         }
     }
 
-    private static final LocalLog mLocalLog = new LocalLog(1024);
+    /* Events of the command log, tagged with the interface name */
+    private static final int EVENT_CONNECT          = 1;
+    private static final int EVENT_CLOSE            = 2;
+    private static final int EVENT_BOOLEAN_COMMAND  = 3;
+    private static final int EVENT_INT_COMMAND      = 4;
+    private static final int EVENT_STRING_COMMAND   = 5;
+
+    /* Longer replies, such as BSS RANGE pages, are only logged by length */
+    private static final int MAX_LOGGED_REPLY_LENGTH = 256;
+
+    /**
+     * Log of all supplicant commands, only written while holding a CommandChannel
+     */
+    private static final WifiEventLog sEventLog = new WifiEventLog("WifiNative", 1024,
+            new WifiEventLog.Formatter() {
+                @Override
+                public void format(StringBuilder sb, int event, String iface, long cmdId,
+                        long result, Object command, Object reply) {
+                    sb.append(iface).append(": ");
+                    if (event == EVENT_BOOLEAN_COMMAND || event == EVENT_INT_COMMAND
+                            || event == EVENT_STRING_COMMAND) {
+                        sb.append(cmdId).append(':');
+                    }
+                    if (!"p2p0".equals(iface)) {
+                        sb.append("IFNAME=").append(iface).append(' ');
+                    }
+                    switch (event) {
+                        case EVENT_CONNECT:
+                            sb.append("connectToSupplicant");
+                            break;
+                        case EVENT_CLOSE:
+                            sb.append("closeSupplicantConnection");
+                            break;
+                        case EVENT_BOOLEAN_COMMAND:
+                            sb.append(command).append(" -> ").append(result != 0);
+                            break;
+                        case EVENT_INT_COMMAND:
+                            sb.append(command).append(" -> ").append(result);
+                            break;
+                        case EVENT_STRING_COMMAND:
+                            sb.append(command).append(" -> ");
+                            if (reply != null) {
+                                sb.append(reply);
+                            } else {
+                                sb.append('<').append(result).append(" chars>");
+                            }
+                            break;
+                        default:
+                            sb.append("event ").append(event);
+                            break;
+                    }
+                }
+            });
+
+    private final int mLogTag;
 
-    // hold mLock before accessing mCmdIdLock
+    // Ids of the HAL commands, hold mLock before accessing sCmdId. Supplicant commands
+    // take their ids from CommandChannel.nextCommandId() with their channel held
     private static int sCmdId;
 
-    public LocalLog getLocalLog() {
-        return mLocalLog;
+    static WifiEventLog getEventLog() {
+        return sEventLog;
     }
 
-    private static int getNewCmdIdLocked() {
-        return sCmdId++;
+    static void dumpCommandChannels(PrintWriter pw) {
+        CommandChannel.dump(pw);
     }
 
-    private void localLog(String s) {
-        if (mLocalLog != null)
-            mLocalLog.log(mInterfaceName + ": " + s);
+    private static int getNewCmdIdLocked() {
+        return sCmdId++;
     }
 
     public boolean connectToSupplicant() {
-        synchronized(mLock) {
-            localLog(mInterfacePrefix + "connectToSupplicant");
-            return connectToSupplicantNative();
+        mChannel.acquire();
+        try {
+            sEventLog.log(EVENT_CONNECT, mLogTag, 0, 0, null, null);
+            SupplicantQueryCache.invalidateAllInterfaces();
+            return transportConnect();
+        } finally {
+            mChannel.release();
         }
     }
 
     public void closeSupplicantConnection() {
-        synchronized(mLock) {
-            localLog(mInterfacePrefix + "closeSupplicantConnection");
-            closeSupplicantConnectionNative();
+        mChannel.acquire();
+        try {
+            sEventLog.log(EVENT_CLOSE, mLogTag, 0, 0, null, null);
+            SupplicantQueryCache.invalidateAllInterfaces();
+            transportClose();
+        } finally {
+            mChannel.release();
         }
     }
 
     public String waitForEvent() {
         // No synchronization necessary .. it is implemented in WifiMonitor
-        return waitForEventNative();
+        return transportWaitForEvent();
     }
 
     private boolean doBooleanCommand(String command) {
         if (DBG) Log.d(mTAG, "doBoolean: " + command);
-        synchronized (mLock) {
-            int cmdId = getNewCmdIdLocked();
-            String toLog = Integer.toString(cmdId) + ":" + mInterfacePrefix + command;
-            boolean result = doBooleanCommandNative(mInterfacePrefix + command);
-            localLog(toLog + " -> " + result);
+        mChannel.acquire();
+        try {
+            int cmdId = CommandChannel.nextCommandId();
+            boolean result = sendBooleanCommand(mInterfacePrefix + command);
+            onCommandSent(mInterfacePrefix + command);
+            sEventLog.log(EVENT_BOOLEAN_COMMAND, mLogTag, cmdId, result ? 1 : 0, command, null);
             if (DBG) Log.d(mTAG, command + ": returned " + result);
             return result;
+        } finally {
+            mChannel.release();
         }
     }
 
     private int doIntCommand(String command) {
         if (DBG) Log.d(mTAG, "doInt: " + command);
-        synchronized (mLock) {
-            int cmdId = getNewCmdIdLocked();
-            String toLog = Integer.toString(cmdId) + ":" + mInterfacePrefix + command;
-            int result = doIntCommandNative(mInterfacePrefix + command);
-            localLog(toLog + " -> " + result);
+        mChannel.acquire();
+        try {
+            int cmdId = CommandChannel.nextCommandId();
+            int result = sendIntCommand(mInterfacePrefix + command);
+            onCommandSent(mInterfacePrefix + command);
+            sEventLog.log(EVENT_INT_COMMAND, mLogTag, cmdId, result, command, null);
             if (DBG) Log.d(mTAG, "   returned " + result);
             return result;
+        } finally {
+            mChannel.release();
         }
     }
 
@@ -190,19 +374,23 @@ public class WifiNative {
                 Log.d(mTAG, "doString: [" + command + "]");
             }
         }
-        synchronized (mLock) {
-            int cmdId = getNewCmdIdLocked();
-            String toLog = Integer.toString(cmdId) + ":" + mInterfacePrefix + command;
-            String result = doStringCommandNative(mInterfacePrefix + command);
+        mChannel.acquire();
+        try {
+            int cmdId = CommandChannel.nextCommandId();
+            String result = sendStringCommand(mInterfacePrefix + command);
+            onCommandSent(mInterfacePrefix + command);
             if (result == null) {
                 if (DBG) Log.d(mTAG, "doStringCommandNative no result");
             } else {
                 if (!command.startsWith("STATUS-")) {
-                    localLog(toLog + " -> " + result);
+                    sEventLog.log(EVENT_STRING_COMMAND, mLogTag, cmdId, result.length(), command,
+                            result.length() <= MAX_LOGGED_REPLY_LENGTH ? result : null);
                 }
                 if (DBG) Log.d(mTAG, "   returned " + result.replace("\n", " "));
             }
             return result;
+        } finally {
+            mChannel.release();
         }
     }
 
@@ -213,8 +401,100 @@ public class WifiNative {
                 Log.d(mTAG, "doString: [" + command + "]");
             }
         }
-        synchronized (mLock) {
-            return doStringCommandNative(mInterfacePrefix + command);
+        return doStringCommandRaw(mInterfacePrefix + command);
+    }
+
+    /* Bounds of the asynchronous commands of each interface */
+    private static final int MAX_ASYNC_COMMANDS = 8;
+    private static final long ASYNC_COMMAND_TIMEOUT_MS = 5 * 1000;
+
+    private AsyncCommandExecutor mAsyncExecutor;
+
+    private synchronized AsyncCommandExecutor getAsyncExecutor() {
+        if (mAsyncExecutor == null) {
+            mAsyncExecutor = new AsyncCommandExecutor("WifiNative-async-" + mInterfaceName,
+                    MAX_ASYNC_COMMANDS, ASYNC_COMMAND_TIMEOUT_MS);
+        }
+        return mAsyncExecutor;
+    }
+
+    /**
+     * Sends command from a worker thread, for queries whose result does not need to be
+     * ordered with the other commands of the caller. The command still goes through the
+     * channel of this interface, like the synchronous ones.
+     *
+     * @return the reply, which fails with a RejectedExecutionException if too many
+     * commands are in flight or a TimeoutException if it could not be sent in time
+     */
+    public Future<String> submitStringCommand(final String command) {
+        return getAsyncExecutor().submit(stringCommand(command));
+    }
+
+    private Callable<String> stringCommand(final String command) {
+        return new Callable<String>() {
+            @Override
+            public String call() {
+                return doStringCommand(command);
+            }
+        };
+    }
+
+    void dumpAsyncCommands(PrintWriter pw) {
+        AsyncCommandExecutor executor;
+        synchronized (this) {
+            executor = mAsyncExecutor;
+        }
+        if (executor != null) executor.dump(pw);
+    }
+
+    /* Sends command as is, e.g. for another interface, on the channel of this one */
+    private boolean doBooleanCommandRaw(String command) {
+        mChannel.acquire();
+        try {
+            boolean result = sendBooleanCommand(command);
+            onCommandSent(command);
+            return result;
+        } finally {
+            mChannel.release();
+        }
+    }
+
+    /* Drops the cached replies command may change, on the cache of its interface */
+    private void onCommandSent(String command) {
+        boolean ownPrefix = mInterfacePrefix.length() > 0 && command.startsWith(mInterfacePrefix);
+        if (!ownPrefix && command.startsWith("IFNAME=")) {
+            int space = command.indexOf(' ');
+            if (space > 7) {
+                SupplicantQueryCache.forInterface(command.substring(7, space))
+                        .onCommand(command);
+                return;
+            }
+        }
+        mQueryCache.onCommand(command);
+    }
+
+    /* Serves command from the query cache, or sends it and caches the reply */
+    private String doCachedStringCommand(String command, boolean logged) {
+        String reply = mQueryCache.get(command);
+        if (reply != null) return reply;
+        int generation = mQueryCache.getGeneration();
+        reply = logged ? doStringCommand(command) : doStringCommandWithoutLogging(command);
+        mQueryCache.put(command, reply, generation);
+        return reply;
+    }
+
+    static void dumpQueryCaches(PrintWriter pw) {
+        SupplicantQueryCache.dump(pw);
+    }
+
+    private String doStringCommandRaw(String command) {
+        mChannel.acquire();
+        try {
+            String result = sendStringCommand(command);
+            onCommandSent(command);
+            return result;
+        } finally {
+            mChannel.release();
         }
     }
 
@@ -254,11 +534,11 @@ public class WifiNative {
     }
 
     public String listNetworks() {
-        return doStringCommand("LIST_NETWORKS");
+        return doCachedStringCommand("LIST_NETWORKS", true);
     }
 
     public String listNetworks(int last_id) {
-        return doStringCommand("LIST_NETWORKS LAST_ID=" + last_id);
+        return doCachedStringCommand("LIST_NETWORKS LAST_ID=" + last_id, true);
     }
 
     public int addNetwork() {
@@ -270,11 +550,60 @@ public class WifiNative {
         return doBooleanCommand("SET_NETWORK " + netId + " " + name + " " + value);
     }
 
+    /* Writes of a batch sent per turn on the command channel, so that a large batch
+     * (e.g. a restore of many networks) does not hold off the other callers. A turn only
+     * ends between networks, and WifiConfigStore writes at most 28 variables for one
+     * network (17 plus 11 enterprise fields), so one network normally fits in a turn */
+    static final int MAX_NETWORK_VARIABLES_PER_TURN = 32;
+
+    /**
+     * Sends the pending writes of batch, up to {@link #MAX_NETWORK_VARIABLES_PER_TURN}
+     * of them per turn on the command channel. The writes of one network are never split
+     * across turns, so other callers do not see a partially written network; a network
+     * with more writes than the limit extends the turn instead.
+     *
+     * @return true if every write succeeded; see the batch for the outcome of each one
+     */
+    public boolean setNetworkVariables(NetworkVariableBatch batch) {
+        boolean success = true;
+        int i = 0;
+        while (i < batch.size()) {
+            mChannel.acquire();
+            try {
+                for (int sent = 0; i < batch.size(); i++) {
+                    if (sent >= MAX_NETWORK_VARIABLES_PER_TURN
+                            && batch.getNetId(i) != batch.getNetId(i - 1)) {
+                        break;
+                    }
+                    if (batch.getStatus(i) != NetworkVariableBatch.STATUS_PENDING) continue;
+                    String command = batch.getCommand(i);
+                    if (command == null) {
+                        batch.setResult(i, false);
+                        success = false;
+                        continue;
+                    }
+                    if (DBG) Log.d(mTAG, "doBoolean: " + command);
+                    int cmdId = CommandChannel.nextCommandId();
+                    boolean result = sendBooleanCommand(mInterfacePrefix + command);
+                    onCommandSent(mInterfacePrefix + command);
+                    sEventLog.log(EVENT_BOOLEAN_COMMAND, mLogTag, cmdId, result ? 1 : 0,
+                            command, null);
+                    batch.setResult(i, result);
+                    if (!result) success = false;
+                    sent++;
+                }
+            } finally {
+                mChannel.release();
+            }
+        }
+        return success;
+    }
+
     public String getNetworkVariable(int netId, String name) {
         if (TextUtils.isEmpty(name)) return null;
 
         // GET_NETWORK will likely flood the logs ...
-        return doStringCommandWithoutLogging("GET_NETWORK " + netId + " " + name);
+        return doCachedStringCommand("GET_NETWORK " + netId + " " + name, false);
     }
 
     public boolean removeNetwork(int netId) {
@@ -366,6 +695,27 @@ public class WifiNative {
         return doStringCommandWithoutLogging("BSS RANGE=" + sid + "- MASK=0x21987");
     }
 
+    /* Size of the reply buffer, see REPLY_BUF_SIZE in com_android_server_wifi_WifiNative.cpp */
+    static final int REPLY_BUF_SIZE = 4096;
+
+    /* Upper bound on the length of one entry formatted with the scanResults() mask: an SSID
+       escaped to 4 chars per byte, a long flags string plus the fixed fields */
+    private static final int MAX_SCAN_RESULT_ENTRY_LENGTH = 512;
+
+    /**
+     * Supplicant only stops filling a "BSS RANGE=" reply before the end marker when the next
+     * entry does not fit in the reply buffer. A page with room left for the largest possible
+     * entry therefore holds the last entries, and fetching the next page would be a wasted
+     * round-trip (some supplicant builds do not send the end marker).
+     *
+     * @return true if the page filled the reply buffer and more entries may follow
+     */
+    static boolean isScanResultsPageFull(String page) {
+        // Replies are ASCII, escaped by supplicant, so chars and bytes match.
+        // One byte is reserved for NUL termination and a trailing newline may be stripped.
+        return page.length() + MAX_SCAN_RESULT_ENTRY_LENGTH > REPLY_BUF_SIZE - 2;
+    }
+
     /**
      * Format of result:
      * id=1016
@@ -636,6 +986,104 @@ public class WifiNative {
         return doStringCommand("PKTCNT_POLL");
     }
 
+    /* Link polls within this window of the previous one share its reply */
+    private static final long LINK_POLL_SHARE_MS = 200;
+
+    /* Last decoded polls, guarded by itself */
+    private final LinkPollResult mLastLinkPoll = new LinkPollResult();
+    private long mLastSignalPollAt = -1;
+    private long mLastPktcntPollAt = -1;
+    private long mLinkPolls;
+    private long mSharedLinkPolls;
+
+    /**
+     * Fills result with the RSSI, link speed, frequency and noise of the current link.
+     * Callers polling within {@link #LINK_POLL_SHARE_MS} of each other get the same
+     * values from a single SIGNAL_POLL.
+     *
+     * @return false if the supplicant did not reply
+     */
+    public boolean signalPoll(LinkPollResult result) {
+        synchronized (mLastLinkPoll) {
+            long now = SystemClock.elapsedRealtime();
+            mLinkPolls++;
+            if (mLastSignalPollAt < 0 || now - mLastSignalPollAt > LINK_POLL_SHARE_MS) {
+                String reply = signalPoll();
+                if (reply == null) {
+                    mLastSignalPollAt = -1;
+                    result.resetSignal();
+                    return false;
+                }
+                mLastLinkPoll.parseSignalPoll(reply);
+                mLastSignalPollAt = now;
+            } else {
+                mSharedLinkPolls++;
+            }
+            result.copySignalFrom(mLastLinkPoll);
+            return true;
+        }
+    }
+
+    /**
+     * Like {@link #signalPoll(LinkPollResult)} but from the worker thread of this
+     * interface, then sends reply with result in obj, or null if the supplicant did not
+     * reply or the poll could not be sent. result must not be used until then.
+     */
+    public void signalPoll(final LinkPollResult result, Message reply) {
+        getAsyncExecutor().submit(new Callable<LinkPollResult>() {
+            @Override
+            public LinkPollResult call() {
+                return signalPoll(result) ? result : null;
+            }
+        }, reply);
+    }
+
+    /**
+     * Fills result with the packet counters of the current link, shared like
+     * {@link #signalPoll(LinkPollResult)}.
+     *
+     * @return false if the supplicant did not reply
+     */
+    public boolean pktcntPoll(LinkPollResult result) {
+        synchronized (mLastLinkPoll) {
+            long now = SystemClock.elapsedRealtime();
+            mLinkPolls++;
+            if (mLastPktcntPollAt < 0 || now - mLastPktcntPollAt > LINK_POLL_SHARE_MS) {
+                String reply = pktcntPoll();
+                if (reply == null) {
+                    mLastPktcntPollAt = -1;
+                    result.resetPacketCounts();
+                    return false;
+                }
+                mLastLinkPoll.parsePktcntPoll(reply);
+                mLastPktcntPollAt = now;
+            } else {
+                mSharedLinkPolls++;
+            }
+            result.copyPacketCountsFrom(mLastLinkPoll);
+            return true;
+        }
+    }
+
+    /**
+     * Makes the next polls go to the supplicant instead of sharing the reply of a poll
+     * made before the link changed. WifiMonitor calls it as it reports a connection,
+     * disconnection or association to a new BSSID.
+     */
+    public void invalidateLinkPolls() {
+        synchronized (mLastLinkPoll) {
+            mLastSignalPollAt = -1;
+            mLastPktcntPollAt = -1;
+        }
+    }
+
+    void dumpLinkPolls(PrintWriter pw) {
+        synchronized (mLastLinkPoll) {
+            pw.println("Link polls=" + mLinkPolls + " shared=" + mSharedLinkPolls
+                    + " last: " + mLastLinkPoll);
+        }
+    }
+
     public void bssFlush() {
         doBooleanCommand("BSS_FLUSH 0");
     }
@@ -649,12 +1097,10 @@ public class WifiNative {
     }
 
     public boolean startWpsPbc(String iface, String bssid) {
-        synchronized (mLock) {
-            if (TextUtils.isEmpty(bssid)) {
-                return doBooleanCommandNative("IFNAME=" + iface + " WPS_PBC");
-            } else {
-                return doBooleanCommandNative("IFNAME=" + iface + " WPS_PBC " + bssid);
-            }
+        if (TextUtils.isEmpty(bssid)) {
+            return doBooleanCommandRaw("IFNAME=" + iface + " WPS_PBC");
+        } else {
+            return doBooleanCommandRaw("IFNAME=" + iface + " WPS_PBC " + bssid);
         }
     }
 
@@ -665,9 +1111,7 @@ public class WifiNative {
 
     public boolean startWpsPinKeypad(String iface, String pin) {
         if (TextUtils.isEmpty(pin)) return false;
-        synchronized (mLock) {
-            return doBooleanCommandNative("IFNAME=" + iface + " WPS_PIN any " + pin);
-        }
+        return doBooleanCommandRaw("IFNAME=" + iface + " WPS_PIN any " + pin);
     }
 
 
@@ -680,27 +1124,21 @@ public class WifiNative {
     }
 
     public String startWpsPinDisplay(String iface, String bssid) {
-        synchronized (mLock) {
-            if (TextUtils.isEmpty(bssid)) {
-                return doStringCommandNative("IFNAME=" + iface + " WPS_PIN any");
-            } else {
-                return doStringCommandNative("IFNAME=" + iface + " WPS_PIN " + bssid);
-            }
+        if (TextUtils.isEmpty(bssid)) {
+            return doStringCommandRaw("IFNAME=" + iface + " WPS_PIN any");
+        } else {
+            return doStringCommandRaw("IFNAME=" + iface + " WPS_PIN " + bssid);
         }
     }
 
     public boolean setExternalSim(boolean external) {
-        synchronized (mLock) {
-            String value = external ? "1" : "0";
-            Log.d(TAG, "Setting external_sim to " + value);
-            return doBooleanCommand("SET external_sim " + value);
-        }
+        String value = external ? "1" : "0";
+        Log.d(TAG, "Setting external_sim to " + value);
+        return doBooleanCommand("SET external_sim " + value);
     }
 
     public boolean simAuthResponse(int id, String response) {
-        synchronized (mLock) {
-            return doBooleanCommand("CTRL-RSP-SIM-" + id + ":GSM-AUTH" + response);
-        }
+        return doBooleanCommand("CTRL-RSP-SIM-" + id + ":GSM-AUTH" + response);
     }
 
     /* Configures an access point connection */
@@ -751,9 +1189,7 @@ public class WifiNative {
     }
 
     public boolean setP2pGroupIdle(String iface, int time) {
-        synchronized (mLock) {
-            return doBooleanCommandNative("IFNAME=" + iface + " SET p2p_group_idle " + time);
-        }
+        return doBooleanCommandRaw("IFNAME=" + iface + " SET p2p_group_idle " + time);
     }
 
     public void setPowerSave(boolean enabled) {
@@ -765,12 +1201,10 @@ public class WifiNative {
     }
 
     public boolean setP2pPowerSave(String iface, boolean enabled) {
-        synchronized (mLock) {
-            if (enabled) {
-                return doBooleanCommandNative("IFNAME=" + iface + " P2P_SET ps 1");
-            } else {
-                return doBooleanCommandNative("IFNAME=" + iface + " P2P_SET ps 0");
-            }
+        if (enabled) {
+            return doBooleanCommandRaw("IFNAME=" + iface + " P2P_SET ps 1");
+        } else {
+            return doBooleanCommandRaw("IFNAME=" + iface + " P2P_SET ps 0");
         }
     }
 
@@ -939,9 +1373,7 @@ public class WifiNative {
 
     public boolean p2pGroupRemove(String iface) {
         if (TextUtils.isEmpty(iface)) return false;
-        synchronized (mLock) {
-            return doBooleanCommandNative("IFNAME=" + iface + " P2P_GROUP_REMOVE " + iface);
-        }
+        return doBooleanCommandRaw("IFNAME=" + iface + " P2P_GROUP_REMOVE " + iface);
     }
 
     public boolean p2pReject(String deviceAddress) {
@@ -980,9 +1412,7 @@ public class WifiNative {
         /* Explicitly calling the API without IFNAME= prefix to take care of the devices that
         don't have p2p0 interface. Supplicant seems to be returning the correct address anyway. */
 
-        synchronized (mLock) {
-            status = doStringCommandNative("STATUS");
-        }
+        status = doStringCommandRaw("STATUS");
 
         String result = "";
         if (status != null) {
@@ -1161,7 +1591,12 @@ public class WifiNative {
                 return true;
             if (sHalFailed)
                 return false;
+            if (!loadNatives()) {
+                // The HAL is not simulated by SupplicantTransport, report it unavailable
+                return false;
+            }
             if (startHalNative() && (getInterfaces() != 0) && (sWlan0Index != -1)) {
+                sHalEventQueue.start();
                 new MonitorThread().start();
                 sHalIsStarted = true;
                 return true;
@@ -1175,6 +1610,7 @@ public class WifiNative {
     }
 
     synchronized public static void stopHal() {
+        if (!loadNatives()) return;
         stopHalNative();
     }
 
@@ -1183,6 +1619,7 @@ public class WifiNative {
     synchronized public static int getInterfaces() {
         synchronized (mLock) {
             if (sWifiIfaceHandles == null) {
+                if (!loadNatives()) return 0;
                 int num = getInterfacesNative();
                 int wifi_num = 0;
                 for (int i = 0; i < num; i++) {
@@ -1205,6 +1642,7 @@ public class WifiNative {
 
     private static native String getInterfaceNameNative(int index);
     synchronized public static String getInterfaceName(int index) {
+        if (!loadNatives()) return null;
         return getInterfaceNameNative(index);
     }
 
@@ -1219,6 +1657,7 @@ public class WifiNative {
     }
 
     public static boolean getScanCapabilities(ScanCapabilities capabilities) {
+        if (!loadNatives()) return false;
         return getScanCapabilitiesNative(sWlan0Index, capabilities);
     }
 
@@ -1228,6 +1667,8 @@ public class WifiNative {
     private static native boolean startScanNative(int iface, int id, ScanSettings settings);
     private static native boolean stopScanNative(int iface, int id);
     private static native ScanResult[] getScanResultsNative(int iface, boolean flush);
+    private static native int getScanResultsBufferNative(int iface, boolean flush,
+            ByteBuffer buffer);
     private static native WifiLinkLayerStats getWifiLinkLayerStatsNative(int iface);
 
     public static class ChannelSettings {
@@ -1255,15 +1696,74 @@ public class WifiNative {
 
     public static interface ScanEventHandler {
         void onScanResultsAvailable();
-        void onFullScanResult(ScanResult fullScanResult);
+        /**
+         * ieBuffer holds one reference on the IE arrays of fullScanResult, which must be
+         * released once the result was delivered
+         */
+        void onFullScanResult(ScanResult fullScanResult, IeBufferPool.Buffer ieBuffer);
         void onSingleScanComplete();
         void onScanPaused();
         void onScanRestarted();
     }
 
-    synchronized static void onScanResultsAvailable(int id) {
-        if (sScanEventHandler  != null) {
-            sScanEventHandler.onScanResultsAvailable();
+    /*
+     * The HAL event thread only queues its events: the handlers run on the dispatch thread,
+     * so that no WifiNative lock, held e.g. across a slow getWifiLinkLayerStats(), can
+     * hold HAL events up. Handlers are published through volatile fields and read once
+     * per event.
+     */
+    private static final int HAL_EVENT_SCAN_RESULTS_AVAILABLE = 1;
+    private static final int HAL_EVENT_SCAN_STATUS = 2;
+    private static final int HAL_EVENT_FULL_SCAN_RESULT = 3;
+    private static final int HAL_EVENT_HOTLIST_AP_FOUND = 4;
+    private static final int HAL_EVENT_SIGNIFICANT_WIFI_CHANGE = 5;
+    private static final int HAL_EVENT_RTT_RESULTS = 6;
+
+    private static final int HAL_EVENT_QUEUE_SIZE = 64;
+
+    private static final HalEventQueue sHalEventQueue = new HalEventQueue("WifiNative-HalEvents",
+            HAL_EVENT_QUEUE_SIZE, new HalEventQueue.Dispatcher() {
+                @Override
+                public void dispatch(int type, int id, Object arg1, Object arg2) {
+                    dispatchHalEvent(type, id, arg1, arg2);
+                }
+            });
+
+    private static void dispatchHalEvent(int type, int id, Object arg1, Object arg2) {
+        switch (type) {
+            case HAL_EVENT_SCAN_RESULTS_AVAILABLE:
+                dispatchScanResultsAvailable();
+                break;
+            case HAL_EVENT_SCAN_STATUS:
+                dispatchScanStatus(id);
+                break;
+            case HAL_EVENT_FULL_SCAN_RESULT:
+                dispatchFullScanResult((ScanResult) arg1, (IeBufferPool.Buffer) arg2);
+                break;
+            case HAL_EVENT_HOTLIST_AP_FOUND:
+                dispatchHotlistApFound((ScanResult[]) arg1);
+                break;
+            case HAL_EVENT_SIGNIFICANT_WIFI_CHANGE:
+                dispatchSignificantWifiChange((ScanResult[]) arg1);
+                break;
+            case HAL_EVENT_RTT_RESULTS:
+                dispatchRttResults(id, (RttManager.RttResult[]) arg1);
+                break;
+        }
+    }
+
+    static void dumpHalEvents(PrintWriter pw) {
+        sHalEventQueue.dump(pw);
+    }
+
+    static void onScanResultsAvailable(int id) {
+        sHalEventQueue.put(HAL_EVENT_SCAN_RESULTS_AVAILABLE, id, null, null);
+    }
+
+    private static void dispatchScanResultsAvailable() {
+        ScanEventHandler handler = sScanEventHandler;
+        if (handler != null) {
+            handler.onScanResultsAvailable();
         }
     }
 
@@ -1271,32 +1771,60 @@ public class WifiNative {
     private static int WIFI_SCAN_BUFFER_FULL = 0;
     private static int WIFI_SCAN_COMPLETE = 1;
 
-    synchronized static void onScanStatus(int status) {
+    static void onScanStatus(int status) {
         Log.i(TAG, "Got a scan status changed event, status = " + status);
+        sHalEventQueue.put(HAL_EVENT_SCAN_STATUS, status, null, null);
+    }
 
+    private static void dispatchScanStatus(int status) {
         if (status == WIFI_SCAN_BUFFER_FULL) {
             /* we have a separate event to take care of this */
         } else if (status == WIFI_SCAN_COMPLETE) {
-            if (sScanEventHandler  != null) {
-                sScanEventHandler.onSingleScanComplete();
+            sIeBufferPool.onScanComplete();
+            ScanEventHandler handler = sScanEventHandler;
+            if (handler != null) {
+                handler.onSingleScanComplete();
             }
         }
     }
 
-    synchronized static void onFullScanResult(int id, ScanResult result, byte bytes[]) {
+    private static final IeBufferPool sIeBufferPool = new IeBufferPool();
+
+    static IeBufferPool getIeBufferPool() {
+        return sIeBufferPool;
+    }
+
+    /* Called by native code for the buffer it then passes to onFullScanResult */
+    private static byte[] obtainIeBuffer(int length) {
+        return sIeBufferPool.obtainRaw(length);
+    }
+
+    static void onFullScanResult(int id, ScanResult result, byte bytes[], int length) {
+        try {
+            onFullScanResult(result, bytes, length);
+        } finally {
+            sIeBufferPool.recycleRaw(bytes);
+        }
+    }
+
+    /*
+     * The IEs are bytes[0, length), copied out into pooled element arrays on the HAL event
+     * thread as native code reuses bytes once this returns
+     */
+    private static void onFullScanResult(ScanResult result, byte bytes[], int length) {
         if (DBG) Log.i(TAG, "Got a full scan results event, ssid = " + result.SSID + ", " +
-                "num = " + bytes.length);
+                "num = " + length);
 
         if (sScanEventHandler == null) {
             return;
         }
 
         int num = 0;
-        for (int i = 0; i < bytes.length; ) {
+        for (int i = 0; i + 1 < length; ) {
             int type  = bytes[i] & 0xFF;
             int len = bytes[i + 1] & 0xFF;
 
-            if (i + len + 2 > bytes.length) {
+            if (i + len + 2 > length) {
                 Log.w(TAG, "bad length " + len + " of IE " + type + " from " + result.BSSID);
                 Log.w(TAG, "ignoring the rest of the IEs");
                 break;
@@ -1307,6 +1835,7 @@ public class WifiNative {
                     "next = " + i);
         }
 
+        IeBufferPool.Buffer ieBuffer = sIeBufferPool.obtainBuffer();
         ScanResult.InformationElement elements[] = new ScanResult.InformationElement[num];
         for (int i = 0, index = 0; i < num; i++) {
             int type  = bytes[index] & 0xFF;
@@ -1314,25 +1843,33 @@ public class WifiNative {
             if (DBG) Log.i(TAG, "index = " + index + ", type = " + type + ", len = " + len);
             ScanResult.InformationElement elem = new ScanResult.InformationElement();
             elem.id = type;
-            elem.bytes = new byte[len];
-            for (int j = 0; j < len; j++) {
-                elem.bytes[j] = bytes[index + j + 2];
-            }
+            elem.bytes = ieBuffer.obtainElement(len);
+            System.arraycopy(bytes, index + 2, elem.bytes, 0, len);
             elements[i] = elem;
             index += (len + 2);
         }
 
         result.informationElements = elements;
-        sScanEventHandler.onFullScanResult(result);
+        sHalEventQueue.put(HAL_EVENT_FULL_SCAN_RESULT, 0, result, ieBuffer);
+    }
+
+    private static void dispatchFullScanResult(ScanResult result, IeBufferPool.Buffer ieBuffer) {
+        ScanEventHandler handler = sScanEventHandler;
+        if (handler == null) {
+            ieBuffer.release();
+            return;
+        }
+        handler.onFullScanResult(result, ieBuffer);
     }
 
     private static int sScanCmdId = 0;
-    private static ScanEventHandler sScanEventHandler;
+    private static volatile ScanEventHandler sScanEventHandler;
     private static ScanSettings sScanSettings;
 
     synchronized public static boolean startScan(
             ScanSettings settings, ScanEventHandler eventHandler) {
         synchronized (mLock) {
+            if (!loadNatives()) return false;
 
             if (sScanCmdId != 0) {
                 stopScan();
@@ -1357,7 +1894,7 @@ public class WifiNative {
 
     synchronized public static void stopScan() {
         synchronized (mLock) {
-            stopScanNative(sWlan0Index, sScanCmdId);
+            if (loadNatives()) stopScanNative(sWlan0Index, sScanCmdId);
             sScanSettings = null;
             sScanEventHandler = null;
             sScanCmdId = 0;
@@ -1366,6 +1903,7 @@ public class WifiNative {
 
     synchronized public static void pauseScan() {
         synchronized (mLock) {
+            if (!loadNatives()) return;
             if (sScanCmdId != 0 && sScanSettings != null && sScanEventHandler != null) {
                 Log.d(TAG, "Pausing scan");
                 stopScanNative(sWlan0Index, sScanCmdId);
@@ -1387,16 +1925,35 @@ public class WifiNative {
 
     synchronized public static ScanResult[] getScanResults() {
         synchronized (mLock) {
+            if (!loadNatives()) return null;
             return getScanResultsNative(sWlan0Index, /* flush = */ false);
         }
     }
 
+    /**
+     * Fetch the cached gscan results packed into buffer, without creating ScanResult
+     * objects; see {@link ScanResultBuffer} for the layout.
+     * @return false if the results could not be fetched, buffer is then empty
+     */
+    synchronized public static boolean getScanResults(ScanResultBuffer buffer) {
+        synchronized (mLock) {
+            if (!loadNatives()) {
+                buffer.setCount(0);
+                return false;
+            }
+            int count = getScanResultsBufferNative(sWlan0Index, /* flush = */ false,
+                    buffer.getBuffer());
+            buffer.setCount(count);
+            return count >= 0;
+        }
+    }
+
     public static interface HotlistEventHandler {
         void onHotlistApFound (ScanResult[]result);
     }
 
     private static int sHotlistCmdId = 0;
-    private static HotlistEventHandler sHotlistEventHandler;
+    private static volatile HotlistEventHandler sHotlistEventHandler;
 
     private native static boolean setHotlistNative(int iface, int id,
             WifiScanner.HotlistSettings settings);
@@ -1405,6 +1962,7 @@ public class WifiNative {
     synchronized public static boolean setHotlist(WifiScanner.HotlistSettings settings,
                                     HotlistEventHandler eventHandler) {
         synchronized (mLock) {
+            if (!loadNatives()) return false;
             if (sHotlistCmdId != 0) {
                 return false;
             } else {
@@ -1424,21 +1982,24 @@ public class WifiNative {
     synchronized public static void resetHotlist() {
         synchronized (mLock) {
             if (sHotlistCmdId != 0) {
-                resetHotlistNative(sWlan0Index, sHotlistCmdId);
+                if (loadNatives()) resetHotlistNative(sWlan0Index, sHotlistCmdId);
                 sHotlistCmdId = 0;
                 sHotlistEventHandler = null;
             }
         }
     }
 
-    synchronized public static void onHotlistApFound(int id, ScanResult[] results) {
-        synchronized (mLock) {
-            if (sHotlistCmdId != 0) {
-                sHotlistEventHandler.onHotlistApFound(results);
-            } else {
-                /* this can happen because of race conditions */
-                Log.d(TAG, "Ignoring hotlist AP found change");
-            }
+    public static void onHotlistApFound(int id, ScanResult[] results) {
+        sHalEventQueue.put(HAL_EVENT_HOTLIST_AP_FOUND, id, results, null);
+    }
+
+    private static void dispatchHotlistApFound(ScanResult[] results) {
+        HotlistEventHandler handler = sHotlistEventHandler;
+        if (handler != null) {
+            handler.onHotlistApFound(results);
+        } else {
+            /* this can happen because of race conditions */
+            Log.d(TAG, "Ignoring hotlist AP found change");
         }
     }
 
@@ -1446,7 +2007,7 @@ public class WifiNative {
         void onChangesFound(ScanResult[] result);
     }
 
-    private static SignificantWifiChangeEventHandler sSignificantWifiChangeHandler;
+    private static volatile SignificantWifiChangeEventHandler sSignificantWifiChangeHandler;
     private static int sSignificantWifiChangeCmdId;
 
     private static native boolean trackSignificantWifiChangeNative(
@@ -1456,6 +2017,7 @@ public class WifiNative {
     synchronized public static boolean trackSignificantWifiChange(
             WifiScanner.WifiChangeSettings settings, SignificantWifiChangeEventHandler handler) {
         synchronized (mLock) {
+            if (!loadNatives()) return false;
             if (sSignificantWifiChangeCmdId != 0) {
                 return false;
             } else {
@@ -1475,21 +2037,27 @@ public class WifiNative {
     synchronized static void untrackSignificantWifiChange() {
         synchronized (mLock) {
             if (sSignificantWifiChangeCmdId != 0) {
-                untrackSignificantWifiChangeNative(sWlan0Index, sSignificantWifiChangeCmdId);
+                if (loadNatives()) {
+                    untrackSignificantWifiChangeNative(sWlan0Index,
+                            sSignificantWifiChangeCmdId);
+                }
                 sSignificantWifiChangeCmdId = 0;
                 sSignificantWifiChangeHandler = null;
             }
         }
     }
 
-    synchronized static void onSignificantWifiChange(int id, ScanResult[] results) {
-        synchronized (mLock) {
-            if (sSignificantWifiChangeCmdId != 0) {
-                sSignificantWifiChangeHandler.onChangesFound(results);
-            } else {
-                /* this can happen because of race conditions */
-                Log.d(TAG, "Ignoring significant wifi change");
-            }
+    static void onSignificantWifiChange(int id, ScanResult[] results) {
+        sHalEventQueue.put(HAL_EVENT_SIGNIFICANT_WIFI_CHANGE, id, results, null);
+    }
+
+    private static void dispatchSignificantWifiChange(ScanResult[] results) {
+        SignificantWifiChangeEventHandler handler = sSignificantWifiChangeHandler;
+        if (handler != null) {
+            handler.onChangesFound(results);
+        } else {
+            /* this can happen because of race conditions */
+            Log.d(TAG, "Ignoring significant wifi change");
         }
     }
 
@@ -1530,6 +2098,7 @@ public class WifiNative {
 
     public static native int getSupportedFeatureSetNative(int iface);
     synchronized public static int getSupportedFeatureSet() {
+        if (!loadNatives()) return 0;
         return getSupportedFeatureSetNative(sWlan0Index);
     }
 
@@ -1538,14 +2107,21 @@ public class WifiNative {
         void onRttResults(RttManager.RttResult[] result);
     }
 
-    private static RttEventHandler sRttEventHandler;
-    private static int sRttCmdId;
+    private static volatile RttEventHandler sRttEventHandler;
+    private static volatile int sRttCmdId;
 
-    synchronized private static void onRttResults(int id, RttManager.RttResult[] results) {
+    private static void onRttResults(int id, RttManager.RttResult[] results) {
+        sHalEventQueue.put(HAL_EVENT_RTT_RESULTS, id, results, null);
+    }
+
+    private static void dispatchRttResults(int id, RttManager.RttResult[] results) {
         if (id == sRttCmdId) {
             Log.d(TAG, "Received " + results.length + " rtt results");
-            sRttEventHandler.onRttResults(results);
+            RttEventHandler handler = sRttEventHandler;
             sRttCmdId = 0;
+            if (handler != null) {
+                handler.onRttResults(results);
+            }
         } else {
             Log.d(TAG, "Received event for unknown cmd = " + id + ", current id = " + sRttCmdId);
         }
@@ -1559,6 +2135,7 @@ public class WifiNative {
     synchronized public static boolean requestRtt(
             RttManager.RttParams[] params, RttEventHandler handler) {
         synchronized (mLock) {
+            if (!loadNatives()) return false;
             if (sRttCmdId != 0) {
                 return false;
             } else {
@@ -1571,7 +2148,7 @@ public class WifiNative {
 
     synchronized public static boolean cancelRtt(RttManager.RttParams[] params) {
         synchronized(mLock) {
-            if (sRttCmdId == 0) {
+            if (sRttCmdId == 0 || !loadNatives()) {
                 return false;
             }
 
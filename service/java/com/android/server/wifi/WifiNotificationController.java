@@ -35,7 +35,10 @@ import android.provider.Settings;
 
 import java.io.FileDescriptor;
 import java.io.PrintWriter;
+import java.util.Collections;
+import java.util.IdentityHashMap;
 import java.util.List;
+import java.util.Set;
 
 /* Takes care of handling the "open wi-fi network available" notification @hide */
 final class WifiNotificationController {
@@ -86,6 +89,13 @@ final class WifiNotificationController {
      * something other than scanning, we reset this to 0.
      */
     private int mNumScansSinceNetworkStateChange;
+    /**
+     * Open networks among the current scan results, maintained from the scan result
+     * deltas published by the WifiStateMachine.
+     */
+    private final Set<ScanResult> mOpenNetworks =
+            Collections.newSetFromMap(new IdentityHashMap<ScanResult, Boolean>());
+    private long mScanResultGeneration = -1;
 
     private final Context mContext;
     private final WifiStateMachine mWifiStateMachine;
@@ -125,7 +135,7 @@ final class WifiNotificationController {
                         } else if (intent.getAction().equals(
                                 WifiManager.SCAN_RESULTS_AVAILABLE_ACTION)) {
                             checkAndSetNotification(mNetworkInfo,
-                                    mWifiStateMachine.syncGetScanResultsList());
+                                    mWifiStateMachine.syncGetScanResultDelta());
                         }
                     }
                 }, filter);
@@ -137,8 +147,47 @@ final class WifiNotificationController {
         mNotificationEnabledSettingObserver.register();
     }
 
+    /**
+     * Keep track of the open networks in range from the scan result deltas, so that
+     * the work done per scan depends on how many results changed rather than on how
+     * many were returned. Falls back to the full list if a delta was missed.
+     */
+    private void updateOpenNetworks(ScanResultDelta delta) {
+        if (!delta.follows(mScanResultGeneration)) {
+            mOpenNetworks.clear();
+            List<ScanResult> scanResults = mWifiStateMachine.syncGetScanResultsListNoCopy();
+            for (int i = scanResults.size() - 1; i >= 0; i--) {
+                updateOpenNetwork(scanResults.get(i));
+            }
+        } else {
+            for (int i = delta.added.size() - 1; i >= 0; i--) {
+                updateOpenNetwork(delta.added.get(i));
+            }
+            for (int i = delta.changed.size() - 1; i >= 0; i--) {
+                updateOpenNetwork(delta.changed.get(i));
+            }
+            for (int i = delta.removed.size() - 1; i >= 0; i--) {
+                mOpenNetworks.remove(delta.removed.get(i));
+            }
+        }
+        mScanResultGeneration = delta.generation;
+    }
+
+    private void updateOpenNetwork(ScanResult scanResult) {
+        //A capability of [ESS] represents an open access point
+        //that is available for an STA to connect
+        if (scanResult.capabilities != null &&
+                scanResult.capabilities.equals("[ESS]")) {
+            mOpenNetworks.add(scanResult);
+        } else {
+            mOpenNetworks.remove(scanResult);
+        }
+    }
+
     private synchronized void checkAndSetNotification(NetworkInfo networkInfo,
-            List<ScanResult> scanResults) {
+            ScanResultDelta delta) {
+
+        updateOpenNetworks(delta);
 
         // TODO: unregister broadcast so we do not have to check here
         // If we shouldn't place a notification on available networks, then
@@ -152,32 +201,20 @@ final class WifiNotificationController {
 
         if ((state == NetworkInfo.State.DISCONNECTED)
                 || (state == NetworkInfo.State.UNKNOWN)) {
-            if (scanResults != null) {
-                int numOpenNetworks = 0;
-                for (int i = scanResults.size() - 1; i >= 0; i--) {
-                    ScanResult scanResult = scanResults.get(i);
-
-                    //A capability of [ESS] represents an open access point
-                    //that is available for an STA to connect
-                    if (scanResult.capabilities != null &&
-                            scanResult.capabilities.equals("[ESS]")) {
-                        numOpenNetworks++;
-                    }
-                }
-
-                if (numOpenNetworks > 0) {
-                    if (++mNumScansSinceNetworkStateChange >= NUM_SCANS_BEFORE_ACTUALLY_SCANNING) {
-                        /*
-                         * We've scanned continuously at least
-                         * NUM_SCANS_BEFORE_NOTIFICATION times. The user
-                         * probably does not have a remembered network in range,
-                         * since otherwise supplicant would have tried to
-                         * associate and thus resetting this counter.
-                         */
-                        setNotificationVisible(true, numOpenNetworks, false, 0);
-                    }
-                    return;
+            int numOpenNetworks = mOpenNetworks.size();
+
+            if (numOpenNetworks > 0) {
+                if (++mNumScansSinceNetworkStateChange >= NUM_SCANS_BEFORE_ACTUALLY_SCANNING) {
+                    /*
+                     * We've scanned continuously at least
+                     * NUM_SCANS_BEFORE_NOTIFICATION times. The user
+                     * probably does not have a remembered network in range,
+                     * since otherwise supplicant would have tried to
+                     * associate and thus resetting this counter.
+                     */
+                    setNotificationVisible(true, numOpenNetworks, false, 0);
                 }
+                return;
             }
         }
 
@@ -266,6 +303,8 @@ final class WifiNotificationController {
         pw.println("mNotificationRepeatTime " + mNotificationRepeatTime);
         pw.println("mNotificationShown " + mNotificationShown);
         pw.println("mNumScansSinceNetworkStateChange " + mNumScansSinceNetworkStateChange);
+        pw.println("mOpenNetworks " + mOpenNetworks.size());
+        pw.println("mScanResultGeneration " + mScanResultGeneration);
     }
 
     private class NotificationEnabledSettingObserver extends ContentObserver {
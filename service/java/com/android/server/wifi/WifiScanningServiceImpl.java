@@ -22,12 +22,14 @@ import android.content.BroadcastReceiver;
 import android.content.Context;
 import android.content.Intent;
 import android.content.IntentFilter;
+import android.content.pm.PackageManager;
 import android.net.wifi.IWifiScanner;
 import android.net.wifi.ScanResult;
 import android.net.wifi.WifiManager;
 import android.net.wifi.WifiScanner;
 import android.net.wifi.WifiScanner.ScanSettings;
 import android.net.wifi.WifiSsid;
+import android.os.Binder;
 import android.os.Bundle;
 import android.os.Handler;
 import android.os.HandlerThread;
@@ -37,6 +39,7 @@ import android.os.Messenger;
 import android.os.RemoteException;
 import android.os.SystemClock;
 import android.util.Log;
+import android.util.Pair;
 import android.util.Slog;
 
 import com.android.internal.util.AsyncChannel;
@@ -174,8 +177,16 @@ public class WifiScanningServiceImpl extends IWifiScanner.Stub {
     private static final int CMD_SCAN_PAUSED                         = BASE + 8;
     private static final int CMD_SCAN_RESTARTED                      = BASE + 9;
 
+    /* Most results the HAL returns per getScanResults call, see WifiNative.cpp */
+    private static final int MAX_CACHED_SCAN_RESULTS = 256;
+
     private Context mContext;
     private WifiScanningStateMachine mStateMachine;
+
+    /* Cached gscan results, only used from the WifiScanningStateMachine thread */
+    private final ScanResultBuffer mScanResultBuffer =
+            new ScanResultBuffer(MAX_CACHED_SCAN_RESULTS);
+
     private ClientHandler mClientHandler;
 
     WifiScanningServiceImpl() { }
@@ -184,6 +195,19 @@ public class WifiScanningServiceImpl extends IWifiScanner.Stub {
         mContext = context;
     }
 
+    @Override
+    protected void dump(FileDescriptor fd, PrintWriter pw, String[] args) {
+        if (mContext.checkCallingOrSelfPermission(android.Manifest.permission.DUMP)
+                != PackageManager.PERMISSION_GRANTED) {
+            pw.println("Permission Denial: can't dump WifiScanner from from pid="
+                    + Binder.getCallingPid()
+                    + ", uid=" + Binder.getCallingUid());
+            return;
+        }
+        if (mStateMachine != null) mStateMachine.dump(fd, pw, args);
+        if (mWifiChangeStateMachine != null) mWifiChangeStateMachine.dump(fd, pw, args);
+    }
+
     public void startService(Context context) {
         mContext = context;
 
@@ -220,6 +244,9 @@ public class WifiScanningServiceImpl extends IWifiScanner.Stub {
         private final StartedState mStartedState = new StartedState();
         private final PausedState  mPausedState  = new PausedState();
 
+        private final MessageLatencyStats mMessageLatencyStats =
+                new MessageLatencyStats("WifiScanningStateMachine", null);
+
         public WifiScanningStateMachine(Looper looper) {
             super(TAG, looper);
 
@@ -247,9 +274,9 @@ public class WifiScanningServiceImpl extends IWifiScanner.Stub {
         }
 
         @Override
-        public void onFullScanResult(ScanResult fullScanResult) {
+        public void onFullScanResult(ScanResult fullScanResult, IeBufferPool.Buffer ieBuffer) {
             if (DBG) Log.d(TAG, "Full scanresult received");
-            sendMessage(CMD_FULL_SCAN_RESULTS, 0, 0, fullScanResult);
+            sendMessage(CMD_FULL_SCAN_RESULTS, 0, 0, Pair.create(fullScanResult, ieBuffer));
         }
 
         @Override
@@ -281,6 +308,7 @@ public class WifiScanningServiceImpl extends IWifiScanner.Stub {
             }
             @Override
             public boolean processMessage(Message msg) {
+                mMessageLatencyStats.begin(msg);
 
                 if (DBG) Log.d(TAG, "DefaultState got" + msg);
 
@@ -336,6 +364,7 @@ public class WifiScanningServiceImpl extends IWifiScanner.Stub {
 
             @Override
             public boolean processMessage(Message msg) {
+                mMessageLatencyStats.begin(msg);
 
                 if (DBG) Log.d(TAG, "StartedState got" + msg);
 
@@ -379,19 +408,29 @@ public class WifiScanningServiceImpl extends IWifiScanner.Stub {
                         configureWifiChange((WifiScanner.WifiChangeSettings) msg.obj);
                         break;
                     case CMD_SCAN_RESULTS_AVAILABLE: {
-                            ScanResult[] results = WifiNative.getScanResults();
+                            if (!WifiNative.getScanResults(mScanResultBuffer)) {
+                                break;
+                            }
                             Collection<ClientInfo> clients = mClients.values();
                             for (ClientInfo ci2 : clients) {
-                                ci2.reportScanResults(results);
+                                ci2.reportScanResults(mScanResultBuffer);
                             }
                         }
                         break;
                     case CMD_FULL_SCAN_RESULTS: {
-                            ScanResult result = (ScanResult) msg.obj;
+                            @SuppressWarnings("unchecked")
+                            Pair<ScanResult, IeBufferPool.Buffer> event =
+                                    (Pair<ScanResult, IeBufferPool.Buffer>) msg.obj;
+                            ScanResult result = event.first;
                             if (DBG) Log.d(TAG, "reporting fullscan result for " + result.SSID);
-                            Collection<ClientInfo> clients = mClients.values();
-                            for (ClientInfo ci2 : clients) {
-                                ci2.reportFullScanResult(result);
+                            try {
+                                Collection<ClientInfo> clients = mClients.values();
+                                for (ClientInfo ci2 : clients) {
+                                    ci2.reportFullScanResult(result);
+                                }
+                            } finally {
+                                // Results were parceled to the clients, the IEs can be reused
+                                event.second.release();
                             }
                         }
                         break;
@@ -432,6 +471,7 @@ public class WifiScanningServiceImpl extends IWifiScanner.Stub {
 
             @Override
             public boolean processMessage(Message msg) {
+                mMessageLatencyStats.begin(msg);
 
                 if (DBG) Log.d(TAG, "PausedState got" + msg);
 
@@ -452,9 +492,19 @@ public class WifiScanningServiceImpl extends IWifiScanner.Stub {
         public void dump(FileDescriptor fd, PrintWriter pw, String[] args) {
             super.dump(fd, pw, args);
             pw.println("number of clients : " + mClients.size());
+            pw.println(mScanResultBuffer);
+            pw.println(WifiNative.getIeBufferPool());
+            WifiNative.dumpHalEvents(pw);
+            mMessageLatencyStats.dump(pw, args);
             pw.println();
         }
 
+        @Override
+        protected boolean recordLogRec(Message msg) {
+            mMessageLatencyStats.end(getCurrentState(), msg);
+            return super.recordLogRec(msg);
+        }
+
     }
 
     /* client management */
@@ -507,7 +557,7 @@ public class WifiScanningServiceImpl extends IWifiScanner.Stub {
             return mScanSettings.values();
         }
 
-        void reportScanResults(ScanResult[] results) {
+        void reportScanResults(ScanResultBuffer results) {
             Iterator<Integer> it = mScanSettings.keySet().iterator();
             while (it.hasNext()) {
                 int handler = it.next();
@@ -515,7 +565,7 @@ public class WifiScanningServiceImpl extends IWifiScanner.Stub {
             }
         }
 
-        void reportScanResults(ScanResult[] results, int handler) {
+        void reportScanResults(ScanResultBuffer results, int handler) {
             ScanSettings settings = mScanSettings.get(handler);
             WifiScanner.ChannelSpec desiredChannels[] = settings.channels;
             if (settings.band != WifiScanner.WIFI_BAND_UNSPECIFIED
@@ -525,12 +575,9 @@ public class WifiScanningServiceImpl extends IWifiScanner.Stub {
 
             // check the channels this client asked for ..
             int num_results = 0;
-            for (ScanResult result : results) {
-                for (WifiScanner.ChannelSpec channelSpec : desiredChannels) {
-                    if (channelSpec.frequency == result.frequency) {
-                        num_results++;
-                        break;
-                    }
+            for (int i = 0; i < results.size(); i++) {
+                if (isDesiredChannel(desiredChannels, results.getFrequency(i))) {
+                    num_results++;
                 }
             }
 
@@ -539,24 +586,29 @@ public class WifiScanningServiceImpl extends IWifiScanner.Stub {
                 return;
             }
 
+            // .. and only build the results that are delivered
             ScanResult results2[] = new ScanResult[num_results];
             int index = 0;
-            for (ScanResult result : results) {
-                for (WifiScanner.ChannelSpec channelSpec : desiredChannels) {
-                    if (channelSpec.frequency == result.frequency) {
-                        WifiSsid wifiSsid = WifiSsid.createFromAsciiEncoded(result.SSID);
-                        ScanResult newResult = new ScanResult(wifiSsid, result.BSSID, "",
-                                result.level, result.frequency, result.timestamp);
-                        results2[index] = newResult;
-                        index++;
-                        break;
-                    }
+            for (int i = 0; i < results.size(); i++) {
+                if (isDesiredChannel(desiredChannels, results.getFrequency(i))) {
+                    results2[index] = results.toScanResult(i);
+                    index++;
                 }
             }
 
             deliverScanResults(handler, results2);
         }
 
+        private boolean isDesiredChannel(WifiScanner.ChannelSpec desiredChannels[],
+                int frequency) {
+            for (WifiScanner.ChannelSpec channelSpec : desiredChannels) {
+                if (channelSpec.frequency == frequency) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
         void deliverScanResults(int handler, ScanResult results[]) {
             WifiScanner.ParcelableScanResults parcelableScanResults =
                     new WifiScanner.ParcelableScanResults(results);
@@ -579,7 +631,9 @@ public class WifiScanningServiceImpl extends IWifiScanner.Stub {
                         ScanResult newResult = new ScanResult(wifiSsid, result.BSSID, "",
                                 result.level, result.frequency, result.timestamp);
                         if (DBG) Log.d(TAG, "sending it to " + handler);
-                        newResult.informationElements = result.informationElements.clone();
+                        newResult.informationElements = isLocal()
+                                ? copyOf(result.informationElements)
+                                : result.informationElements.clone();
                         mChannel.sendMessage(
                                 WifiScanner.CMD_FULL_SCAN_RESULT, 0, handler, newResult);
                     }
@@ -587,6 +641,26 @@ public class WifiScanningServiceImpl extends IWifiScanner.Stub {
             }
         }
 
+        /*
+         * Messages to a client in this process are not parceled, so it must not be handed
+         * the pooled IE arrays, which are recycled once the result was sent
+         */
+        private boolean isLocal() {
+            return mMessenger == null || mMessenger.getBinder() instanceof Binder;
+        }
+
+        private ScanResult.InformationElement[] copyOf(
+                ScanResult.InformationElement elements[]) {
+            ScanResult.InformationElement copy[] =
+                    new ScanResult.InformationElement[elements.length];
+            for (int i = 0; i < elements.length; i++) {
+                copy[i] = new ScanResult.InformationElement();
+                copy[i].id = elements[i].id;
+                copy[i].bytes = elements[i].bytes.clone();
+            }
+            return copy;
+        }
+
         void reportPeriodChanged(int handler, ScanSettings settings, int newPeriodInMs) {
             Integer prevPeriodObject = mScanPeriods.get(handler);
             int prevPeriodInMs = settings.periodInMs;
@@ -1061,9 +1135,11 @@ public class WifiScanningServiceImpl extends IWifiScanner.Stub {
     }
 
     ScanResult[] getScanResults(ClientInfo ci) {
-        ScanResult results[] = WifiNative.getScanResults();
-        ci.reportScanResults(results);
-        return results;
+        if (!WifiNative.getScanResults(mScanResultBuffer)) {
+            return null;
+        }
+        ci.reportScanResults(mScanResultBuffer);
+        return mScanResultBuffer.toArray();
     }
 
     void resetHotlist() {
@@ -1170,6 +1246,9 @@ public class WifiScanningServiceImpl extends IWifiScanner.Stub {
         State mStationaryState = new StationaryState();
         State mMovingState = new MovingState();
 
+        private final MessageLatencyStats mMessageLatencyStats =
+                new MessageLatencyStats("SignificantChangeStateMachine", null);
+
         private static final String ACTION_TIMEOUT =
                 "com.android.server.WifiScanningServiceImpl.action.TIMEOUT";
         AlarmManager  mAlarmManager;
@@ -1188,6 +1267,19 @@ public class WifiScanningServiceImpl extends IWifiScanner.Stub {
             setInitialState(mDefaultState);
         }
 
+        @Override
+        public void dump(FileDescriptor fd, PrintWriter pw, String[] args) {
+            super.dump(fd, pw, args);
+            mMessageLatencyStats.dump(pw, args);
+            pw.println();
+        }
+
+        @Override
+        protected boolean recordLogRec(Message msg) {
+            mMessageLatencyStats.end(getCurrentState(), msg);
+            return super.recordLogRec(msg);
+        }
+
         public void enable() {
             if (mAlarmManager == null) {
                 mAlarmManager = (AlarmManager) mContext.getSystemService(Context.ALARM_SERVICE);
@@ -1225,6 +1317,7 @@ public class WifiScanningServiceImpl extends IWifiScanner.Stub {
 
             @Override
             public boolean processMessage(Message msg) {
+                mMessageLatencyStats.begin(msg);
                 if (DBG) Log.d(TAG, "DefaultState state got " + msg);
                 switch (msg.what) {
                     case WIFI_CHANGE_CMD_ENABLE :
@@ -1256,6 +1349,7 @@ public class WifiScanningServiceImpl extends IWifiScanner.Stub {
 
             @Override
             public boolean processMessage(Message msg) {
+                mMessageLatencyStats.begin(msg);
                 if (DBG) Log.d(TAG, "Stationary state got " + msg);
                 switch (msg.what) {
                     case WIFI_CHANGE_CMD_ENABLE :
@@ -1296,6 +1390,7 @@ public class WifiScanningServiceImpl extends IWifiScanner.Stub {
 
             @Override
             public boolean processMessage(Message msg) {
+                mMessageLatencyStats.begin(msg);
                 if (DBG) Log.d(TAG, "MovingState state got " + msg);
                 switch (msg.what) {
                     case WIFI_CHANGE_CMD_ENABLE :
@@ -0,0 +1,455 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.wifi;
+
+import android.net.NetworkAgent;
+import android.net.wifi.ScanResult;
+import android.net.wifi.WifiConfiguration;
+
+import java.io.FileDescriptor;
+import java.io.PrintWriter;
+
+/**
+ * Computes the score the WifiStateMachine reports to connectivity for the current link,
+ * once per RSSI poll.
+ *
+ * The RSSI and link speed thresholds of WifiConfigStore are copied into per band tables
+ * by {@link #loadThresholds}, and the counters which make the score sticky (bad link
+ * speed, link stuck, bad and low RSSI) are carried over from one sample to the next.
+ *
+ * Each round is described by a {@link Sample} which holds both its inputs and its
+ * outputs. The last samples are kept and dumped as one line each, so that a trace can be
+ * fed back through {@link #calculate} offline to evaluate a change of the scoring rules.
+ *
+ * The engine is not thread safe and must only be used from the WifiStateMachine thread.
+ * {@hide}
+ */
+class WifiScoreEngine {
+
+    static final int BAND_24GHZ = 0;
+    static final int BAND_5GHZ = 1;
+
+    /* Starting score, temporarily hardcoded in between 50 and 60 */
+    private static final int INITIAL_SCORE = 56;
+    private static final int MAX_BAD_LINKSPEED_COUNT = 6;
+    private static final int MAX_LINK_STUCK_COUNT = 5;
+    private static final int MAX_BAD_RSSI_COUNT = 7;
+    /* Ticks spent passing traffic before a user triggered disable is forgiven */
+    private static final int MAX_TICKS = 1000;
+
+    private static final int HISTORY_SIZE = 32;
+
+    /**
+     * Inputs and outputs of one scoring round. Samples are reused, copy one with
+     * {@link #copyFrom} to keep it.
+     */
+    static class Sample {
+        /* Inputs */
+        int rssi;
+        int linkSpeed;
+        int frequency;
+        int aggressiveHandover;
+        boolean use24Thresholds;
+        boolean homeNetworkBoost;
+        double txSuccessRate;
+        double txBadRate;
+        double rxSuccessRate;
+
+        /* Outputs */
+        int adjustedRssi;
+        boolean badLinkSpeed;
+        boolean goodLinkSpeed;
+        boolean badRssi;
+        boolean lowRssi;
+        boolean highRssi;
+        /* 0 if none, else 1, 2 or 3 for the bad, low and not high RSSI penalties */
+        int userTriggeredPenalty;
+        /* Ticks of the current configuration, only valid if hasTicks */
+        boolean hasTicks;
+        int ticksAtBadRssi;
+        int ticksAtLowRssi;
+        int ticksAtNotHighRssi;
+        /* +1 if the link stuck count went up, -1 if it went down, 0 otherwise */
+        int linkStuckTrend;
+        int badLinkSpeedCount;
+        int linkStuckCount;
+        int badRssiCount;
+        int lowRssiCount;
+        /* Score after each adjustment: initial, link stuck, link speed, RSSI counts, high */
+        final int[] steps = new int[5];
+        /* Final score, clamped to [0, NetworkAgent.WIFI_BASE_SCORE] */
+        int score;
+
+        void copyFrom(Sample other) {
+            rssi = other.rssi;
+            linkSpeed = other.linkSpeed;
+            frequency = other.frequency;
+            aggressiveHandover = other.aggressiveHandover;
+            use24Thresholds = other.use24Thresholds;
+            homeNetworkBoost = other.homeNetworkBoost;
+            txSuccessRate = other.txSuccessRate;
+            txBadRate = other.txBadRate;
+            rxSuccessRate = other.rxSuccessRate;
+            adjustedRssi = other.adjustedRssi;
+            badLinkSpeed = other.badLinkSpeed;
+            goodLinkSpeed = other.goodLinkSpeed;
+            badRssi = other.badRssi;
+            lowRssi = other.lowRssi;
+            highRssi = other.highRssi;
+            userTriggeredPenalty = other.userTriggeredPenalty;
+            hasTicks = other.hasTicks;
+            ticksAtBadRssi = other.ticksAtBadRssi;
+            ticksAtLowRssi = other.ticksAtLowRssi;
+            ticksAtNotHighRssi = other.ticksAtNotHighRssi;
+            linkStuckTrend = other.linkStuckTrend;
+            badLinkSpeedCount = other.badLinkSpeedCount;
+            linkStuckCount = other.linkStuckCount;
+            badRssiCount = other.badRssiCount;
+            lowRssiCount = other.lowRssiCount;
+            System.arraycopy(other.steps, 0, steps, 0, steps.length);
+            score = other.score;
+        }
+
+        /**
+         * Append the scoring report used by the WifiStateMachine log records
+         */
+        void appendReport(StringBuilder sb) {
+            if (badLinkSpeed) sb.append(" bl(").append(badLinkSpeedCount).append(")");
+            if (goodLinkSpeed) sb.append(" gl");
+            if (homeNetworkBoost) sb.append(" hn");
+            if (use24Thresholds) sb.append(" u24");
+            sb.append(" rssi=").append(adjustedRssi).append(" ag=").append(aggressiveHandover);
+            if (badRssi) sb.append(" br");
+            if (lowRssi) sb.append(" lr");
+            if (highRssi) sb.append(" hr");
+            if (userTriggeredPenalty != 0) sb.append(" p").append(userTriggeredPenalty);
+            if (hasTicks) {
+                sb.append(" ticks ").append(ticksAtBadRssi).append(',').append(ticksAtLowRssi)
+                        .append(',').append(ticksAtNotHighRssi);
+            }
+            if (linkStuckTrend > 0) sb.append(" ls+=").append(linkStuckCount);
+            if (linkStuckTrend < 0) sb.append(" ls-=").append(linkStuckCount);
+            sb.append(" [").append(steps[0]);
+            for (int i = 1; i < steps.length; i++) {
+                sb.append(',').append(steps[i]);
+            }
+            sb.append("] brc=").append(badRssiCount).append(" lrc=").append(lowRssiCount);
+        }
+
+        /**
+         * One line holding the inputs, then the outputs, of the sample
+         */
+        String toReplayString() {
+            StringBuilder sb = new StringBuilder();
+            sb.append("rssi=").append(rssi);
+            sb.append(" speed=").append(linkSpeed);
+            sb.append(" freq=").append(frequency);
+            sb.append(" ag=").append(aggressiveHandover);
+            sb.append(" u24=").append(use24Thresholds ? 1 : 0);
+            sb.append(" hn=").append(homeNetworkBoost ? 1 : 0);
+            sb.append(String.format(" tx=%.2f txbad=%.2f rx=%.2f",
+                    txSuccessRate, txBadRate, rxSuccessRate));
+            sb.append(" ->");
+            appendReport(sb);
+            sb.append(" score=").append(score);
+            return sb.toString();
+        }
+
+        @Override
+        public String toString() {
+            return toReplayString();
+        }
+    }
+
+    /* Per band threshold tables, indexed by BAND_24GHZ and BAND_5GHZ */
+    private final int[] mBadRssi = new int[2];
+    private final int[] mLowRssi = new int[2];
+    private final int[] mGoodRssi = new int[2];
+    private final int[] mBadLinkSpeed = new int[2];
+    private final int[] mGoodLinkSpeed = new int[2];
+    private boolean mUserTriggeredAdjustment;
+    /* WifiConfigStore.scoreThresholdsGeneration of the tables, -1 if never loaded */
+    private int mThresholdsGeneration = -1;
+
+    /* Carried over from one sample to the next */
+    private int mBadLinkSpeedCount;
+    private int mLinkStuckCount;
+    private int mBadRssiCount;
+    private int mLowRssiCount;
+
+    private final Sample mSample = new Sample();
+    private final Sample[] mHistory = new Sample[HISTORY_SIZE];
+    private int mHistoryNext;
+    private long mSampleCount;
+
+    WifiScoreEngine() {
+        for (int i = 0; i < HISTORY_SIZE; i++) {
+            mHistory[i] = new Sample();
+        }
+    }
+
+    /**
+     * Copy the thresholds from the configuration store if they changed since the last
+     * call, to be called before each sample; this only costs a comparison when they did
+     * not change.
+     */
+    void loadThresholds(WifiConfigStore configStore) {
+        if (configStore.scoreThresholdsGeneration == mThresholdsGeneration) return;
+        mThresholdsGeneration = configStore.scoreThresholdsGeneration;
+        setThresholds(BAND_24GHZ, configStore.thresholdBadRssi24,
+                configStore.thresholdLowRssi24, configStore.thresholdGoodRssi24,
+                configStore.badLinkSpeed24, configStore.goodLinkSpeed24);
+        setThresholds(BAND_5GHZ, configStore.thresholdBadRssi5,
+                configStore.thresholdLowRssi5, configStore.thresholdGoodRssi5,
+                configStore.badLinkSpeed5, configStore.goodLinkSpeed5);
+        setUserTriggeredAdjustment(
+                configStore.enableWifiCellularHandoverUserTriggeredAdjustment);
+    }
+
+    /**
+     * Set the thresholds of one band, e.g. to replay a trace
+     */
+    void setThresholds(int band, int badRssi, int lowRssi, int goodRssi, int badLinkSpeed,
+            int goodLinkSpeed) {
+        mBadRssi[band] = badRssi;
+        mLowRssi[band] = lowRssi;
+        mGoodRssi[band] = goodRssi;
+        mBadLinkSpeed[band] = badLinkSpeed;
+        mGoodLinkSpeed[band] = goodLinkSpeed;
+    }
+
+    void setUserTriggeredAdjustment(boolean enabled) {
+        mUserTriggeredAdjustment = enabled;
+    }
+
+    /**
+     * Forget the state carried over between samples, e.g. on disconnect.
+     */
+    void reset() {
+        mBadLinkSpeedCount = 0;
+        mLinkStuckCount = 0;
+        mBadRssiCount = 0;
+        mLowRssiCount = 0;
+    }
+
+    void resetBadLinkSpeedCount() {
+        mBadLinkSpeedCount = 0;
+    }
+
+    /**
+     * @return the sample to fill with the inputs of the next round
+     */
+    Sample getSample() {
+        return mSample;
+    }
+
+    /**
+     * @return true once a sample has been calculated, the last one is then
+     * {@link #getSample} until it gets refilled
+     */
+    boolean hasSample() {
+        return mSampleCount > 0;
+    }
+
+    /**
+     * Score a sample whose inputs are filled in, and record the outputs in it.
+     *
+     * @param config the current configuration, whose RSSI tick counters are updated while
+     * passing traffic, or null
+     * @return the score
+     */
+    int calculate(Sample s, WifiConfiguration config) {
+        int score = INITIAL_SCORE;
+        int speedBand = ScanResult.is24GHz(s.frequency) ? BAND_24GHZ
+                : ScanResult.is5GHz(s.frequency) ? BAND_5GHZ : -1;
+        s.badLinkSpeed = speedBand >= 0 && s.linkSpeed < mBadLinkSpeed[speedBand];
+        s.goodLinkSpeed = speedBand >= 0 && s.linkSpeed >= mGoodLinkSpeed[speedBand];
+
+        if (s.badLinkSpeed) {
+            if (mBadLinkSpeedCount < MAX_BAD_LINKSPEED_COUNT) mBadLinkSpeedCount++;
+        } else {
+            if (mBadLinkSpeedCount > 0) mBadLinkSpeedCount--;
+        }
+
+        /**
+         * The 2.4GHz RSSI thresholds are used whenever there are 2.4GHz scan results
+         * (use24Thresholds), so that the score is not lowered based on 5GHz values,
+         * which may cause a switch to LTE before roaming has a chance to try 2.4GHz.
+         */
+        int rssi = s.rssi - 6 * s.aggressiveHandover
+                + (s.homeNetworkBoost ? WifiConfiguration.HOME_NETWORK_RSSI_BOOST : 0);
+        s.adjustedRssi = rssi;
+        if (s.use24Thresholds || speedBand == BAND_24GHZ) {
+            s.badRssi = rssi < mBadRssi[BAND_24GHZ];
+            s.lowRssi = rssi < mLowRssi[BAND_24GHZ];
+            s.highRssi = rssi >= mGoodRssi[BAND_24GHZ];
+        } else {
+            // The 5GHz low and high checks historically use the unadjusted RSSI
+            s.badRssi = rssi < mBadRssi[BAND_5GHZ];
+            s.lowRssi = s.rssi < mLowRssi[BAND_5GHZ];
+            s.highRssi = s.rssi >= mGoodRssi[BAND_5GHZ];
+        }
+
+        s.userTriggeredPenalty = 0;
+        s.hasTicks = false;
+        if (config != null && (s.txSuccessRate > 5 || s.rxSuccessRate > 5)) {
+            score -= updateTicks(s, config);
+        }
+
+        s.linkStuckTrend = 0;
+        if ((s.txBadRate >= 1) && (s.txSuccessRate < 3) && (s.badRssi || s.lowRssi)) {
+            // Link is stuck
+            if (mLinkStuckCount < MAX_LINK_STUCK_COUNT) mLinkStuckCount++;
+            s.linkStuckTrend = 1;
+        } else if (s.txSuccessRate > 2 || s.txBadRate < 0.1) {
+            if (mLinkStuckCount > 0) mLinkStuckCount--;
+            s.linkStuckTrend = -1;
+        }
+        s.steps[0] = score;
+
+        if (mLinkStuckCount > 1) {
+            // Once link gets stuck for more than 3 seconds, start reducing the score
+            score = score - 2 * (mLinkStuckCount - 1);
+        }
+        s.steps[1] = score;
+
+        if (s.badLinkSpeed) {
+            score -= 4;
+        } else if (s.goodLinkSpeed && s.txSuccessRate > 5) {
+            score += 4; // So as bad rssi alone dont kill us
+        }
+        s.steps[2] = score;
+
+        if (s.badRssi) {
+            if (mBadRssiCount < MAX_BAD_RSSI_COUNT) mBadRssiCount++;
+        } else if (s.lowRssi) {
+            mLowRssiCount = 1; // Dont increment the lowRssi count above 1
+            if (mBadRssiCount > 0) mBadRssiCount--;
+        } else {
+            mBadRssiCount = 0;
+            mLowRssiCount = 0;
+        }
+        score -= mBadRssiCount * 2 + mLowRssiCount;
+        s.steps[3] = score;
+
+        if (s.highRssi) {
+            score += 5;
+        }
+        s.steps[4] = score;
+
+        // Sanitize boundaries
+        if (score > NetworkAgent.WIFI_BASE_SCORE) score = NetworkAgent.WIFI_BASE_SCORE;
+        if (score < 0) score = 0;
+
+        s.badLinkSpeedCount = mBadLinkSpeedCount;
+        s.linkStuckCount = mLinkStuckCount;
+        s.badRssiCount = mBadRssiCount;
+        s.lowRssiCount = mLowRssiCount;
+        s.score = score;
+
+        mHistory[mHistoryNext].copyFrom(s);
+        mHistoryNext = (mHistoryNext + 1) % HISTORY_SIZE;
+        mSampleCount++;
+        return score;
+    }
+
+    /**
+     * Account one tick passing traffic at the current RSSI level: after enough ticks the
+     * user triggered disable counters of the configuration are forgiven, and as long as
+     * they are not the score gets a penalty.
+     *
+     * @return the penalty to apply to the score
+     */
+    private int updateTicks(Sample s, WifiConfiguration config) {
+        int penalty = 0;
+        if (s.badRssi) {
+            config.numTicksAtBadRSSI++;
+            if (config.numTicksAtBadRSSI > MAX_TICKS) {
+                // We remained associated for a compound amount of time while passing
+                // traffic, hence loose the corresponding user triggered disabled stats
+                if (config.numUserTriggeredWifiDisableBadRSSI > 0) {
+                    config.numUserTriggeredWifiDisableBadRSSI--;
+                }
+                if (config.numUserTriggeredWifiDisableLowRSSI > 0) {
+                    config.numUserTriggeredWifiDisableLowRSSI--;
+                }
+                if (config.numUserTriggeredWifiDisableNotHighRSSI > 0) {
+                    config.numUserTriggeredWifiDisableNotHighRSSI--;
+                }
+                config.numTicksAtBadRSSI = 0;
+            }
+            if (mUserTriggeredAdjustment
+                    && (config.numUserTriggeredWifiDisableBadRSSI > 0
+                    || config.numUserTriggeredWifiDisableLowRSSI > 0
+                    || config.numUserTriggeredWifiDisableNotHighRSSI > 0)) {
+                penalty = 5;
+                s.userTriggeredPenalty = 1;
+            }
+        } else if (s.lowRssi) {
+            config.numTicksAtLowRSSI++;
+            if (config.numTicksAtLowRSSI > MAX_TICKS) {
+                if (config.numUserTriggeredWifiDisableLowRSSI > 0) {
+                    config.numUserTriggeredWifiDisableLowRSSI--;
+                }
+                if (config.numUserTriggeredWifiDisableNotHighRSSI > 0) {
+                    config.numUserTriggeredWifiDisableNotHighRSSI--;
+                }
+                config.numTicksAtLowRSSI = 0;
+            }
+            if (mUserTriggeredAdjustment
+                    && (config.numUserTriggeredWifiDisableLowRSSI > 0
+                    || config.numUserTriggeredWifiDisableNotHighRSSI > 0)) {
+                penalty = 5;
+                s.userTriggeredPenalty = 2;
+            }
+        } else if (!s.highRssi) {
+            config.numTicksAtNotHighRSSI++;
+            if (config.numTicksAtNotHighRSSI > MAX_TICKS) {
+                if (config.numUserTriggeredWifiDisableNotHighRSSI > 0) {
+                    config.numUserTriggeredWifiDisableNotHighRSSI--;
+                }
+                config.numTicksAtNotHighRSSI = 0;
+            }
+            if (mUserTriggeredAdjustment
+                    && config.numUserTriggeredWifiDisableNotHighRSSI > 0) {
+                penalty = 5;
+                s.userTriggeredPenalty = 3;
+            }
+        }
+        s.hasTicks = true;
+        s.ticksAtBadRssi = config.numTicksAtBadRSSI;
+        s.ticksAtLowRssi = config.numTicksAtLowRSSI;
+        s.ticksAtNotHighRssi = config.numTicksAtNotHighRSSI;
+        return penalty;
+    }
+
+    void dump(FileDescriptor fd, PrintWriter pw, String[] args) {
+        pw.println("WifiScoreEngine samples=" + mSampleCount
+                + " thresholds 2.4GHz bad/low/good=" + mBadRssi[BAND_24GHZ] + "/"
+                + mLowRssi[BAND_24GHZ] + "/" + mGoodRssi[BAND_24GHZ]
+                + " speed " + mBadLinkSpeed[BAND_24GHZ] + "/" + mGoodLinkSpeed[BAND_24GHZ]
+                + " 5GHz bad/low/good=" + mBadRssi[BAND_5GHZ] + "/"
+                + mLowRssi[BAND_5GHZ] + "/" + mGoodRssi[BAND_5GHZ]
+                + " speed " + mBadLinkSpeed[BAND_5GHZ] + "/" + mGoodLinkSpeed[BAND_5GHZ]
+                + " userTriggeredAdjustment=" + mUserTriggeredAdjustment);
+        int count = (int) Math.min(mSampleCount, HISTORY_SIZE);
+        for (int i = 0; i < count; i++) {
+            int index = (mHistoryNext - count + i + HISTORY_SIZE) % HISTORY_SIZE;
+            pw.println("  " + mHistory[index].toReplayString());
+        }
+    }
+}
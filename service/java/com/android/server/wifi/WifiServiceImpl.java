@@ -43,6 +43,7 @@ import android.os.HandlerThread;
 import android.os.IBinder;
 import android.os.Message;
 import android.os.Messenger;
+import android.os.Process;
 import android.os.RemoteException;
 import android.os.SystemProperties;
 import android.os.UserHandle;
@@ -976,6 +977,8 @@ public final class WifiServiceImpl extends IWifiManager.Stub {
         int userId = UserHandle.getCallingUserId();
         int uid = Binder.getCallingUid();
         boolean hasInteractUsersFull = checkInteractAcrossUsersFull();
+        // Results returned to another process are only parceled, hence can be shared
+        boolean isRemoteCaller = Binder.getCallingPid() != Process.myPid();
         long ident = Binder.clearCallingIdentity();
         try {
             if (mAppOps.noteOp(AppOpsManager.OP_WIFI_SCAN, uid, callingPackage)
@@ -985,6 +988,9 @@ public final class WifiServiceImpl extends IWifiManager.Stub {
             if (!isCurrentProfile(userId) && !hasInteractUsersFull) {
                 return new ArrayList<ScanResult>();
             }
+            if (isRemoteCaller) {
+                return mWifiStateMachine.syncGetScanResultSnapshot().results;
+            }
             return mWifiStateMachine.syncGetScanResultsList();
         } finally {
             Binder.restoreCallingIdentity(ident);
@@ -1404,7 +1410,7 @@ public final class WifiServiceImpl extends IWifiManager.Stub {
         mTrafficPoller.dump(fd, pw, args);
 
         pw.println("Latest scan results:");
-        List<ScanResult> scanResults = mWifiStateMachine.syncGetScanResultsList();
+        List<ScanResult> scanResults = mWifiStateMachine.syncGetScanResultSnapshot().results;
         long nowMs = System.currentTimeMillis();
         if (scanResults != null && scanResults.size() != 0) {
             pw.println("    BSSID              Frequency  RSSI    Age      SSID " +
@@ -78,6 +78,7 @@ import android.net.wifi.WpsResult.Status;
 import android.net.wifi.p2p.IWifiP2pManager;
 import android.os.BatteryStats;
 import android.os.Bundle;
+import android.os.Handler;
 import android.os.IBinder;
 import android.os.INetworkManagementService;
 import android.os.Looper;
@@ -95,7 +96,6 @@ import android.provider.Settings;
 import android.telephony.TelephonyManager;
 import android.text.TextUtils;
 import android.util.Log;
-import android.util.LruCache;
 
 import com.android.internal.R;
 import com.android.internal.app.IBatteryStats;
@@ -115,14 +115,16 @@ import java.io.PrintWriter;
 import java.net.Inet4Address;
 import java.net.InetAddress;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashSet;
+import java.util.IdentityHashMap;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Locale;
 import java.util.Queue;
+import java.util.Set;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
-import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
 /**
@@ -185,11 +187,25 @@ public class WifiStateMachine extends StateMachine {
     private List<ScanResult> mScanResults = new ArrayList<ScanResult>();
     private static final Pattern scanResultPattern = Pattern.compile("\t+");
     private static final int SCAN_RESULT_CACHE_SIZE = 160;
-    private final LruCache<String, ScanResult> mScanResultCache;
+    // Entries which have not been seen for that long are dropped from mScanResultCache
+    private static final long SCAN_RESULT_CACHE_MAX_AGE_MS = 5 * 60 * 1000;
+    private final ScanResultCache mScanResultCache;
     // For debug, number of known scan results that were found as part of last scan result event,
     // as well the number of scans results returned by the supplicant with that message
     private int mNumScanResultsKnown;
     private int mNumScanResultsReturned;
+    // Changes between the last two scans, replaced (never modified) after each scan
+    private ScanResultDelta mScanResultDelta = new ScanResultDelta(0,
+            Collections.<ScanResult>emptyList(), Collections.<ScanResult>emptyList(),
+            Collections.<ScanResult>emptyList(), 0);
+    // Copy of mScanResults for binder readers, replaced (never modified) after each scan and
+    // each update of a cached result, see ScanResultSnapshot for how stale it can be
+    private volatile ScanResultSnapshot mScanResultSnapshot = new ScanResultSnapshot(0, 0,
+            Collections.<ScanResult>emptyList());
+    private volatile boolean mScanResultsUpdating;
+    private final AtomicInteger mScanResultSnapshotReads = new AtomicInteger();
+    private final AtomicInteger mScanResultSnapshotReadsDuringUpdate = new AtomicInteger();
+    private final AtomicInteger mScanResultSnapshotCopies = new AtomicInteger();
 
     /* Batch scan results */
     private final List<BatchedScanResult> mBatchedScanResults =
@@ -261,6 +277,33 @@ public class WifiStateMachine extends StateMachine {
      */
     private static final int POLL_RSSI_INTERVAL_MSECS = 3000;
 
+    /**
+     * Stretches the RSSI poll interval while the link is steady and idle
+     */
+    private final RssiPollScheduler mRssiPollScheduler =
+            new RssiPollScheduler(POLL_RSSI_INTERVAL_MSECS);
+
+    /* Reused by every SIGNAL_POLL and PKTCNT_POLL */
+    private final LinkPollResult mLinkPollResult = new LinkPollResult();
+    /* Filled by the periodic RSSI poll off the state machine thread */
+    private final LinkPollResult mAsyncLinkPollResult = new LinkPollResult();
+    /* Link layer stats of the RSSI poll waiting for its SIGNAL_POLL reply */
+    private WifiLinkLayerStats mPendingPollStats;
+
+    /* Result of the last SUPPLICANT_STATE_CHANGE_EVENT processed, recycled after the next */
+    private StateChangeResult mProcessedStateChange;
+
+    /**
+     * Queue wait and processing time of the messages handled by each state
+     */
+    private final MessageLatencyStats mMessageLatencyStats =
+            new MessageLatencyStats("WifiStateMachine", new MessageLatencyStats.WhatNamer() {
+                @Override
+                public String getWhatName(int what) {
+                    return smToString(what);
+                }
+            });
+
     /**
      * Interval in milliseconds between receiving a disconnect event
      * while connected to a good AP, and handling the disconnect proper
@@ -631,6 +674,9 @@ public class WifiStateMachine extends StateMachine {
 
     static final int CMD_NETWORK_STATUS                  = BASE + 148;
 
+    /* Reply of an asynchronous SIGNAL_POLL, the LinkPollResult in obj, null on failure */
+    static final int CMD_SIGNAL_POLL_RESULT              = BASE + 149;
+
     /* Wifi state machine modes of operation */
     /* CONNECT_MODE - connect to any 'known' AP when it becomes available */
     public static final int CONNECT_MODE                   = 1;
@@ -1018,7 +1064,7 @@ public class WifiStateMachine extends StateMachine {
                 },
                 new IntentFilter(Intent.ACTION_BOOT_COMPLETED));
 
-        mScanResultCache = new LruCache<String, ScanResult>(SCAN_RESULT_CACHE_SIZE);
+        mScanResultCache = new ScanResultCache(SCAN_RESULT_CACHE_SIZE);
 
         PowerManager powerManager = (PowerManager)mContext.getSystemService(Context.POWER_SERVICE);
         mWakeLock = powerManager.newWakeLock(PowerManager.PARTIAL_WAKE_LOCK, getName());
@@ -1061,6 +1107,17 @@ public class WifiStateMachine extends StateMachine {
         setLogOnlyTransitions(false);
         if (VDBG) setDbg(true);
 
+        // Data activity notifications come in on a plain handler of our looper, so that
+        // they neither go through nor get logged by the state machine
+        trafficPoller.addClient(new Messenger(new Handler(getHandler().getLooper()) {
+            @Override
+            public void handleMessage(Message msg) {
+                if (msg.what == WifiManager.DATA_ACTIVITY_NOTIFICATION) {
+                    handleDataActivity(msg.arg1);
+                }
+            }
+        }));
+
         //start the state machine
         start();
 
@@ -1698,11 +1755,12 @@ public class WifiStateMachine extends StateMachine {
         mRxTimeLastReport = mRxTime;
         int period = (int)(now - lastOntimeReportTimeStamp);
         lastOntimeReportTimeStamp = now;
-        sb.append(String.format("[on:%d tx:%d rx:%d period:%d]", on, tx, rx, period));
+        sb.append("[on:").append(on).append(" tx:").append(tx).append(" rx:").append(rx)
+                .append(" period:").append(period).append(']');
         // Report stats since Screen State Changed
         on = mOnTime - mOnTimeScreenStateChange;
         period = (int)(now - lastScreenStateChangeTimeStamp);
-        sb.append(String.format(" from screen [on:%d period:%d]", on, period));
+        sb.append(" from screen [on:").append(on).append(" period:").append(period).append(']');
         return sb.toString();
     }
 
@@ -2062,16 +2120,40 @@ public class WifiStateMachine extends StateMachine {
     }
 
     /**
-     * TODO: doc
+     * Returns a copy of the results of the last scan. This does not take any lock,
+     * the copy is made from the snapshot published after each scan.
      */
     public List<ScanResult> syncGetScanResultsList() {
-        synchronized (mScanResultCache) {
-            List<ScanResult> scanList = new ArrayList<ScanResult>();
-            for(ScanResult result: mScanResults) {
-                scanList.add(new ScanResult(result));
-            }
-            return scanList;
+        mScanResultSnapshotCopies.incrementAndGet();
+        return syncGetScanResultSnapshot().copyResults();
+    }
+
+    /**
+     * Returns the last published snapshot, without copying it. Callers which already hold
+     * a snapshot with the same version can keep using it.
+     */
+    ScanResultSnapshot syncGetScanResultSnapshot() {
+        mScanResultSnapshotReads.incrementAndGet();
+        if (mScanResultsUpdating) {
+            // This reader would have been blocked by setScanResults() with a lock
+            mScanResultSnapshotReadsDuringUpdate.incrementAndGet();
         }
+        return mScanResultSnapshot;
+    }
+
+    private void publishScanResultSnapshot() {
+        mScanResultSnapshot = new ScanResultSnapshot(mScanResultSnapshot.version + 1,
+                SystemClock.elapsedRealtime(), mScanResults);
+    }
+
+    /**
+     * Publishes the cached results of bssid again after they were updated between scans,
+     * the copies of the other results are shared with the current snapshot.
+     */
+    private void republishScanResultSnapshot(String bssid) {
+        ScanResultSnapshot snapshot = mScanResultSnapshot;
+        mScanResultSnapshot = snapshot.update(snapshot.version + 1,
+                SystemClock.elapsedRealtime(), mScanResults, bssid);
     }
 
     public void disableEphemeralNetwork(String SSID) {
@@ -2088,6 +2170,27 @@ public class WifiStateMachine extends StateMachine {
         return mScanResults;
     }
 
+    /**
+     * Get the changes brought by the last scan, the ScanResult objects it references
+     * are shared with the WifiStateMachine and must not be modified.
+     */
+    ScanResultDelta syncGetScanResultDelta() {
+        synchronized (mScanResultCache) {
+            return mScanResultDelta;
+        }
+    }
+
+    /**
+     * Get the current scan result list without copying it, so that delta consumers
+     * can resynchronize. The list is replaced rather than modified after each scan,
+     * the ScanResult objects must not be modified.
+     */
+    List<ScanResult> syncGetScanResultsListNoCopy() {
+        synchronized (mScanResultCache) {
+            return mScanResults;
+        }
+    }
+
     /**
      * Disconnect from Access Point
      */
@@ -2440,16 +2543,51 @@ public class WifiStateMachine extends StateMachine {
         pw.println("mPersistedCountryCode " + mPersistedCountryCode);
         mNetworkFactory.dump(fd, pw, args);
         mUntrustedNetworkFactory.dump(fd, pw, args);
+        ScanResultSnapshot snapshot = mScanResultSnapshot;
+        pw.println("Scan result snapshot version=" + snapshot.version
+                + " size=" + snapshot.results.size()
+                + " age=" + (SystemClock.elapsedRealtime() - snapshot.publishedAt) + "ms"
+                + " reads=" + mScanResultSnapshotReads.get()
+                + " readsDuringUpdate=" + mScanResultSnapshotReadsDuringUpdate.get()
+                + " copies=" + mScanResultSnapshotCopies.get());
+        pw.println("Last scan result delta " + mScanResultDelta);
+        pw.println("Scan result fetch last: roundTrips=" + mScanFetchRoundTrips
+                + " bytes=" + mScanFetchBytes
+                + " total: scans=" + mScanFetchCount
+                + " roundTrips=" + mScanFetchTotalRoundTrips
+                + " bytes=" + mScanFetchTotalBytes
+                + " roundTripsSaved=" + mScanFetchRoundTripsSaved);
+        mRssiPollScheduler.dump(fd, pw, args);
+        mWifiScoreEngine.dump(fd, pw, args);
+        mMessageLatencyStats.dump(pw, args);
+        mWifiMonitor.dump(pw);
+        WifiNative.dumpCommandChannels(pw);
+        mWifiNative.dumpAsyncCommands(pw);
+        mWifiNative.dumpLinkPolls(pw);
+        WifiNative.dumpQueryCaches(pw);
         pw.println();
         mWifiConfigStore.dump(fd, pw, args);
     }
 
+    @Override
+    protected boolean recordLogRec(Message msg) {
+        // Called once msg was processed, before any resulting transition
+        mMessageLatencyStats.end(getCurrentState(), msg);
+        mWifiMonitor.onMessageProcessed(msg);
+        // The log record of msg, which may print its StateChangeResult, and the transitions it
+        // caused only run once this returns: recycle the result after the next message instead
+        if (mProcessedStateChange != null) mProcessedStateChange.recycle();
+        mProcessedStateChange = StateChangeResult.fromMessage(msg);
+        return super.recordLogRec(msg);
+    }
+
     /*********************************************************
      * Internal private functions
      ********************************************************/
 
     private void logStateAndMessage(Message message, String state) {
         messageHandlingStatus = 0;
+        mMessageLatencyStats.begin(message);
         if (mLogMessages) {
             //long now = SystemClock.elapsedRealtimeNanos();
             //String ts = String.format("[%,d us]", now/1000);
@@ -2458,6 +2596,19 @@ public class WifiStateMachine extends StateMachine {
         }
     }
 
+    /**
+     * helper, appends value with one decimal like String.format("%.1f") but without
+     * going through a Formatter
+     */
+    private static StringBuilder appendOneDecimal(StringBuilder sb, double value) {
+        long tenths = Math.round(value * 10);
+        if (tenths < 0) {
+            sb.append('-');
+            tenths = -tenths;
+        }
+        return sb.append(tenths / 10).append('.').append(tenths % 10);
+    }
+
     /**
      * helper, prints the milli time since boot wi and w/o suspended time
      */
@@ -2520,10 +2671,10 @@ public class WifiStateMachine extends StateMachine {
                 sb.append(" f=").append(mWifiInfo.getFrequency());
                 sb.append(" sc=").append(mWifiInfo.score);
                 sb.append(" link=").append(mWifiInfo.getLinkSpeed());
-                sb.append(String.format(" tx=%.1f,", mWifiInfo.txSuccessRate));
-                sb.append(String.format(" %.1f,", mWifiInfo.txRetriesRate));
-                sb.append(String.format(" %.1f ", mWifiInfo.txBadRate));
-                sb.append(String.format(" rx=%.1f", mWifiInfo.rxSuccessRate));
+                appendOneDecimal(sb.append(" tx="), mWifiInfo.txSuccessRate).append(',');
+                appendOneDecimal(sb.append(' '), mWifiInfo.txRetriesRate).append(',');
+                appendOneDecimal(sb.append(' '), mWifiInfo.txBadRate).append(' ');
+                appendOneDecimal(sb.append(" rx="), mWifiInfo.rxSuccessRate);
                 if (lastScanFreqs != null) {
                     sb.append(" list=").append(lastScanFreqs);
                 } else {
@@ -2620,6 +2771,9 @@ public class WifiStateMachine extends StateMachine {
                 }
                 sb.append(" known=").append(mNumScanResultsKnown);
                 sb.append(" got=").append(mNumScanResultsReturned);
+                sb.append(" churn=").append(mScanResultDelta.churn());
+                sb.append(" fetch=").append(mScanFetchRoundTrips)
+                        .append("/").append(mScanFetchBytes);
                 if (lastScanDuration != 0) {
                     sb.append(" dur:").append(lastScanDuration);
                 }
@@ -2635,8 +2789,8 @@ public class WifiStateMachine extends StateMachine {
                     sb.append(" rx:").append(mRxTimeThisScan).append(",").append(mRxTimeScan);
                     sb.append(",").append(mRxTime);
                 }
-                sb.append(String.format(" bcn=%d", mRunningBeaconCount));
-                sb.append(String.format(" con=%d", mConnectionRequests));
+                sb.append(" bcn=").append(mRunningBeaconCount);
+                sb.append(" con=").append(mConnectionRequests);
                 key = mWifiConfigStore.getLastSelectedConfiguration();
                 if (key != null) {
                     sb.append(" last=").append(key);
@@ -2725,6 +2879,7 @@ public class WifiStateMachine extends StateMachine {
                 sb.append(printTime());
                 break;
             case CMD_RSSI_POLL:
+            case CMD_SIGNAL_POLL_RESULT:
             case CMD_UNWANTED_NETWORK:
             case WifiManager.RSSI_PKTCNT_FETCH:
                 sb.append(" ");
@@ -2740,17 +2895,17 @@ public class WifiStateMachine extends StateMachine {
                 sb.append(" f=").append(mWifiInfo.getFrequency());
                 sb.append(" sc=").append(mWifiInfo.score);
                 sb.append(" link=").append(mWifiInfo.getLinkSpeed());
-                sb.append(String.format(" tx=%.1f,", mWifiInfo.txSuccessRate));
-                sb.append(String.format(" %.1f,", mWifiInfo.txRetriesRate));
-                sb.append(String.format(" %.1f ", mWifiInfo.txBadRate));
-                sb.append(String.format(" rx=%.1f", mWifiInfo.rxSuccessRate));
-                sb.append(String.format(" bcn=%d", mRunningBeaconCount));
+                appendOneDecimal(sb.append(" tx="), mWifiInfo.txSuccessRate).append(',');
+                appendOneDecimal(sb.append(' '), mWifiInfo.txRetriesRate).append(',');
+                appendOneDecimal(sb.append(' '), mWifiInfo.txBadRate).append(' ');
+                appendOneDecimal(sb.append(" rx="), mWifiInfo.rxSuccessRate);
+                sb.append(" bcn=").append(mRunningBeaconCount);
                 report = reportOnTime();
                 if (report != null) {
                     sb.append(" ").append(report);
                 }
-                if (wifiScoringReport != null) {
-                    sb.append(wifiScoringReport);
+                if (mWifiScoreEngine.hasSample()) {
+                    mWifiScoreEngine.getSample().appendReport(sb);
                 }
                 break;
             case CMD_AUTO_CONNECT:
@@ -2939,7 +3094,7 @@ public class WifiStateMachine extends StateMachine {
                     sb.append(",").append(mWifiInfo.txRetries);
                 }
                 sb.append(printTime());
-                sb.append(String.format(" bcn=%d", mRunningBeaconCount));
+                sb.append(" bcn=").append(mRunningBeaconCount);
                 break;
             case CMD_UPDATE_LINKPROPERTIES:
                 sb.append(" ");
@@ -3275,20 +3430,116 @@ public class WifiStateMachine extends StateMachine {
         }
     }*/
 
-    private static final String ID_STR = "id=";
-    private static final String BSSID_STR = "bssid=";
-    private static final String FREQ_STR = "freq=";
-    private static final String LEVEL_STR = "level=";
-    private static final String TSF_STR = "tsf=";
-    private static final String FLAGS_STR = "flags=";
-    private static final String SSID_STR = "ssid=";
-    private static final String DELIMITER_STR = "====";
-    private static final String END_STR = "####";
-
     int emptyScanResultCount = 0;
 
-    // Used for matching BSSID strings, at least one characteer must be a non-zero number
-    private static Pattern mNotZero = Pattern.compile("[1-9a-fA-F]");
+    private final BssRangeParser mBssRangeParser = new BssRangeParser();
+    // Scan results of the scan being processed, reused across scans
+    private final ArrayList<ScanResult> mPendingScanResults = new ArrayList<ScanResult>();
+    private final Set<ScanResult> mPendingScanResultSet =
+            Collections.newSetFromMap(new IdentityHashMap<ScanResult, Boolean>());
+    private final ArrayList<ScanResult> mPendingAdded = new ArrayList<ScanResult>();
+    private final ArrayList<ScanResult> mPendingChanged = new ArrayList<ScanResult>();
+    private final ArrayList<ScanResult> mPendingRemoved = new ArrayList<ScanResult>();
+    private int mPendingUnchanged;
+    private long mScanResultsSeen;
+
+    // Cost of fetching the scan results from supplicant, for the last scan and in total
+    private int mScanFetchRoundTrips;
+    private int mScanFetchBytes;
+    private long mScanFetchCount;
+    private long mScanFetchTotalRoundTrips;
+    private long mScanFetchTotalBytes;
+    private long mScanFetchRoundTripsSaved;
+
+    /**
+     * Merges each BSS entry decoded by mBssRangeParser into mScanResultCache and
+     * mPendingScanResults, must be called with the mScanResultCache lock held.
+     *
+     * An entry that comes back with the same BSSID, SSID, frequency and flags only gets
+     * its level, tsf and seen refreshed in place, anything else is recorded as a change.
+     */
+    private final BssRangeParser.Callback mBssEntryHandler = new BssRangeParser.Callback() {
+        @Override
+        public void onBssEntry(BssRangeParser entry) {
+            if (!entry.hasValidBssid()
+                    || entry.getPackedBssid() == ScanResultCache.INVALID_BSSID) {
+                loge("setScanResults obtaining null BSSID results <"
+                        + entry.getBssid() + ">, discard it");
+                return;
+            }
+            // Cache hits are resolved without creating any String
+            ScanResult scanResult = entry.findIn(mScanResultCache);
+            if (scanResult != null) {
+                if (!mPendingScanResultSet.add(scanResult)) {
+                    // Supplicant reported the same BSS twice
+                    return;
+                }
+                // TODO: average the RSSI, instead of overwriting it
+                scanResult.level = entry.getLevel();
+                scanResult.timestamp = entry.getTsf();
+                scanResult.seen = mScanResultsSeen;
+                if (scanResult.frequency == entry.getFrequency()
+                        && entry.flagsEqual(scanResult.capabilities)) {
+                    mPendingUnchanged++;
+                } else {
+                    scanResult.capabilities = entry.getFlags();
+                    scanResult.frequency = entry.getFrequency();
+                    mPendingChanged.add(scanResult);
+                }
+            } else {
+                scanResult = new ScanResult(entry.getWifiSsid(), entry.getBssid(),
+                        entry.getFlags(), entry.getLevel(), entry.getFrequency(), entry.getTsf());
+                scanResult.seen = mScanResultsSeen;
+                mScanResultCache.put(entry.getPackedBssid(), entry.getRawSsid(), scanResult);
+                mPendingScanResultSet.add(scanResult);
+                mPendingAdded.add(scanResult);
+            }
+            mNumScanResultsReturned ++; // Keep track of how many scan results we got
+                                        // as part of this scan's processing
+            mPendingScanResults.add(scanResult);
+        }
+    };
+
+    /**
+     * Publish the merged result of the last scan along with the delta against the
+     * previous one. The scan result list is only replaced if its membership changed.
+     * Must be called with the mScanResultCache lock held.
+     */
+    private void publishScanResultsLocked() {
+        for (int i = 0; i < mScanResults.size(); i++) {
+            ScanResult result = mScanResults.get(i);
+            if (!mPendingScanResultSet.contains(result)) {
+                mPendingRemoved.add(result);
+            }
+        }
+        ScanResultDelta delta = new ScanResultDelta(mScanResultDelta.generation + 1,
+                mPendingAdded, mPendingChanged, mPendingRemoved, mPendingUnchanged);
+        if (!delta.hasSameMembers()) {
+            mScanResults = new ArrayList<ScanResult>(mPendingScanResults);
+        }
+        mScanResultDelta = delta;
+        resetPendingScanResults();
+    }
+
+    private void resetPendingScanResults() {
+        mPendingScanResults.clear();
+        mPendingScanResultSet.clear();
+        mPendingAdded.clear();
+        mPendingChanged.clear();
+        mPendingRemoved.clear();
+        mPendingUnchanged = 0;
+    }
+
+    /**
+     * Drop the current scan results, consumers of the delta see them all as removed.
+     */
+    private void clearScanResults() {
+        synchronized (mScanResultCache) {
+            resetPendingScanResults();
+            publishScanResultsLocked();
+        }
+        publishScanResultSnapshot();
+    }
 
     /**
      * Format:
@@ -3309,144 +3560,64 @@ public class WifiStateMachine extends StateMachine {
      * flags=[WPA2-PSK-CCMP][WPS][ESS]
      * ssid=zuby
      * ====
+     *
+     * Each page is walked once by mBssRangeParser as soon as it is fetched; the
+     * mScanResultCache lock is only held while parsing, not across supplicant round-trips,
+     * and mScanResults is only swapped, once all pages have been processed, if BSSes
+     * appeared or disappeared. See {@link ScanResultDelta}.
      */
     private void setScanResults() {
         mNumScanResultsKnown = 0;
         mNumScanResultsReturned = 0;
-        String bssid = "";
-        int level = 0;
-        int freq = 0;
-        long tsf = 0;
-        String flags = "";
-        WifiSsid wifiSsid = null;
-        String scanResults;
-        String tmpResults;
-        StringBuffer scanResultsBuf = new StringBuffer();
         int sid = 0;
-
-        while (true) {
-            tmpResults = mWifiNative.scanResults(sid);
-            if (TextUtils.isEmpty(tmpResults)) break;
-            scanResultsBuf.append(tmpResults);
-            scanResultsBuf.append("\n");
-            String[] lines = tmpResults.split("\n");
-            sid = -1;
-            for (int i=lines.length - 1; i >= 0; i--) {
-                if (lines[i].startsWith(END_STR)) {
-                    break;
-                } else if (lines[i].startsWith(ID_STR)) {
-                    try {
-                        sid = Integer.parseInt(lines[i].substring(ID_STR.length())) + 1;
-                    } catch (NumberFormatException e) {
-                        // Nothing to do
-                    }
-                    break;
-                }
+        boolean gotResults = false;
+
+        resetPendingScanResults();
+        mScanResultsSeen = System.currentTimeMillis();
+        mScanResultsUpdating = true;
+        mScanFetchRoundTrips = 0;
+        mScanFetchBytes = 0;
+        while (sid != BssRangeParser.NO_MORE_PAGES) {
+            String page = mWifiNative.scanResults(sid);
+            mScanFetchRoundTrips++;
+            if (TextUtils.isEmpty(page)) break;
+            mScanFetchBytes += page.length();
+            gotResults = true;
+            synchronized(mScanResultCache) {
+                // The parser yields the next page id in the same pass, no need to look back
+                sid = mBssRangeParser.parsePage(page, mBssEntryHandler);
+            }
+            if (sid != BssRangeParser.NO_MORE_PAGES && !WifiNative.isScanResultsPageFull(page)) {
+                // Supplicant ran out of entries before filling its reply buffer
+                sid = BssRangeParser.NO_MORE_PAGES;
+                mScanFetchRoundTripsSaved++;
             }
-            if (sid == -1) break;
         }
-
+        mScanFetchCount++;
+        mScanFetchTotalRoundTrips += mScanFetchRoundTrips;
+        mScanFetchTotalBytes += mScanFetchBytes;
         // Age out scan results, we return all scan results found in the last 12 seconds,
         // and NOT all scan results since last scan.
         // ageOutScanResults(12000);
 
-        scanResults = scanResultsBuf.toString();
-        if (TextUtils.isEmpty(scanResults)) {
+        if (!gotResults) {
             emptyScanResultCount++;
             if (emptyScanResultCount > 10) {
                 // If we got too many empty scan results, the current scan cache is stale,
                 // hence clear it.
-                mScanResults = new ArrayList<ScanResult>();
+                clearScanResults();
             }
+            mScanResultsUpdating = false;
            return;
         }
 
         emptyScanResultCount = 0;
 
-        // note that all these splits and substrings keep references to the original
-        // huge string buffer while the amount we really want is generally pretty small
-        // so make copies instead (one example b/11087956 wasted 400k of heap here).
         synchronized(mScanResultCache) {
-            mScanResults = new ArrayList<ScanResult>();
-            String[] lines = scanResults.split("\n");
-            final int bssidStrLen = BSSID_STR.length();
-            final int flagLen = FLAGS_STR.length();
-
-            for (String line : lines) {
-                if (line.startsWith(BSSID_STR)) {
-                    bssid = new String(line.getBytes(), bssidStrLen, line.length() - bssidStrLen);
-                } else if (line.startsWith(FREQ_STR)) {
-                    try {
-                        freq = Integer.parseInt(line.substring(FREQ_STR.length()));
-                    } catch (NumberFormatException e) {
-                        freq = 0;
-                    }
-                } else if (line.startsWith(LEVEL_STR)) {
-                    try {
-                        level = Integer.parseInt(line.substring(LEVEL_STR.length()));
-                        /* some implementations avoid negative values by adding 256
-                         * so we need to adjust for that here.
-                         */
-                        if (level > 0) level -= 256;
-                    } catch(NumberFormatException e) {
-                        level = 0;
-                    }
-                } else if (line.startsWith(TSF_STR)) {
-                    try {
-                        tsf = Long.parseLong(line.substring(TSF_STR.length()));
-                    } catch (NumberFormatException e) {
-                        tsf = 0;
-                    }
-                } else if (line.startsWith(FLAGS_STR)) {
-                    flags = new String(line.getBytes(), flagLen, line.length() - flagLen);
-                } else if (line.startsWith(SSID_STR)) {
-                    wifiSsid = WifiSsid.createFromAsciiEncoded(
-                            line.substring(SSID_STR.length()));
-                } else if (line.startsWith(DELIMITER_STR) || line.startsWith(END_STR)) {
-                    Matcher match = null;
-                    if (bssid!= null) {
-                        match = mNotZero.matcher(bssid);
-                    }
-                    if (match != null && !bssid.isEmpty() && match.find()) {
-                        String ssid = (wifiSsid != null) ? wifiSsid.toString() : WifiSsid.NONE;
-                        String key = bssid + ssid;
-                        ScanResult scanResult = mScanResultCache.get(key);
-                        if (scanResult != null) {
-                            // TODO: average the RSSI, instead of overwriting it
-                            scanResult.level = level;
-                            scanResult.wifiSsid = wifiSsid;
-                            // Keep existing API
-                            scanResult.SSID = (wifiSsid != null) ? wifiSsid.toString() :
-                                    WifiSsid.NONE;
-                            scanResult.capabilities = flags;
-                            scanResult.frequency = freq;
-                            scanResult.timestamp = tsf;
-                            scanResult.seen = System.currentTimeMillis();
-                        } else {
-                            scanResult =
-                                new ScanResult(
-                                        wifiSsid, bssid, flags, level, freq, tsf);
-                            scanResult.seen = System.currentTimeMillis();
-                            mScanResultCache.put(key, scanResult);
-                        }
-                        mNumScanResultsReturned ++; // Keep track of how many scan results we got
-                                                    // as part of this scan's processing
-                        mScanResults.add(scanResult);
-                    } else {
-                        if (bssid != null)  {
-                            loge("setScanResults obtaining null BSSID results <"
-                                + bssid + ">, discard it");
-                        }
-                    }
-                    bssid = null;
-                    level = 0;
-                    freq = 0;
-                    tsf = 0;
-                    flags = "";
-                    wifiSsid = null;
-                }
-            }
+            publishScanResultsLocked();
+            mScanResultCache.removeOlderThan(mScanResultsSeen - SCAN_RESULT_CACHE_MAX_AGE_MS);
         }
+        if (DBG) logd("setScanResults delta " + mScanResultDelta);
         boolean attemptAutoJoin = true;
         SupplicantState state = mWifiInfo.getSupplicantState();
         String selection = mWifiConfigStore.getLastSelectedConfiguration();
@@ -3493,6 +3664,9 @@ public class WifiStateMachine extends StateMachine {
                 mNumScanResultsKnown = mWifiAutoJoinController.newSupplicantResults(attemptAutoJoin);
             }
         }
+        // Publish once AutoJoinController has updated the ScanResult status
+        publishScanResultSnapshot();
+        mScanResultsUpdating = false;
         if (linkDebouncing) {
             // If debouncing, we dont re-select a SSID or BSSID hence
             // there is no need to call the network selection code
@@ -3506,30 +3680,18 @@ public class WifiStateMachine extends StateMachine {
      * Fetch RSSI, linkspeed, and frequency on current connection
      */
     private void fetchRssiLinkSpeedAndFrequencyNative() {
-        int newRssi = -1;
-        int newLinkSpeed = -1;
-        int newFrequency = -1;
-
-        String signalPoll = mWifiNative.signalPoll();
+        mWifiNative.signalPoll(mLinkPollResult);
+        updateLinkFromSignalPoll(mLinkPollResult);
+    }
 
-        if (signalPoll != null) {
-            String[] lines = signalPoll.split("\n");
-            for (String line : lines) {
-                String[] prop = line.split("=");
-                if (prop.length < 2) continue;
-                try {
-                    if (prop[0].equals("RSSI")) {
-                        newRssi = Integer.parseInt(prop[1]);
-                    } else if (prop[0].equals("LINKSPEED")) {
-                        newLinkSpeed = Integer.parseInt(prop[1]);
-                    } else if (prop[0].equals("FREQUENCY")) {
-                        newFrequency = Integer.parseInt(prop[1]);
-                    }
-                } catch (NumberFormatException e) {
-                    //Ignore, defaults on rssi and linkspeed are assigned
-                }
-            }
-        }
+    /*
+     * Update the RSSI, linkspeed, and frequency of the current connection from a poll
+     */
+    private void updateLinkFromSignalPoll(LinkPollResult poll) {
+        // Fields default to -1 when missing or invalid
+        int newRssi = poll.rssi;
+        int newLinkSpeed = poll.linkSpeed;
+        int newFrequency = poll.frequency;
 
         if (PDBG) {
             loge("fetchRssiLinkSpeedAndFrequencyNative rssi="
@@ -3576,6 +3738,8 @@ public class WifiStateMachine extends StateMachine {
             mWifiInfo.setFrequency(newFrequency);
         }
         mWifiConfigStore.updateConfiguration(mWifiInfo);
+        // The RSSI of the current BSS was averaged into its cached result
+        republishScanResultSnapshot(mWifiInfo.getBSSID());
     }
 
     /**
@@ -3620,6 +3784,37 @@ public class WifiStateMachine extends StateMachine {
         return false;
     }
 
+    /**
+     * Schedules the next RSSI poll of the current connection, once this one has updated
+     * mWifiInfo.
+     */
+    private void continueRssiPolling() {
+        int delay = POLL_RSSI_INTERVAL_MSECS;
+        if (mWifiConfigStore.enableChipWakeUpWhenAssociated) {
+            delay = mRssiPollScheduler.onPoll(mWifiInfo.getRssi(),
+                    mWifiInfo.is24GHz() ? mWifiConfigStore.thresholdLowRssi24
+                            : mWifiConfigStore.thresholdLowRssi5,
+                    SystemClock.elapsedRealtime());
+        }
+        sendMessageDelayed(obtainMessage(CMD_RSSI_POLL, mRssiPollToken, 0), delay);
+
+        if (DBG) sendRssiChangeBroadcast(mWifiInfo.getRssi());
+    }
+
+    /**
+     * Called on the state machine thread when the WifiTrafficPoller reports a change
+     * of data activity: bring a stretched RSSI poll back to the base interval.
+     */
+    private void handleDataActivity(int dataActivity) {
+        int delay = mRssiPollScheduler.onDataActivity(dataActivity,
+                SystemClock.elapsedRealtime());
+        if (delay >= 0) {
+            // Supersede the pending poll
+            mRssiPollToken++;
+            sendMessageDelayed(obtainMessage(CMD_RSSI_POLL, mRssiPollToken, 0), delay);
+        }
+    }
+
     // Polling has completed, hence we wont have a score anymore
     private void cleanWifiScore() {
         mWifiInfo.txBadRate = 0;
@@ -3628,33 +3823,22 @@ public class WifiStateMachine extends StateMachine {
         mWifiInfo.rxSuccessRate = 0;
     }
 
-    int mBadLinkspeedcount = 0;
+    /**
+     * Scores the link on each RSSI poll
+     */
+    private final WifiScoreEngine mWifiScoreEngine = new WifiScoreEngine();
 
-    // For debug, provide information about the last scoring operation
-    String wifiScoringReport = null;
     private void calculateWifiScore(WifiLinkLayerStats stats) {
-        StringBuilder sb = new StringBuilder();
-
-        int score = 56; // Starting score, temporarily hardcoded in between 50 and 60
-        boolean isBadLinkspeed = (mWifiInfo.is24GHz()
-                && mWifiInfo.getLinkSpeed() < mWifiConfigStore.badLinkSpeed24)
-                || (mWifiInfo.is5GHz() && mWifiInfo.getLinkSpeed()
-                < mWifiConfigStore.badLinkSpeed5);
-        boolean isGoodLinkspeed = (mWifiInfo.is24GHz()
-                && mWifiInfo.getLinkSpeed() >= mWifiConfigStore.goodLinkSpeed24)
-                || (mWifiInfo.is5GHz() && mWifiInfo.getLinkSpeed()
-                >= mWifiConfigStore.goodLinkSpeed5);
-
-        if (isBadLinkspeed) {
-            if (mBadLinkspeedcount < 6)
-                mBadLinkspeedcount++;
-        } else {
-            if (mBadLinkspeedcount > 0)
-                mBadLinkspeedcount--;
-        }
-
-        if (isBadLinkspeed) sb.append(" bl(").append(mBadLinkspeedcount).append(")");
-        if (isGoodLinkspeed) sb.append(" gl");
+        // Picks up the thresholds of a changed autojoin configuration
+        mWifiScoreEngine.loadThresholds(mWifiConfigStore);
+        WifiScoreEngine.Sample sample = mWifiScoreEngine.getSample();
+        sample.rssi = mWifiInfo.getRssi();
+        sample.linkSpeed = mWifiInfo.getLinkSpeed();
+        sample.frequency = mWifiInfo.getFrequency();
+        sample.aggressiveHandover = mAggressiveHandover;
+        sample.txSuccessRate = mWifiInfo.txSuccessRate;
+        sample.txBadRate = mWifiInfo.txBadRate;
+        sample.rxSuccessRate = mWifiInfo.rxSuccessRate;
 
         /**
          * We want to make sure that we use the 24GHz RSSI thresholds if
@@ -3686,182 +3870,14 @@ public class WifiStateMachine extends StateMachine {
                 homeNetworkBoost = true;
             }
         }
-        if (homeNetworkBoost) sb.append(" hn");
-        if (use24Thresholds) sb.append(" u24");
-
-        int rssi = mWifiInfo.getRssi() - 6 * mAggressiveHandover
-                + (homeNetworkBoost ? WifiConfiguration.HOME_NETWORK_RSSI_BOOST : 0);
-        sb.append(String.format(" rssi=%d ag=%d", rssi, mAggressiveHandover));
-
-        boolean is24GHz = use24Thresholds || mWifiInfo.is24GHz();
+        sample.use24Thresholds = use24Thresholds;
+        sample.homeNetworkBoost = homeNetworkBoost;
 
-        boolean isBadRSSI = (is24GHz && rssi < mWifiConfigStore.thresholdBadRssi24)
-                || (!is24GHz && rssi < mWifiConfigStore.thresholdBadRssi5);
-        boolean isLowRSSI = (is24GHz && rssi < mWifiConfigStore.thresholdLowRssi24)
-                || (!is24GHz && mWifiInfo.getRssi() < mWifiConfigStore.thresholdLowRssi5);
-        boolean isHighRSSI = (is24GHz && rssi >= mWifiConfigStore.thresholdGoodRssi24)
-                || (!is24GHz && mWifiInfo.getRssi() >= mWifiConfigStore.thresholdGoodRssi5);
-
-        if (isBadRSSI) sb.append(" br");
-        if (isLowRSSI) sb.append(" lr");
-        if (isHighRSSI) sb.append(" hr");
-
-        int penalizedDueToUserTriggeredDisconnect = 0;        // For debug information
-        if (currentConfiguration!= null &&
-                (mWifiInfo.txSuccessRate > 5 || mWifiInfo.rxSuccessRate > 5)) {
-            if (isBadRSSI) {
-                currentConfiguration.numTicksAtBadRSSI++;
-                if (currentConfiguration.numTicksAtBadRSSI > 1000) {
-                    // We remained associated for a compound amount of time while passing
-                    // traffic, hence loose the corresponding user triggered disabled stats
-                    if (currentConfiguration.numUserTriggeredWifiDisableBadRSSI > 0) {
-                        currentConfiguration.numUserTriggeredWifiDisableBadRSSI--;
-                    }
-                    if (currentConfiguration.numUserTriggeredWifiDisableLowRSSI > 0) {
-                        currentConfiguration.numUserTriggeredWifiDisableLowRSSI--;
-                    }
-                    if (currentConfiguration.numUserTriggeredWifiDisableNotHighRSSI > 0) {
-                        currentConfiguration.numUserTriggeredWifiDisableNotHighRSSI--;
-                    }
-                    currentConfiguration.numTicksAtBadRSSI = 0;
-                }
-                if (mWifiConfigStore.enableWifiCellularHandoverUserTriggeredAdjustment &&
-                        (currentConfiguration.numUserTriggeredWifiDisableBadRSSI > 0
-                        || currentConfiguration.numUserTriggeredWifiDisableLowRSSI > 0
-                        || currentConfiguration.numUserTriggeredWifiDisableNotHighRSSI > 0)) {
-                    score = score -5;
-                    penalizedDueToUserTriggeredDisconnect = 1;
-                    sb.append(" p1");
-                }
-            } else if (isLowRSSI) {
-                currentConfiguration.numTicksAtLowRSSI++;
-                if (currentConfiguration.numTicksAtLowRSSI > 1000) {
-                    // We remained associated for a compound amount of time while passing
-                    // traffic, hence loose the corresponding user triggered disabled stats
-                    if (currentConfiguration.numUserTriggeredWifiDisableLowRSSI > 0) {
-                        currentConfiguration.numUserTriggeredWifiDisableLowRSSI--;
-                    }
-                    if (currentConfiguration.numUserTriggeredWifiDisableNotHighRSSI > 0) {
-                        currentConfiguration.numUserTriggeredWifiDisableNotHighRSSI--;
-                    }
-                    currentConfiguration.numTicksAtLowRSSI = 0;
-                }
-                if (mWifiConfigStore.enableWifiCellularHandoverUserTriggeredAdjustment &&
-                        (currentConfiguration.numUserTriggeredWifiDisableLowRSSI > 0
-                        || currentConfiguration.numUserTriggeredWifiDisableNotHighRSSI > 0)) {
-                    score = score -5;
-                    penalizedDueToUserTriggeredDisconnect = 2;
-                    sb.append(" p2");
-                }
-            } else if (!isHighRSSI) {
-                currentConfiguration.numTicksAtNotHighRSSI++;
-                if (currentConfiguration.numTicksAtNotHighRSSI > 1000) {
-                    // We remained associated for a compound amount of time while passing
-                    // traffic, hence loose the corresponding user triggered disabled stats
-                    if (currentConfiguration.numUserTriggeredWifiDisableNotHighRSSI > 0) {
-                        currentConfiguration.numUserTriggeredWifiDisableNotHighRSSI--;
-                    }
-                    currentConfiguration.numTicksAtNotHighRSSI = 0;
-                }
-                if (mWifiConfigStore.enableWifiCellularHandoverUserTriggeredAdjustment &&
-                        currentConfiguration.numUserTriggeredWifiDisableNotHighRSSI > 0) {
-                    score = score -5;
-                    penalizedDueToUserTriggeredDisconnect = 3;
-                    sb.append(" p3");
-                }
-            }
-            sb.append(String.format(" ticks %d,%d,%d", currentConfiguration.numTicksAtBadRSSI,
-                    currentConfiguration.numTicksAtLowRSSI,
-                    currentConfiguration.numTicksAtNotHighRSSI));
-        }
-
-        if (PDBG) {
-            String rssiStatus = "";
-            if (isBadRSSI) rssiStatus += " badRSSI ";
-            else if (isHighRSSI) rssiStatus += " highRSSI ";
-            else if (isLowRSSI) rssiStatus += " lowRSSI ";
-            if (isBadLinkspeed) rssiStatus += " lowSpeed ";
-            loge("calculateWifiScore freq=" + Integer.toString(mWifiInfo.getFrequency())
-                            + " speed=" + Integer.toString(mWifiInfo.getLinkSpeed())
-                            + " score=" + Integer.toString(mWifiInfo.score)
-                            + rssiStatus
-                            + " -> txbadrate=" + String.format( "%.2f", mWifiInfo.txBadRate )
-                            + " txgoodrate=" + String.format("%.2f", mWifiInfo.txSuccessRate)
-                            + " txretriesrate=" + String.format("%.2f", mWifiInfo.txRetriesRate)
-                            + " rxrate=" + String.format("%.2f", mWifiInfo.rxSuccessRate)
-                            + " userTriggerdPenalty" + penalizedDueToUserTriggeredDisconnect);
-        }
-
-        if ((mWifiInfo.txBadRate >= 1) && (mWifiInfo.txSuccessRate < 3)
-                && (isBadRSSI || isLowRSSI)) {
-            // Link is stuck
-            if (mWifiInfo.linkStuckCount < 5)
-                mWifiInfo.linkStuckCount += 1;
-            sb.append(String.format(" ls+=%d", mWifiInfo.linkStuckCount));
-            if (PDBG) loge(" bad link -> stuck count ="
-                    + Integer.toString(mWifiInfo.linkStuckCount));
-        } else if (mWifiInfo.txSuccessRate > 2 || mWifiInfo.txBadRate < 0.1) {
-            if (mWifiInfo.linkStuckCount > 0)
-                mWifiInfo.linkStuckCount -= 1;
-            sb.append(String.format(" ls-=%d", mWifiInfo.linkStuckCount));
-            if (PDBG) loge(" good link -> stuck count ="
-                    + Integer.toString(mWifiInfo.linkStuckCount));
-        }
-
-        sb.append(String.format(" [%d", score));
-
-        if (mWifiInfo.linkStuckCount > 1) {
-            // Once link gets stuck for more than 3 seconds, start reducing the score
-            score = score - 2 * (mWifiInfo.linkStuckCount - 1);
-        }
-        sb.append(String.format(",%d", score));
-
-        if (isBadLinkspeed) {
-            score -= 4 ;
-            if (PDBG) {
-                loge(" isBadLinkspeed   ---> count=" + mBadLinkspeedcount
-                        + " score=" + Integer.toString(score));
-            }
-        } else if ((isGoodLinkspeed) && (mWifiInfo.txSuccessRate > 5)) {
-            score += 4; // So as bad rssi alone dont kill us
-        }
-        sb.append(String.format(",%d", score));
-
-        if (isBadRSSI) {
-            if (mWifiInfo.badRssiCount < 7)
-                mWifiInfo.badRssiCount += 1;
-        } else if (isLowRSSI) {
-            mWifiInfo.lowRssiCount = 1; // Dont increment the lowRssi count above 1
-            if (mWifiInfo.badRssiCount > 0) {
-                // Decrement bad Rssi count
-                mWifiInfo.badRssiCount -= 1;
-            }
-        } else {
-            mWifiInfo.badRssiCount = 0;
-            mWifiInfo.lowRssiCount = 0;
-        }
-
-        score -= mWifiInfo.badRssiCount * 2 +  mWifiInfo.lowRssiCount ;
-        sb.append(String.format(",%d", score));
-
-        if (PDBG) loge(" badRSSI count" + Integer.toString(mWifiInfo.badRssiCount)
-                     + " lowRSSI count" + Integer.toString(mWifiInfo.lowRssiCount)
-                        + " --> score " + Integer.toString(score));
-
-
-        if (isHighRSSI) {
-            score += 5;
-            if (PDBG) loge(" isHighRSSI       ---> score=" + Integer.toString(score));
-        }
-        sb.append(String.format(",%d]", score));
-
-        sb.append(String.format(" brc=%d lrc=%d", mWifiInfo.badRssiCount, mWifiInfo.lowRssiCount));
-
-        //sanitize boundaries
-        if (score > NetworkAgent.WIFI_BASE_SCORE)
-            score = NetworkAgent.WIFI_BASE_SCORE;
-        if (score < 0)
-            score = 0;
+        int score = mWifiScoreEngine.calculate(sample, currentConfiguration);
+        mWifiInfo.linkStuckCount = sample.linkStuckCount;
+        mWifiInfo.badRssiCount = sample.badRssiCount;
+        mWifiInfo.lowRssiCount = sample.lowRssiCount;
+        if (PDBG) loge("calculateWifiScore " + sample);
 
         //report score
         if (score != mWifiInfo.score) {
@@ -3873,7 +3889,6 @@ public class WifiStateMachine extends StateMachine {
                 mNetworkAgent.sendNetworkScore(score);
             }
         }
-        wifiScoringReport = sb.toString();
     }
 
     public double getTxPacketRate() {
@@ -3894,23 +3909,10 @@ public class WifiStateMachine extends StateMachine {
      * Fetch TX packet counters on current connection
      */
     private void fetchPktcntNative(RssiPacketCountInfo info) {
-        String pktcntPoll = mWifiNative.pktcntPoll();
-
-        if (pktcntPoll != null) {
-            String[] lines = pktcntPoll.split("\n");
-            for (String line : lines) {
-                String[] prop = line.split("=");
-                if (prop.length < 2) continue;
-                try {
-                    if (prop[0].equals("TXGOOD")) {
-                        info.txgood = Integer.parseInt(prop[1]);
-                    } else if (prop[0].equals("TXBAD")) {
-                        info.txbad = Integer.parseInt(prop[1]);
-                    }
-                } catch (NumberFormatException e) {
-                    // Ignore
-                }
-            }
+        if (mWifiNative.pktcntPoll(mLinkPollResult)) {
+            // Counters missing from the reply leave info unchanged
+            if (mLinkPollResult.txGood != -1) info.txgood = mLinkPollResult.txGood;
+            if (mLinkPollResult.txBad != -1) info.txbad = mLinkPollResult.txBad;
         }
     }
 
@@ -4281,6 +4283,7 @@ public class WifiStateMachine extends StateMachine {
         mWifiInfo.setBSSID(stateChangeResult.BSSID);
         mWifiInfo.setSSID(stateChangeResult.wifiSsid);
 
+        StateChangeResult.retain(message);
         mSupplicantStateTracker.sendMessage(Message.obtain(message));
 
         return state;
@@ -4310,7 +4313,7 @@ public class WifiStateMachine extends StateMachine {
         }
 
         /* Reset data structures */
-        mBadLinkspeedcount = 0;
+        mWifiScoreEngine.reset();
         mWifiInfo.reset();
         linkDebouncing = false;
         /* Reset roaming parameters */
@@ -4814,6 +4817,7 @@ public class WifiStateMachine extends StateMachine {
                 case CMD_SET_COUNTRY_CODE:
                 case CMD_SET_FREQUENCY_BAND:
                 case CMD_RSSI_POLL:
+                case CMD_SIGNAL_POLL_RESULT:
                 case CMD_ENABLE_ALL_NETWORKS:
                 case DhcpStateMachine.CMD_PRE_DHCP_ACTION:
                 case DhcpStateMachine.CMD_POST_DHCP_ACTION:
@@ -5611,7 +5615,7 @@ public class WifiStateMachine extends StateMachine {
         public void exit() {
             mIsRunning = false;
             updateBatteryWorkSource(null);
-            mScanResults = new ArrayList<ScanResult>();
+            clearScanResults();
 
             stopBatchedScan();
 
@@ -5672,6 +5676,7 @@ public class WifiStateMachine extends StateMachine {
                 case CMD_REASSOCIATE:
                 case CMD_RECONNECT:
                     messageHandlingStatus = MESSAGE_HANDLING_STATUS_DEFERRED;
+                    StateChangeResult.retain(message);
                     deferMessage(message);
                     break;
                 default:
@@ -5959,6 +5964,9 @@ public class WifiStateMachine extends StateMachine {
             case CMD_RSSI_POLL:
                 s = "CMD_RSSI_POLL";
                 break;
+            case CMD_SIGNAL_POLL_RESULT:
+                s = "CMD_SIGNAL_POLL_RESULT";
+                break;
             case CMD_START_PACKET_FILTERING:
                 s = "CMD_START_PACKET_FILTERING";
                 break;
@@ -6149,7 +6157,7 @@ public class WifiStateMachine extends StateMachine {
                config.numAuthFailures = 0;
                config.numAssociation++;
            }
-           mBadLinkspeedcount = 0;
+           mWifiScoreEngine.resetBadLinkSpeedCount();
        }
     }
 
@@ -6251,6 +6259,7 @@ public class WifiStateMachine extends StateMachine {
                             didBlackListBSSID = mWifiConfigStore.handleBSSIDBlackList
                                     (mLastNetworkId, bssid, false);
                         }
+                        republishScanResultSnapshot(bssid);
                     }
                     mSupplicantStateTracker.sendMessage(WifiMonitor.ASSOCIATION_REJECTION_EVENT);
                     break;
@@ -6932,6 +6941,7 @@ public class WifiStateMachine extends StateMachine {
         public void enter() {
             mRssiPollToken++;
             if (mEnableRssiPolling) {
+                mRssiPollScheduler.start(SystemClock.elapsedRealtime());
                 sendMessage(CMD_RSSI_POLL, mRssiPollToken, 0);
             }
             if (mNetworkAgent != null) {
@@ -6967,6 +6977,7 @@ public class WifiStateMachine extends StateMachine {
                     sb.append(" ").append(mLastBssid);
                 }
             }
+            mRssiPollScheduler.stop();
             if (mLastBssid != null || mLastNetworkId != WifiConfiguration.INVALID_NETWORK_ID) {
                 handleNetworkDisconnect();
             }
@@ -7206,18 +7217,32 @@ public class WifiStateMachine extends StateMachine {
                                     stats = null;
                                 }
                             }
-                            // Get Info and continue polling
-                            fetchRssiLinkSpeedAndFrequencyNative();
-                            calculateWifiScore(stats);
+                            // Get Info off the state machine thread, polling continues
+                            // on CMD_SIGNAL_POLL_RESULT
+                            mPendingPollStats = stats;
+                            mWifiNative.signalPoll(mAsyncLinkPollResult,
+                                    obtainMessage(CMD_SIGNAL_POLL_RESULT, mRssiPollToken, 0));
+                            break;
                         }
-                        sendMessageDelayed(obtainMessage(CMD_RSSI_POLL,
-                                mRssiPollToken, 0), POLL_RSSI_INTERVAL_MSECS);
-
-                        if (DBG) sendRssiChangeBroadcast(mWifiInfo.getRssi());
+                        continueRssiPolling();
                     } else {
                         // Polling has completed
                     }
                     break;
+                case CMD_SIGNAL_POLL_RESULT:
+                    if (message.arg1 == mRssiPollToken) {
+                        if (message.obj == null) {
+                            // As for a failed synchronous poll
+                            mAsyncLinkPollResult.resetSignal();
+                        }
+                        updateLinkFromSignalPoll(mAsyncLinkPollResult);
+                        calculateWifiScore(mPendingPollStats);
+                        mPendingPollStats = null;
+                        continueRssiPolling();
+                    } else {
+                        // Polling has completed or restarted since this poll was sent
+                    }
+                    break;
                 case CMD_ENABLE_RSSI_POLL:
                     if (mWifiConfigStore.enableRssiPollWhenAssociated) {
                         mEnableRssiPolling = (message.arg1 == 1);
@@ -7227,10 +7252,12 @@ public class WifiStateMachine extends StateMachine {
                     mRssiPollToken++;
                     if (mEnableRssiPolling) {
                         // First poll
+                        mRssiPollScheduler.start(SystemClock.elapsedRealtime());
                         fetchRssiLinkSpeedAndFrequencyNative();
                         sendMessageDelayed(obtainMessage(CMD_RSSI_POLL,
                                 mRssiPollToken, 0), POLL_RSSI_INTERVAL_MSECS);
                     } else {
+                        mRssiPollScheduler.stop();
                         cleanWifiScore();
                     }
                     break;
@@ -7541,6 +7568,7 @@ public class WifiStateMachine extends StateMachine {
                        mWifiInfo.setBSSID(mLastBssid);
                        mWifiInfo.setNetworkId(mLastNetworkId);
                        mWifiConfigStore.handleBSSIDBlackList(mLastNetworkId, mLastBssid, true);
+                       republishScanResultSnapshot(mLastBssid);
                        transitionTo(mObtainingIpState);
                    } else {
                        messageHandlingStatus = MESSAGE_HANDLING_STATUS_DISCARD;
@@ -7676,6 +7704,7 @@ public class WifiStateMachine extends StateMachine {
                     String toBSSID = (String)message.obj;
                     if (toBSSID != null && !toBSSID.equals(mWifiInfo.getBSSID())) {
                         mWifiConfigStore.driverRoamedFrom(mWifiInfo);
+                        republishScanResultSnapshot(mWifiInfo.getBSSID());
                     }
                     return NOT_HANDLED;
                 case WifiMonitor.NETWORK_DISCONNECTION_EVENT:
@@ -7860,6 +7889,7 @@ public class WifiStateMachine extends StateMachine {
                      * we have missed the network disconnection, transition to mDisconnectedState
                      * and handle the rest of the events there
                      */
+                    StateChangeResult.retain(message);
                     deferMessage(message);
                     handleNetworkDisconnect();
                     transitionTo(mDisconnectedState);
@@ -76,6 +76,7 @@ import com.android.internal.util.AsyncChannel;
 import com.android.internal.util.Protocol;
 import com.android.internal.util.State;
 import com.android.internal.util.StateMachine;
+import com.android.server.wifi.MessageLatencyStats;
 import com.android.server.wifi.WifiMonitor;
 import com.android.server.wifi.WifiNative;
 import com.android.server.wifi.WifiStateMachine;
@@ -498,6 +499,8 @@ public final class WifiP2pServiceImpl extends IWifiP2pManager.Stub {
         private OngoingGroupRemovalState mOngoingGroupRemovalState = new OngoingGroupRemovalState();
 
         private WifiNative mWifiNative = new WifiNative(mInterface);
+        private final MessageLatencyStats mMessageLatencyStats =
+                new MessageLatencyStats("P2pStateMachine", null);
         private WifiMonitor mWifiMonitor = new WifiMonitor(this, mWifiNative);
 
         private final WifiP2pDeviceList mPeers = new WifiP2pDeviceList();
@@ -560,9 +563,23 @@ public final class WifiP2pServiceImpl extends IWifiP2pManager.Stub {
             setLogOnlyTransitions(true);
         }
 
-    class DefaultState extends State {
+    /**
+     * Base of the states handling messages, so that the latency of each message is
+     * measured from the first state it reaches.
+     */
+    abstract class TimedState extends State {
+        @Override
+        public final boolean processMessage(Message message) {
+            mMessageLatencyStats.begin(message);
+            return processTimedMessage(message);
+        }
+
+        public abstract boolean processTimedMessage(Message message);
+    }
+
+    class DefaultState extends TimedState {
         @Override
-        public boolean processMessage(Message message) {
+        public boolean processTimedMessage(Message message) {
             if (DBG) logd(getName() + message.toString());
             switch (message.what) {
                 case AsyncChannel.CMD_CHANNEL_HALF_CONNECTED:
@@ -758,9 +775,9 @@ public final class WifiP2pServiceImpl extends IWifiP2pManager.Stub {
         }
     }
 
-    class P2pNotSupportedState extends State {
+    class P2pNotSupportedState extends TimedState {
         @Override
-        public boolean processMessage(Message message) {
+        public boolean processTimedMessage(Message message) {
             switch (message.what) {
                case WifiP2pManager.DISCOVER_PEERS:
                     replyToMessage(message, WifiP2pManager.DISCOVER_PEERS_FAILED,
@@ -848,7 +865,7 @@ public final class WifiP2pServiceImpl extends IWifiP2pManager.Stub {
         }
     }
 
-    class P2pDisablingState extends State {
+    class P2pDisablingState extends TimedState {
         @Override
         public void enter() {
             if (DBG) logd(getName());
@@ -857,7 +874,7 @@ public final class WifiP2pServiceImpl extends IWifiP2pManager.Stub {
         }
 
         @Override
-        public boolean processMessage(Message message) {
+        public boolean processTimedMessage(Message message) {
             if (DBG) logd(getName() + message.toString());
             switch (message.what) {
                 case WifiMonitor.SUP_DISCONNECTION_EVENT:
@@ -886,14 +903,14 @@ public final class WifiP2pServiceImpl extends IWifiP2pManager.Stub {
         }
     }
 
-    class P2pDisabledState extends State {
+    class P2pDisabledState extends TimedState {
        @Override
         public void enter() {
             if (DBG) logd(getName());
         }
 
         @Override
-        public boolean processMessage(Message message) {
+        public boolean processTimedMessage(Message message) {
             if (DBG) logd(getName() + message.toString());
             switch (message.what) {
                 case WifiStateMachine.CMD_ENABLE_P2P:
@@ -914,14 +931,14 @@ public final class WifiP2pServiceImpl extends IWifiP2pManager.Stub {
         }
     }
 
-    class P2pEnablingState extends State {
+    class P2pEnablingState extends TimedState {
         @Override
         public void enter() {
             if (DBG) logd(getName());
         }
 
         @Override
-        public boolean processMessage(Message message) {
+        public boolean processTimedMessage(Message message) {
             if (DBG) logd(getName() + message.toString());
             switch (message.what) {
                 case WifiMonitor.SUP_CONNECTION_EVENT:
@@ -943,7 +960,7 @@ public final class WifiP2pServiceImpl extends IWifiP2pManager.Stub {
         }
     }
 
-    class P2pEnabledState extends State {
+    class P2pEnabledState extends TimedState {
         @Override
         public void enter() {
             if (DBG) logd(getName());
@@ -954,7 +971,7 @@ public final class WifiP2pServiceImpl extends IWifiP2pManager.Stub {
         }
 
         @Override
-        public boolean processMessage(Message message) {
+        public boolean processTimedMessage(Message message) {
             if (DBG) logd(getName() + message.toString());
             switch (message.what) {
                 case WifiMonitor.SUP_DISCONNECTION_EVENT:
@@ -1203,7 +1220,7 @@ public final class WifiP2pServiceImpl extends IWifiP2pManager.Stub {
         }
     }
 
-    class InactiveState extends State {
+    class InactiveState extends TimedState {
         @Override
         public void enter() {
             if (DBG) logd(getName());
@@ -1211,7 +1228,7 @@ public final class WifiP2pServiceImpl extends IWifiP2pManager.Stub {
         }
 
         @Override
-        public boolean processMessage(Message message) {
+        public boolean processTimedMessage(Message message) {
             if (DBG) logd(getName() + message.toString());
             switch (message.what) {
                 case WifiP2pManager.CONNECT:
@@ -1407,7 +1424,7 @@ public final class WifiP2pServiceImpl extends IWifiP2pManager.Stub {
         }
     }
 
-    class GroupCreatingState extends State {
+    class GroupCreatingState extends TimedState {
         @Override
         public void enter() {
             if (DBG) logd(getName());
@@ -1416,7 +1433,7 @@ public final class WifiP2pServiceImpl extends IWifiP2pManager.Stub {
         }
 
         @Override
-        public boolean processMessage(Message message) {
+        public boolean processTimedMessage(Message message) {
             if (DBG) logd(getName() + message.toString());
             boolean ret = HANDLED;
             switch (message.what) {
@@ -1470,7 +1487,7 @@ public final class WifiP2pServiceImpl extends IWifiP2pManager.Stub {
         }
     }
 
-    class UserAuthorizingNegotiationRequestState extends State {
+    class UserAuthorizingNegotiationRequestState extends TimedState {
         @Override
         public void enter() {
             if (DBG) logd(getName());
@@ -1478,7 +1495,7 @@ public final class WifiP2pServiceImpl extends IWifiP2pManager.Stub {
         }
 
         @Override
-        public boolean processMessage(Message message) {
+        public boolean processTimedMessage(Message message) {
             if (DBG) logd(getName() + message.toString());
             boolean ret = HANDLED;
             switch (message.what) {
@@ -1505,7 +1522,7 @@ public final class WifiP2pServiceImpl extends IWifiP2pManager.Stub {
         }
     }
 
-    class UserAuthorizingInviteRequestState extends State {
+    class UserAuthorizingInviteRequestState extends TimedState {
         @Override
         public void enter() {
             if (DBG) logd(getName());
@@ -1513,7 +1530,7 @@ public final class WifiP2pServiceImpl extends IWifiP2pManager.Stub {
         }
 
         @Override
-        public boolean processMessage(Message message) {
+        public boolean processTimedMessage(Message message) {
             if (DBG) logd(getName() + message.toString());
             boolean ret = HANDLED;
             switch (message.what) {
@@ -1545,7 +1562,7 @@ public final class WifiP2pServiceImpl extends IWifiP2pManager.Stub {
 
 
 
-    class ProvisionDiscoveryState extends State {
+    class ProvisionDiscoveryState extends TimedState {
         @Override
         public void enter() {
             if (DBG) logd(getName());
@@ -1553,7 +1570,7 @@ public final class WifiP2pServiceImpl extends IWifiP2pManager.Stub {
         }
 
         @Override
-        public boolean processMessage(Message message) {
+        public boolean processTimedMessage(Message message) {
             if (DBG) logd(getName() + message.toString());
             WifiP2pProvDiscEvent provDisc;
             WifiP2pDevice device;
@@ -1611,14 +1628,14 @@ public final class WifiP2pServiceImpl extends IWifiP2pManager.Stub {
         }
     }
 
-    class GroupNegotiationState extends State {
+    class GroupNegotiationState extends TimedState {
         @Override
         public void enter() {
             if (DBG) logd(getName());
         }
 
         @Override
-        public boolean processMessage(Message message) {
+        public boolean processTimedMessage(Message message) {
             if (DBG) logd(getName() + message.toString());
             switch (message.what) {
                 // We ignore these right now, since we get a GROUP_STARTED notification
@@ -1743,7 +1760,7 @@ public final class WifiP2pServiceImpl extends IWifiP2pManager.Stub {
         }
     }
 
-    class FrequencyConflictState extends State {
+    class FrequencyConflictState extends TimedState {
         private AlertDialog mFrequencyConflictDialog;
         @Override
         public void enter() {
@@ -1784,7 +1801,7 @@ public final class WifiP2pServiceImpl extends IWifiP2pManager.Stub {
         }
 
         @Override
-        public boolean processMessage(Message message) {
+        public boolean processTimedMessage(Message message) {
             if (DBG) logd(getName() + message.toString());
             switch (message.what) {
                 case WifiMonitor.P2P_GO_NEGOTIATION_SUCCESS_EVENT:
@@ -1828,7 +1845,7 @@ public final class WifiP2pServiceImpl extends IWifiP2pManager.Stub {
         }
     }
 
-    class GroupCreatedState extends State {
+    class GroupCreatedState extends TimedState {
         @Override
         public void enter() {
             if (DBG) logd(getName());
@@ -1851,7 +1868,7 @@ public final class WifiP2pServiceImpl extends IWifiP2pManager.Stub {
         }
 
         @Override
-        public boolean processMessage(Message message) {
+        public boolean processTimedMessage(Message message) {
             if (DBG) logd(getName() + message.toString());
             switch (message.what) {
                 case WifiMonitor.AP_STA_CONNECTED_EVENT:
@@ -2068,7 +2085,7 @@ public final class WifiP2pServiceImpl extends IWifiP2pManager.Stub {
         }
     }
 
-    class UserAuthorizingJoinState extends State {
+    class UserAuthorizingJoinState extends TimedState {
         @Override
         public void enter() {
             if (DBG) logd(getName());
@@ -2076,7 +2093,7 @@ public final class WifiP2pServiceImpl extends IWifiP2pManager.Stub {
         }
 
         @Override
-        public boolean processMessage(Message message) {
+        public boolean processTimedMessage(Message message) {
             if (DBG) logd(getName() + message.toString());
             switch (message.what) {
                 case WifiMonitor.P2P_PROV_DISC_PBC_REQ_EVENT:
@@ -2111,14 +2128,14 @@ public final class WifiP2pServiceImpl extends IWifiP2pManager.Stub {
         }
     }
 
-    class OngoingGroupRemovalState extends State {
+    class OngoingGroupRemovalState extends TimedState {
         @Override
         public void enter() {
             if (DBG) logd(getName());
         }
 
         @Override
-        public boolean processMessage(Message message) {
+        public boolean processTimedMessage(Message message) {
             if (DBG) logd(getName() + message.toString());
             switch (message.what) {
                 // Group removal ongoing. Multiple calls
@@ -2142,9 +2159,18 @@ public final class WifiP2pServiceImpl extends IWifiP2pManager.Stub {
         pw.println("mGroup " + mGroup);
         pw.println("mSavedPeerConfig " + mSavedPeerConfig);
         pw.println("mSavedP2pGroup " + mSavedP2pGroup);
+        mMessageLatencyStats.dump(pw, args);
+        mWifiMonitor.dump(pw);
         pw.println();
     }
 
+    @Override
+    protected boolean recordLogRec(Message msg) {
+        mMessageLatencyStats.end(getCurrentState(), msg);
+        mWifiMonitor.onMessageProcessed(msg);
+        return super.recordLogRec(msg);
+    }
+
     private void sendP2pStateChangedBroadcast(boolean enabled) {
         final Intent intent = new Intent(WifiP2pManager.WIFI_P2P_STATE_CHANGED_ACTION);
         intent.addFlags(Intent.FLAG_RECEIVER_REGISTERED_ONLY_BEFORE_BOOT);
@@ -28,7 +28,7 @@
 #include "wifi_hal.h"
 #include "jni_helper.h"
 
-#define REPLY_BUF_SIZE 4096 // wpa_supplicant's maximum size.
+#define REPLY_BUF_SIZE 4096 // wpa_supplicant's maximum size, see WifiNative.REPLY_BUF_SIZE
 #define EVENT_BUF_SIZE 2048
 
 namespace android {
@@ -150,7 +150,125 @@ static JavaVM *mVM;                             /* saved JVM pointer */
 
 static const char *WifiHandleVarName = "sWifiHalHandle";
 static const char *WifiIfaceHandleVarName = "sWifiIfaceHandles";
-static jmethodID OnScanResultsMethodID;
+
+/*
+ * Classes and member IDs used to build the HAL event objects, resolved once in
+ * register_android_net_wifi_WifiNative() rather than looked up per result.
+ */
+static struct {
+    jclass clazz;
+    jmethodID constructor;
+    jfieldID SSID;
+    jfieldID BSSID;
+    jfieldID level;
+    jfieldID frequency;
+    jfieldID timestamp;
+} gScanResultIds;
+
+static struct {
+    jclass clazz;
+    jmethodID constructor;
+    jfieldID bssid;
+    jfieldID status;
+    jfieldID requestType;
+    jfieldID ts;
+    jfieldID rssi;
+    jfieldID rssi_spread;
+    jfieldID tx_rate;
+    jfieldID rtt_ns;
+    jfieldID rtt_sd_ns;
+    jfieldID rtt_spread_ns;
+    jfieldID distance_cm;
+    jfieldID distance_sd_cm;
+    jfieldID distance_spread_cm;
+} gRttResultIds;
+
+static struct {
+    jmethodID onScanResultsAvailable;
+    jmethodID onScanStatus;
+    jmethodID obtainIeBuffer;
+    jmethodID onFullScanResult;
+    jmethodID onHotlistApFound;
+    jmethodID onSignificantWifiChange;
+    jmethodID onRttResults;
+} gWifiNativeIds;
+
+static bool sJniIdsInitialized = false;
+
+static bool initJniIds(JNIEnv *env) {
+    if (sJniIdsInitialized) {
+        return true;
+    }
+
+    jclass cls = findClassGlobal(env, "android/net/wifi/ScanResult");
+    if (cls == NULL) {
+        return false;
+    }
+    gScanResultIds.clazz = cls;
+    gScanResultIds.constructor = findMethodID(env, cls, "<init>", "()V");
+    gScanResultIds.SSID = findFieldID(env, cls, "SSID", "Ljava/lang/String;");
+    gScanResultIds.BSSID = findFieldID(env, cls, "BSSID", "Ljava/lang/String;");
+    gScanResultIds.level = findFieldID(env, cls, "level", "I");
+    gScanResultIds.frequency = findFieldID(env, cls, "frequency", "I");
+    gScanResultIds.timestamp = findFieldID(env, cls, "timestamp", "J");
+    if (env->ExceptionCheck()) {
+        // A field or method was not found
+        env->ExceptionClear();
+        return false;
+    }
+
+    cls = findClassGlobal(env, "android/net/wifi/RttManager$RttResult");
+    if (cls == NULL) {
+        return false;
+    }
+    gRttResultIds.clazz = cls;
+    gRttResultIds.constructor = findMethodID(env, cls, "<init>", "()V");
+    gRttResultIds.bssid = findFieldID(env, cls, "bssid", "Ljava/lang/String;");
+    gRttResultIds.status = findFieldID(env, cls, "status", "I");
+    gRttResultIds.requestType = findFieldID(env, cls, "requestType", "I");
+    gRttResultIds.ts = findFieldID(env, cls, "ts", "J");
+    gRttResultIds.rssi = findFieldID(env, cls, "rssi", "I");
+    gRttResultIds.rssi_spread = findFieldID(env, cls, "rssi_spread", "I");
+    gRttResultIds.tx_rate = findFieldID(env, cls, "tx_rate", "I");
+    gRttResultIds.rtt_ns = findFieldID(env, cls, "rtt_ns", "J");
+    gRttResultIds.rtt_sd_ns = findFieldID(env, cls, "rtt_sd_ns", "J");
+    gRttResultIds.rtt_spread_ns = findFieldID(env, cls, "rtt_spread_ns", "J");
+    gRttResultIds.distance_cm = findFieldID(env, cls, "distance_cm", "I");
+    gRttResultIds.distance_sd_cm = findFieldID(env, cls, "distance_sd_cm", "I");
+    gRttResultIds.distance_spread_cm = findFieldID(env, cls, "distance_spread_cm", "I");
+    if (env->ExceptionCheck()) {
+        // A field or method was not found
+        env->ExceptionClear();
+        return false;
+    }
+
+    cls = env->FindClass("com/android/server/wifi/WifiNative");
+    if (cls == NULL) {
+        ALOGE("Error in finding WifiNative class");
+        return false;
+    }
+    gWifiNativeIds.onScanResultsAvailable =
+            findStaticMethodID(env, cls, "onScanResultsAvailable", "(I)V");
+    gWifiNativeIds.onScanStatus = findStaticMethodID(env, cls, "onScanStatus", "(I)V");
+    gWifiNativeIds.obtainIeBuffer = findStaticMethodID(env, cls, "obtainIeBuffer", "(I)[B");
+    gWifiNativeIds.onFullScanResult = findStaticMethodID(env, cls, "onFullScanResult",
+            "(ILandroid/net/wifi/ScanResult;[BI)V");
+    gWifiNativeIds.onHotlistApFound = findStaticMethodID(env, cls, "onHotlistApFound",
+            "(I[Landroid/net/wifi/ScanResult;)V");
+    gWifiNativeIds.onSignificantWifiChange = findStaticMethodID(env, cls,
+            "onSignificantWifiChange", "(I[Landroid/net/wifi/ScanResult;)V");
+    gWifiNativeIds.onRttResults = findStaticMethodID(env, cls, "onRttResults",
+            "(I[Landroid/net/wifi/RttManager$RttResult;)V");
+    env->DeleteLocalRef(cls);
+    if (env->ExceptionCheck()) {
+        // A field or method was not found
+        env->ExceptionClear();
+        return false;
+    }
+
+    sJniIdsInitialized = true;
+    return true;
+}
 
 static JNIEnv *getEnv() {
     JNIEnv *env = NULL;
@@ -170,24 +288,24 @@ static jobject createScanResult(JNIEnv *env, wifi_scan_result *result) {
 
     // ALOGD("creating scan result");
 
-    jobject scanResult = createObject(env, "android/net/wifi/ScanResult");
+    jobject scanResult = createObject(env, gScanResultIds.clazz, gScanResultIds.constructor);
     if (scanResult == NULL) {
         ALOGE("Error in creating scan result");
         return NULL;
     }
 
     // ALOGD("setting SSID to %s", result.ssid);
-    setStringField(env, scanResult, "SSID", result->ssid);
+    setStringField(env, scanResult, gScanResultIds.SSID, result->ssid);
 
     char bssid[32];
     sprintf(bssid, "%02x:%02x:%02x:%02x:%02x:%02x", result->bssid[0], result->bssid[1],
         result->bssid[2], result->bssid[3], result->bssid[4], result->bssid[5]);
 
-    setStringField(env, scanResult, "BSSID", bssid);
+    setStringField(env, scanResult, gScanResultIds.BSSID, bssid);
 
-    setIntField(env, scanResult, "level", result->rssi);
-    setIntField(env, scanResult, "frequency", result->channel);
-    setLongField(env, scanResult, "timestamp", result->ts);
+    setIntField(env, scanResult, gScanResultIds.level, result->rssi);
+    setIntField(env, scanResult, gScanResultIds.frequency, result->channel);
+    setLongField(env, scanResult, gScanResultIds.timestamp, result->ts);
 
     return scanResult;
 }
@@ -295,7 +413,7 @@ static void onScanResultsAvailable(wifi_request_id id, unsigned num_results) {
 
     ALOGD("onScanResultsAvailable called, vm = %p, obj = %p, env = %p", mVM, mCls, env);
 
-    reportEvent(env, mCls, "onScanResultsAvailable", "(I)V", id);
+    reportEvent(env, mCls, gWifiNativeIds.onScanResultsAvailable, id);
 }
 
 static void onScanEvent(wifi_scan_event event, unsigned status) {
@@ -304,7 +422,7 @@ static void onScanEvent(wifi_scan_event event, unsigned status) {
 
     ALOGD("onScanStatus called, vm = %p, obj = %p, env = %p", mVM, mCls, env);
 
-    reportEvent(env, mCls, "onScanStatus", "(I)V", status);
+    reportEvent(env, mCls, gWifiNativeIds.onScanStatus, status);
 }
 
 static void onFullScanResult(wifi_request_id id, wifi_scan_result *result) {
@@ -315,12 +433,19 @@ static void onFullScanResult(wifi_request_id id, wifi_scan_result *result) {
     ALOGD("onFullScanResult called, vm = %p, obj = %p, env = %p", mVM, mCls, env);
 
     jobject scanResult = createScanResult(env, result);
+    if (scanResult == NULL) {
+        return;
+    }
 
-    ALOGD("Creating a byte array of length %d", result->ie_length);
+    ALOGD("Obtaining a byte array of length %d", result->ie_length);
 
-    jbyteArray elements = env->NewByteArray(result->ie_length);
+    /* Pooled on the Java side, may be longer than ie_length */
+    jbyteArray elements = (jbyteArray) env->CallStaticObjectMethod(mCls,
+            gWifiNativeIds.obtainIeBuffer, (jint) result->ie_length);
     if (elements == NULL) {
-        ALOGE("Error in allocating array");
+        ALOGE("Error in obtaining array");
+        env->ExceptionClear();
+        env->DeleteLocalRef(scanResult);
         return;
     }
 
@@ -331,8 +456,8 @@ static void onFullScanResult(wifi_request_id id, wifi_scan_result *result) {
 
     ALOGE("Returning result");
 
-    reportEvent(env, mCls, "onFullScanResult", "(ILandroid/net/wifi/ScanResult;[B)V", id,
-            scanResult, elements);
+    reportEvent(env, mCls, gWifiNativeIds.onFullScanResult, id, scanResult, elements,
+            (jint) result->ie_length);
 
     env->DeleteLocalRef(scanResult);
     env->DeleteLocalRef(elements);
@@ -414,6 +539,65 @@ static jboolean android_net_wifi_stopScan(JNIEnv *env, jclass cls, jint iface, j
     return wifi_stop_gscan(id, handle)  == WIFI_SUCCESS;
 }
 
+/*
+ * Packed record of one gscan result written by getScanResultsBufferNative, multi-byte
+ * fields are in native byte order. Keep in sync with ScanResultBuffer.java.
+ */
+#define SCAN_RECORD_SIZE                56
+#define SCAN_RECORD_TIMESTAMP_OFFSET    0   /* int64, us */
+#define SCAN_RECORD_FREQUENCY_OFFSET    8   /* int32, MHz */
+#define SCAN_RECORD_LEVEL_OFFSET        12  /* int32, dBm */
+#define SCAN_RECORD_BSSID_OFFSET        16  /* 6 bytes */
+#define SCAN_RECORD_SSID_LENGTH_OFFSET  22  /* uint8 */
+#define SCAN_RECORD_SSID_OFFSET         24  /* up to 32 bytes, not NUL terminated */
+#define SCAN_RECORD_MAX_SSID_LENGTH     32
+
+static void packScanResult(jbyte *record, wifi_scan_result *result) {
+    memset(record, 0, SCAN_RECORD_SIZE);
+
+    int64_t ts = result->ts;
+    int32_t frequency = result->channel;
+    int32_t level = result->rssi;
+    memcpy(record + SCAN_RECORD_TIMESTAMP_OFFSET, &ts, sizeof(ts));
+    memcpy(record + SCAN_RECORD_FREQUENCY_OFFSET, &frequency, sizeof(frequency));
+    memcpy(record + SCAN_RECORD_LEVEL_OFFSET, &level, sizeof(level));
+    memcpy(record + SCAN_RECORD_BSSID_OFFSET, result->bssid, sizeof(mac_addr));
+
+    size_t ssid_len = strnlen(result->ssid, SCAN_RECORD_MAX_SSID_LENGTH);
+    record[SCAN_RECORD_SSID_LENGTH_OFFSET] = (jbyte) ssid_len;
+    memcpy(record + SCAN_RECORD_SSID_OFFSET, result->ssid, ssid_len);
+}
+
+static jint android_net_wifi_getScanResultsBuffer(
+        JNIEnv *env, jclass cls, jint iface, jboolean flush, jobject buffer)  {
+
+    jbyte *base = (jbyte *) env->GetDirectBufferAddress(buffer);
+    jlong capacity = env->GetDirectBufferCapacity(buffer);
+    if (base == NULL || capacity < SCAN_RECORD_SIZE) {
+        ALOGE("Error in accessing direct buffer");
+        return -1;
+    }
+
+    wifi_scan_result results[256];
+    int num_results = 256;
+    if (num_results > capacity / SCAN_RECORD_SIZE) {
+        num_results = capacity / SCAN_RECORD_SIZE;
+    }
+
+    wifi_interface_handle handle = getIfaceHandle(env, cls, iface);
+    ALOGD("getting packed scan results on interface[%d] = %p", iface, handle);
+
+    int result = wifi_get_cached_gscan_results(handle, 1, num_results, results, &num_results);
+    if (result != WIFI_SUCCESS) {
+        return -1;
+    }
+
+    for (int i = 0; i < num_results; i++) {
+        packScanResult(base + i * SCAN_RECORD_SIZE, &results[i]);
+    }
+    return num_results;
+}
+
 static jobject android_net_wifi_getScanResults(
         JNIEnv *env, jclass cls, jint iface, jboolean flush)  {
     
@@ -425,13 +609,7 @@ static jobject android_net_wifi_getScanResults(
     
     int result = wifi_get_cached_gscan_results(handle, 1, num_results, results, &num_results);
     if (result == WIFI_SUCCESS) {
-        jclass clsScanResult = (env)->FindClass("android/net/wifi/ScanResult");
-        if (clsScanResult == NULL) {
-            ALOGE("Error in accessing class");
-            return NULL;
-        }
-
-        jobjectArray scanResults = env->NewObjectArray(num_results, clsScanResult, NULL);
+        jobjectArray scanResults = env->NewObjectArray(num_results, gScanResultIds.clazz, NULL);
         if (scanResults == NULL) {
             ALOGE("Error in allocating array");
             return NULL;
@@ -439,25 +617,11 @@ static jobject android_net_wifi_getScanResults(
 
         for (int i = 0; i < num_results; i++) {
 
-            jobject scanResult = createObject(env, "android/net/wifi/ScanResult");
+            jobject scanResult = createScanResult(env, &results[i]);
             if (scanResult == NULL) {
-                ALOGE("Error in creating scan result");
                 return NULL;
             }
 
-            setStringField(env, scanResult, "SSID", results[i].ssid);
-
-            char bssid[32];
-            sprintf(bssid, "%02x:%02x:%02x:%02x:%02x:%02x", results[i].bssid[0],
-                    results[i].bssid[1], results[i].bssid[2], results[i].bssid[3],
-                    results[i].bssid[4], results[i].bssid[5]);
-
-            setStringField(env, scanResult, "BSSID", bssid);
-
-            setIntField(env, scanResult, "level", results[i].rssi);
-            setIntField(env, scanResult, "frequency", results[i].channel);
-            setLongField(env, scanResult, "timestamp", results[i].ts);
-
             env->SetObjectArrayElement(scanResults, i, scanResult);
             env->DeleteLocalRef(scanResult);
         }
@@ -558,13 +722,7 @@ static void onHotlistApFound(wifi_request_id id,
     ALOGD("onHotlistApFound called, vm = %p, obj = %p, env = %p, num_results = %d",
             mVM, mCls, env, num_results);
 
-    jclass clsScanResult = (env)->FindClass("android/net/wifi/ScanResult");
-    if (clsScanResult == NULL) {
-        ALOGE("Error in accessing class");
-        return;
-    }
-
-    jobjectArray scanResults = env->NewObjectArray(num_results, clsScanResult, NULL);
+    jobjectArray scanResults = env->NewObjectArray(num_results, gScanResultIds.clazz, NULL);
     if (scanResults == NULL) {
         ALOGE("Error in allocating array");
         return;
@@ -572,31 +730,19 @@ static void onHotlistApFound(wifi_request_id id,
 
     for (unsigned i = 0; i < num_results; i++) {
 
-        jobject scanResult = createObject(env, "android/net/wifi/ScanResult");
+        jobject scanResult = createScanResult(env, &results[i]);
         if (scanResult == NULL) {
-            ALOGE("Error in creating scan result");
             return;
         }
 
-        setStringField(env, scanResult, "SSID", results[i].ssid);
-
-        char bssid[32];
-        sprintf(bssid, "%02x:%02x:%02x:%02x:%02x:%02x", results[i].bssid[0], results[i].bssid[1],
-            results[i].bssid[2], results[i].bssid[3], results[i].bssid[4], results[i].bssid[5]);
-
-        setStringField(env, scanResult, "BSSID", bssid);
-
-        setIntField(env, scanResult, "level", results[i].rssi);
-        setIntField(env, scanResult, "frequency", results[i].channel);
-        setLongField(env, scanResult, "timestamp", results[i].ts);
-
         env->SetObjectArrayElement(scanResults, i, scanResult);
+        env->DeleteLocalRef(scanResult);
 
-        ALOGD("Found AP %32s %s", results[i].ssid, bssid);
+        ALOGD("Found AP %32s", results[i].ssid);
     }
 
-    reportEvent(env, mCls, "onHotlistApFound", "(I[Landroid/net/wifi/ScanResult;)V",
-        id, scanResults);
+    reportEvent(env, mCls, gWifiNativeIds.onHotlistApFound, id, scanResults);
+    env->DeleteLocalRef(scanResults);
 }
 
 static jboolean android_net_wifi_setHotlist(
@@ -670,13 +816,7 @@ void onSignificantWifiChange(wifi_request_id id,
 
     ALOGD("onSignificantWifiChange called, vm = %p, obj = %p, env = %p", mVM, mCls, env);
 
-    jclass clsScanResult = (env)->FindClass("android/net/wifi/ScanResult");
-    if (clsScanResult == NULL) {
-        ALOGE("Error in accessing class");
-        return;
-    }
-
-    jobjectArray scanResults = env->NewObjectArray(num_results, clsScanResult, NULL);
+    jobjectArray scanResults = env->NewObjectArray(num_results, gScanResultIds.clazz, NULL);
     if (scanResults == NULL) {
         ALOGE("Error in allocating array");
         return;
@@ -684,31 +824,32 @@ void onSignificantWifiChange(wifi_request_id id,
 
     for (unsigned i = 0; i < num_results; i++) {
 
-        wifi_significant_change_result result = *(results[i]);
+        wifi_significant_change_result &result = *(results[i]);
 
-        jobject scanResult = createObject(env, "android/net/wifi/ScanResult");
+        jobject scanResult = createObject(env, gScanResultIds.clazz, gScanResultIds.constructor);
         if (scanResult == NULL) {
             ALOGE("Error in creating scan result");
             return;
         }
 
-        // setStringField(env, scanResult, "SSID", results[i].ssid);
+        // setStringField(env, scanResult, gScanResultIds.SSID, results[i].ssid);
 
         char bssid[32];
         sprintf(bssid, "%02x:%02x:%02x:%02x:%02x:%02x", result.bssid[0], result.bssid[1],
             result.bssid[2], result.bssid[3], result.bssid[4], result.bssid[5]);
 
-        setStringField(env, scanResult, "BSSID", bssid);
+        setStringField(env, scanResult, gScanResultIds.BSSID, bssid);
 
-        setIntField(env, scanResult, "level", result.rssi[0]);
-        setIntField(env, scanResult, "frequency", result.channel);
-        // setLongField(env, scanResult, "timestamp", result.ts);
+        setIntField(env, scanResult, gScanResultIds.level, result.rssi[0]);
+        setIntField(env, scanResult, gScanResultIds.frequency, result.channel);
+        // setLongField(env, scanResult, gScanResultIds.timestamp, result.ts);
 
         env->SetObjectArrayElement(scanResults, i, scanResult);
+        env->DeleteLocalRef(scanResult);
     }
 
-    reportEvent(env, mCls, "onSignificantWifiChange", "(I[Landroid/net/wifi/ScanResult;)V",
-        id, scanResults);
+    reportEvent(env, mCls, gWifiNativeIds.onSignificantWifiChange, id, scanResults);
+    env->DeleteLocalRef(scanResults);
 
 }
 
@@ -890,13 +1031,7 @@ static void onRttResults(wifi_request_id id, unsigned num_results, wifi_rtt_resu
 
     ALOGD("onRttResults called, vm = %p, obj = %p, env = %p", mVM, mCls, env);
 
-    jclass clsRttResult = (env)->FindClass("android/net/wifi/RttManager$RttResult");
-    if (clsRttResult == NULL) {
-        ALOGE("Error in accessing class");
-        return;
-    }
-
-    jobjectArray rttResults = env->NewObjectArray(num_results, clsRttResult, NULL);
+    jobjectArray rttResults = env->NewObjectArray(num_results, gRttResultIds.clazz, NULL);
     if (rttResults == NULL) {
         ALOGE("Error in allocating array");
         return;
@@ -906,7 +1041,7 @@ static void onRttResults(wifi_request_id id, unsigned num_results, wifi_rtt_resu
 
         wifi_rtt_result& result = results[i];
 
-        jobject rttResult = createObject(env, "android/net/wifi/RttManager$RttResult");
+        jobject rttResult = createObject(env, gRttResultIds.clazz, gRttResultIds.constructor);
         if (rttResult == NULL) {
             ALOGE("Error in creating rtt result");
             return;
@@ -916,25 +1051,26 @@ static void onRttResults(wifi_request_id id, unsigned num_results, wifi_rtt_resu
         sprintf(bssid, "%02x:%02x:%02x:%02x:%02x:%02x", result.addr[0], result.addr[1],
             result.addr[2], result.addr[3], result.addr[4], result.addr[5]);
 
-        setStringField(env, rttResult, "bssid", bssid);
-        setIntField(env,  rttResult, "status",               result.status);
-        setIntField(env,  rttResult, "requestType",          result.type);
-        setLongField(env, rttResult, "ts",                   result.ts);
-        setIntField(env,  rttResult, "rssi",                 result.rssi);
-        setIntField(env,  rttResult, "rssi_spread",          result.rssi_spread);
-        setIntField(env,  rttResult, "tx_rate",              result.tx_rate.bitrate);
-        setLongField(env, rttResult, "rtt_ns",               result.rtt);
-        setLongField(env, rttResult, "rtt_sd_ns",            result.rtt_sd);
-        setLongField(env, rttResult, "rtt_spread_ns",        result.rtt_spread);
-        setIntField(env,  rttResult, "distance_cm",          result.distance);
-        setIntField(env,  rttResult, "distance_sd_cm",       result.distance_sd);
-        setIntField(env,  rttResult, "distance_spread_cm",   result.distance_spread);
+        setStringField(env, rttResult, gRttResultIds.bssid, bssid);
+        setIntField(env,  rttResult, gRttResultIds.status,             result.status);
+        setIntField(env,  rttResult, gRttResultIds.requestType,        result.type);
+        setLongField(env, rttResult, gRttResultIds.ts,                 result.ts);
+        setIntField(env,  rttResult, gRttResultIds.rssi,               result.rssi);
+        setIntField(env,  rttResult, gRttResultIds.rssi_spread,        result.rssi_spread);
+        setIntField(env,  rttResult, gRttResultIds.tx_rate,            result.tx_rate.bitrate);
+        setLongField(env, rttResult, gRttResultIds.rtt_ns,             result.rtt);
+        setLongField(env, rttResult, gRttResultIds.rtt_sd_ns,          result.rtt_sd);
+        setLongField(env, rttResult, gRttResultIds.rtt_spread_ns,      result.rtt_spread);
+        setIntField(env,  rttResult, gRttResultIds.distance_cm,        result.distance);
+        setIntField(env,  rttResult, gRttResultIds.distance_sd_cm,     result.distance_sd);
+        setIntField(env,  rttResult, gRttResultIds.distance_spread_cm, result.distance_spread);
 
         env->SetObjectArrayElement(rttResults, i, rttResult);
+        env->DeleteLocalRef(rttResult);
     }
 
-    reportEvent(env, mCls, "onRttResults", "(I[Landroid/net/wifi/RttManager$RttResult;)V",
-        id, rttResults);
+    reportEvent(env, mCls, gWifiNativeIds.onRttResults, id, rttResults);
+    env->DeleteLocalRef(rttResults);
 }
 
 const int MaxRttConfigs = 16;
@@ -1067,11 +1203,11 @@ static jintArray android_net_wifi_getValidChannels(JNIEnv *env, jclass cls,
 static JNINativeMethod gWifiMethods[] = {
     /* name, signature, funcPtr */
 
-    { "loadDriver", "()Z",  (void *)android_net_wifi_loadDriver },
-    { "isDriverLoaded", "()Z",  (void *)android_net_wifi_isDriverLoaded },
-    { "unloadDriver", "()Z",  (void *)android_net_wifi_unloadDriver },
-    { "startSupplicant", "(Z)Z",  (void *)android_net_wifi_startSupplicant },
-    { "killSupplicant", "(Z)Z",  (void *)android_net_wifi_killSupplicant },
+    { "loadDriverNative", "()Z",  (void *)android_net_wifi_loadDriver },
+    { "isDriverLoadedNative", "()Z",  (void *)android_net_wifi_isDriverLoaded },
+    { "unloadDriverNative", "()Z",  (void *)android_net_wifi_unloadDriver },
+    { "startSupplicantNative", "(Z)Z",  (void *)android_net_wifi_startSupplicant },
+    { "killSupplicantNative", "(Z)Z",  (void *)android_net_wifi_killSupplicant },
     { "connectToSupplicantNative", "()Z", (void *)android_net_wifi_connectToSupplicant },
     { "closeSupplicantConnectionNative", "()V",
             (void *)android_net_wifi_closeSupplicantConnection },
@@ -1092,6 +1228,8 @@ static JNINativeMethod gWifiMethods[] = {
     { "stopScanNative", "(II)Z", (void*) android_net_wifi_stopScan},
     { "getScanResultsNative", "(IZ)[Landroid/net/wifi/ScanResult;",
             (void *) android_net_wifi_getScanResults},
+    { "getScanResultsBufferNative", "(IZLjava/nio/ByteBuffer;)I",
+            (void *) android_net_wifi_getScanResultsBuffer},
     { "setHotlistNative", "(IILandroid/net/wifi/WifiScanner$HotlistSettings;)Z",
             (void*) android_net_wifi_setHotlist},
     { "resetHotlistNative", "(II)Z", (void*) android_net_wifi_resetHotlist},
@@ -1112,6 +1250,10 @@ static JNINativeMethod gWifiMethods[] = {
 };
 
 int register_android_net_wifi_WifiNative(JNIEnv* env) {
+    if (!initJniIds(env)) {
+        ALOGE("Unable to resolve wifi HAL classes and member IDs");
+        return -1;
+    }
     return AndroidRuntime::registerNativeMethods(env,
             "com/android/server/wifi/WifiNative", gWifiMethods, NELEM(gWifiMethods));
 }
@@ -1120,6 +1262,10 @@ int register_android_net_wifi_WifiNative(JNIEnv* env) {
 /* User to register native functions */
 extern "C"
 jint Java_com_android_server_wifi_WifiNative_registerNatives(JNIEnv* env, jclass clazz) {
+    if (!initJniIds(env)) {
+        ALOGE("Unable to resolve wifi HAL classes and member IDs");
+        return -1;
+    }
     return AndroidRuntime::registerNativeMethods(env,
             "com/android/server/wifi/WifiNative", gWifiMethods, NELEM(gWifiMethods));
 }
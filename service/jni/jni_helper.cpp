@@ -418,6 +418,83 @@ jobject createObject(JNIEnv *env, const char *className)
     return obj;
 }
 
-}; // namespace android
+jclass findClassGlobal(JNIEnv *env, const char *className)
+{
+    jclass cls = env->FindClass(className);
+    if (cls == NULL) {
+        ALOGE("Error in finding class %s", className);
+        return NULL;
+    }
+
+    jclass global = (jclass) env->NewGlobalRef(cls);
+    env->DeleteLocalRef(cls);
+    return global;
+}
+
+jfieldID findFieldID(JNIEnv *env, jclass cls, const char *name, const char *type)
+{
+    jfieldID field = env->GetFieldID(cls, name, type);
+    if (field == NULL) {
+        ALOGE("Error in finding field %s %s", name, type);
+    }
+    return field;
+}
+
+jmethodID findMethodID(JNIEnv *env, jclass cls, const char *name, const char *signature)
+{
+    jmethodID method = env->GetMethodID(cls, name, signature);
+    if (method == NULL) {
+        ALOGE("Error in finding method %s %s", name, signature);
+    }
+    return method;
+}
+
+jmethodID findStaticMethodID(JNIEnv *env, jclass cls, const char *name, const char *signature)
+{
+    jmethodID method = env->GetStaticMethodID(cls, name, signature);
+    if (method == NULL) {
+        ALOGE("Error in finding static method %s %s", name, signature);
+    }
+    return method;
+}
+
+void setIntField(JNIEnv *env, jobject obj, jfieldID field, jint value)
+{
+    env->SetIntField(obj, field, value);
+}
 
+void setLongField(JNIEnv *env, jobject obj, jfieldID field, jlong value)
+{
+    env->SetLongField(obj, field, value);
+}
+
+void setStringField(JNIEnv *env, jobject obj, jfieldID field, const char *value)
+{
+    jstring str = env->NewStringUTF(value);
+    if (str == NULL) {
+        ALOGE("Error in allocating string");
+        return;
+    }
+
+    env->SetObjectField(obj, field, str);
+    env->DeleteLocalRef(str);
+}
 
+void reportEvent(JNIEnv *env, jclass cls, jmethodID method, ...)
+{
+    va_list params;
+    va_start(params, method);
+    env->CallStaticVoidMethodV(cls, method, params);
+    va_end(params);
+}
+
+jobject createObject(JNIEnv *env, jclass cls, jmethodID constructor)
+{
+    jobject obj = env->NewObject(cls, constructor);
+    if (obj == NULL) {
+        ALOGE("Error in creating object");
+    }
+    return obj;
+}
+
+}; // namespace android
@@ -19,6 +19,20 @@ void reportEvent(JNIEnv *env, jclass cls, const char *method, const char *signat
 jobject createObject(JNIEnv *env, const char *className);
 void setObjectField(JNIEnv *env, jobject obj, const char *name, const char *type, jobject value);
 
+/*
+ * Cached variants: look classes and member IDs up once (e.g. when registering natives)
+ * and use the typed setters on hot paths. Classes are returned as global references.
+ */
+jclass findClassGlobal(JNIEnv *env, const char *className);
+jfieldID findFieldID(JNIEnv *env, jclass cls, const char *name, const char *type);
+jmethodID findMethodID(JNIEnv *env, jclass cls, const char *name, const char *signature);
+jmethodID findStaticMethodID(JNIEnv *env, jclass cls, const char *name, const char *signature);
+void setIntField(JNIEnv *env, jobject obj, jfieldID field, jint value);
+void setLongField(JNIEnv *env, jobject obj, jfieldID field, jlong value);
+void setStringField(JNIEnv *env, jobject obj, jfieldID field, const char *value);
+void reportEvent(JNIEnv *env, jclass cls, jmethodID method, ...);
+jobject createObject(JNIEnv *env, jclass cls, jmethodID constructor);
+
 jlong getStaticLongField(JNIEnv *env, jobject obj, const char *name);
 jlong getStaticLongField(JNIEnv *env, jclass cls, const char *name);
 void setStaticLongField(JNIEnv *env, jobject obj, const char *name, jlong value);
@@ -0,0 +1,64 @@
+# Copyright (C) 2014 The Android Open Source Project
+#
+# Licensed under the Apache License, Version 2.0 (the "License");
+# you may not use this file except in compliance with the License.
+# You may obtain a copy of the License at
+#
+#      http://www.apache.org/licenses/LICENSE-2.0
+#
+# Unless required by applicable law or agreed to in writing, software
+# distributed under the License is distributed on an "AS IS" BASIS,
+# WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+# See the License for the specific language governing permissions and
+# limitations under the License.
+
+LOCAL_PATH:= $(call my-dir)
+
+# Native side of ScanResultJniBenchmarkTest, on the jni_helper of wifi-service
+include $(CLEAR_VARS)
+
+LOCAL_MODULE_TAGS := tests
+
+LOCAL_CFLAGS += -Wno-unused-parameter
+
+LOCAL_C_INCLUDES += \
+	$(JNI_H_INCLUDE) \
+	$(LOCAL_PATH)/../../service/jni \
+	$(call include-path-for, libhardware_legacy)/hardware_legacy \
+	libcore/include
+
+LOCAL_SHARED_LIBRARIES += \
+	libnativehelper \
+	libcutils \
+	libutils \
+	libandroid_runtime
+
+LOCAL_SRC_FILES := \
+	jni/com_android_server_wifi_ScanResultJniBenchmarkTest.cpp \
+	../../service/jni/jni_helper.cpp
+
+LOCAL_MODULE := libwifi-service-tests-jni
+
+include $(BUILD_SHARED_LIBRARY)
+
+# Tests and benchmarks of wifi-service, run against FakeSupplicant:
+#   adb shell am instrument -w com.android.server.wifi.test/android.test.InstrumentationTestRunner
+# Benchmarks are @LargeTest and report their figures in logcat, tag WifiBenchmark.
+include $(CLEAR_VARS)
+
+LOCAL_MODULE_TAGS := tests
+
+LOCAL_SRC_FILES := $(call all-java-files-under, src)
+
+LOCAL_JAVA_RESOURCE_DIRS := resources
+
+LOCAL_STATIC_JAVA_LIBRARIES := wifi-service
+
+LOCAL_JAVA_LIBRARIES := android.test.runner bouncycastle conscrypt services
+
+LOCAL_JNI_SHARED_LIBRARIES := libwifi-service-tests-jni
+
+LOCAL_PACKAGE_NAME := FrameworksWifiTests
+LOCAL_CERTIFICATE := platform
+
+include $(BUILD_PACKAGE)
@@ -0,0 +1,154 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+#define LOG_TAG "WifiBenchmark"
+
+#include "jni.h"
+#include <utils/Log.h>
+#include <stdio.h>
+#include <string.h>
+
+#include "wifi_hal.h"
+#include "jni_helper.h"
+
+/*
+ * Native side of ScanResultJniBenchmarkTest: builds arrays of ScanResult objects from
+ * synthetic wifi_scan_result batches, the way the HAL event paths of WifiNative.cpp do,
+ * either looking classes and fields up by name for every result (as before IDs were
+ * cached) or with IDs resolved once in JNI_OnLoad (as createScanResult() does now).
+ */
+
+namespace android {
+
+static struct {
+    jclass clazz;
+    jmethodID constructor;
+    jfieldID SSID;
+    jfieldID BSSID;
+    jfieldID level;
+    jfieldID frequency;
+    jfieldID timestamp;
+} gScanResultIds;
+
+static void fillScanResult(wifi_scan_result *result, int i) {
+    memset(result, 0, sizeof(*result));
+    snprintf(result->ssid, sizeof(result->ssid), "bench-ap-%d", i % 64);
+    result->bssid[0] = 0x02;
+    result->bssid[3] = (i >> 16) & 0xff;
+    result->bssid[4] = (i >> 8) & 0xff;
+    result->bssid[5] = i & 0xff;
+    result->rssi = -40 - (i % 50);
+    result->channel = (i % 2) ? 5180 : 2412;
+    result->ts = 1000000LL + i;
+}
+
+static void formatBssid(char *bssid, size_t size, wifi_scan_result *result) {
+    snprintf(bssid, size, "%02x:%02x:%02x:%02x:%02x:%02x", result->bssid[0],
+            result->bssid[1], result->bssid[2], result->bssid[3], result->bssid[4],
+            result->bssid[5]);
+}
+
+static jobject createScanResultByName(JNIEnv *env, wifi_scan_result *result) {
+    jobject scanResult = createObject(env, "android/net/wifi/ScanResult");
+    if (scanResult == NULL) {
+        return NULL;
+    }
+    setStringField(env, scanResult, "SSID", result->ssid);
+    char bssid[32];
+    formatBssid(bssid, sizeof(bssid), result);
+    setStringField(env, scanResult, "BSSID", bssid);
+    setIntField(env, scanResult, "level", result->rssi);
+    setIntField(env, scanResult, "frequency", result->channel);
+    setLongField(env, scanResult, "timestamp", result->ts);
+    return scanResult;
+}
+
+static jobject createScanResultCached(JNIEnv *env, wifi_scan_result *result) {
+    jobject scanResult = createObject(env, gScanResultIds.clazz, gScanResultIds.constructor);
+    if (scanResult == NULL) {
+        return NULL;
+    }
+    setStringField(env, scanResult, gScanResultIds.SSID, result->ssid);
+    char bssid[32];
+    formatBssid(bssid, sizeof(bssid), result);
+    setStringField(env, scanResult, gScanResultIds.BSSID, bssid);
+    setIntField(env, scanResult, gScanResultIds.level, result->rssi);
+    setIntField(env, scanResult, gScanResultIds.frequency, result->channel);
+    setLongField(env, scanResult, gScanResultIds.timestamp, result->ts);
+    return scanResult;
+}
+
+static jobjectArray buildScanResults(JNIEnv *env, jint count, bool cached) {
+    jobjectArray scanResults = env->NewObjectArray(count, gScanResultIds.clazz, NULL);
+    if (scanResults == NULL) {
+        return NULL;
+    }
+    wifi_scan_result result;
+    for (jint i = 0; i < count; i++) {
+        fillScanResult(&result, i);
+        jobject scanResult = cached ? createScanResultCached(env, &result)
+                : createScanResultByName(env, &result);
+        if (scanResult == NULL) {
+            env->DeleteLocalRef(scanResults);
+            return NULL;
+        }
+        env->SetObjectArrayElement(scanResults, i, scanResult);
+        // Both ways release their per-result references, so only the lookups differ
+        env->DeleteLocalRef(scanResult);
+    }
+    return scanResults;
+}
+
+extern "C"
+jobjectArray Java_com_android_server_wifi_ScanResultJniBenchmarkTest_buildByName(
+        JNIEnv *env, jclass cls, jint count) {
+    return buildScanResults(env, count, false);
+}
+
+extern "C"
+jobjectArray Java_com_android_server_wifi_ScanResultJniBenchmarkTest_buildCached(
+        JNIEnv *env, jclass cls, jint count) {
+    return buildScanResults(env, count, true);
+}
+
+}; // namespace android
+
+extern "C"
+jint JNI_OnLoad(JavaVM *vm, void *reserved) {
+    using namespace android;
+
+    JNIEnv *env = NULL;
+    if (vm->GetEnv((void **) &env, JNI_VERSION_1_4) != JNI_OK) {
+        return -1;
+    }
+    jclass cls = findClassGlobal(env, "android/net/wifi/ScanResult");
+    if (cls == NULL) {
+        return -1;
+    }
+    gScanResultIds.clazz = cls;
+    gScanResultIds.constructor = findMethodID(env, cls, "<init>", "()V");
+    gScanResultIds.SSID = findFieldID(env, cls, "SSID", "Ljava/lang/String;");
+    gScanResultIds.BSSID = findFieldID(env, cls, "BSSID", "Ljava/lang/String;");
+    gScanResultIds.level = findFieldID(env, cls, "level", "I");
+    gScanResultIds.frequency = findFieldID(env, cls, "frequency", "I");
+    gScanResultIds.timestamp = findFieldID(env, cls, "timestamp", "J");
+    if (env->ExceptionCheck()) {
+        env->ExceptionClear();
+        ALOGE("Unable to resolve ScanResult member IDs");
+        return -1;
+    }
+    return JNI_VERSION_1_4;
+}
@@ -0,0 +1,167 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.wifi;
+
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Message;
+import android.test.suitebuilder.annotation.SmallTest;
+
+import junit.framework.TestCase;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Unit tests of {@link AsyncCommandExecutor}, and of the asynchronous signal poll of
+ * WifiNative running on it against {@link FakeSupplicant}.
+ */
+@SmallTest
+public class AsyncCommandExecutorTest extends TestCase {
+
+    private static final long TIMEOUT_MS = 5000;
+
+    /* Stands for the reply of a Message whose obj was null */
+    private static final Object NULL_REPLY = new Object();
+
+    private HandlerThread mThread;
+    private Handler mHandler;
+    private final LinkedBlockingQueue<Object> mReplies = new LinkedBlockingQueue<Object>();
+    private final CountDownLatch mUnblock = new CountDownLatch(1);
+
+    private final Callable<String> mBlocking = new Callable<String>() {
+        @Override
+        public String call() throws Exception {
+            mUnblock.await();
+            return "blocked";
+        }
+    };
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mThread = new HandlerThread("AsyncCommandExecutorTest");
+        mThread.start();
+        mHandler = new Handler(mThread.getLooper()) {
+            @Override
+            public void handleMessage(Message msg) {
+                mReplies.add(msg.obj != null ? msg.obj : NULL_REPLY);
+            }
+        };
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mUnblock.countDown();
+        mThread.quit();
+        WifiNative.setSupplicantTransport(null);
+        super.tearDown();
+    }
+
+    private static Callable<String> constant(final String value) {
+        return new Callable<String>() {
+            @Override
+            public String call() {
+                return value;
+            }
+        };
+    }
+
+    private static Throwable causeOf(Future<?> future) throws Exception {
+        try {
+            future.get(TIMEOUT_MS, TimeUnit.MILLISECONDS);
+            fail("Expected a failure");
+        } catch (ExecutionException e) {
+            return e.getCause();
+        }
+        return null;
+    }
+
+    private static void waitForInFlight(AsyncCommandExecutor executor, int count)
+            throws Exception {
+        long deadline = System.currentTimeMillis() + TIMEOUT_MS;
+        while (executor.getInFlight() != count) {
+            assertTrue("inFlight=" + executor.getInFlight(),
+                    System.currentTimeMillis() < deadline);
+            Thread.sleep(5);
+        }
+    }
+
+    public void testRejectsOverLimit() throws Exception {
+        AsyncCommandExecutor executor = new AsyncCommandExecutor("test", 2, TIMEOUT_MS);
+        Future<String> first = executor.submit(mBlocking);
+        Future<String> second = executor.submit(constant("second"));
+        executor.submit(constant("third"), mHandler.obtainMessage());
+
+        assertSame(NULL_REPLY, mReplies.poll(TIMEOUT_MS, TimeUnit.MILLISECONDS));
+        assertEquals(2, executor.getInFlight());
+
+        mUnblock.countDown();
+        assertEquals("blocked", first.get(TIMEOUT_MS, TimeUnit.MILLISECONDS));
+        assertEquals("second", second.get(TIMEOUT_MS, TimeUnit.MILLISECONDS));
+        waitForInFlight(executor, 0);
+    }
+
+    public void testCancelledTaskHoldsSlotUntilDequeued() throws Exception {
+        AsyncCommandExecutor executor = new AsyncCommandExecutor("test", 2, TIMEOUT_MS);
+        executor.submit(mBlocking);
+        Future<String> queued = executor.submit(constant("queued"));
+        assertTrue(queued.cancel(false));
+
+        // The cancelled task is still in the queue, so it still counts against the limit
+        assertEquals(2, executor.getInFlight());
+        Throwable cause = causeOf(executor.submit(constant("over")));
+        assertTrue(String.valueOf(cause), cause instanceof RejectedExecutionException);
+
+        mUnblock.countDown();
+        waitForInFlight(executor, 0);
+        Future<String> next = executor.submit(constant("next"));
+        assertEquals("next", next.get(TIMEOUT_MS, TimeUnit.MILLISECONDS));
+        waitForInFlight(executor, 0);
+    }
+
+    public void testExpiresInQueue() throws Exception {
+        AsyncCommandExecutor executor = new AsyncCommandExecutor("test", 4, 50);
+        executor.submit(mBlocking);
+        Future<String> expired = executor.submit(constant("expired"));
+        Thread.sleep(100);
+        mUnblock.countDown();
+
+        Throwable cause = causeOf(expired);
+        assertTrue(String.valueOf(cause), cause instanceof TimeoutException);
+        waitForInFlight(executor, 0);
+    }
+
+    public void testSignalPollReply() throws Exception {
+        FakeSupplicant supplicant = TestResources.scenario("office.txt");
+        WifiNative.setSupplicantTransport(supplicant);
+        WifiNative wifiNative = new WifiNative("wlan0");
+        assertTrue(wifiNative.enableNetwork(0, true));
+
+        LinkPollResult result = new LinkPollResult();
+        wifiNative.signalPoll(result, mHandler.obtainMessage());
+        assertSame(result, mReplies.poll(TIMEOUT_MS, TimeUnit.MILLISECONDS));
+        assertEquals(2412, result.frequency);
+        assertEquals(65, result.linkSpeed);
+    }
+}
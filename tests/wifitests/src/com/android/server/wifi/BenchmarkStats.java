@@ -0,0 +1,101 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.wifi;
+
+import android.os.Debug;
+import android.util.Log;
+
+import java.util.Arrays;
+
+/**
+ * Samples of one benchmark figure, reported in logcat with the tag WifiBenchmark.
+ */
+class BenchmarkStats {
+
+    static final String TAG = "WifiBenchmark";
+
+    private final String mName;
+    private final String mUnit;
+    private long[] mSamples = new long[16];
+    private int mCount;
+
+    /**
+     * @param unit of the samples; samples in "ns" are reported in microseconds
+     */
+    BenchmarkStats(String name, String unit) {
+        mName = name;
+        mUnit = unit;
+    }
+
+    void add(long sample) {
+        if (mCount == mSamples.length) mSamples = Arrays.copyOf(mSamples, mCount * 2);
+        mSamples[mCount++] = sample;
+    }
+
+    int count() {
+        return mCount;
+    }
+
+    /**
+     * @return the sample below which p percent of the samples fall, 0 if there are none
+     */
+    long percentile(int p) {
+        if (mCount == 0) return 0;
+        long[] sorted = Arrays.copyOf(mSamples, mCount);
+        Arrays.sort(sorted);
+        return sorted[Math.min(mCount - 1, mCount * p / 100)];
+    }
+
+    long median() {
+        return percentile(50);
+    }
+
+    long max() {
+        return percentile(100);
+    }
+
+    void report() {
+        Log.i(TAG, toString());
+    }
+
+    @Override
+    public String toString() {
+        return mName + " n=" + mCount
+                + " median=" + format(median())
+                + " p90=" + format(percentile(90))
+                + " max=" + format(max());
+    }
+
+    private String format(long sample) {
+        if (mUnit.equals("ns")) return String.format("%.1fus", sample / 1000.0);
+        return sample + mUnit;
+    }
+
+    /**
+     * @return the bytes allocated by the calling thread while running r
+     */
+    static long allocatedBytes(Runnable r) {
+        Debug.startAllocCounting();
+        try {
+            Debug.resetThreadAllocSize();
+            r.run();
+            return Debug.getThreadAllocSize();
+        } finally {
+            Debug.stopAllocCounting();
+        }
+    }
+}
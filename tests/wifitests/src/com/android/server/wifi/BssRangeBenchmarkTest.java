@@ -0,0 +1,231 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.wifi;
+
+import android.net.wifi.ScanResult;
+import android.test.suitebuilder.annotation.LargeTest;
+
+import junit.framework.TestCase;
+
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Compares {@link BssRangeParser} with the split based parsing it replaced,
+ * {@link LegacyBssRangeParser}, on multi-page BSS RANGE= dumps: both must decode the same
+ * scan results, and the latency and allocation of each are reported for a first scan
+ * (empty cache) and a rescan of the same BSSes.
+ */
+@LargeTest
+public class BssRangeBenchmarkTest extends TestCase {
+
+    /* As in WifiStateMachine, for both parsers */
+    private static final int CACHE_SIZE = 160;
+    private static final int WARMUP = 5;
+    private static final int ITERATIONS = 30;
+
+    /**
+     * Merges the entries of BssRangeParser into a ScanResultCache, like the BSS entry
+     * handler of WifiStateMachine.
+     */
+    private static class Merger implements BssRangeParser.Callback {
+        final BssRangeParser parser = new BssRangeParser();
+        final ScanResultCache cache = new ScanResultCache(CACHE_SIZE);
+        final ArrayList<ScanResult> results = new ArrayList<ScanResult>();
+
+        List<ScanResult> parse(List<String> pages) {
+            results.clear();
+            int sid = 0;
+            for (int i = 0; i < pages.size() && sid != BssRangeParser.NO_MORE_PAGES; i++) {
+                String page = pages.get(i);
+                sid = parser.parsePage(page, this);
+                if (!WifiNative.isScanResultsPageFull(page)) sid = BssRangeParser.NO_MORE_PAGES;
+            }
+            return results;
+        }
+
+        @Override
+        public void onBssEntry(BssRangeParser entry) {
+            if (!entry.hasValidBssid()
+                    || entry.getPackedBssid() == ScanResultCache.INVALID_BSSID) {
+                return;
+            }
+            ScanResult result = entry.findIn(cache);
+            if (result != null) {
+                result.level = entry.getLevel();
+                result.timestamp = entry.getTsf();
+                if (result.frequency != entry.getFrequency()
+                        || !entry.flagsEqual(result.capabilities)) {
+                    result.capabilities = entry.getFlags();
+                    result.frequency = entry.getFrequency();
+                }
+            } else {
+                result = new ScanResult(entry.getWifiSsid(), entry.getBssid(),
+                        entry.getFlags(), entry.getLevel(), entry.getFrequency(),
+                        entry.getTsf());
+                cache.put(entry.getPackedBssid(), entry.getRawSsid(), result);
+            }
+            results.add(result);
+        }
+    }
+
+    /**
+     * @return the pages of a dump under resources/bss_range, separated by %page lines
+     */
+    private static List<String> recordedPages(String name) throws Exception {
+        ArrayList<String> pages = new ArrayList<String>();
+        StringBuilder page = new StringBuilder();
+        for (String line : TestResources.read("bss_range/" + name).split("\n")) {
+            if (line.startsWith("# ")) continue;
+            if (line.equals("%page")) {
+                pages.add(page.toString());
+                page.setLength(0);
+                continue;
+            }
+            if (page.length() > 0) page.append('\n');
+            page.append(line);
+        }
+        pages.add(page.toString());
+        return pages;
+    }
+
+    /**
+     * @return the BSS RANGE= pages of count BSSes generated by FakeSupplicant
+     */
+    private static List<String> generatedPages(int count) throws Exception {
+        FakeSupplicant supplicant =
+                FakeSupplicant.fromScenario(new StringReader("bsses " + count));
+        ArrayList<String> pages = new ArrayList<String>();
+        Merger merger = new Merger();
+        int sid = 0;
+        while (sid != BssRangeParser.NO_MORE_PAGES) {
+            String page = supplicant.doStringCommand("BSS RANGE=" + sid + "- MASK=0x21987");
+            pages.add(page);
+            sid = merger.parser.parsePage(page, merger);
+        }
+        assertEquals(count, merger.results.size());
+        return pages;
+    }
+
+    private static void assertSameResults(List<ScanResult> expected, List<ScanResult> actual) {
+        assertEquals(expected.size(), actual.size());
+        for (int i = 0; i < expected.size(); i++) {
+            ScanResult e = expected.get(i);
+            ScanResult a = actual.get(i);
+            String where = "result " + i + " " + e;
+            assertEquals(where, e.BSSID, a.BSSID);
+            assertEquals(where, e.SSID, a.SSID);
+            assertEquals(where, e.capabilities, a.capabilities);
+            assertEquals(where, e.level, a.level);
+            assertEquals(where, e.frequency, a.frequency);
+            assertEquals(where, e.timestamp, a.timestamp);
+        }
+    }
+
+    public void testRecordedDump() throws Exception {
+        List<String> pages = recordedPages("mixed.txt");
+        assertEquals(2, pages.size());
+        List<ScanResult> expected = new LegacyBssRangeParser(CACHE_SIZE).parse(pages);
+        // The null BSSID is dropped by both
+        assertEquals(43, expected.size());
+        Merger merger = new Merger();
+        assertSameResults(expected, merger.parse(pages));
+        for (ScanResult result : merger.results) {
+            if (result.BSSID.equals("00:24:6c:41:2a:b0")) assertEquals(-56, result.level);
+        }
+        // Rescan, all from the cache
+        assertSameResults(expected, merger.parse(pages));
+    }
+
+    public void testBenchmark10() throws Exception {
+        runBenchmark(10);
+    }
+
+    public void testBenchmark100() throws Exception {
+        runBenchmark(100);
+    }
+
+    public void testBenchmark1000() throws Exception {
+        runBenchmark(1000);
+    }
+
+    private void runBenchmark(int bsses) throws Exception {
+        final List<String> pages = generatedPages(bsses);
+        String name = bsses + " BSSes " + pages.size() + " pages";
+        assertSameResults(new LegacyBssRangeParser(CACHE_SIZE).parse(pages),
+                new Merger().parse(pages));
+
+        BenchmarkStats legacyFirst = new BenchmarkStats("legacy first scan " + name, "ns");
+        BenchmarkStats legacyRescan = new BenchmarkStats("legacy rescan " + name, "ns");
+        BenchmarkStats parserFirst = new BenchmarkStats("parser first scan " + name, "ns");
+        BenchmarkStats parserRescan = new BenchmarkStats("parser rescan " + name, "ns");
+        for (int i = 0; i < WARMUP + ITERATIONS; i++) {
+            boolean measure = i >= WARMUP;
+            LegacyBssRangeParser legacy = new LegacyBssRangeParser(CACHE_SIZE);
+            long start = System.nanoTime();
+            legacy.parse(pages);
+            long first = System.nanoTime();
+            legacy.parse(pages);
+            long end = System.nanoTime();
+            if (measure) {
+                legacyFirst.add(first - start);
+                legacyRescan.add(end - first);
+            }
+
+            Merger merger = new Merger();
+            start = System.nanoTime();
+            merger.parse(pages);
+            first = System.nanoTime();
+            merger.parse(pages);
+            end = System.nanoTime();
+            if (measure) {
+                parserFirst.add(first - start);
+                parserRescan.add(end - first);
+            }
+        }
+        legacyFirst.report();
+        legacyRescan.report();
+        parserFirst.report();
+        parserRescan.report();
+
+        final LegacyBssRangeParser legacy = new LegacyBssRangeParser(CACHE_SIZE);
+        final Merger merger = new Merger();
+        Runnable parseLegacy = new Runnable() {
+            @Override
+            public void run() {
+                legacy.parse(pages);
+            }
+        };
+        Runnable parseNew = new Runnable() {
+            @Override
+            public void run() {
+                merger.parse(pages);
+            }
+        };
+        reportAllocation("legacy first scan " + name, BenchmarkStats.allocatedBytes(parseLegacy));
+        reportAllocation("legacy rescan " + name, BenchmarkStats.allocatedBytes(parseLegacy));
+        reportAllocation("parser first scan " + name, BenchmarkStats.allocatedBytes(parseNew));
+        reportAllocation("parser rescan " + name, BenchmarkStats.allocatedBytes(parseNew));
+    }
+
+    private static void reportAllocation(String name, long bytes) {
+        BenchmarkStats stats = new BenchmarkStats(name + " allocation", "B");
+        stats.add(bytes);
+        stats.report();
+    }
+}
@@ -0,0 +1,141 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.wifi;
+
+import android.test.suitebuilder.annotation.LargeTest;
+
+import junit.framework.TestCase;
+
+import java.io.StringReader;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Checks the fairness of {@link CommandChannel}: while several threads flood p2p0 with
+ * commands, each wlan0 command waits for at most the p2p0 command in flight, not for the
+ * whole backlog. This is checked on the number of commands the supplicant answers while
+ * a wlan0 command waits, not on timings. The same load is also run on a single monitor
+ * around the supplicant, as WifiNative used before the channels, and the wlan0 latency
+ * of both is reported.
+ */
+@LargeTest
+public class CommandChannelTest extends TestCase {
+
+    /* Reply delay of every supplicant command */
+    private static final long LATENCY_MS = 5;
+    private static final int P2P_THREADS = 4;
+    private static final int WLAN_COMMANDS = 40;
+
+    private interface Pinger {
+        boolean ping();
+    }
+
+    private FakeSupplicant mSupplicant;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mSupplicant = FakeSupplicant.fromScenario(new StringReader("latency " + LATENCY_MS));
+        WifiNative.setSupplicantTransport(mSupplicant);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        WifiNative.setSupplicantTransport(null);
+        super.tearDown();
+    }
+
+    public void testWlanNotStarvedByP2pBurst() throws Exception {
+        final WifiNative wlan = new WifiNative("wlan0");
+        final WifiNative p2p = new WifiNative("p2p0");
+        BenchmarkStats ahead = runLoad("channels", new Pinger() {
+            @Override
+            public boolean ping() {
+                return wlan.ping();
+            }
+        }, new Pinger() {
+            @Override
+            public boolean ping() {
+                return p2p.ping();
+            }
+        });
+        // The p2p0 command in flight at most; the median leaves room for a wlan0 thread
+        // descheduled before it queues
+        assertTrue("median=" + ahead.median(), ahead.median() <= 1);
+    }
+
+    public void testSingleLockBaseline() throws Exception {
+        final Object lock = new Object();
+        runLoad("single lock", new Pinger() {
+            @Override
+            public boolean ping() {
+                synchronized (lock) {
+                    return "PONG".equals(mSupplicant.doStringCommand("IFNAME=wlan0 PING"));
+                }
+            }
+        }, new Pinger() {
+            @Override
+            public boolean ping() {
+                synchronized (lock) {
+                    return "PONG".equals(mSupplicant.doStringCommand("PING"));
+                }
+            }
+        });
+    }
+
+    /**
+     * Runs wlan0 commands one at a time while P2P_THREADS threads keep p2p0 busy.
+     * @return the number of commands answered ahead of each wlan0 command
+     */
+    private BenchmarkStats runLoad(String name, Pinger wlan, final Pinger p2p)
+            throws Exception {
+        final AtomicBoolean done = new AtomicBoolean();
+        final CountDownLatch started = new CountDownLatch(P2P_THREADS);
+        Thread[] threads = new Thread[P2P_THREADS];
+        for (int i = 0; i < threads.length; i++) {
+            threads[i] = new Thread("p2p-load-" + i) {
+                @Override
+                public void run() {
+                    started.countDown();
+                    while (!done.get()) p2p.ping();
+                }
+            };
+            threads[i].start();
+        }
+        started.await();
+
+        BenchmarkStats stats = new BenchmarkStats("wlan0 command under p2p0 load, "
+                + name, "ns");
+        BenchmarkStats ahead = new BenchmarkStats("commands answered ahead of a wlan0"
+                + " command under p2p0 load, " + name, " commands");
+        try {
+            for (int i = 0; i < WLAN_COMMANDS; i++) {
+                long commands = mSupplicant.getCommandCount();
+                long start = System.nanoTime();
+                assertTrue(wlan.ping());
+                stats.add(System.nanoTime() - start);
+                ahead.add(mSupplicant.getCommandCount() - commands - 1);
+            }
+        } finally {
+            done.set(true);
+            for (Thread thread : threads) thread.join();
+        }
+        stats.report();
+        ahead.report();
+        return ahead;
+    }
+}
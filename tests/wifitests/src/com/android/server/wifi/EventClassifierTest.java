@@ -0,0 +1,288 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.wifi;
+
+import android.test.suitebuilder.annotation.LargeTest;
+import android.util.SparseArray;
+import android.test.suitebuilder.annotation.SmallTest;
+
+import junit.framework.TestCase;
+
+import java.util.List;
+
+/**
+ * Classifies the event corpus of resources/events with the {@link EventClassifier} table of
+ * WifiMonitor and with the startsWith() chain WifiMonitor.dispatchEvent() used before it,
+ * checks both dispatch every event the same way, and reports the latency of both.
+ */
+@SmallTest
+public class EventClassifierTest extends TestCase {
+
+    private static final String CORPUS = "events/supplicant.txt";
+    private static final int WARMUP = 200;
+    private static final int ITERATIONS = 1000;
+
+    /* The dispatch names of the corpus, by WifiMonitor event id */
+    private static final SparseArray<String> sNames = new SparseArray<String>();
+    /* The local ids: CTRL-EVENT-* ones, then the others */
+    private static final int[] LOCAL_IDS = {
+        WifiMonitor.CONNECTED, WifiMonitor.DISCONNECTED, WifiMonitor.STATE_CHANGE,
+        WifiMonitor.SCAN_RESULTS, WifiMonitor.LINK_SPEED, WifiMonitor.TERMINATING,
+        WifiMonitor.DRIVER_STATE, WifiMonitor.EAP_FAILURE, WifiMonitor.ASSOC_REJECT,
+        WifiMonitor.SSID_TEMP_DISABLE, WifiMonitor.SSID_REENABLE, WifiMonitor.BSS_ADDED,
+        WifiMonitor.BSS_REMOVED, WifiMonitor.UNKNOWN,
+        WifiMonitor.WPA_EVENT, WifiMonitor.WPS_SUCCESS, WifiMonitor.WPS_FAIL,
+        WifiMonitor.WPS_OVERLAP, WifiMonitor.WPS_TIMEOUT, WifiMonitor.P2P_OTHER,
+        WifiMonitor.HOST_AP_OTHER, WifiMonitor.GAS_QUERY, WifiMonitor.RX_HS20_ANQP_ICON,
+        WifiMonitor.HS20, WifiMonitor.REQUEST, WifiMonitor.TARGET_BSSID,
+        WifiMonitor.ASSOCIATED_WITH
+    };
+    private static final String[] LOCAL_NAMES = {
+        "CONNECTED", "DISCONNECTED", "STATE_CHANGE", "SCAN_RESULTS", "LINK_SPEED",
+        "TERMINATING", "DRIVER_STATE", "EAP_FAILURE", "ASSOC_REJECT", "SSID_TEMP_DISABLE",
+        "SSID_REENABLE", "BSS_ADDED", "BSS_REMOVED", "UNKNOWN",
+        "WPA_EVENT", "WPS_SUCCESS", "WPS_FAIL", "WPS_OVERLAP", "WPS_TIMEOUT", "P2P_OTHER",
+        "HOST_AP_OTHER", "GAS_QUERY", "RX_HS20_ANQP_ICON", "HS20", "REQUEST", "TARGET_BSSID",
+        "ASSOCIATED_WITH"
+    };
+    /* The P2P and AP-STA events, classified as their message */
+    private static final int[] MESSAGE_IDS = {
+        WifiMonitor.P2P_DEVICE_FOUND_EVENT, WifiMonitor.P2P_DEVICE_LOST_EVENT,
+        WifiMonitor.P2P_FIND_STOPPED_EVENT, WifiMonitor.P2P_GO_NEGOTIATION_REQUEST_EVENT,
+        WifiMonitor.P2P_GO_NEGOTIATION_SUCCESS_EVENT,
+        WifiMonitor.P2P_GO_NEGOTIATION_FAILURE_EVENT,
+        WifiMonitor.P2P_GROUP_FORMATION_SUCCESS_EVENT,
+        WifiMonitor.P2P_GROUP_FORMATION_FAILURE_EVENT, WifiMonitor.P2P_GROUP_STARTED_EVENT,
+        WifiMonitor.P2P_GROUP_REMOVED_EVENT, WifiMonitor.P2P_INVITATION_RECEIVED_EVENT,
+        WifiMonitor.P2P_INVITATION_RESULT_EVENT, WifiMonitor.P2P_PROV_DISC_PBC_REQ_EVENT,
+        WifiMonitor.P2P_PROV_DISC_PBC_RSP_EVENT, WifiMonitor.P2P_PROV_DISC_ENTER_PIN_EVENT,
+        WifiMonitor.P2P_PROV_DISC_SHOW_PIN_EVENT, WifiMonitor.P2P_PROV_DISC_FAILURE_EVENT,
+        WifiMonitor.P2P_SERV_DISC_RESP_EVENT, WifiMonitor.AP_STA_CONNECTED_EVENT,
+        WifiMonitor.AP_STA_DISCONNECTED_EVENT
+    };
+    private static final String[] MESSAGE_NAMES = {
+        "P2P_DEVICE_FOUND", "P2P_DEVICE_LOST", "P2P_FIND_STOPPED",
+        "P2P_GO_NEGOTIATION_REQUEST", "P2P_GO_NEGOTIATION_SUCCESS",
+        "P2P_GO_NEGOTIATION_FAILURE", "P2P_GROUP_FORMATION_SUCCESS",
+        "P2P_GROUP_FORMATION_FAILURE", "P2P_GROUP_STARTED", "P2P_GROUP_REMOVED",
+        "P2P_INVITATION_RECEIVED", "P2P_INVITATION_RESULT", "P2P_PROV_DISC_PBC_REQ",
+        "P2P_PROV_DISC_PBC_RSP", "P2P_PROV_DISC_ENTER_PIN", "P2P_PROV_DISC_SHOW_PIN",
+        "P2P_PROV_DISC_FAILURE", "P2P_SERV_DISC_RESP", "AP_STA_CONNECTED",
+        "AP_STA_DISCONNECTED"
+    };
+    static {
+        for (int i = 0; i < LOCAL_IDS.length; i++) sNames.put(LOCAL_IDS[i], LOCAL_NAMES[i]);
+        for (int i = 0; i < MESSAGE_IDS.length; i++) {
+            sNames.put(MESSAGE_IDS[i], MESSAGE_NAMES[i]);
+        }
+    }
+
+    private static final String WPA_EVENT_PREFIX = "WPA:";
+    private static final String PASSWORD_MAY_BE_INCORRECT = "pre-shared key may be incorrect";
+
+    /**
+     * @return how WifiMonitor.dispatchEvent() dispatches event after classifying it
+     */
+    private static String dispatchClassified(String event) {
+        int id = WifiMonitor.sEventClassifier.classify(event);
+        if (id == EventClassifier.NO_MATCH) return "NO_MATCH";
+        if (id == WifiMonitor.WPA_EVENT) {
+            return 0 < event.indexOf(PASSWORD_MAY_BE_INCORRECT)
+                    ? "AUTHENTICATION_FAILURE" : "NO_MATCH";
+        }
+        String name = sNames.get(id);
+        if (name == null) throw new IllegalArgumentException("Unknown id " + id);
+        return name;
+    }
+
+    /**
+     * @return how the startsWith() chain of WifiMonitor.dispatchEvent() dispatched event
+     */
+    private static String dispatchLegacy(String event) {
+        if (!event.startsWith("CTRL-EVENT-")) {
+            if (event.startsWith(WPA_EVENT_PREFIX)
+                    && 0 < event.indexOf(PASSWORD_MAY_BE_INCORRECT)) {
+                return "AUTHENTICATION_FAILURE";
+            } else if (event.startsWith("WPS-SUCCESS")) {
+                return "WPS_SUCCESS";
+            } else if (event.startsWith("WPS-FAIL")) {
+                return "WPS_FAIL";
+            } else if (event.startsWith("WPS-OVERLAP-DETECTED")) {
+                return "WPS_OVERLAP";
+            } else if (event.startsWith("WPS-TIMEOUT")) {
+                return "WPS_TIMEOUT";
+            } else if (event.startsWith("P2P")) {
+                return legacyP2pEvent(event);
+            } else if (event.startsWith("AP")) {
+                String token = event.split(" ")[0];
+                if (token.equals("AP-STA-CONNECTED")) return "AP_STA_CONNECTED";
+                if (token.equals("AP-STA-DISCONNECTED")) return "AP_STA_DISCONNECTED";
+                return "HOST_AP_OTHER";
+            } else if (event.startsWith("GAS-QUERY-")) {
+                return "GAS_QUERY";
+            } else if (event.startsWith("RX-HS20-ANQP-ICON")) {
+                return "RX_HS20_ANQP_ICON";
+            } else if (event.startsWith("HS20-")) {
+                return "HS20";
+            } else if (event.startsWith("CTRL-REQ-")) {
+                return "REQUEST";
+            } else if (event.startsWith("Trying to associate with ")) {
+                return "TARGET_BSSID";
+            } else if (event.startsWith("Associated with ")) {
+                return "ASSOCIATED_WITH";
+            }
+            return "NO_MATCH";
+        }
+
+        String name = event.substring("CTRL-EVENT-".length());
+        int nameEnd = name.indexOf(' ');
+        if (nameEnd != -1) name = name.substring(0, nameEnd);
+        // An empty name is then dropped as it is after classifying it UNKNOWN
+        if (name.equals("CONNECTED")) return "CONNECTED";
+        if (name.equals("DISCONNECTED")) return "DISCONNECTED";
+        if (name.equals("STATE-CHANGE")) return "STATE_CHANGE";
+        if (name.equals("SCAN-RESULTS")) return "SCAN_RESULTS";
+        if (name.equals("LINK-SPEED")) return "LINK_SPEED";
+        if (name.equals("TERMINATING")) return "TERMINATING";
+        if (name.equals("DRIVER-STATE")) return "DRIVER_STATE";
+        if (name.equals("EAP-FAILURE")) return "EAP_FAILURE";
+        if (name.equals("ASSOC-REJECT")) return "ASSOC_REJECT";
+        if (name.equals("SSID-TEMP-DISABLED")) return "SSID_TEMP_DISABLE";
+        if (name.equals("SSID-REENABLED")) return "SSID_REENABLE";
+        if (name.equals("BSS-ADDED")) return "BSS_ADDED";
+        if (name.equals("BSS-REMOVED")) return "BSS_REMOVED";
+        return "UNKNOWN";
+    }
+
+    private static String legacyP2pEvent(String event) {
+        if (event.startsWith("P2P-DEVICE-FOUND")) return "P2P_DEVICE_FOUND";
+        if (event.startsWith("P2P-DEVICE-LOST")) return "P2P_DEVICE_LOST";
+        if (event.startsWith("P2P-FIND-STOPPED")) return "P2P_FIND_STOPPED";
+        if (event.startsWith("P2P-GO-NEG-REQUEST")) return "P2P_GO_NEGOTIATION_REQUEST";
+        if (event.startsWith("P2P-GO-NEG-SUCCESS")) return "P2P_GO_NEGOTIATION_SUCCESS";
+        if (event.startsWith("P2P-GO-NEG-FAILURE")) return "P2P_GO_NEGOTIATION_FAILURE";
+        if (event.startsWith("P2P-GROUP-FORMATION-SUCCESS")) {
+            return "P2P_GROUP_FORMATION_SUCCESS";
+        }
+        if (event.startsWith("P2P-GROUP-FORMATION-FAILURE")) {
+            return "P2P_GROUP_FORMATION_FAILURE";
+        }
+        if (event.startsWith("P2P-GROUP-STARTED")) return "P2P_GROUP_STARTED";
+        if (event.startsWith("P2P-GROUP-REMOVED")) return "P2P_GROUP_REMOVED";
+        if (event.startsWith("P2P-INVITATION-RECEIVED")) return "P2P_INVITATION_RECEIVED";
+        if (event.startsWith("P2P-INVITATION-RESULT")) return "P2P_INVITATION_RESULT";
+        if (event.startsWith("P2P-PROV-DISC-PBC-REQ")) return "P2P_PROV_DISC_PBC_REQ";
+        if (event.startsWith("P2P-PROV-DISC-PBC-RESP")) return "P2P_PROV_DISC_PBC_RSP";
+        if (event.startsWith("P2P-PROV-DISC-ENTER-PIN")) return "P2P_PROV_DISC_ENTER_PIN";
+        if (event.startsWith("P2P-PROV-DISC-SHOW-PIN")) return "P2P_PROV_DISC_SHOW_PIN";
+        if (event.startsWith("P2P-PROV-DISC-FAILURE")) return "P2P_PROV_DISC_FAILURE";
+        if (event.startsWith("P2P-SERV-DISC-RESP")) return "P2P_SERV_DISC_RESP";
+        return "P2P_OTHER";
+    }
+
+    /**
+     * @return the events of the corpus, each preceded by its expected dispatch
+     */
+    private static String[][] readCorpus() throws Exception {
+        List<String> lines = TestResources.readLines(CORPUS);
+        String[][] corpus = new String[lines.size()][];
+        for (int i = 0; i < corpus.length; i++) {
+            String line = lines.get(i);
+            int space = line.indexOf(' ');
+            corpus[i] = new String[] { line.substring(0, space), line.substring(space + 1) };
+        }
+        return corpus;
+    }
+
+    public void testLongestPrefixWins() {
+        EventClassifier classifier = new EventClassifier()
+                .addPrefix("AB", 1)
+                .addPrefix("ABCD", 2)
+                .addToken("ABC", 3);
+        assertEquals(EventClassifier.NO_MATCH, classifier.classify("A"));
+        assertEquals(1, classifier.classify("AB"));
+        assertEquals(3, classifier.classify("ABC"));
+        assertEquals(3, classifier.classify("ABC x"));
+        assertEquals(1, classifier.classify("ABCX"));
+        assertEquals(2, classifier.classify("ABCDX"));
+        assertEquals(EventClassifier.NO_MATCH, classifier.classify(""));
+    }
+
+    /**
+     * dispatchEvent() tells the CTRL-EVENT-* ids from the others by their range, and the
+     * P2P and AP-STA events are classified as their message codes.
+     */
+    public void testLocalIdsDisjointFromMessages() {
+        int base = WifiMonitor.SUP_CONNECTION_EVENT - 1;
+        int ctrlEvents = indexOf(LOCAL_IDS, WifiMonitor.UNKNOWN) + 1;
+        for (int i = 0; i < LOCAL_IDS.length; i++) {
+            int id = LOCAL_IDS[i];
+            assertEquals(LOCAL_NAMES[i], i < ctrlEvents, isCtrlEvent(id));
+            assertTrue(LOCAL_NAMES[i], id > EventClassifier.NO_MATCH && id < base);
+            assertEquals(LOCAL_NAMES[i] + " is not unique", i, indexOf(LOCAL_IDS, id));
+        }
+        for (int i = 0; i < MESSAGE_IDS.length; i++) {
+            assertFalse(MESSAGE_NAMES[i], isCtrlEvent(MESSAGE_IDS[i]));
+            assertTrue(MESSAGE_NAMES[i], MESSAGE_IDS[i] > base);
+        }
+    }
+
+    private static boolean isCtrlEvent(int id) {
+        return id >= WifiMonitor.CONNECTED && id <= WifiMonitor.UNKNOWN;
+    }
+
+    private static int indexOf(int[] ids, int id) {
+        for (int i = 0; i < ids.length; i++) {
+            if (ids[i] == id) return i;
+        }
+        return -1;
+    }
+
+    public void testCorpusMatchesLegacy() throws Exception {
+        for (String[] entry : readCorpus()) {
+            assertEquals(entry[1], entry[0], dispatchLegacy(entry[1]));
+            assertEquals(entry[1], entry[0], dispatchClassified(entry[1]));
+        }
+    }
+
+    @LargeTest
+    public void testClassifyBenchmark() throws Exception {
+        String[][] corpus = readCorpus();
+        String[] events = new String[corpus.length];
+        for (int i = 0; i < events.length; i++) events[i] = corpus[i][1];
+
+        BenchmarkStats legacy = new BenchmarkStats("startsWith chain, " + events.length
+                + " events", "ns");
+        BenchmarkStats classified = new BenchmarkStats("classifier, " + events.length
+                + " events", "ns");
+        int sink = 0;
+        for (int i = 0; i < WARMUP + ITERATIONS; i++) {
+            long start = System.nanoTime();
+            for (String event : events) sink += dispatchLegacy(event).length();
+            long middle = System.nanoTime();
+            for (String event : events) sink += dispatchClassified(event).length();
+            long end = System.nanoTime();
+            if (i >= WARMUP) {
+                legacy.add(middle - start);
+                classified.add(end - middle);
+            }
+        }
+        legacy.report();
+        classified.report();
+        assertTrue(sink != 0);
+    }
+}
@@ -0,0 +1,96 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.wifi;
+
+import android.test.suitebuilder.annotation.SmallTest;
+
+import junit.framework.TestCase;
+
+/**
+ * Unit tests of {@link EventCoalescer}, delivering to a recording state machine.
+ */
+@SmallTest
+public class EventCoalescerTest extends TestCase {
+
+    private static final long DELAY_MS = 50;
+
+    private SupplicantTestHarness.RecordingStateMachine mStateMachine;
+    private EventCoalescer mCoalescer;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mStateMachine = new SupplicantTestHarness.RecordingStateMachine("EventCoalescerTest");
+        mStateMachine.start();
+        mCoalescer = new EventCoalescer(
+                new EventDeliveryTracker("wlan0", mStateMachine, false), DELAY_MS)
+                .setPolicy(WifiMonitor.SCAN_RESULTS_EVENT, "SCAN_RESULTS_EVENT",
+                        EventCoalescer.LATEST_WINS)
+                .setPolicy(WifiMonitor.P2P_DEVICE_FOUND_EVENT, "P2P_DEVICE_FOUND_EVENT",
+                        EventCoalescer.MERGE);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mStateMachine.quit();
+        super.tearDown();
+    }
+
+    private void assertReceived(int what, Object obj) {
+        SupplicantTestHarness.Received received =
+                mStateMachine.poll(SupplicantTestHarness.TIMEOUT_MS);
+        assertNotNull("Nothing received", received);
+        assertEquals(what, received.what);
+        assertEquals(obj, received.obj);
+    }
+
+    public void testFlushInFirstQueuedOrder() {
+        mCoalescer.send(WifiMonitor.SCAN_RESULTS_EVENT, null, "scan-1", 0);
+        mCoalescer.send(WifiMonitor.P2P_DEVICE_FOUND_EVENT, "peer-1", "found-1", 0);
+        mCoalescer.send(WifiMonitor.SCAN_RESULTS_EVENT, null, "scan-2", 0);
+        mCoalescer.send(WifiMonitor.P2P_DEVICE_FOUND_EVENT, "peer-2", "found-2", 0);
+        mCoalescer.send(WifiMonitor.P2P_DEVICE_FOUND_EVENT, "peer-1", "found-3", 0);
+        mCoalescer.flush();
+
+        assertReceived(WifiMonitor.SCAN_RESULTS_EVENT, "scan-2");
+        assertReceived(WifiMonitor.P2P_DEVICE_FOUND_EVENT, "found-3");
+        assertReceived(WifiMonitor.P2P_DEVICE_FOUND_EVENT, "found-2");
+        assertNull(mStateMachine.poll(3 * DELAY_MS));
+    }
+
+    public void testSentAfterDelay() {
+        mCoalescer.send(WifiMonitor.SCAN_RESULTS_EVENT, null, "scan", 0);
+        assertReceived(WifiMonitor.SCAN_RESULTS_EVENT, "scan");
+    }
+
+    public void testClearDropsPending() {
+        mCoalescer.send(WifiMonitor.SCAN_RESULTS_EVENT, null, "stale", 0);
+        mCoalescer.send(WifiMonitor.P2P_DEVICE_FOUND_EVENT, "peer", "stale", 0);
+        mCoalescer.clear();
+        assertNull(mStateMachine.poll(3 * DELAY_MS));
+
+        // Sent by an event dispatched before the monitor stopped
+        mCoalescer.send(WifiMonitor.SCAN_RESULTS_EVENT, null, "late", 0);
+        mCoalescer.flush();
+        assertNull(mStateMachine.poll(3 * DELAY_MS));
+
+        // Once started again, the next burst is held back and sent as usual
+        mCoalescer.start();
+        mCoalescer.send(WifiMonitor.SCAN_RESULTS_EVENT, null, "fresh", 0);
+        assertReceived(WifiMonitor.SCAN_RESULTS_EVENT, "fresh");
+    }
+}
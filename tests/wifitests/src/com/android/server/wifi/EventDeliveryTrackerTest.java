@@ -0,0 +1,144 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.wifi;
+
+import android.net.wifi.SupplicantState;
+import android.os.Message;
+import android.test.suitebuilder.annotation.SmallTest;
+
+import junit.framework.TestCase;
+
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Unit tests of the superseding of queued state changes by {@link EventDeliveryTracker}.
+ * The recording state machine blocks on its first message, so that the following ones
+ * stay queued.
+ */
+@SmallTest
+public class EventDeliveryTrackerTest extends TestCase {
+
+    private static final long TIMEOUT_MS = SupplicantTestHarness.TIMEOUT_MS;
+
+    private SupplicantTestHarness.RecordingStateMachine mStateMachine;
+    private EventDeliveryTracker mTracker;
+    private final CountDownLatch mProcessing = new CountDownLatch(1);
+    private final CountDownLatch mUnblock = new CountDownLatch(1);
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mStateMachine = new SupplicantTestHarness.RecordingStateMachine(
+                "EventDeliveryTrackerTest");
+        mTracker = new EventDeliveryTracker("wlan0", mStateMachine, true);
+        mStateMachine.setMessageHandler(new SupplicantTestHarness.MessageHandler() {
+            @Override
+            public void handleMessage(Message msg) {
+                mProcessing.countDown();
+                try {
+                    mUnblock.await(TIMEOUT_MS, TimeUnit.MILLISECONDS);
+                } catch (InterruptedException ignore) {
+                }
+                mTracker.onProcessed(msg);
+            }
+        });
+        mStateMachine.start();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mUnblock.countDown();
+        mStateMachine.quit();
+        super.tearDown();
+    }
+
+    private void sendStateChange(String bssid) {
+        StateChangeResult result = new StateChangeResult(0, null, bssid,
+                SupplicantState.ASSOCIATING);
+        mTracker.send(mStateMachine.obtainMessage(WifiMonitor.SUPPLICANT_STATE_CHANGE_EVENT,
+                result), System.nanoTime());
+    }
+
+    private void assertReceived(String bssid) {
+        SupplicantTestHarness.Received received = mStateMachine.poll(TIMEOUT_MS);
+        assertNotNull("Nothing received", received);
+        assertEquals(WifiMonitor.SUPPLICANT_STATE_CHANGE_EVENT, received.what);
+        assertEquals(bssid, ((StateChangeResult) received.obj).BSSID);
+    }
+
+    private String dump() {
+        StringWriter sw = new StringWriter();
+        PrintWriter pw = new PrintWriter(sw);
+        mTracker.dump(pw);
+        pw.flush();
+        return sw.toString();
+    }
+
+    public void testSupersedesQueuedStateChange() throws Exception {
+        sendStateChange("blocker");
+        assertTrue(mProcessing.await(TIMEOUT_MS, TimeUnit.MILLISECONDS));
+        sendStateChange("older");
+        sendStateChange("newer");
+        mUnblock.countDown();
+
+        assertReceived("blocker");
+        assertReceived("newer");
+        assertNull(mStateMachine.poll(100));
+        String dump = dump();
+        assertTrue(dump, dump.contains(" delivered=2 "));
+        assertTrue(dump, dump.contains(" superseded=1 "));
+    }
+
+    public void testSupersededSettledOnceNewerProcessed() throws Exception {
+        sendStateChange("blocker");
+        assertTrue(mProcessing.await(TIMEOUT_MS, TimeUnit.MILLISECONDS));
+        sendStateChange("first");
+        sendStateChange("second");
+        sendStateChange("third");
+        // Removal is not known to have won over processing yet
+        String dump = dump();
+        assertTrue(dump, dump.contains(" depth=4 "));
+        assertTrue(dump, dump.contains(" superseded=0 "));
+        mUnblock.countDown();
+
+        assertReceived("blocker");
+        assertReceived("third");
+        assertNull(mStateMachine.poll(100));
+        dump = dump();
+        assertTrue(dump, dump.contains(" depth=0 "));
+        assertTrue(dump, dump.contains(" delivered=2 "));
+        assertTrue(dump, dump.contains(" superseded=2 "));
+    }
+
+    public void testKeepsStateChangeBeingProcessed() throws Exception {
+        sendStateChange("processing");
+        assertTrue(mProcessing.await(TIMEOUT_MS, TimeUnit.MILLISECONDS));
+        // Off the queue already: not superseded, and still counted once processed
+        sendStateChange("next");
+        mUnblock.countDown();
+
+        assertReceived("processing");
+        assertReceived("next");
+        String dump = dump();
+        assertTrue(dump, dump.contains(" depth=0 "));
+        assertTrue(dump, dump.contains(" delivered=2 "));
+        assertTrue(dump, dump.contains(" superseded=0 "));
+    }
+}
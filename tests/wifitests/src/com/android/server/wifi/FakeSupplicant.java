@@ -0,0 +1,545 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.wifi;
+
+import android.os.SystemClock;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.concurrent.DelayQueue;
+import java.util.concurrent.Delayed;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * In-process stand-in for wpa_supplicant, so that WifiNative, WifiMonitor and their
+ * users can be driven deterministically without a driver or libwifi-service.so, see
+ * {@link WifiNative#setSupplicantTransport}.
+ *
+ * It keeps a list of BSSes and configured networks and answers the commands the framework
+ * sends in the supplicant format: BSS RANGE= pages (cut at the reply buffer size like the
+ * real one), SIGNAL_POLL, PKTCNT_POLL, STATUS, LIST_NETWORKS, *_NETWORK, SCAN, etc.
+ * Commands that change the state emit the matching CTRL-EVENT-* events; more events can
+ * be scripted with a delay. Unknown commands are answered OK.
+ *
+ * A scenario is a text file with one directive per line, # starts a comment:
+ *
+ *   interface wlan0                  interface used to prefix the events
+ *   latency 5                        delay of each command reply, in ms
+ *   scan-latency 300                 delay between SCAN and CTRL-EVENT-SCAN-RESULTS
+ *   truncate 1024                    cut every reply to this many bytes
+ *   bss 00:11:22:33:44:55 2437 -55 [WPA2-PSK-CCMP][ESS] MyAp
+ *   bsses 100                        add 100 generated BSSes (deterministic)
+ *   network MyAp WPA-PSK             add a configured network
+ *   reply GET_CAPABILITY freq OK     canned reply for commands with this prefix,
+ *                                    \n in the reply stands for a newline
+ *   event 1000 CTRL-EVENT-DISCONNECTED bssid=00:11:22:33:44:55 reason=3
+ *                                    event sent this many ms after connect()
+ */
+class FakeSupplicant implements SupplicantTransport {
+
+    private static final String END_STR = "####";
+    private static final String DELIMITER_STR = "====";
+
+    // SupplicantState ordinals, as reported in CTRL-EVENT-STATE-CHANGE
+    private static final int STATE_DISCONNECTED = 0;
+    private static final int STATE_ASSOCIATING = 5;
+    private static final int STATE_COMPLETED = 9;
+
+    private static final String[] STATE_NAMES = {
+        "DISCONNECTED", "INTERFACE_DISABLED", "INACTIVE", "SCANNING", "AUTHENTICATING",
+        "ASSOCIATING", "ASSOCIATED", "4WAY_HANDSHAKE", "GROUP_HANDSHAKE", "COMPLETED"
+    };
+
+    private static final int[] CHANNELS = {
+        2412, 2437, 2462, 5180, 5200, 5220, 5240, 5745, 5765, 5785, 5805
+    };
+
+    private static class Bss {
+        int id;
+        String bssid;
+        int frequency;
+        int level;
+        String flags;
+        String ssid;
+    }
+
+    private static class Event implements Delayed {
+        final long mWhen;
+        final long mSequence;
+        final String mText;
+
+        Event(long when, long sequence, String text) {
+            mWhen = when;
+            mSequence = sequence;
+            mText = text;
+        }
+
+        @Override
+        public long getDelay(TimeUnit unit) {
+            return unit.convert(mWhen - SystemClock.elapsedRealtime(), TimeUnit.MILLISECONDS);
+        }
+
+        @Override
+        public int compareTo(Delayed other) {
+            Event event = (Event) other;
+            if (mWhen != event.mWhen) return mWhen < event.mWhen ? -1 : 1;
+            return mSequence < event.mSequence ? -1 : (mSequence > event.mSequence ? 1 : 0);
+        }
+    }
+
+    private final ArrayList<Bss> mBsses = new ArrayList<Bss>();
+    private final TreeMap<Integer, LinkedHashMap<String, String>> mNetworks =
+            new TreeMap<Integer, LinkedHashMap<String, String>>();
+    private final ArrayList<String[]> mCannedReplies = new ArrayList<String[]>();
+    private final ArrayList<Event> mScriptedEvents = new ArrayList<Event>();
+    private final DelayQueue<Event> mEvents = new DelayQueue<Event>();
+
+    private String mInterfaceName = "wlan0";
+    private long mLatencyMs;
+    private long mScanLatencyMs;
+    private int mTruncateAt = WifiNative.REPLY_BUF_SIZE - 1;
+
+    private int mNextBssId;
+    private int mNextNetworkId;
+    private long mEventSequence;
+    private boolean mRunning;
+    private int mState = STATE_DISCONNECTED;
+    private int mCurrentNetworkId = -1;
+    private Bss mCurrentBss;
+    private long mTxGood;
+    private long mRxGood;
+
+    // Statistics, since creation
+    private long mCommands;
+    private long mEventsSent;
+    private long mTruncatedReplies;
+
+    /**
+     * @return a supplicant set up by the scenario read from reader
+     * @throws IllegalArgumentException if a line of the scenario is invalid
+     */
+    static FakeSupplicant fromScenario(Reader reader) throws IOException {
+        FakeSupplicant supplicant = new FakeSupplicant();
+        BufferedReader in = new BufferedReader(reader);
+        String line;
+        int lineNumber = 0;
+        while ((line = in.readLine()) != null) {
+            lineNumber++;
+            line = line.trim();
+            if (line.length() == 0 || line.startsWith("#")) continue;
+            try {
+                supplicant.parseDirective(line);
+            } catch (RuntimeException e) {
+                throw new IllegalArgumentException("Scenario line " + lineNumber + ": " + line, e);
+            }
+        }
+        return supplicant;
+    }
+
+    private void parseDirective(String line) {
+        String[] tokens = line.split(" +", 2);
+        String args = tokens.length > 1 ? tokens[1] : "";
+        if (tokens[0].equals("interface")) {
+            mInterfaceName = args;
+        } else if (tokens[0].equals("latency")) {
+            mLatencyMs = Long.parseLong(args);
+        } else if (tokens[0].equals("scan-latency")) {
+            mScanLatencyMs = Long.parseLong(args);
+        } else if (tokens[0].equals("truncate")) {
+            mTruncateAt = Integer.parseInt(args);
+        } else if (tokens[0].equals("bss")) {
+            String[] fields = args.split(" +", 5);
+            addBss(fields[0], Integer.parseInt(fields[1]), Integer.parseInt(fields[2]),
+                    fields[3], fields.length > 4 ? fields[4] : "");
+        } else if (tokens[0].equals("bsses")) {
+            addGeneratedBsses(Integer.parseInt(args));
+        } else if (tokens[0].equals("network")) {
+            String[] fields = args.split(" +");
+            int netId = addNetwork();
+            mNetworks.get(netId).put("ssid", "\"" + fields[0] + "\"");
+            if (fields.length > 1) mNetworks.get(netId).put("key_mgmt", fields[1]);
+        } else if (tokens[0].equals("reply")) {
+            int split = args.lastIndexOf(' ');
+            mCannedReplies.add(new String[] {
+                args.substring(0, split), args.substring(split + 1).replace("\\n", "\n")
+            });
+        } else if (tokens[0].equals("event")) {
+            String[] fields = args.split(" +", 2);
+            // Scheduled relative to connect()
+            mScriptedEvents.add(new Event(Long.parseLong(fields[0]), 0, fields[1]));
+        } else {
+            throw new IllegalArgumentException("unknown directive " + tokens[0]);
+        }
+    }
+
+    synchronized void addBss(String bssid, int frequency, int level, String flags,
+            String ssid) {
+        Bss bss = new Bss();
+        bss.id = mNextBssId++;
+        bss.bssid = bssid.toLowerCase(Locale.ROOT);
+        bss.frequency = frequency;
+        bss.level = level;
+        bss.flags = flags;
+        bss.ssid = ssid;
+        mBsses.add(bss);
+    }
+
+    /**
+     * Adds count BSSes with a mix of channels, signal levels and security; the same count
+     * always generates the same BSSes.
+     */
+    synchronized void addGeneratedBsses(int count) {
+        Random random = new Random(count);
+        for (int i = 0; i < count; i++) {
+            String bssid = String.format(Locale.ROOT, "02:%02x:%02x:%02x:%02x:%02x",
+                    (i >> 16) & 0xff, (i >> 8) & 0xff, i & 0xff,
+                    random.nextInt(256), random.nextInt(256));
+            String flags;
+            switch (i % 4) {
+                case 0: flags = "[WPA2-PSK-CCMP][WPS][ESS]"; break;
+                case 1: flags = "[WPA-PSK-TKIP+CCMP][WPA2-PSK-TKIP+CCMP][ESS]"; break;
+                case 2: flags = "[WPA2-EAP-CCMP][ESS]"; break;
+                default: flags = "[ESS]"; break;
+            }
+            addBss(bssid, CHANNELS[random.nextInt(CHANNELS.length)],
+                    -40 - random.nextInt(55), flags, "fake-ap-" + (i % (count / 3 + 1)));
+        }
+    }
+
+    synchronized void clearBsses() {
+        mBsses.clear();
+    }
+
+    /**
+     * Queues event for the monitor thread, delayMs from now.
+     */
+    synchronized void sendEvent(String event, long delayMs) {
+        sendEventAt(event, SystemClock.elapsedRealtime() + delayMs);
+    }
+
+    /**
+     * Queues event for the monitor thread, at SystemClock.elapsedRealtime() whenMs.
+     */
+    synchronized void sendEventAt(String event, long whenMs) {
+        mEvents.add(new Event(whenMs, mEventSequence++, "IFNAME=" + mInterfaceName + " " + event));
+    }
+
+    @Override
+    public synchronized boolean startSupplicant(boolean p2pSupported) {
+        mRunning = true;
+        return true;
+    }
+
+    @Override
+    public synchronized boolean killSupplicant(boolean p2pSupported) {
+        if (!mRunning) return false;
+        mRunning = false;
+        mState = STATE_DISCONNECTED;
+        mCurrentBss = null;
+        mCurrentNetworkId = -1;
+        mEvents.clear();
+        // Global event, without interface prefix: ends the monitor thread once no monitor
+        // is left monitoring
+        mEvents.add(new Event(SystemClock.elapsedRealtime(), mEventSequence++,
+                "CTRL-EVENT-TERMINATING - signal 9 received"));
+        return true;
+    }
+
+    @Override
+    public synchronized boolean connect() {
+        long now = SystemClock.elapsedRealtime();
+        for (Event event : mScriptedEvents) {
+            mEvents.add(new Event(now + event.mWhen, mEventSequence++,
+                    "IFNAME=" + mInterfaceName + " " + event.mText));
+        }
+        return true;
+    }
+
+    @Override
+    public void close() {
+        mEvents.clear();
+    }
+
+    @Override
+    public String waitForEvent() {
+        while (true) {
+            try {
+                String event = mEvents.take().mText;
+                synchronized (this) {
+                    mEventsSent++;
+                }
+                return event;
+            } catch (InterruptedException ignore) {
+            }
+        }
+    }
+
+    @Override
+    public boolean doBooleanCommand(String command) {
+        return "OK".equals(doStringCommand(command));
+    }
+
+    @Override
+    public int doIntCommand(String command) {
+        String reply = doStringCommand(command);
+        try {
+            return reply == null ? -1 : Integer.parseInt(reply.trim());
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    @Override
+    public String doStringCommand(String command) {
+        if (mLatencyMs > 0) SystemClock.sleep(mLatencyMs);
+        synchronized (this) {
+            mCommands++;
+            if (command.startsWith("IFNAME=")) {
+                command = command.substring(command.indexOf(' ') + 1);
+            }
+            String reply = handleCommand(command);
+            if (reply.length() > mTruncateAt) {
+                mTruncatedReplies++;
+                reply = reply.substring(0, mTruncateAt);
+            }
+            return reply;
+        }
+    }
+
+    /* Must be called with the lock held */
+    private String handleCommand(String command) {
+        for (String[] canned : mCannedReplies) {
+            if (command.startsWith(canned[0])) return canned[1];
+        }
+        String[] tokens = command.split(" ");
+        String name = tokens[0];
+        if (name.equals("PING")) return "PONG";
+        if (name.equals("BSS")) return bssRange(command);
+        if (name.equals("SIGNAL_POLL")) return signalPoll();
+        if (name.equals("PKTCNT_POLL")) {
+            mTxGood += 10;
+            mRxGood += 25;
+            return "TXGOOD=" + mTxGood + "\nTXBAD=0\nRXGOOD=" + mRxGood;
+        }
+        if (name.startsWith("STATUS")) return status();
+        if (name.equals("LIST_NETWORKS")) return listNetworks(command);
+        if (name.equals("ADD_NETWORK")) return Integer.toString(addNetwork());
+        if (name.equals("SCAN")) {
+            sendEvent("CTRL-EVENT-SCAN-STARTED ", 0);
+            sendEvent("CTRL-EVENT-SCAN-RESULTS ", mScanLatencyMs);
+            return "OK";
+        }
+        if (name.endsWith("_NETWORK") && tokens.length > 1) {
+            return networkCommand(name, tokens);
+        }
+        if (name.equals("DISCONNECT") && mCurrentBss != null) {
+            sendEvent("CTRL-EVENT-DISCONNECTED bssid=" + mCurrentBss.bssid
+                    + " reason=3 locally_generated=1", 0);
+            setState(STATE_DISCONNECTED, mCurrentNetworkId, null);
+            mCurrentBss = null;
+            mCurrentNetworkId = -1;
+        }
+        if (name.equals("TERMINATE")) sendEvent("CTRL-EVENT-TERMINATING ", 0);
+        return "OK";
+    }
+
+    private int addNetwork() {
+        int netId = mNextNetworkId++;
+        mNetworks.put(netId, new LinkedHashMap<String, String>());
+        return netId;
+    }
+
+    /* Must be called with the lock held */
+    private String networkCommand(String name, String[] tokens) {
+        boolean all = tokens[1].equals("all");
+        int netId;
+        try {
+            netId = all ? -1 : Integer.parseInt(tokens[1]);
+        } catch (NumberFormatException e) {
+            return "FAIL";
+        }
+        LinkedHashMap<String, String> network = mNetworks.get(netId);
+        if (network == null && (!all || name.equals("SET_NETWORK")
+                || name.equals("GET_NETWORK"))) {
+            return "FAIL";
+        }
+        if (name.equals("SET_NETWORK") && tokens.length > 3) {
+            StringBuilder value = new StringBuilder(tokens[3]);
+            for (int i = 4; i < tokens.length; i++) value.append(' ').append(tokens[i]);
+            network.put(tokens[2], value.toString());
+            return "OK";
+        } else if (name.equals("GET_NETWORK") && tokens.length > 2) {
+            String value = network.get(tokens[2]);
+            if (value == null) return "FAIL";
+            // Secrets are never read back
+            if (tokens[2].equals("psk") || tokens[2].startsWith("wep_key")) return "*";
+            return value;
+        } else if (name.equals("REMOVE_NETWORK")) {
+            if (all) {
+                mNetworks.clear();
+            } else {
+                mNetworks.remove(netId);
+            }
+            return "OK";
+        } else if (name.equals("SELECT_NETWORK") && !all) {
+            connectTo(netId, network);
+            return "OK";
+        } else if (name.equals("ENABLE_NETWORK") || name.equals("DISABLE_NETWORK")) {
+            String disabled = name.equals("DISABLE_NETWORK") ? "1" : "0";
+            if (all) {
+                for (LinkedHashMap<String, String> n : mNetworks.values()) {
+                    n.put("disabled", disabled);
+                }
+            } else {
+                network.put("disabled", disabled);
+            }
+            return "OK";
+        }
+        return "FAIL";
+    }
+
+    /* Connects to the strongest BSS of the network, emitting the usual events */
+    private void connectTo(int netId, LinkedHashMap<String, String> network) {
+        String ssid = network.get("ssid");
+        if (ssid == null) return;
+        ssid = ssid.replace("\"", "");
+        Bss best = null;
+        for (Bss bss : mBsses) {
+            if (bss.ssid.equals(ssid) && (best == null || bss.level > best.level)) best = bss;
+        }
+        if (best == null) return;
+        mCurrentNetworkId = netId;
+        mCurrentBss = best;
+        sendEvent("Trying to associate with " + best.bssid + " (SSID='" + ssid
+                + "' freq=" + best.frequency + " MHz)", 0);
+        setState(STATE_ASSOCIATING, netId, best);
+        sendEvent("Associated with " + best.bssid, 0);
+        setState(STATE_COMPLETED, netId, best);
+        sendEvent("CTRL-EVENT-CONNECTED - Connection to " + best.bssid + " completed [id="
+                + netId + " id_str=]", 0);
+    }
+
+    private void setState(int state, int netId, Bss bss) {
+        mState = state;
+        sendEvent("CTRL-EVENT-STATE-CHANGE id=" + netId + " state=" + state
+                + " BSSID=" + (bss != null ? bss.bssid : "00:00:00:00:00:00")
+                + " SSID=" + (bss != null ? bss.ssid : ""), 0);
+    }
+
+    /* Must be called with the lock held */
+    private String bssRange(String command) {
+        int first = 0;
+        int rangeStart = command.indexOf("RANGE=");
+        if (rangeStart >= 0) {
+            int rangeEnd = command.indexOf('-', rangeStart);
+            String from = command.substring(rangeStart + 6, rangeEnd < 0 ? command.length()
+                    : rangeEnd);
+            first = from.equals("ALL") ? 0 : Integer.parseInt(from.trim());
+        }
+        StringBuilder sb = new StringBuilder();
+        // Like supplicant, stop before the entry that does not fit in the reply buffer
+        int limit = WifiNative.REPLY_BUF_SIZE - 1;
+        for (Bss bss : mBsses) {
+            if (bss.id < first) continue;
+            int length = sb.length();
+            sb.append("id=").append(bss.id)
+                    .append("\nbssid=").append(bss.bssid)
+                    .append("\nfreq=").append(bss.frequency)
+                    .append("\nlevel=").append(bss.level)
+                    .append("\ntsf=").append(String.format(Locale.ROOT, "%016d",
+                            bss.id * 102400L))
+                    .append("\nage=").append(bss.id % 10)
+                    .append("\nflags=").append(bss.flags)
+                    .append("\nssid=").append(bss.ssid)
+                    .append('\n').append(DELIMITER_STR).append('\n');
+            if (sb.length() > limit) {
+                sb.setLength(length);
+                return sb.toString();
+            }
+        }
+        if (sb.length() + END_STR.length() <= limit) sb.append(END_STR);
+        return sb.toString();
+    }
+
+    /* Must be called with the lock held */
+    private String signalPoll() {
+        if (mCurrentBss == null) return "FAIL";
+        return "RSSI=" + mCurrentBss.level
+                + "\nLINKSPEED=" + (mCurrentBss.frequency > 5000 ? 150 : 65)
+                + "\nNOISE=9999"
+                + "\nFREQUENCY=" + mCurrentBss.frequency;
+    }
+
+    /* Must be called with the lock held */
+    private String status() {
+        StringBuilder sb = new StringBuilder();
+        if (mCurrentBss != null) {
+            sb.append("bssid=").append(mCurrentBss.bssid)
+                    .append("\nfreq=").append(mCurrentBss.frequency)
+                    .append("\nssid=").append(mCurrentBss.ssid)
+                    .append("\nid=").append(mCurrentNetworkId)
+                    .append("\nmode=station\n");
+        }
+        sb.append("wpa_state=").append(STATE_NAMES[mState])
+                .append("\naddress=02:00:00:00:00:00");
+        return sb.toString();
+    }
+
+    /* Must be called with the lock held */
+    private String listNetworks(String command) {
+        int lastId = -1;
+        int start = command.indexOf("LAST_ID=");
+        if (start >= 0) lastId = Integer.parseInt(command.substring(start + 8).trim());
+        StringBuilder sb = new StringBuilder("network id / ssid / bssid / flags\n");
+        for (Integer netId : mNetworks.tailMap(lastId + 1).keySet()) {
+            LinkedHashMap<String, String> network = mNetworks.get(netId);
+            String ssid = network.get("ssid");
+            String line = netId + "\t" + (ssid == null ? "" : ssid.replace("\"", ""))
+                    + "\tany\t"
+                    + (netId == mCurrentNetworkId ? "[CURRENT]" : "")
+                    + ("1".equals(network.get("disabled")) ? "[DISABLED]" : "") + "\n";
+            // LIST_NETWORKS is paged too, the caller asks again from the last id it got
+            if (sb.length() + line.length() > WifiNative.REPLY_BUF_SIZE - 1) break;
+            sb.append(line);
+        }
+        return sb.toString();
+    }
+
+    /**
+     * @return the number of commands answered since creation
+     */
+    synchronized long getCommandCount() {
+        return mCommands;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "FakeSupplicant " + mInterfaceName + " bsses=" + mBsses.size()
+                + " networks=" + mNetworks.size()
+                + " state=" + STATE_NAMES[mState]
+                + " commands=" + mCommands
+                + " eventsSent=" + mEventsSent
+                + " eventsPending=" + mEvents.size()
+                + " truncatedReplies=" + mTruncatedReplies;
+    }
+}
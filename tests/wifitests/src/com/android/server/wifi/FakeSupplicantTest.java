@@ -0,0 +1,98 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.wifi;
+
+import android.test.suitebuilder.annotation.SmallTest;
+
+import junit.framework.TestCase;
+
+import java.io.StringReader;
+
+/**
+ * Unit tests of {@link FakeSupplicant}, and of WifiNative and WifiMonitor running on it.
+ */
+@SmallTest
+public class FakeSupplicantTest extends TestCase {
+
+    private SupplicantTestHarness mHarness;
+
+    @Override
+    protected void tearDown() throws Exception {
+        if (mHarness != null) mHarness.stop();
+        mHarness = null;
+        super.tearDown();
+    }
+
+    public void testScenarioParsing() throws Exception {
+        FakeSupplicant supplicant = TestResources.scenario("office.txt");
+        String page = supplicant.doStringCommand("BSS RANGE=0- MASK=0x21987");
+        assertTrue(page, page.startsWith("id=0\nbssid=00:1a:1e:00:10:01\nfreq=2412\n"));
+        assertTrue(page, page.endsWith("====\n####"));
+        assertTrue(supplicant.doStringCommand("LIST_NETWORKS").contains("1\tguest\tany"));
+    }
+
+    public void testInvalidScenarioLine() throws Exception {
+        try {
+            FakeSupplicant.fromScenario(new StringReader("latency 1\nbogus 2\n"));
+            fail();
+        } catch (IllegalArgumentException e) {
+            assertTrue(e.getMessage(), e.getMessage().startsWith("Scenario line 2"));
+        }
+    }
+
+    public void testBssRangePaging() throws Exception {
+        FakeSupplicant supplicant = FakeSupplicant.fromScenario(new StringReader("bsses 200"));
+        int sid = 0;
+        BssRangeParser parser = new BssRangeParser();
+        final int[] entries = new int[1];
+        BssRangeParser.Callback counter = new BssRangeParser.Callback() {
+            @Override
+            public void onBssEntry(BssRangeParser entry) {
+                entries[0]++;
+            }
+        };
+        int pages = 0;
+        while (sid != BssRangeParser.NO_MORE_PAGES) {
+            String page = supplicant.doStringCommand("BSS RANGE=" + sid + "- MASK=0x21987");
+            assertTrue(page.length() < WifiNative.REPLY_BUF_SIZE);
+            sid = parser.parsePage(page, counter);
+            pages++;
+        }
+        assertEquals(200, entries[0]);
+        assertTrue("pages=" + pages, pages > 1);
+    }
+
+    public void testConnectEmitsEvents() throws Exception {
+        mHarness = new SupplicantTestHarness(TestResources.scenario("office.txt"));
+        mHarness.start();
+        assertTrue(mHarness.wifiNative.enableNetwork(0, true));
+        SupplicantTestHarness.Received connected = mHarness.stateMachine.await(
+                WifiMonitor.NETWORK_CONNECTION_EVENT, SupplicantTestHarness.TIMEOUT_MS);
+        assertNotNull(connected);
+        assertEquals("00:1a:1e:00:10:01", connected.obj);
+        String status = mHarness.wifiNative.status();
+        assertTrue(status, status.contains("wpa_state=COMPLETED"));
+    }
+
+    public void testKillSupplicant() throws Exception {
+        FakeSupplicant supplicant = TestResources.scenario("office.txt");
+        assertFalse(supplicant.killSupplicant(false));
+        assertTrue(supplicant.startSupplicant(false));
+        assertTrue(supplicant.killSupplicant(false));
+        assertEquals("CTRL-EVENT-TERMINATING - signal 9 received", supplicant.waitForEvent());
+    }
+}
@@ -0,0 +1,158 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.wifi;
+
+import android.net.wifi.ScanResult;
+import android.net.wifi.WifiSsid;
+import android.util.LruCache;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * The BSS RANGE= parsing of WifiStateMachine.setScanResults() before
+ * {@link BssRangeParser}: each page is split to find the next page id, the pages are
+ * concatenated, then split into lines again and parsed. Kept as the reference of
+ * BssRangeBenchmarkTest; the supplicant round-trips are left out.
+ */
+class LegacyBssRangeParser {
+
+    private static final String ID_STR = "id=";
+    private static final String BSSID_STR = "bssid=";
+    private static final String FREQ_STR = "freq=";
+    private static final String LEVEL_STR = "level=";
+    private static final String TSF_STR = "tsf=";
+    private static final String FLAGS_STR = "flags=";
+    private static final String SSID_STR = "ssid=";
+    private static final String DELIMITER_STR = "====";
+    private static final String END_STR = "####";
+
+    private static Pattern mNotZero = Pattern.compile("[1-9a-fA-F]");
+
+    private final LruCache<String, ScanResult> mScanResultCache;
+
+    LegacyBssRangeParser(int cacheSize) {
+        mScanResultCache = new LruCache<String, ScanResult>(cacheSize);
+    }
+
+    /**
+     * @return the scan results of the pages, in the order supplicant reported them
+     */
+    List<ScanResult> parse(List<String> pages) {
+        String bssid = "";
+        int level = 0;
+        int freq = 0;
+        long tsf = 0;
+        String flags = "";
+        WifiSsid wifiSsid = null;
+        String scanResults;
+        StringBuffer scanResultsBuf = new StringBuffer();
+        int sid = 0;
+
+        for (String tmpResults : pages) {
+            scanResultsBuf.append(tmpResults);
+            scanResultsBuf.append("\n");
+            String[] lines = tmpResults.split("\n");
+            sid = -1;
+            for (int i=lines.length - 1; i >= 0; i--) {
+                if (lines[i].startsWith(END_STR)) {
+                    break;
+                } else if (lines[i].startsWith(ID_STR)) {
+                    try {
+                        sid = Integer.parseInt(lines[i].substring(ID_STR.length())) + 1;
+                    } catch (NumberFormatException e) {
+                        // Nothing to do
+                    }
+                    break;
+                }
+            }
+            if (sid == -1) break;
+        }
+
+        scanResults = scanResultsBuf.toString();
+        ArrayList<ScanResult> results = new ArrayList<ScanResult>();
+        String[] lines = scanResults.split("\n");
+        final int bssidStrLen = BSSID_STR.length();
+        final int flagLen = FLAGS_STR.length();
+
+        for (String line : lines) {
+            if (line.startsWith(BSSID_STR)) {
+                bssid = new String(line.getBytes(), bssidStrLen, line.length() - bssidStrLen);
+            } else if (line.startsWith(FREQ_STR)) {
+                try {
+                    freq = Integer.parseInt(line.substring(FREQ_STR.length()));
+                } catch (NumberFormatException e) {
+                    freq = 0;
+                }
+            } else if (line.startsWith(LEVEL_STR)) {
+                try {
+                    level = Integer.parseInt(line.substring(LEVEL_STR.length()));
+                    if (level > 0) level -= 256;
+                } catch(NumberFormatException e) {
+                    level = 0;
+                }
+            } else if (line.startsWith(TSF_STR)) {
+                try {
+                    tsf = Long.parseLong(line.substring(TSF_STR.length()));
+                } catch (NumberFormatException e) {
+                    tsf = 0;
+                }
+            } else if (line.startsWith(FLAGS_STR)) {
+                flags = new String(line.getBytes(), flagLen, line.length() - flagLen);
+            } else if (line.startsWith(SSID_STR)) {
+                wifiSsid = WifiSsid.createFromAsciiEncoded(
+                        line.substring(SSID_STR.length()));
+            } else if (line.startsWith(DELIMITER_STR) || line.startsWith(END_STR)) {
+                Matcher match = null;
+                if (bssid!= null) {
+                    match = mNotZero.matcher(bssid);
+                }
+                if (match != null && !bssid.isEmpty() && match.find()) {
+                    String ssid = (wifiSsid != null) ? wifiSsid.toString() : WifiSsid.NONE;
+                    String key = bssid + ssid;
+                    ScanResult scanResult = mScanResultCache.get(key);
+                    if (scanResult != null) {
+                        scanResult.level = level;
+                        scanResult.wifiSsid = wifiSsid;
+                        scanResult.SSID = (wifiSsid != null) ? wifiSsid.toString() :
+                                WifiSsid.NONE;
+                        scanResult.capabilities = flags;
+                        scanResult.frequency = freq;
+                        scanResult.timestamp = tsf;
+                        scanResult.seen = System.currentTimeMillis();
+                    } else {
+                        scanResult =
+                            new ScanResult(
+                                    wifiSsid, bssid, flags, level, freq, tsf);
+                        scanResult.seen = System.currentTimeMillis();
+                        mScanResultCache.put(key, scanResult);
+                    }
+                    results.add(scanResult);
+                }
+                bssid = null;
+                level = 0;
+                freq = 0;
+                tsf = 0;
+                flags = "";
+                wifiSsid = null;
+            }
+        }
+        return results;
+    }
+}
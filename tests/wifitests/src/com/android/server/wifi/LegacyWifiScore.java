@@ -0,0 +1,223 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.wifi;
+
+import android.net.NetworkAgent;
+import android.net.wifi.WifiConfiguration;
+
+/**
+ * The score computation of WifiStateMachine.calculateWifiScore() before it moved to
+ * {@link WifiScoreEngine}, kept as the reference of the replay tests. The WifiInfo and
+ * WifiConfigStore fields it used are fields of this class; the debug logging is left out.
+ */
+class LegacyWifiScore {
+
+    int badLinkSpeed24;
+    int badLinkSpeed5;
+    int goodLinkSpeed24;
+    int goodLinkSpeed5;
+    int thresholdBadRssi24;
+    int thresholdLowRssi24;
+    int thresholdGoodRssi24;
+    int thresholdBadRssi5;
+    int thresholdLowRssi5;
+    int thresholdGoodRssi5;
+    boolean enableWifiCellularHandoverUserTriggeredAdjustment;
+
+    /* Carried over, in WifiStateMachine and WifiInfo */
+    int mBadLinkspeedcount;
+    int linkStuckCount;
+    int badRssiCount;
+    int lowRssiCount;
+
+    String wifiScoringReport;
+
+    void reset() {
+        mBadLinkspeedcount = 0;
+        linkStuckCount = 0;
+        badRssiCount = 0;
+        lowRssiCount = 0;
+    }
+
+    private static boolean is24GHz(int frequency) {
+        return frequency > 2400 && frequency < 2500;
+    }
+
+    private static boolean is5GHz(int frequency) {
+        return frequency > 4900 && frequency < 5900;
+    }
+
+    int calculate(int wifiRssi, int linkSpeed, int frequency, int aggressiveHandover,
+            boolean use24Thresholds, boolean homeNetworkBoost, double txSuccessRate,
+            double txBadRate, double rxSuccessRate, WifiConfiguration currentConfiguration) {
+        StringBuilder sb = new StringBuilder();
+
+        int score = 56; // Starting score, temporarily hardcoded in between 50 and 60
+        boolean isBadLinkspeed = (is24GHz(frequency) && linkSpeed < badLinkSpeed24)
+                || (is5GHz(frequency) && linkSpeed < badLinkSpeed5);
+        boolean isGoodLinkspeed = (is24GHz(frequency) && linkSpeed >= goodLinkSpeed24)
+                || (is5GHz(frequency) && linkSpeed >= goodLinkSpeed5);
+
+        if (isBadLinkspeed) {
+            if (mBadLinkspeedcount < 6)
+                mBadLinkspeedcount++;
+        } else {
+            if (mBadLinkspeedcount > 0)
+                mBadLinkspeedcount--;
+        }
+
+        if (isBadLinkspeed) sb.append(" bl(").append(mBadLinkspeedcount).append(")");
+        if (isGoodLinkspeed) sb.append(" gl");
+
+        if (homeNetworkBoost) sb.append(" hn");
+        if (use24Thresholds) sb.append(" u24");
+
+        int rssi = wifiRssi - 6 * aggressiveHandover
+                + (homeNetworkBoost ? WifiConfiguration.HOME_NETWORK_RSSI_BOOST : 0);
+        sb.append(String.format(" rssi=%d ag=%d", rssi, aggressiveHandover));
+
+        boolean is24GHz = use24Thresholds || is24GHz(frequency);
+
+        boolean isBadRSSI = (is24GHz && rssi < thresholdBadRssi24)
+                || (!is24GHz && rssi < thresholdBadRssi5);
+        boolean isLowRSSI = (is24GHz && rssi < thresholdLowRssi24)
+                || (!is24GHz && wifiRssi < thresholdLowRssi5);
+        boolean isHighRSSI = (is24GHz && rssi >= thresholdGoodRssi24)
+                || (!is24GHz && wifiRssi >= thresholdGoodRssi5);
+
+        if (isBadRSSI) sb.append(" br");
+        if (isLowRSSI) sb.append(" lr");
+        if (isHighRSSI) sb.append(" hr");
+
+        if (currentConfiguration != null && (txSuccessRate > 5 || rxSuccessRate > 5)) {
+            if (isBadRSSI) {
+                currentConfiguration.numTicksAtBadRSSI++;
+                if (currentConfiguration.numTicksAtBadRSSI > 1000) {
+                    if (currentConfiguration.numUserTriggeredWifiDisableBadRSSI > 0) {
+                        currentConfiguration.numUserTriggeredWifiDisableBadRSSI--;
+                    }
+                    if (currentConfiguration.numUserTriggeredWifiDisableLowRSSI > 0) {
+                        currentConfiguration.numUserTriggeredWifiDisableLowRSSI--;
+                    }
+                    if (currentConfiguration.numUserTriggeredWifiDisableNotHighRSSI > 0) {
+                        currentConfiguration.numUserTriggeredWifiDisableNotHighRSSI--;
+                    }
+                    currentConfiguration.numTicksAtBadRSSI = 0;
+                }
+                if (enableWifiCellularHandoverUserTriggeredAdjustment &&
+                        (currentConfiguration.numUserTriggeredWifiDisableBadRSSI > 0
+                        || currentConfiguration.numUserTriggeredWifiDisableLowRSSI > 0
+                        || currentConfiguration.numUserTriggeredWifiDisableNotHighRSSI > 0)) {
+                    score = score -5;
+                    sb.append(" p1");
+                }
+            } else if (isLowRSSI) {
+                currentConfiguration.numTicksAtLowRSSI++;
+                if (currentConfiguration.numTicksAtLowRSSI > 1000) {
+                    if (currentConfiguration.numUserTriggeredWifiDisableLowRSSI > 0) {
+                        currentConfiguration.numUserTriggeredWifiDisableLowRSSI--;
+                    }
+                    if (currentConfiguration.numUserTriggeredWifiDisableNotHighRSSI > 0) {
+                        currentConfiguration.numUserTriggeredWifiDisableNotHighRSSI--;
+                    }
+                    currentConfiguration.numTicksAtLowRSSI = 0;
+                }
+                if (enableWifiCellularHandoverUserTriggeredAdjustment &&
+                        (currentConfiguration.numUserTriggeredWifiDisableLowRSSI > 0
+                        || currentConfiguration.numUserTriggeredWifiDisableNotHighRSSI > 0)) {
+                    score = score -5;
+                    sb.append(" p2");
+                }
+            } else if (!isHighRSSI) {
+                currentConfiguration.numTicksAtNotHighRSSI++;
+                if (currentConfiguration.numTicksAtNotHighRSSI > 1000) {
+                    if (currentConfiguration.numUserTriggeredWifiDisableNotHighRSSI > 0) {
+                        currentConfiguration.numUserTriggeredWifiDisableNotHighRSSI--;
+                    }
+                    currentConfiguration.numTicksAtNotHighRSSI = 0;
+                }
+                if (enableWifiCellularHandoverUserTriggeredAdjustment &&
+                        currentConfiguration.numUserTriggeredWifiDisableNotHighRSSI > 0) {
+                    score = score -5;
+                    sb.append(" p3");
+                }
+            }
+            sb.append(String.format(" ticks %d,%d,%d", currentConfiguration.numTicksAtBadRSSI,
+                    currentConfiguration.numTicksAtLowRSSI,
+                    currentConfiguration.numTicksAtNotHighRSSI));
+        }
+
+        if ((txBadRate >= 1) && (txSuccessRate < 3) && (isBadRSSI || isLowRSSI)) {
+            // Link is stuck
+            if (linkStuckCount < 5)
+                linkStuckCount += 1;
+            sb.append(String.format(" ls+=%d", linkStuckCount));
+        } else if (txSuccessRate > 2 || txBadRate < 0.1) {
+            if (linkStuckCount > 0)
+                linkStuckCount -= 1;
+            sb.append(String.format(" ls-=%d", linkStuckCount));
+        }
+
+        sb.append(String.format(" [%d", score));
+
+        if (linkStuckCount > 1) {
+            // Once link gets stuck for more than 3 seconds, start reducing the score
+            score = score - 2 * (linkStuckCount - 1);
+        }
+        sb.append(String.format(",%d", score));
+
+        if (isBadLinkspeed) {
+            score -= 4 ;
+        } else if ((isGoodLinkspeed) && (txSuccessRate > 5)) {
+            score += 4; // So as bad rssi alone dont kill us
+        }
+        sb.append(String.format(",%d", score));
+
+        if (isBadRSSI) {
+            if (badRssiCount < 7)
+                badRssiCount += 1;
+        } else if (isLowRSSI) {
+            lowRssiCount = 1; // Dont increment the lowRssi count above 1
+            if (badRssiCount > 0) {
+                // Decrement bad Rssi count
+                badRssiCount -= 1;
+            }
+        } else {
+            badRssiCount = 0;
+            lowRssiCount = 0;
+        }
+
+        score -= badRssiCount * 2 +  lowRssiCount ;
+        sb.append(String.format(",%d", score));
+
+        if (isHighRSSI) {
+            score += 5;
+        }
+        sb.append(String.format(",%d]", score));
+
+        sb.append(String.format(" brc=%d lrc=%d", badRssiCount, lowRssiCount));
+
+        //sanitize boundaries
+        if (score > NetworkAgent.WIFI_BASE_SCORE)
+            score = NetworkAgent.WIFI_BASE_SCORE;
+        if (score < 0)
+            score = 0;
+
+        wifiScoringReport = sb.toString();
+        return score;
+    }
+}
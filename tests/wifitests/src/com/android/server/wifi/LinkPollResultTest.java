@@ -0,0 +1,114 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.wifi;
+
+import android.test.suitebuilder.annotation.SmallTest;
+
+import junit.framework.TestCase;
+
+/**
+ * Unit tests of {@link LinkPollResult}, and of the link polls WifiNative shares between
+ * callers, against {@link FakeSupplicant}.
+ */
+@SmallTest
+public class LinkPollResultTest extends TestCase {
+
+    private FakeSupplicant mSupplicant;
+    private WifiNative mWifiNative;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mSupplicant = TestResources.scenario("office.txt");
+        WifiNative.setSupplicantTransport(mSupplicant);
+        mWifiNative = new WifiNative("wlan0");
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        WifiNative.setSupplicantTransport(null);
+        super.tearDown();
+    }
+
+    public void testParseSignalPoll() {
+        LinkPollResult result = new LinkPollResult();
+        result.parseSignalPoll("RSSI=-55\nLINKSPEED=65\nNOISE=-92\nFREQUENCY=2437");
+        assertEquals(-55, result.rssi);
+        assertEquals(65, result.linkSpeed);
+        assertEquals(-92, result.noise);
+        assertEquals(2437, result.frequency);
+
+        result.parseSignalPoll("RSSI=bogus\nFREQUENCY=5180");
+        assertEquals(-1, result.rssi);
+        assertEquals(-1, result.linkSpeed);
+        assertEquals(LinkPollResult.NOISE_UNKNOWN, result.noise);
+        assertEquals(5180, result.frequency);
+    }
+
+    public void testParsePktcntPoll() {
+        LinkPollResult result = new LinkPollResult();
+        result.parsePktcntPoll("TXGOOD=12\nTXBAD=0\nRXGOOD=34");
+        assertEquals(12, result.txGood);
+        assertEquals(0, result.txBad);
+        assertEquals(34, result.rxGood);
+    }
+
+    public void testPollsSharedUntilInvalidated() {
+        assertTrue(mWifiNative.enableNetwork(0, true));
+        LinkPollResult first = new LinkPollResult();
+        LinkPollResult second = new LinkPollResult();
+        assertTrue(mWifiNative.signalPoll(first));
+        assertTrue(mWifiNative.pktcntPoll(first));
+        long commands = mSupplicant.getCommandCount();
+
+        // Within the sharing window, both come from the previous replies
+        assertTrue(mWifiNative.signalPoll(second));
+        assertTrue(mWifiNative.pktcntPoll(second));
+        assertEquals(commands, mSupplicant.getCommandCount());
+        assertEquals(first.rssi, second.rssi);
+        assertEquals(first.txGood, second.txGood);
+
+        // As on a roam or disconnection: the next polls go to the supplicant
+        mWifiNative.invalidateLinkPolls();
+        assertTrue(mWifiNative.signalPoll(second));
+        assertTrue(mWifiNative.pktcntPoll(second));
+        assertEquals(commands + 2, mSupplicant.getCommandCount());
+        // The fake supplicant counts packets up on every PKTCNT_POLL
+        assertTrue(second.txGood > first.txGood);
+    }
+
+    public void testMonitorInvalidatesOnConnection() throws Exception {
+        SupplicantTestHarness harness = new SupplicantTestHarness(mSupplicant);
+        harness.start();
+        try {
+            WifiNative wifiNative = harness.wifiNative;
+            assertTrue(wifiNative.enableNetwork(0, true));
+            LinkPollResult result = new LinkPollResult();
+            assertTrue(wifiNative.signalPoll(result));
+            long commands = mSupplicant.getCommandCount();
+
+            mSupplicant.sendEvent("CTRL-EVENT-CONNECTED - Connection to 02:00:00:00:00:01"
+                    + " completed [id=0 id_str=]", 0);
+            assertNotNull(harness.stateMachine.await(WifiMonitor.NETWORK_CONNECTION_EVENT,
+                    SupplicantTestHarness.TIMEOUT_MS));
+            assertTrue(wifiNative.signalPoll(result));
+            assertEquals(commands + 1, mSupplicant.getCommandCount());
+        } finally {
+            harness.stop();
+        }
+    }
+}
@@ -0,0 +1,189 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.wifi;
+
+import android.test.suitebuilder.annotation.LargeTest;
+import android.test.suitebuilder.annotation.SmallTest;
+
+import junit.framework.TestCase;
+
+import java.io.StringReader;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Tests of {@link NetworkVariableBatch} flushed by WifiNative against {@link FakeSupplicant},
+ * and a benchmark importing 500 networks with one setNetworkVariable() per variable, as
+ * WifiConfigStore did before, and with a batch per network.
+ */
+@SmallTest
+public class NetworkVariableBatchTest extends TestCase {
+
+    private static final int NETWORKS = 500;
+    private static final int WARMUP = 2;
+    private static final int ITERATIONS = 5;
+
+    /* The variables WifiConfigStore.addOrUpdateNetworkNative() writes for a PSK network */
+    private static final String[][] PSK_VARIABLES = {
+        { "key_mgmt", "WPA-PSK" },
+        { "proto", "WPA RSN" },
+        { "auth_alg", "OPEN" },
+        { "pairwise", "CCMP TKIP" },
+        { "group", "CCMP TKIP WEP104 WEP40" },
+        { "psk", "\"password\"" },
+        { "priority", "1" },
+    };
+
+    private WifiNative mWifiNative;
+
+    private void setUpSupplicant(long latencyMs) throws Exception {
+        WifiNative.setSupplicantTransport(
+                FakeSupplicant.fromScenario(new StringReader("latency " + latencyMs)));
+        mWifiNative = new WifiNative("wlan0");
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        WifiNative.setSupplicantTransport(null);
+        super.tearDown();
+    }
+
+    public void testFailureSkipsRestOfNetwork() throws Exception {
+        setUpSupplicant(0);
+        int netId = mWifiNative.addNetwork();
+        // No such network, the first write fails and the writes after it are skipped
+        int missing = netId + 1;
+        int writes = 2 * WifiNative.MAX_NETWORK_VARIABLES_PER_TURN + 3;
+        NetworkVariableBatch batch = new NetworkVariableBatch();
+        for (int i = 0; i < writes; i++) batch.add(missing, "priority", Integer.toString(i));
+        for (int i = 0; i < writes; i++) batch.add(netId, "priority", Integer.toString(i));
+
+        assertFalse(mWifiNative.setNetworkVariables(batch));
+        assertEquals(NetworkVariableBatch.STATUS_FAILED, batch.getStatus(0));
+        for (int i = 1; i < writes; i++) {
+            assertEquals("write " + i, NetworkVariableBatch.STATUS_SKIPPED, batch.getStatus(i));
+        }
+        for (int i = writes; i < batch.size(); i++) {
+            assertEquals("write " + i, NetworkVariableBatch.STATUS_OK, batch.getStatus(i));
+        }
+        assertEquals(0, batch.getFailure(missing));
+        assertEquals(-1, batch.getFailure(netId));
+        assertEquals(Integer.toString(writes - 1),
+                mWifiNative.getNetworkVariable(netId, "priority"));
+    }
+
+    public void testNetworkSentInOneTurn() throws Exception {
+        setUpSupplicant(0);
+        CommandChannel channel = CommandChannel.forInterface("wlan0");
+        int[] netIds = { mWifiNative.addNetwork(), mWifiNative.addNetwork() };
+        NetworkVariableBatch batch = new NetworkVariableBatch();
+        addWrites(batch, netIds[0], WifiNative.MAX_NETWORK_VARIABLES_PER_TURN + 1);
+        // More writes than a turn takes, still sent in one
+        long turns = channel.getTurnCount();
+        assertTrue(mWifiNative.setNetworkVariables(batch));
+        assertEquals(1, channel.getTurnCount() - turns);
+
+        // The next network waits for a turn of its own once the limit is reached
+        batch.clear();
+        addWrites(batch, netIds[0], WifiNative.MAX_NETWORK_VARIABLES_PER_TURN + 1);
+        addWrites(batch, netIds[1], 1);
+        turns = channel.getTurnCount();
+        assertTrue(mWifiNative.setNetworkVariables(batch));
+        assertEquals(2, channel.getTurnCount() - turns);
+    }
+
+    @LargeTest
+    public void testBatchYieldsChannel() throws Exception {
+        final long latencyMs = 2;
+        setUpSupplicant(latencyMs);
+        final NetworkVariableBatch batch = new NetworkVariableBatch();
+        for (int n = 0; n < 16; n++) {
+            addWrites(batch, mWifiNative.addNetwork(), 8);
+        }
+
+        final AtomicBoolean done = new AtomicBoolean();
+        final boolean[] success = new boolean[1];
+        Thread writer = new Thread("batch-writer") {
+            @Override
+            public void run() {
+                success[0] = mWifiNative.setNetworkVariables(batch);
+                done.set(true);
+            }
+        };
+        BenchmarkStats stats = new BenchmarkStats("command during a 128 write batch", "ns");
+        writer.start();
+        while (!done.get()) {
+            long start = System.nanoTime();
+            assertTrue(mWifiNative.ping());
+            stats.add(System.nanoTime() - start);
+        }
+        writer.join();
+        stats.report();
+        assertTrue(success[0]);
+        // Held off by one turn of the batch at most, with room for scheduling noise
+        long bound = 3 * (WifiNative.MAX_NETWORK_VARIABLES_PER_TURN + 2) * latencyMs * 1000000;
+        assertTrue("max=" + stats.max(), stats.max() < bound);
+    }
+
+    @LargeTest
+    public void testImportBenchmark() throws Exception {
+        BenchmarkStats legacy = new BenchmarkStats("import " + NETWORKS
+                + " networks, a command per variable", "ns");
+        BenchmarkStats batched = new BenchmarkStats("import " + NETWORKS
+                + " networks, a batch per network", "ns");
+        for (int i = 0; i < WARMUP + ITERATIONS; i++) {
+            setUpSupplicant(0);
+            long start = System.nanoTime();
+            importOneByOne();
+            long middle = System.nanoTime();
+            setUpSupplicant(0);
+            long batchStart = System.nanoTime();
+            importBatched();
+            long end = System.nanoTime();
+            if (i >= WARMUP) {
+                legacy.add(middle - start);
+                batched.add(end - batchStart);
+            }
+        }
+        legacy.report();
+        batched.report();
+    }
+
+    private static void addWrites(NetworkVariableBatch batch, int netId, int count) {
+        for (int i = 0; i < count; i++) batch.add(netId, "priority", Integer.toString(i));
+    }
+
+    private void importOneByOne() {
+        for (int n = 0; n < NETWORKS; n++) {
+            int netId = mWifiNative.addNetwork();
+            assertTrue(mWifiNative.setNetworkVariable(netId, "ssid", "\"net" + n + "\""));
+            for (String[] variable : PSK_VARIABLES) {
+                assertTrue(mWifiNative.setNetworkVariable(netId, variable[0], variable[1]));
+            }
+        }
+    }
+
+    private void importBatched() {
+        NetworkVariableBatch batch = new NetworkVariableBatch();
+        for (int n = 0; n < NETWORKS; n++) {
+            int netId = mWifiNative.addNetwork();
+            batch.clear();
+            batch.add(netId, "ssid", "\"net" + n + "\"");
+            for (String[] variable : PSK_VARIABLES) batch.add(netId, variable[0], variable[1]);
+            assertTrue(mWifiNative.setNetworkVariables(batch));
+        }
+    }
+}
@@ -0,0 +1,218 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.wifi;
+
+import android.net.wifi.WifiConfiguration;
+import android.net.wifi.WifiConfiguration.KeyMgmt;
+import android.test.suitebuilder.annotation.LargeTest;
+import android.test.suitebuilder.annotation.SmallTest;
+
+import junit.framework.TestCase;
+
+import java.util.ArrayList;
+import java.util.Random;
+
+/**
+ * Unit tests of {@link ScanResultCapabilities}, and a micro-benchmark of the security
+ * matching of WifiConfigStore.updateSavedNetworkHistory() against the contains() chain it
+ * replaced.
+ */
+@SmallTest
+public class ScanResultCapabilitiesTest extends TestCase {
+
+    private static final String[] CAPABILITIES = {
+        "",
+        "[ESS]",
+        "[IBSS]",
+        "[WEP][ESS]",
+        "[WPA-PSK-TKIP][ESS]",
+        "[WPA2-PSK-CCMP][ESS]",
+        "[WPA2-PSK-CCMP][WPS][ESS]",
+        "[WPA-PSK-TKIP][WPA2-PSK-CCMP][WPS][ESS]",
+        "[WPA-PSK-TKIP+CCMP][WPA2-PSK-TKIP+CCMP][ESS]",
+        "[WPA2-EAP-CCMP][ESS]",
+        "[WPA-EAP-TKIP][WPA2-EAP-CCMP][ESS][HS20]",
+        "[RSN-PSK-CCMP][ESS]",
+        "[WPA2-PSK-CCMP][ESS][P2P]",
+        "[WPS][ESS]",
+    };
+
+    private static final int WARMUP = 5;
+    private static final int ITERATIONS = 30;
+
+    public void testDecodeMatchesContains() {
+        for (String s : CAPABILITIES) {
+            int bits = ScanResultCapabilities.of(s);
+            assertEquals(s, s.contains("WEP"), (bits & ScanResultCapabilities.WEP) != 0);
+            assertEquals(s, s.contains("PSK"), (bits & ScanResultCapabilities.PSK) != 0);
+            assertEquals(s, s.contains("EAP"), (bits & ScanResultCapabilities.EAP) != 0);
+            assertEquals(s, s.contains("[WPA-"), (bits & ScanResultCapabilities.WPA) != 0);
+            assertEquals(s, s.contains("[WPA2-") || s.contains("[RSN-"),
+                    (bits & ScanResultCapabilities.WPA2) != 0);
+            assertEquals(s, s.contains("CCMP"), (bits & ScanResultCapabilities.CCMP) != 0);
+            assertEquals(s, s.contains("TKIP"), (bits & ScanResultCapabilities.TKIP) != 0);
+            assertEquals(s, s.contains("[WPS]"), (bits & ScanResultCapabilities.WPS) != 0);
+            assertEquals(s, s.contains("[ESS]"), (bits & ScanResultCapabilities.ESS) != 0);
+            assertEquals(s, s.contains("[IBSS]"), (bits & ScanResultCapabilities.IBSS) != 0);
+            assertEquals(s, s.contains("[P2P]"), (bits & ScanResultCapabilities.P2P) != 0);
+            assertEquals(s, s.contains("[HS20]"), (bits & ScanResultCapabilities.HS20) != 0);
+            assertEquals(s, !s.contains("WEP") && !s.contains("PSK") && !s.contains("EAP"),
+                    ScanResultCapabilities.isOpen(bits));
+        }
+        assertEquals(0, ScanResultCapabilities.of(null));
+    }
+
+    public void testInternSharesInstances() {
+        String page = "flags=[WPA2-PSK-CCMP][WPS][ESS]\nssid=a\n"
+                + "flags=[WPA2-PSK-CCMP][WPS][ESS]\nssid=b\n";
+        int start = "flags=".length();
+        int end = page.indexOf('\n');
+        int secondStart = page.indexOf("flags=", end) + "flags=".length();
+        int secondEnd = page.indexOf('\n', secondStart);
+
+        String first = ScanResultCapabilities.intern(page, start, end);
+        String second = ScanResultCapabilities.intern(page, secondStart, secondEnd);
+        assertEquals("[WPA2-PSK-CCMP][WPS][ESS]", first);
+        assertSame(first, second);
+        assertEquals(ScanResultCapabilities.PSK | ScanResultCapabilities.WPA2
+                | ScanResultCapabilities.CCMP | ScanResultCapabilities.WPS
+                | ScanResultCapabilities.ESS, ScanResultCapabilities.of(first));
+        // An equal String that is not the pooled instance decodes the same
+        assertEquals(ScanResultCapabilities.of(first),
+                ScanResultCapabilities.of(new String(first.toCharArray())));
+    }
+
+    public void testSecurityOfMatchesConfigKey() {
+        for (WifiConfiguration config : savedNetworks(1)) {
+            for (String s : CAPABILITIES) {
+                assertEquals(config.configKey() + " " + s, legacyMatch(s, config),
+                        match(ScanResultCapabilities.of(s), config));
+            }
+        }
+    }
+
+    public void testSecurityOfIgnoresSsid() {
+        // configKey() carries the SSID, so the contains() chain matched this network as PSK
+        WifiConfiguration config = network("\"PSK-lobby\"", -1);
+        assertTrue(legacyMatch("[WPA2-PSK-CCMP][ESS]", config));
+        assertFalse(match(ScanResultCapabilities.of("[WPA2-PSK-CCMP][ESS]"), config));
+        assertTrue(match(ScanResultCapabilities.of("[ESS]"), config));
+    }
+
+    @LargeTest
+    public void testMatchingBenchmark() {
+        runBenchmark(100, 10);
+        runBenchmark(1000, 10);
+        runBenchmark(1000, 100);
+    }
+
+    private void runBenchmark(int bsses, int networks) {
+        Random random = new Random(bsses);
+        String[] scan = new String[bsses];
+        for (int i = 0; i < bsses; i++) {
+            scan[i] = CAPABILITIES[random.nextInt(CAPABILITIES.length)];
+        }
+        ArrayList<WifiConfiguration> saved = savedNetworks(networks / 4 + 1);
+        String name = bsses + " BSSes " + saved.size() + " networks";
+
+        BenchmarkStats legacy = new BenchmarkStats("legacy matching " + name, "ns");
+        BenchmarkStats bits = new BenchmarkStats("bitmask matching " + name, "ns");
+        for (int i = 0; i < WARMUP + ITERATIONS; i++) {
+            int legacyMatches = 0;
+            long start = System.nanoTime();
+            for (String s : scan) {
+                for (WifiConfiguration config : saved) {
+                    if (legacyMatch(s, config)) legacyMatches++;
+                }
+            }
+            long middle = System.nanoTime();
+            int matches = 0;
+            for (String s : scan) {
+                int security = ScanResultCapabilities.of(s);
+                for (WifiConfiguration config : saved) {
+                    if (match(security, config)) matches++;
+                }
+            }
+            long end = System.nanoTime();
+            assertEquals(legacyMatches, matches);
+            if (i >= WARMUP) {
+                legacy.add(middle - start);
+                bits.add(end - middle);
+            }
+        }
+        legacy.report();
+        bits.report();
+    }
+
+    /**
+     * @return count open, WEP, PSK and EAP networks each
+     */
+    private static ArrayList<WifiConfiguration> savedNetworks(int count) {
+        ArrayList<WifiConfiguration> networks = new ArrayList<WifiConfiguration>();
+        for (int i = 0; i < count; i++) {
+            networks.add(network("\"open" + i + "\"", -1));
+            networks.add(network("\"wep" + i + "\"", KeyMgmt.NONE));
+            networks.add(network("\"home" + i + "\"", KeyMgmt.WPA_PSK));
+            networks.add(network("\"corp" + i + "\"", KeyMgmt.WPA_EAP));
+        }
+        return networks;
+    }
+
+    /**
+     * @param keyMgmt the allowed key management, NONE for WEP, -1 for an open network
+     */
+    private static WifiConfiguration network(String ssid, int keyMgmt) {
+        WifiConfiguration config = new WifiConfiguration();
+        config.SSID = ssid;
+        if (keyMgmt == KeyMgmt.NONE) {
+            config.allowedKeyManagement.set(KeyMgmt.NONE);
+            config.wepKeys[0] = "\"abcde\"";
+        } else if (keyMgmt >= 0) {
+            config.allowedKeyManagement.set(keyMgmt);
+        }
+        return config;
+    }
+
+    /* The security match of updateSavedNetworkHistory() */
+    private static boolean match(int capabilities, WifiConfiguration config) {
+        int scanSecurity = capabilities & ScanResultCapabilities.SECURITY_MASK;
+        int configSecurity = WifiConfigStore.securityOf(config);
+        return (scanSecurity & configSecurity) != 0 || (scanSecurity == 0 && configSecurity == 0);
+    }
+
+    /* The security match of updateSavedNetworkHistory() before ScanResultCapabilities */
+    private static boolean legacyMatch(String capabilities, WifiConfiguration config) {
+        if (capabilities.contains("WEP")
+                && config.configKey().contains("WEP")) {
+            return true;
+        } else if (capabilities.contains("PSK")
+                && config.configKey().contains("PSK")) {
+            return true;
+        } else if (capabilities.contains("EAP")
+                && config.configKey().contains("EAP")) {
+            return true;
+        } else if (!capabilities.contains("WEP")
+            && !capabilities.contains("PSK")
+            && !capabilities.contains("EAP")
+            && !config.configKey().contains("WEP")
+                && !config.configKey().contains("PSK")
+                && !config.configKey().contains("EAP")) {
+            return true;
+        }
+        return false;
+    }
+}
@@ -0,0 +1,88 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.wifi;
+
+import android.net.wifi.ScanResult;
+import android.test.suitebuilder.annotation.LargeTest;
+
+import junit.framework.TestCase;
+
+/**
+ * Builds batches of ScanResult objects in native code the way the HAL event paths of
+ * WifiNative do, with classes and fields looked up by name for every result and with the
+ * IDs resolved once, and reports the latency of each. The native side is
+ * jni/com_android_server_wifi_ScanResultJniBenchmarkTest.cpp, built on jni_helper.
+ */
+@LargeTest
+public class ScanResultJniBenchmarkTest extends TestCase {
+
+    static {
+        System.loadLibrary("wifi-service-tests-jni");
+    }
+
+    private static final int WARMUP = 5;
+    private static final int ITERATIONS = 30;
+
+    private static native ScanResult[] buildByName(int count);
+    private static native ScanResult[] buildCached(int count);
+
+    public void testSameResults() {
+        ScanResult[] byName = buildByName(100);
+        ScanResult[] cached = buildCached(100);
+        assertEquals(100, byName.length);
+        assertEquals(100, cached.length);
+        for (int i = 0; i < byName.length; i++) {
+            String where = "result " + i;
+            assertEquals(where, byName[i].SSID, cached[i].SSID);
+            assertEquals(where, byName[i].BSSID, cached[i].BSSID);
+            assertEquals(where, byName[i].level, cached[i].level);
+            assertEquals(where, byName[i].frequency, cached[i].frequency);
+            assertEquals(where, byName[i].timestamp, cached[i].timestamp);
+        }
+        assertEquals("02:00:00:00:00:63", cached[99].BSSID);
+    }
+
+    public void testBenchmark10() {
+        runBenchmark(10);
+    }
+
+    public void testBenchmark100() {
+        runBenchmark(100);
+    }
+
+    public void testBenchmark1000() {
+        runBenchmark(1000);
+    }
+
+    private void runBenchmark(int count) {
+        BenchmarkStats byName = new BenchmarkStats("jni by name " + count + " results", "ns");
+        BenchmarkStats cached = new BenchmarkStats("jni cached ids " + count + " results", "ns");
+        for (int i = 0; i < WARMUP + ITERATIONS; i++) {
+            long start = System.nanoTime();
+            assertEquals(count, buildByName(count).length);
+            long middle = System.nanoTime();
+            assertEquals(count, buildCached(count).length);
+            long end = System.nanoTime();
+            if (i >= WARMUP) {
+                byName.add(middle - start);
+                cached.add(end - middle);
+            }
+        }
+        byName.report();
+        cached.report();
+    }
+}
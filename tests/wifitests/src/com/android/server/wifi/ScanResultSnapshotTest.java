@@ -0,0 +1,79 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.wifi;
+
+import android.net.wifi.ScanResult;
+import android.net.wifi.WifiSsid;
+import android.test.suitebuilder.annotation.SmallTest;
+
+import junit.framework.TestCase;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Unit tests of {@link ScanResultSnapshot} updates between scans.
+ */
+@SmallTest
+public class ScanResultSnapshotTest extends TestCase {
+
+    private static final String[] BSSIDS = {
+        "00:1a:11:f2:8c:10", "00:1a:11:f2:8c:14", "64:66:b3:5d:20:01"
+    };
+
+    private List<ScanResult> mScanResults;
+    private ScanResultSnapshot mSnapshot;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mScanResults = new ArrayList<ScanResult>();
+        for (String bssid : BSSIDS) {
+            mScanResults.add(new ScanResult(WifiSsid.createFromAsciiEncoded("office"), bssid,
+                    "[ESS]", -60, 2412, 0));
+        }
+        mSnapshot = new ScanResultSnapshot(1, 0, mScanResults);
+    }
+
+    public void testUpdateCopiesOnlyThatBssid() {
+        mScanResults.get(1).level = -45;
+        mScanResults.get(2).level = -80;
+        ScanResultSnapshot updated = mSnapshot.update(2, 0, mScanResults, BSSIDS[1]);
+
+        assertEquals(2, updated.version);
+        assertSame(mSnapshot.results.get(0), updated.results.get(0));
+        assertSame(mSnapshot.results.get(2), updated.results.get(2));
+        assertEquals(-45, updated.results.get(1).level);
+        // Other updates wait for the next full copy, the previous snapshot is unchanged
+        assertEquals(-60, updated.results.get(2).level);
+        assertEquals(-60, mSnapshot.results.get(1).level);
+    }
+
+    public void testUpdateOfUnknownBssidKeepsSnapshot() {
+        assertSame(mSnapshot, mSnapshot.update(2, 0, mScanResults, "02:00:00:00:00:01"));
+    }
+
+    public void testUpdateAfterMembershipChangeCopiesAll() {
+        List<ScanResult> scanResults = new ArrayList<ScanResult>(mScanResults.subList(0, 2));
+        scanResults.get(0).level = -50;
+        ScanResultSnapshot updated = mSnapshot.update(2, 0, scanResults, BSSIDS[1]);
+
+        assertEquals(2, updated.results.size());
+        assertEquals(-50, updated.results.get(0).level);
+        assertNotSame(mSnapshot.results.get(0), updated.results.get(0));
+    }
+}
@@ -0,0 +1,141 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.wifi;
+
+import android.net.wifi.SupplicantState;
+import android.net.wifi.WifiSsid;
+import android.os.Message;
+import android.test.suitebuilder.annotation.SmallTest;
+
+import junit.framework.TestCase;
+
+import java.util.ArrayList;
+import java.util.Random;
+
+/**
+ * Unit tests of the {@link StateChangeResult} pool, following the messages of WifiMonitor
+ * as WifiStateMachine forwards them to SupplicantStateTracker or defers them.
+ */
+@SmallTest
+public class StateChangeResultTest extends TestCase {
+
+    private static final int STRESS_STEPS = 10000;
+    private static final WifiSsid SSID = WifiSsid.createFromAsciiEncoded("office");
+
+    private static StateChangeResult obtain(int networkId) {
+        return StateChangeResult.obtain(networkId, SSID, "00:1a:11:f2:8c:10",
+                SupplicantState.COMPLETED);
+    }
+
+    private static Message messageOf(StateChangeResult result) {
+        Message msg = Message.obtain();
+        msg.what = WifiMonitor.SUPPLICANT_STATE_CHANGE_EVENT;
+        msg.obj = result;
+        return msg;
+    }
+
+    public void testRecycledInstanceReused() {
+        StateChangeResult result = obtain(1);
+        StateChangeResult.recycle(messageOf(result));
+        assertNull(result.BSSID);
+
+        assertSame(result, obtain(2));
+        assertEquals(2, result.networkId);
+        assertEquals(SupplicantState.COMPLETED, result.state);
+    }
+
+    public void testForwardedStaysLive() {
+        StateChangeResult result = obtain(1);
+        Message msg = messageOf(result);
+        // WifiStateMachine forwards a copy to SupplicantStateTracker
+        StateChangeResult.retain(msg);
+        Message forwarded = Message.obtain(msg);
+        StateChangeResult.recycle(msg);
+
+        assertNotSame(result, obtain(2));
+        assertEquals(1, result.networkId);
+        assertEquals("00:1a:11:f2:8c:10", result.BSSID);
+
+        StateChangeResult.recycle(forwarded);
+        assertSame(result, obtain(3));
+    }
+
+    public void testDeferredStaysLive() {
+        StateChangeResult result = obtain(1);
+        Message msg = messageOf(result);
+        StateChangeResult.retain(msg);
+        // Done with msg for now, it is processed again once the state changes
+        StateChangeResult.recycle(msg);
+
+        assertNotSame(result, obtain(2));
+        assertEquals(1, result.networkId);
+
+        StateChangeResult.recycle(msg);
+        assertSame(result, obtain(3));
+    }
+
+    public void testExtraRecycleIgnored() {
+        StateChangeResult result = obtain(1);
+        Message msg = messageOf(result);
+        StateChangeResult.recycle(msg);
+        StateChangeResult.recycle(msg);
+
+        assertSame(result, obtain(2));
+        // Pooled once only, so not handed out twice
+        assertNotSame(result, obtain(3));
+    }
+
+    public void testUnpooledNeverPooled() {
+        StateChangeResult result = new StateChangeResult(1, SSID, null,
+                SupplicantState.COMPLETED);
+        StateChangeResult.recycle(messageOf(result));
+        assertEquals(1, result.networkId);
+        assertNotSame(result, obtain(2));
+    }
+
+    /**
+     * Obtains, forwards, defers and recycles results at random, and checks the pool never
+     * hands out a result some message still holds.
+     */
+    public void testNoLiveInstanceReused() {
+        Random random = new Random(42);
+        ArrayList<Message> held = new ArrayList<Message>();
+        for (int step = 0; step < STRESS_STEPS; step++) {
+            int action = held.isEmpty() ? 0 : random.nextInt(3);
+            if (action == 0) {
+                StateChangeResult result = obtain(step);
+                for (Message msg : held) {
+                    assertNotSame("step " + step, msg.obj, result);
+                }
+                held.add(messageOf(result));
+            } else if (action == 1) {
+                // Forward or defer: one more message holds the result
+                Message msg = held.get(random.nextInt(held.size()));
+                StateChangeResult.retain(msg);
+                held.add(Message.obtain(msg));
+            } else {
+                Message msg = held.remove(random.nextInt(held.size()));
+                StateChangeResult.recycle(msg);
+            }
+            for (Message msg : held) {
+                StateChangeResult result = (StateChangeResult) msg.obj;
+                assertNotNull("step " + step + ": recycled while held", result.state);
+            }
+        }
+        for (Message msg : held) StateChangeResult.recycle(msg);
+    }
+}
@@ -0,0 +1,232 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.wifi;
+
+import android.net.wifi.ScanResult;
+import android.os.Message;
+import android.test.suitebuilder.annotation.LargeTest;
+
+import junit.framework.TestCase;
+
+import java.util.ArrayList;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmarks of the supplicant path against FakeSupplicant, at 10, 100 and 1000 BSSes:
+ *
+ * scan latency: from the SCAN command, through CTRL-EVENT-SCAN-RESULTS, WifiMonitor and
+ * its coalescing delay, to the state machine having fetched and merged all BSS RANGE=
+ * pages; this is where WifiStateMachine hands the results to autojoin.
+ * event throughput: STATE-CHANGE events dispatched to a state machine per second.
+ * allocation: bytes allocated to fetch and merge the results of a scan, first and repeated.
+ */
+@LargeTest
+public class SupplicantBenchmarkTest extends TestCase {
+
+    private static final int WARMUP = 3;
+    private static final int ITERATIONS = 20;
+    private static final int EVENTS = 10000;
+
+    private SupplicantTestHarness mHarness;
+
+    /**
+     * Fetches and merges the results of a scan like WifiStateMachine.setScanResults(),
+     * without the bookkeeping of its delta.
+     */
+    private static class ScanResultsFetcher implements BssRangeParser.Callback {
+        private static final BssRangeParser.Callback SKIP = new BssRangeParser.Callback() {
+            @Override
+            public void onBssEntry(BssRangeParser entry) {
+            }
+        };
+
+        private final WifiNative mWifiNative;
+        private final BssRangeParser mParser = new BssRangeParser();
+        private final ScanResultCache mCache = new ScanResultCache(2048);
+        private final ArrayList<ScanResult> mResults = new ArrayList<ScanResult>();
+
+        ScanResultsFetcher(WifiNative wifiNative) {
+            mWifiNative = wifiNative;
+        }
+
+        ArrayList<String> fetchPages() {
+            ArrayList<String> pages = new ArrayList<String>();
+            int sid = 0;
+            while (sid != BssRangeParser.NO_MORE_PAGES) {
+                String page = mWifiNative.scanResults(sid);
+                if (page == null || page.isEmpty()) break;
+                pages.add(page);
+                sid = mParser.parsePage(page, SKIP);
+                if (!WifiNative.isScanResultsPageFull(page)) break;
+            }
+            return pages;
+        }
+
+        void merge(ArrayList<String> pages) {
+            mResults.clear();
+            for (int i = 0; i < pages.size(); i++) {
+                mParser.parsePage(pages.get(i), this);
+            }
+        }
+
+        /* @return the number of BSSes of the scan */
+        int fetchAndMerge() {
+            mResults.clear();
+            int sid = 0;
+            while (sid != BssRangeParser.NO_MORE_PAGES) {
+                String page = mWifiNative.scanResults(sid);
+                if (page == null || page.isEmpty()) break;
+                sid = mParser.parsePage(page, this);
+                if (!WifiNative.isScanResultsPageFull(page)) break;
+            }
+            return mResults.size();
+        }
+
+        @Override
+        public void onBssEntry(BssRangeParser entry) {
+            ScanResult result = entry.findIn(mCache);
+            if (result == null) {
+                result = new ScanResult(entry.getWifiSsid(), entry.getBssid(),
+                        entry.getFlags(), entry.getLevel(), entry.getFrequency(),
+                        entry.getTsf());
+                mCache.put(entry.getPackedBssid(), entry.getRawSsid(), result);
+            } else {
+                result.level = entry.getLevel();
+                result.timestamp = entry.getTsf();
+            }
+            mResults.add(result);
+        }
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        if (mHarness != null) mHarness.stop();
+        mHarness = null;
+        super.tearDown();
+    }
+
+    private void start(int bsses) throws Exception {
+        mHarness = new SupplicantTestHarness(TestResources.scenario("scan_" + bsses + ".txt"));
+        mHarness.start();
+    }
+
+    public void testScanLatency10() throws Exception {
+        runScanLatency(10);
+    }
+
+    public void testScanLatency100() throws Exception {
+        runScanLatency(100);
+    }
+
+    public void testScanLatency1000() throws Exception {
+        runScanLatency(1000);
+    }
+
+    private void runScanLatency(int bsses) throws Exception {
+        start(bsses);
+        final ScanResultsFetcher fetcher = new ScanResultsFetcher(mHarness.wifiNative);
+        final LinkedBlockingQueue<Long> done = new LinkedBlockingQueue<Long>();
+        mHarness.stateMachine.setMessageHandler(new SupplicantTestHarness.MessageHandler() {
+            @Override
+            public void handleMessage(Message msg) {
+                if (msg.what != WifiMonitor.SCAN_RESULTS_EVENT) return;
+                int count = fetcher.fetchAndMerge();
+                done.add(count == 0 ? -1L : System.nanoTime());
+            }
+        });
+
+        BenchmarkStats stats = new BenchmarkStats("scan latency " + bsses + " BSSes", "ns");
+        for (int i = 0; i < WARMUP + ITERATIONS; i++) {
+            long start = System.nanoTime();
+            assertTrue(mHarness.wifiNative.scan(WifiNative.SCAN_WITH_CONNECTION_SETUP, null));
+            Long end = done.poll(SupplicantTestHarness.TIMEOUT_MS, TimeUnit.MILLISECONDS);
+            assertNotNull("No scan results", end);
+            assertTrue("Empty scan results", end > 0);
+            if (i >= WARMUP) stats.add(end - start);
+        }
+        assertEquals(bsses, fetcher.mResults.size());
+        stats.report();
+    }
+
+    public void testEventThroughput() throws Exception {
+        start(10);
+        long start = System.nanoTime();
+        for (int i = 0; i < EVENTS; i++) {
+            mHarness.supplicant.sendEvent("CTRL-EVENT-STATE-CHANGE id=0 state=" + (i % 10)
+                    + " BSSID=02:00:00:00:00:01 SSID=fake-ap-0", 0);
+        }
+        for (int i = 0; i < EVENTS; i++) {
+            assertNotNull("Got " + i + " of " + EVENTS + " events",
+                    mHarness.stateMachine.await(WifiMonitor.SUPPLICANT_STATE_CHANGE_EVENT,
+                            SupplicantTestHarness.TIMEOUT_MS));
+        }
+        long elapsed = System.nanoTime() - start;
+        BenchmarkStats stats = new BenchmarkStats("state change events/s", "");
+        stats.add(EVENTS * 1000000000L / elapsed);
+        stats.report();
+    }
+
+    public void testScanAllocation10() throws Exception {
+        runScanAllocation(10);
+    }
+
+    public void testScanAllocation100() throws Exception {
+        runScanAllocation(100);
+    }
+
+    public void testScanAllocation1000() throws Exception {
+        runScanAllocation(1000);
+    }
+
+    private void runScanAllocation(int bsses) throws Exception {
+        start(bsses);
+        final ScanResultsFetcher fetcher = new ScanResultsFetcher(mHarness.wifiNative);
+        final ArrayList<String> pages = fetcher.fetchPages();
+
+        // Merge only, the fake builds its replies on the calling thread
+        BenchmarkStats first = new BenchmarkStats("first scan merge " + bsses + " BSSes", "B");
+        first.add(BenchmarkStats.allocatedBytes(new Runnable() {
+            @Override
+            public void run() {
+                fetcher.merge(pages);
+            }
+        }));
+        assertEquals(bsses, fetcher.mResults.size());
+
+        BenchmarkStats again = new BenchmarkStats("rescan merge " + bsses + " BSSes", "B");
+        BenchmarkStats total = new BenchmarkStats("rescan fetch+merge " + bsses + " BSSes", "B");
+        for (int i = 0; i < ITERATIONS; i++) {
+            again.add(BenchmarkStats.allocatedBytes(new Runnable() {
+                @Override
+                public void run() {
+                    fetcher.merge(pages);
+                }
+            }));
+            total.add(BenchmarkStats.allocatedBytes(new Runnable() {
+                @Override
+                public void run() {
+                    fetcher.fetchAndMerge();
+                }
+            }));
+        }
+        assertEquals(bsses, fetcher.mResults.size());
+        first.report();
+        again.report();
+        total.report();
+    }
+}
@@ -0,0 +1,198 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.wifi;
+
+import android.net.wifi.SupplicantState;
+import android.net.wifi.WifiSsid;
+import android.test.suitebuilder.annotation.SmallTest;
+
+import junit.framework.TestCase;
+
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Parses the STATE-CHANGE, CONNECTED and DISCONNECTED events of the corpus of
+ * resources/events with {@link SupplicantEventScanner} and with the split() and regex
+ * parsing WifiMonitor used before it, and checks both extract the same fields.
+ */
+@SmallTest
+public class SupplicantEventScannerTest extends TestCase {
+
+    private static final String CORPUS = "events/supplicant.txt";
+
+    private static final Pattern CONNECTED_PATTERN =
+            Pattern.compile("((?:[0-9a-f]{2}:){5}[0-9a-f]{2}) .* \\[id=([0-9]+) ");
+    private static final Pattern DISCONNECTED_PATTERN =
+            Pattern.compile("((?:[0-9a-f]{2}:){5}[0-9a-f]{2}) +"
+                    + "reason=([0-9]+) +locally_generated=([0-1])");
+
+    /* The fields the legacy parsing extracted, in the scanner's terms */
+    private static class Fields {
+        int networkId = -1;
+        int state = -1;
+        String BSSID;
+        WifiSsid wifiSsid;
+        int reason;
+        int locallyGenerated;
+    }
+
+    private final SupplicantEventScanner mScanner = new SupplicantEventScanner();
+    private int mParsed;
+
+    /**
+     * @return the data WifiMonitor.dispatchEvent() passes on for event
+     */
+    private static String eventData(String label, String event) {
+        if (label.equals("STATE_CHANGE")) {
+            int space = event.indexOf(' ');
+            return space == -1 ? event : event.substring(space + 1);
+        }
+        int dash = event.indexOf(" - ");
+        return dash == -1 ? event : event.substring(dash + 3);
+    }
+
+    private static Fields legacyStateChange(String data) {
+        Fields fields = new Fields();
+        int index = data.lastIndexOf("SSID=");
+        if (index != -1) {
+            fields.wifiSsid = WifiSsid.createFromAsciiEncoded(data.substring(index + 5));
+        }
+        for (String token : data.split(" ")) {
+            String[] nameValue = token.split("=");
+            if (nameValue.length != 2) continue;
+            if (nameValue[0].equals("BSSID")) {
+                fields.BSSID = nameValue[1];
+                continue;
+            }
+            int value;
+            try {
+                value = Integer.parseInt(nameValue[1]);
+            } catch (NumberFormatException e) {
+                continue;
+            }
+            if (nameValue[0].equals("id")) {
+                fields.networkId = value;
+            } else if (nameValue[0].equals("state")) {
+                fields.state = value;
+            }
+        }
+        return fields;
+    }
+
+    private static Fields legacyConnected(String data) {
+        Fields fields = new Fields();
+        Matcher match = CONNECTED_PATTERN.matcher(data);
+        if (match.find()) {
+            fields.BSSID = match.group(1);
+            try {
+                fields.networkId = Integer.parseInt(match.group(2));
+            } catch (NumberFormatException e) {
+                fields.networkId = -1;
+            }
+        }
+        return fields;
+    }
+
+    private static Fields legacyDisconnected(String data) {
+        Fields fields = new Fields();
+        Matcher match = DISCONNECTED_PATTERN.matcher(data);
+        if (match.find()) {
+            fields.BSSID = match.group(1);
+            try {
+                fields.reason = Integer.parseInt(match.group(2));
+            } catch (NumberFormatException e) {
+                fields.reason = -1;
+            }
+            fields.locallyGenerated = Integer.parseInt(match.group(3));
+        }
+        return fields;
+    }
+
+    private void checkEvent(String label, String event) {
+        String data = eventData(label, event);
+        SupplicantEventScanner s = mScanner;
+        Fields expected;
+        if (label.equals("STATE_CHANGE")) {
+            expected = legacyStateChange(data);
+            s.parseStateChange(data);
+            assertEquals(event, expected.state, s.state);
+            assertEquals(event, String.valueOf(expected.wifiSsid), String.valueOf(s.wifiSsid));
+        } else if (label.equals("CONNECTED")) {
+            expected = legacyConnected(data);
+            assertEquals(event, expected.BSSID != null, s.parseConnected(data));
+        } else {
+            expected = legacyDisconnected(data);
+            assertEquals(event, expected.BSSID != null, s.parseDisconnected(data));
+            assertEquals(event, expected.reason, s.reason);
+            assertEquals(event, expected.locallyGenerated, s.locallyGenerated);
+        }
+        if (!label.equals("DISCONNECTED")) assertEquals(event, expected.networkId, s.networkId);
+        assertEquals(event, expected.BSSID, s.BSSID);
+        mParsed++;
+    }
+
+    public void testCorpusMatchesLegacy() throws Exception {
+        List<String> lines = TestResources.readLines(CORPUS);
+        for (String line : lines) {
+            int space = line.indexOf(' ');
+            String label = line.substring(0, space);
+            if (label.equals("STATE_CHANGE") || label.equals("CONNECTED")
+                    || label.equals("DISCONNECTED")) {
+                checkEvent(label, line.substring(space + 1));
+            }
+        }
+        assertTrue("parsed=" + mParsed, mParsed > 20);
+    }
+
+    public void testReasonAndLocallyGenerated() {
+        assertTrue(mScanner.parseDisconnected(
+                "bssid=00:1a:11:f2:8c:10 reason=15 locally_generated=1"));
+        assertEquals("00:1a:11:f2:8c:10", mScanner.BSSID);
+        assertEquals(15, mScanner.reason);
+        assertEquals(1, mScanner.locallyGenerated);
+
+        // A failed parse does not leave the fields of the previous event behind
+        assertFalse(mScanner.parseDisconnected("bssid=00:1a:11:f2:8c:10 reason=15"));
+        assertNull(mScanner.BSSID);
+        assertEquals(0, mScanner.reason);
+        assertEquals(0, mScanner.locallyGenerated);
+    }
+
+    public void testUnknownState() {
+        mScanner.parseStateChange("id=0 state=42 BSSID=00:1a:11:f2:8c:10 SSID=office");
+        assertEquals(42, mScanner.state);
+        assertEquals(SupplicantState.INVALID,
+                SupplicantEventScanner.supplicantStateOf(mScanner.state));
+        assertEquals(SupplicantState.INVALID, SupplicantEventScanner.supplicantStateOf(-1));
+        assertEquals(SupplicantState.COMPLETED, SupplicantEventScanner.supplicantStateOf(
+                SupplicantState.COMPLETED.ordinal()));
+    }
+
+    public void testReusesLastBssidAndSsid() {
+        mScanner.parseStateChange("id=0 state=5 BSSID=00:1a:11:f2:8c:10 SSID=office");
+        String bssid = mScanner.BSSID;
+        WifiSsid ssid = mScanner.wifiSsid;
+        mScanner.parseStateChange("id=0 state=9 BSSID=00:1a:11:f2:8c:10 SSID=office");
+        assertSame(bssid, mScanner.BSSID);
+        assertSame(ssid, mScanner.wifiSsid);
+        mScanner.parseStateChange("id=1 state=9 BSSID=00:1a:11:f2:8c:14 SSID=guest");
+        assertEquals("00:1a:11:f2:8c:14", mScanner.BSSID);
+        assertEquals("guest", mScanner.wifiSsid.toString());
+    }
+}
@@ -0,0 +1,85 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.wifi;
+
+import android.test.suitebuilder.annotation.SmallTest;
+
+import junit.framework.TestCase;
+
+/**
+ * Unit tests of {@link SupplicantQueryCache}, through WifiNative running against
+ * {@link FakeSupplicant}.
+ */
+@SmallTest
+public class SupplicantQueryCacheTest extends TestCase {
+
+    private FakeSupplicant mSupplicant;
+    private WifiNative mWifiNative;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mSupplicant = TestResources.scenario("office.txt");
+        WifiNative.setSupplicantTransport(mSupplicant);
+        mWifiNative = new WifiNative("wlan0");
+        SupplicantQueryCache.invalidateAllInterfaces();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        WifiNative.setSupplicantTransport(null);
+        super.tearDown();
+    }
+
+    public void testStatusNeverCached() {
+        assertFalse(SupplicantQueryCache.isCacheable("STATUS"));
+        assertFalse(SupplicantQueryCache.isCacheable("STATUS-NO_EVENTS"));
+
+        long commands = mSupplicant.getCommandCount();
+        mWifiNative.status(true);
+        mWifiNative.status(true);
+        assertEquals(commands + 2, mSupplicant.getCommandCount());
+    }
+
+    public void testListNetworksCachedUntilCommand() {
+        String networks = mWifiNative.listNetworks();
+        long commands = mSupplicant.getCommandCount();
+        assertEquals(networks, mWifiNative.listNetworks());
+        assertEquals(commands, mSupplicant.getCommandCount());
+
+        assertTrue(mWifiNative.setNetworkVariable(0, "priority", "5"));
+        mWifiNative.listNetworks();
+        assertEquals(commands + 2, mSupplicant.getCommandCount());
+    }
+
+    public void testNetworkVariableInvalidatedByEvent() {
+        assertTrue(mWifiNative.setNetworkVariable(0, "priority", "5"));
+        assertEquals("5", mWifiNative.getNetworkVariable(0, "priority"));
+        long commands = mSupplicant.getCommandCount();
+        assertEquals("5", mWifiNative.getNetworkVariable(0, "priority"));
+        assertEquals(commands, mSupplicant.getCommandCount());
+
+        // Scan events leave the entries alone, network events drop them
+        SupplicantQueryCache cache = SupplicantQueryCache.forInterface("wlan0");
+        cache.onEvent("CTRL-EVENT-SCAN-RESULTS ");
+        mWifiNative.getNetworkVariable(0, "priority");
+        assertEquals(commands, mSupplicant.getCommandCount());
+        cache.onEvent("CTRL-EVENT-NETWORK-NOT-FOUND");
+        mWifiNative.getNetworkVariable(0, "priority");
+        assertEquals(commands + 1, mSupplicant.getCommandCount());
+    }
+}
@@ -0,0 +1,179 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.wifi;
+
+import android.os.Message;
+
+import com.android.internal.util.State;
+import com.android.internal.util.StateMachine;
+
+import junit.framework.Assert;
+
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs a WifiNative and a WifiMonitor against a {@link FakeSupplicant}, the monitor
+ * reporting to a state machine that records the messages it processes.
+ *
+ * The WifiMonitor connection to the supplicant is process wide: only one harness may be
+ * started at a time, and it must be stopped before the next one is started.
+ */
+class SupplicantTestHarness {
+
+    static final long TIMEOUT_MS = 10000;
+
+    /**
+     * A message processed by the recording state machine.
+     */
+    static class Received {
+        final int what;
+        final int arg1;
+        final Object obj;
+        /* System.nanoTime() it was processed at */
+        final long nanos;
+
+        Received(Message msg) {
+            what = msg.what;
+            arg1 = msg.arg1;
+            obj = msg.obj;
+            nanos = System.nanoTime();
+        }
+    }
+
+    /**
+     * Called on the state machine thread for each message, before it is recorded.
+     */
+    interface MessageHandler {
+        void handleMessage(Message msg);
+    }
+
+    static class RecordingStateMachine extends StateMachine {
+        private final LinkedBlockingQueue<Received> mReceived =
+                new LinkedBlockingQueue<Received>();
+        private volatile MessageHandler mHandler;
+        private volatile WifiMonitor mWifiMonitor;
+
+        private final State mDefaultState = new State() {
+            @Override
+            public boolean processMessage(Message msg) {
+                MessageHandler handler = mHandler;
+                if (handler != null) handler.handleMessage(msg);
+                mReceived.add(new Received(msg));
+                return HANDLED;
+            }
+        };
+
+        RecordingStateMachine(String name) {
+            super(name);
+            addState(mDefaultState);
+            setInitialState(mDefaultState);
+        }
+
+        void setMessageHandler(MessageHandler handler) {
+            mHandler = handler;
+        }
+
+        @Override
+        protected boolean recordLogRec(Message msg) {
+            WifiMonitor monitor = mWifiMonitor;
+            if (monitor != null) monitor.onMessageProcessed(msg);
+            return super.recordLogRec(msg);
+        }
+
+        /**
+         * Waits for a message of type what, dropping the messages received before it.
+         * @return the message, or null on timeout
+         */
+        Received await(int what, long timeoutMs) {
+            long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMs);
+            while (true) {
+                long left = deadline - System.nanoTime();
+                Received received;
+                try {
+                    received = mReceived.poll(left, TimeUnit.NANOSECONDS);
+                } catch (InterruptedException e) {
+                    return null;
+                }
+                if (received == null || received.what == what) return received;
+            }
+        }
+
+        /**
+         * @return the next message received within timeoutMs, or null
+         */
+        Received poll(long timeoutMs) {
+            try {
+                return mReceived.poll(timeoutMs, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                return null;
+            }
+        }
+
+        void clearReceived() {
+            mReceived.clear();
+        }
+    }
+
+    final FakeSupplicant supplicant;
+    final WifiNative wifiNative;
+    final RecordingStateMachine stateMachine;
+    final WifiMonitor monitor;
+
+    SupplicantTestHarness(FakeSupplicant supplicant) {
+        this(supplicant, "wlan0");
+    }
+
+    SupplicantTestHarness(FakeSupplicant supplicant, String interfaceName) {
+        this.supplicant = supplicant;
+        WifiNative.setSupplicantTransport(supplicant);
+        wifiNative = new WifiNative(interfaceName);
+        stateMachine = new RecordingStateMachine("Recording-" + interfaceName);
+        monitor = new WifiMonitor(stateMachine, wifiNative);
+        stateMachine.mWifiMonitor = monitor;
+        stateMachine.start();
+    }
+
+    /**
+     * Starts the supplicant and waits until the monitor reports the connection to it.
+     */
+    void start() {
+        Assert.assertTrue(WifiNative.startSupplicant(false));
+        monitor.startMonitoring();
+        Assert.assertNotNull("No SUP_CONNECTION_EVENT",
+                stateMachine.await(WifiMonitor.SUP_CONNECTION_EVENT, TIMEOUT_MS));
+    }
+
+    /**
+     * Kills the supplicant, waits for the monitor thread to end and restores the JNI
+     * transport.
+     */
+    void stop() throws InterruptedException {
+        monitor.killSupplicant(false);
+        joinMonitorThreads();
+        stateMachine.quit();
+        WifiNative.setSupplicantTransport(null);
+    }
+
+    private static void joinMonitorThreads() throws InterruptedException {
+        for (Thread thread : Thread.getAllStackTraces().keySet()) {
+            if (!thread.getName().equals("WifiMonitor")) continue;
+            thread.join(TIMEOUT_MS);
+            Assert.assertFalse("WifiMonitor thread still running", thread.isAlive());
+        }
+    }
+}
@@ -0,0 +1,81 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.wifi;
+
+import java.io.BufferedReader;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Access to the files under tests/wifitests/resources, packaged as java resources.
+ */
+class TestResources {
+
+    private TestResources() {
+    }
+
+    static Reader open(String path) throws IOException {
+        InputStream in = TestResources.class.getClassLoader().getResourceAsStream(path);
+        if (in == null) throw new FileNotFoundException("No test resource " + path);
+        return new InputStreamReader(in, "UTF-8");
+    }
+
+    static String read(String path) throws IOException {
+        Reader reader = open(path);
+        try {
+            StringBuilder sb = new StringBuilder();
+            char[] buffer = new char[4096];
+            int count;
+            while ((count = reader.read(buffer)) > 0) sb.append(buffer, 0, count);
+            return sb.toString();
+        } finally {
+            reader.close();
+        }
+    }
+
+    /**
+     * @return the lines of the resource, without the empty ones and the # comments
+     */
+    static List<String> readLines(String path) throws IOException {
+        BufferedReader in = new BufferedReader(open(path));
+        try {
+            ArrayList<String> lines = new ArrayList<String>();
+            String line;
+            while ((line = in.readLine()) != null) {
+                if (line.trim().length() == 0 || line.startsWith("#")) continue;
+                lines.add(line);
+            }
+            return lines;
+        } finally {
+            in.close();
+        }
+    }
+
+    static FakeSupplicant scenario(String name) throws IOException {
+        Reader reader = open("scenarios/" + name);
+        try {
+            return FakeSupplicant.fromScenario(reader);
+        } finally {
+            reader.close();
+        }
+    }
+}
@@ -0,0 +1,171 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.wifi;
+
+import android.os.Message;
+import android.os.SystemClock;
+import android.test.suitebuilder.annotation.LargeTest;
+
+import junit.framework.TestCase;
+
+import java.io.StringReader;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Delivers 10000 wlan0 events at 10000 events/s while another thread keeps registering,
+ * starting, stopping and unregistering monitors of p2p group interfaces, and checks every
+ * event reaches the wlan0 state machine once and in order. The delay of each event behind
+ * its schedule is reported with and without the registration churn.
+ * Also restarts monitoring while the supplicant terminates.
+ */
+@LargeTest
+public class WifiMonitorStressTest extends TestCase {
+
+    private static final int EVENTS = 10000;
+    private static final int EVENTS_PER_MS = 10;
+    /* Names of the churned interfaces, reused so that the per-interface state stays bounded */
+    private static final int GROUP_INTERFACES = 8;
+    private static final int RESTART_ROUNDS = 100;
+    /* How long without a message before the connection state is taken as settled */
+    private static final long SETTLE_MS = 50;
+
+    private SupplicantTestHarness mHarness;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mHarness = new SupplicantTestHarness(
+                FakeSupplicant.fromScenario(new StringReader("interface wlan0")));
+        mHarness.start();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        // The churned monitors are all unregistered, so TERMINATING ends the monitor thread
+        mHarness.stop();
+        super.tearDown();
+    }
+
+    public void testEventsWithoutChurn() throws Exception {
+        runEvents(false);
+    }
+
+    public void testEventsDuringRegistrationChurn() throws Exception {
+        runEvents(true);
+    }
+
+    /**
+     * Starts monitoring while the supplicant terminates, and checks the state machine ends
+     * up either told of the disconnection, or connected to a running monitor thread.
+     */
+    public void testRestartAcrossTerminating() throws Exception {
+        SupplicantTestHarness.RecordingStateMachine stateMachine = mHarness.stateMachine;
+        for (int round = 0; round < RESTART_ROUNDS; round++) {
+            mHarness.supplicant.sendEvent("CTRL-EVENT-TERMINATING - signal 15 received", 0);
+            mHarness.monitor.startMonitoring();
+
+            int last = -1;
+            SupplicantTestHarness.Received received;
+            while ((received = stateMachine.poll(SETTLE_MS)) != null) {
+                if (received.what == WifiMonitor.SUP_CONNECTION_EVENT
+                        || received.what == WifiMonitor.SUP_DISCONNECTION_EVENT) {
+                    last = received.what;
+                }
+            }
+            if (last != WifiMonitor.SUP_CONNECTION_EVENT) {
+                mHarness.monitor.startMonitoring();
+                assertNotNull("round " + round + ": no SUP_CONNECTION_EVENT", stateMachine.await(
+                        WifiMonitor.SUP_CONNECTION_EVENT, SupplicantTestHarness.TIMEOUT_MS));
+            }
+
+            mHarness.supplicant.sendEvent("CTRL-EVENT-STATE-CHANGE id=" + round
+                    + " state=9 BSSID=02:00:00:00:00:01 SSID=fake-ap-0", 0);
+            assertNotNull("round " + round + ": connected without a monitor thread",
+                    stateMachine.await(WifiMonitor.SUPPLICANT_STATE_CHANGE_EVENT,
+                            SupplicantTestHarness.TIMEOUT_MS));
+        }
+    }
+
+    private void runEvents(boolean churn) throws Exception {
+        final BenchmarkStats lag = new BenchmarkStats("event lag at " + EVENTS_PER_MS * 1000
+                + " events/s" + (churn ? ", registration churn" : ""), "ns");
+        final CountDownLatch delivered = new CountDownLatch(EVENTS);
+        final int[] next = new int[1];
+        final String[] error = new String[1];
+        final long startNanos = System.nanoTime();
+        long startMs = SystemClock.elapsedRealtime();
+        mHarness.stateMachine.setMessageHandler(new SupplicantTestHarness.MessageHandler() {
+            @Override
+            public void handleMessage(Message msg) {
+                if (msg.what != WifiMonitor.SUPPLICANT_STATE_CHANGE_EVENT) return;
+                // The result is recycled once processed, read it now
+                int sequence = ((StateChangeResult) msg.obj).networkId;
+                if (sequence != next[0] && error[0] == null) {
+                    error[0] = "Got event " + sequence + ", expected " + next[0];
+                }
+                next[0] = sequence + 1;
+                lag.add(System.nanoTime() - startNanos
+                        - TimeUnit.MILLISECONDS.toNanos(sequence / EVENTS_PER_MS));
+                delivered.countDown();
+            }
+        });
+        for (int i = 0; i < EVENTS; i++) {
+            mHarness.supplicant.sendEventAt("CTRL-EVENT-STATE-CHANGE id=" + i + " state="
+                    + (i % 10) + " BSSID=02:00:00:00:00:01 SSID=fake-ap-0",
+                    startMs + i / EVENTS_PER_MS);
+        }
+
+        final AtomicBoolean done = new AtomicBoolean();
+        final int[] registrations = new int[1];
+        Thread churner = new Thread("registration-churn") {
+            @Override
+            public void run() {
+                SupplicantTestHarness.RecordingStateMachine stateMachine =
+                        new SupplicantTestHarness.RecordingStateMachine("Recording-p2p-group");
+                stateMachine.start();
+                while (!done.get()) {
+                    String iface = "p2p-wlan0-" + registrations[0] % GROUP_INTERFACES;
+                    WifiMonitor monitor = new WifiMonitor(stateMachine, new WifiNative(iface));
+                    monitor.startMonitoring();
+                    monitor.stopMonitoring();
+                    monitor.unregisterInterfaceMonitor();
+                    stateMachine.clearReceived();
+                    registrations[0]++;
+                }
+                stateMachine.quit();
+            }
+        };
+        if (churn) churner.start();
+        try {
+            assertTrue("Got " + (EVENTS - delivered.getCount()) + " of " + EVENTS + " events",
+                    delivered.await(SupplicantTestHarness.TIMEOUT_MS, TimeUnit.MILLISECONDS));
+        } finally {
+            done.set(true);
+            if (churn) churner.join();
+        }
+        lag.report();
+        assertNull(error[0], error[0]);
+        if (churn) {
+            assertTrue("registrations=" + registrations[0], registrations[0] > 0);
+            BenchmarkStats rate = new BenchmarkStats("registrations during the events", "/s");
+            rate.add(registrations[0] * 1000000000L / (System.nanoTime() - startNanos));
+            rate.report();
+        }
+    }
+}
@@ -0,0 +1,72 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.wifi;
+
+import android.test.suitebuilder.annotation.SmallTest;
+
+import junit.framework.TestCase;
+
+import java.io.StringReader;
+
+/**
+ * Checks the HAL entry points of WifiNative report the HAL unavailable, rather than reach
+ * an unloaded native library, while a {@link SupplicantTransport} is installed.
+ */
+@SmallTest
+public class WifiNativeHalTest extends TestCase {
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        WifiNative.setSupplicantTransport(FakeSupplicant.fromScenario(new StringReader("")));
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        WifiNative.setSupplicantTransport(null);
+        super.tearDown();
+    }
+
+    public void testHalUnavailable() {
+        assertFalse(WifiNative.startHal());
+        assertEquals(0, WifiNative.getInterfaces());
+        assertFalse(WifiNative.getScanCapabilities(new WifiNative.ScanCapabilities()));
+        assertEquals(0, WifiNative.getSupportedFeatureSet());
+    }
+
+    public void testScanEntryPoints() {
+        assertFalse(WifiNative.startScan(null, null));
+        WifiNative.pauseScan();
+        WifiNative.stopScan();
+        assertNull(WifiNative.getScanResults());
+        ScanResultBuffer buffer = new ScanResultBuffer(16);
+        assertFalse(WifiNative.getScanResults(buffer));
+        assertEquals(0, buffer.size());
+    }
+
+    public void testHotlistAndChangeTracking() {
+        assertFalse(WifiNative.setHotlist(null, null));
+        WifiNative.resetHotlist();
+        assertFalse(WifiNative.trackSignificantWifiChange(null, null));
+        WifiNative.untrackSignificantWifiChange();
+    }
+
+    public void testRtt() {
+        assertFalse(WifiNative.requestRtt(null, null));
+        assertFalse(WifiNative.cancelRtt(null));
+    }
+}
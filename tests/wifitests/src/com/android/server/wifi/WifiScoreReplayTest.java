@@ -0,0 +1,365 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.wifi;
+
+import android.net.wifi.WifiConfiguration;
+import android.test.suitebuilder.annotation.LargeTest;
+import android.test.suitebuilder.annotation.SmallTest;
+
+import junit.framework.TestCase;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Replays link traces through {@link WifiScoreEngine} and through the score computation
+ * it replaced, {@link LegacyWifiScore}, and checks that every sample gets the same score
+ * and the same scoring report.
+ *
+ * A trace, under resources/score_traces, has one directive or sample per line:
+ *
+ *   thresholds 24 -87 -77 -65 6 24   bad, low and good RSSI, bad and good link speed of
+ *                                    the 2.4GHz (24) or 5GHz (5) band
+ *   user-triggered-adjustment 1      enableWifiCellularHandoverUserTriggeredAdjustment
+ *   config bad=1 low=0 nothigh=2     connect to a new configuration, with these counts of
+ *                                    user triggered disables
+ *   no-config                        no current configuration
+ *   reset                            disconnect, the carried over counters are cleared
+ *   repeat 10 <sample>               the sample, 10 times
+ *   rssi=-60 speed=65 freq=2437 ag=0 u24=0 hn=0 tx=10.00 txbad=0.00 rx=3.00
+ *
+ * Sample lines are the dump lines of WifiScoreEngine, whose outputs after "->" are ignored,
+ * so that a dumped history can be replayed as is.
+ *
+ * The benchmark replays the parsed traces through each implementation alone and reports
+ * the latency of a whole trace.
+ */
+@SmallTest
+public class WifiScoreReplayTest extends TestCase {
+
+    /* Score of a mobile data network: a wifi link scored below it loses the default route */
+    private static final int MOBILE_SCORE = 50;
+    private static final int WARMUP = 50;
+    private static final int ITERATIONS = 500;
+    private static final String[] TRACES = {
+        "walk_away.txt", "home_network.txt", "threshold_change.txt"
+    };
+
+    /**
+     * A line of a trace, parsed once so that the benchmark times the scoring only.
+     */
+    private static class Step {
+        static final int THRESHOLDS = 0;
+        static final int ADJUSTMENT = 1;
+        static final int CONFIG = 2;
+        static final int NO_CONFIG = 3;
+        static final int RESET = 4;
+        static final int SAMPLE = 5;
+
+        final int type;
+        final String line;
+        /* THRESHOLDS */
+        int band;
+        int[] values;
+        /* ADJUSTMENT */
+        boolean enabled;
+        /* CONFIG */
+        String[] names;
+        /* SAMPLE, the inputs only, repeated count times */
+        WifiScoreEngine.Sample sample;
+        int count = 1;
+
+        Step(int type, String line) {
+            this.type = type;
+            this.line = line;
+        }
+    }
+
+    private WifiScoreEngine mEngine;
+    private LegacyWifiScore mLegacy;
+    /* The same configuration, as seen by each implementation */
+    private WifiConfiguration mEngineConfig;
+    private WifiConfiguration mLegacyConfig;
+
+    private int mSamples;
+    private int mLowScores;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mEngine = new WifiScoreEngine();
+        mLegacy = new LegacyWifiScore();
+    }
+
+    public void testReplayWalkAway() throws Exception {
+        replay("walk_away.txt");
+    }
+
+    public void testReplayHomeNetwork() throws Exception {
+        replay("home_network.txt");
+    }
+
+    public void testReplayThresholdChange() throws Exception {
+        replay("threshold_change.txt");
+        // The second half replays the same samples with higher thresholds
+        assertTrue("lowScores=" + mLowScores, mLowScores > 0);
+    }
+
+    @LargeTest
+    public void testScoreBenchmark() throws Exception {
+        for (String trace : TRACES) {
+            List<Step> steps = parse(trace);
+            BenchmarkStats legacy = new BenchmarkStats("legacy score " + trace, "ns");
+            BenchmarkStats engine = new BenchmarkStats("engine score " + trace, "ns");
+            for (int i = 0; i < WARMUP + ITERATIONS; i++) {
+                mLegacy = new LegacyWifiScore();
+                mLegacyConfig = null;
+                long start = System.nanoTime();
+                for (int j = 0; j < steps.size(); j++) runLegacy(steps.get(j));
+                long middle = System.nanoTime();
+                mEngine = new WifiScoreEngine();
+                mEngineConfig = null;
+                long engineStart = System.nanoTime();
+                for (int j = 0; j < steps.size(); j++) runEngine(steps.get(j));
+                long end = System.nanoTime();
+                if (i >= WARMUP) {
+                    legacy.add(middle - start);
+                    engine.add(end - engineStart);
+                }
+            }
+            legacy.report();
+            engine.report();
+        }
+    }
+
+    private void replay(String trace) throws Exception {
+        List<Step> steps = parse(trace);
+        for (int i = 0; i < steps.size(); i++) {
+            Step step = steps.get(i);
+            if (step.type != Step.SAMPLE) {
+                runLegacy(step);
+                runEngine(step);
+                continue;
+            }
+            for (int j = 0; j < step.count; j++) replaySample(step);
+        }
+        assertTrue(trace + " has no samples", mSamples > 0);
+    }
+
+    private static List<Step> parse(String trace) throws Exception {
+        List<String> lines = TestResources.readLines("score_traces/" + trace);
+        ArrayList<Step> steps = new ArrayList<Step>(lines.size());
+        for (int i = 0; i < lines.size(); i++) {
+            String line = lines.get(i);
+            try {
+                steps.add(parseLine(line));
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException(trace + ": " + line, e);
+            }
+        }
+        return steps;
+    }
+
+    private static Step parseLine(String line) {
+        String[] tokens = line.trim().split(" +");
+        Step step;
+        if (tokens[0].equals("thresholds")) {
+            step = new Step(Step.THRESHOLDS, line);
+            step.band = tokens[1].equals("24")
+                    ? WifiScoreEngine.BAND_24GHZ : WifiScoreEngine.BAND_5GHZ;
+            step.values = new int[5];
+            for (int i = 0; i < step.values.length; i++) {
+                step.values[i] = Integer.parseInt(tokens[i + 2]);
+            }
+        } else if (tokens[0].equals("user-triggered-adjustment")) {
+            step = new Step(Step.ADJUSTMENT, line);
+            step.enabled = tokens[1].equals("1");
+        } else if (tokens[0].equals("config")) {
+            step = new Step(Step.CONFIG, line);
+            step.names = new String[tokens.length - 1];
+            step.values = new int[tokens.length - 1];
+            for (int i = 1; i < tokens.length; i++) {
+                String[] pair = tokens[i].split("=");
+                step.names[i - 1] = pair[0];
+                step.values[i - 1] = Integer.parseInt(pair[1]);
+            }
+        } else if (tokens[0].equals("no-config")) {
+            step = new Step(Step.NO_CONFIG, line);
+        } else if (tokens[0].equals("reset")) {
+            step = new Step(Step.RESET, line);
+        } else if (tokens[0].equals("repeat")) {
+            step = parseSample(line.substring(line.indexOf(tokens[2])));
+            step.count = Integer.parseInt(tokens[1]);
+        } else {
+            step = parseSample(line);
+        }
+        return step;
+    }
+
+    private static Step parseSample(String line) {
+        Step step = new Step(Step.SAMPLE, line);
+        WifiScoreEngine.Sample s = new WifiScoreEngine.Sample();
+        step.sample = s;
+        int arrow = line.indexOf("->");
+        if (arrow >= 0) line = line.substring(0, arrow);
+        for (String token : line.trim().split(" +")) {
+            int equals = token.indexOf('=');
+            String key = token.substring(0, equals);
+            String value = token.substring(equals + 1);
+            if (key.equals("rssi")) {
+                s.rssi = Integer.parseInt(value);
+            } else if (key.equals("speed")) {
+                s.linkSpeed = Integer.parseInt(value);
+            } else if (key.equals("freq")) {
+                s.frequency = Integer.parseInt(value);
+            } else if (key.equals("ag")) {
+                s.aggressiveHandover = Integer.parseInt(value);
+            } else if (key.equals("u24")) {
+                s.use24Thresholds = value.equals("1");
+            } else if (key.equals("hn")) {
+                s.homeNetworkBoost = value.equals("1");
+            } else if (key.equals("tx")) {
+                s.txSuccessRate = Double.parseDouble(value);
+            } else if (key.equals("txbad")) {
+                s.txBadRate = Double.parseDouble(value);
+            } else if (key.equals("rx")) {
+                s.rxSuccessRate = Double.parseDouble(value);
+            } else {
+                throw new IllegalArgumentException("Unknown sample field " + key);
+            }
+        }
+        return step;
+    }
+
+    private static WifiConfiguration newConfig(Step step) {
+        WifiConfiguration config = new WifiConfiguration();
+        for (int i = 0; i < step.names.length; i++) {
+            setDisableCount(config, step.names[i], step.values[i]);
+        }
+        return config;
+    }
+
+    private static void setDisableCount(WifiConfiguration config, String name, int value) {
+        if (name.equals("bad")) {
+            config.numUserTriggeredWifiDisableBadRSSI = value;
+        } else if (name.equals("low")) {
+            config.numUserTriggeredWifiDisableLowRSSI = value;
+        } else if (name.equals("nothigh")) {
+            config.numUserTriggeredWifiDisableNotHighRSSI = value;
+        } else {
+            throw new IllegalArgumentException("Unknown disable count " + name);
+        }
+    }
+
+    /**
+     * Applies step to the legacy computation; samples are scored count times.
+     */
+    private void runLegacy(Step step) {
+        switch (step.type) {
+            case Step.THRESHOLDS:
+                int[] v = step.values;
+                if (step.band == WifiScoreEngine.BAND_24GHZ) {
+                    mLegacy.thresholdBadRssi24 = v[0];
+                    mLegacy.thresholdLowRssi24 = v[1];
+                    mLegacy.thresholdGoodRssi24 = v[2];
+                    mLegacy.badLinkSpeed24 = v[3];
+                    mLegacy.goodLinkSpeed24 = v[4];
+                } else {
+                    mLegacy.thresholdBadRssi5 = v[0];
+                    mLegacy.thresholdLowRssi5 = v[1];
+                    mLegacy.thresholdGoodRssi5 = v[2];
+                    mLegacy.badLinkSpeed5 = v[3];
+                    mLegacy.goodLinkSpeed5 = v[4];
+                }
+                break;
+            case Step.ADJUSTMENT:
+                mLegacy.enableWifiCellularHandoverUserTriggeredAdjustment = step.enabled;
+                break;
+            case Step.CONFIG:
+                mLegacyConfig = newConfig(step);
+                break;
+            case Step.NO_CONFIG:
+                mLegacyConfig = null;
+                break;
+            case Step.RESET:
+                mLegacy.reset();
+                break;
+            case Step.SAMPLE:
+                for (int i = 0; i < step.count; i++) scoreLegacy(step.sample);
+                break;
+        }
+    }
+
+    private int scoreLegacy(WifiScoreEngine.Sample s) {
+        return mLegacy.calculate(s.rssi, s.linkSpeed, s.frequency, s.aggressiveHandover,
+                s.use24Thresholds, s.homeNetworkBoost, s.txSuccessRate, s.txBadRate,
+                s.rxSuccessRate, mLegacyConfig);
+    }
+
+    /**
+     * Applies step to the engine; samples are scored count times.
+     */
+    private void runEngine(Step step) {
+        switch (step.type) {
+            case Step.THRESHOLDS:
+                int[] v = step.values;
+                mEngine.setThresholds(step.band, v[0], v[1], v[2], v[3], v[4]);
+                break;
+            case Step.ADJUSTMENT:
+                mEngine.setUserTriggeredAdjustment(step.enabled);
+                break;
+            case Step.CONFIG:
+                mEngineConfig = newConfig(step);
+                break;
+            case Step.NO_CONFIG:
+                mEngineConfig = null;
+                break;
+            case Step.RESET:
+                mEngine.reset();
+                break;
+            case Step.SAMPLE:
+                for (int i = 0; i < step.count; i++) scoreEngine(step.sample);
+                break;
+        }
+    }
+
+    private int scoreEngine(WifiScoreEngine.Sample input) {
+        WifiScoreEngine.Sample s = mEngine.getSample();
+        s.copyFrom(input);
+        return mEngine.calculate(s, mEngineConfig);
+    }
+
+    private void replaySample(Step step) {
+        int expected = scoreLegacy(step.sample);
+        int score = scoreEngine(step.sample);
+        mSamples++;
+
+        StringBuilder report = new StringBuilder();
+        mEngine.getSample().appendReport(report);
+        String where = "sample " + mSamples + ": " + step.line;
+        assertEquals(where, expected, score);
+        assertEquals(where, mLegacy.wifiScoringReport, report.toString());
+        if (mEngineConfig != null) {
+            assertEquals(where, mLegacyConfig.numTicksAtBadRSSI, mEngineConfig.numTicksAtBadRSSI);
+            assertEquals(where, mLegacyConfig.numUserTriggeredWifiDisableBadRSSI,
+                    mEngineConfig.numUserTriggeredWifiDisableBadRSSI);
+            assertEquals(where, mLegacyConfig.numUserTriggeredWifiDisableNotHighRSSI,
+                    mEngineConfig.numUserTriggeredWifiDisableNotHighRSSI);
+        }
+        if (score < MOBILE_SCORE) mLowScores++;
+    }
+}